@@ -0,0 +1,118 @@
+package surf.abm.bench;
+
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.planargraph.Node;
+import sim.field.geo.GeomVectorField;
+import sim.io.geo.ShapeFileImporter;
+import sim.util.Bag;
+import sim.util.geo.MasonGeometry;
+import surf.abm.environment.Building;
+import surf.abm.environment.CompactGraph;
+import surf.abm.environment.GeomPlanarGraphSurf;
+import surf.abm.environment.Junction;
+import surf.abm.environment.Road;
+import surf.abm.environment.StaticGeomVectorField;
+import surf.abm.main.SurfGeometry;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Reads the small datasets that are bundled with the model (in <code>data/</code>) for the benchmarks.
+ *
+ * <p>The model itself ({@link surf.abm.main.SurfABM}) can't be initialised with these data (the buildings don't
+ * have a TYPE column, and the roads don't have ID and cameraID columns), so this class builds the same layers that
+ * the model would (roads, the road network, junctions and buildings) directly. Each dataset is only read once.</p>
+ *
+ * @author Nick Malleson
+ */
+public final class BenchmarkData
+{
+
+    /** The datasets that have roads */
+    public static final String CAMPUS = "campus";
+    public static final String EASEL = "leeds-easel";
+
+    // The size that MASON needs for a field (it doesn't affect anything)
+    static final int WIDTH = 1000, HEIGHT = 1000;
+
+    private static final Map<String, BenchmarkData> DATA = new HashMap<String, BenchmarkData>();
+
+    public final String name;
+    /** The roads, as SurfGeometry[Road] */
+    public final GeomVectorField roads;
+    public final GeomPlanarGraphSurf network;
+    public final CompactGraph compactNetwork;
+    /** The network nodes as SurfGeometry[Junction], with a nearest-neighbour index */
+    public final StaticGeomVectorField junctions;
+    /** The buildings as SurfGeometry[Building], with a nearest-neighbour index (empty if the dataset has none) */
+    public final StaticGeomVectorField buildings;
+
+    private BenchmarkData(String name) throws Exception
+    {
+        this.name = name;
+
+        // Roads
+        GeomVectorField temp = new GeomVectorField(WIDTH, HEIGHT);
+        ShapeFileImporter.read(file(name, "roads").toURI().toURL(), temp);
+        this.roads = new GeomVectorField(WIDTH, HEIGHT);
+        Bag geoms = temp.getGeometries();
+        for (int i = 0; i < geoms.numObjs; i++)
+        {
+            roads.addGeometry(new SurfGeometry<Road>((MasonGeometry) geoms.objs[i], new Road(i, -1)));
+        }
+
+        // Network and junctions (the same way as SurfABM)
+        this.network = new GeomPlanarGraphSurf();
+        network.createFromGeomField(roads);
+        this.junctions = new StaticGeomVectorField(WIDTH, HEIGHT);
+        GeometryFactory fact = new GeometryFactory();
+        for (Iterator<?> it = network.nodeIterator(); it.hasNext(); )
+        {
+            Node node = (Node) it.next();
+            junctions.addGeometry(new SurfGeometry<Junction>(
+                new MasonGeometry(fact.createPoint(node.getCoordinate())), new Junction(node)));
+        }
+        junctions.buildNearestNeighbourIndex();
+        this.compactNetwork = network.compile();
+
+        // Buildings (not all datasets have them)
+        this.buildings = new StaticGeomVectorField(WIDTH, HEIGHT);
+        File b = file(name, "buildings");
+        if (b.exists() && new File(b.getPath().replace(".shp", ".dbf")).exists())
+        {
+            GeomVectorField tempBuildings = new GeomVectorField(WIDTH, HEIGHT);
+            ShapeFileImporter.read(b.toURI().toURL(), tempBuildings);
+            Bag bs = tempBuildings.getGeometries();
+            for (int i = 0; i < bs.numObjs; i++)
+            {
+                buildings.addGeometry(new SurfGeometry<Building>((MasonGeometry) bs.objs[i], new Building(i)));
+            }
+        }
+        buildings.buildNearestNeighbourIndex();
+    }
+
+    /** Get a dataset (reading it the first time). */
+    public static synchronized BenchmarkData get(String name) throws Exception
+    {
+        BenchmarkData d = DATA.get(name);
+        if (d == null)
+        {
+            d = new BenchmarkData(name);
+            DATA.put(name, d);
+        }
+        return d;
+    }
+
+    /**
+     * @return A shapefile in a dataset, e.g. <code>file("campus", "roads")</code>. Paths are relative to the
+     * surf-abm directory (as they are for the model).
+     */
+    public static File file(String dataset, String layer)
+    {
+        return new File("data/" + dataset + "/" + layer + ".shp");
+    }
+
+}
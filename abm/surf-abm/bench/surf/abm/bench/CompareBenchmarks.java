@@ -0,0 +1,121 @@
+package surf.abm.bench;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compares two sets of JMH results (written with <code>-rf json</code>) and fails if any benchmark has got slower
+ * by more than a threshold. Used by <code>benchmark.sh</code> to catch performance regressions:
+ *
+ * <code>java surf.abm.bench.CompareBenchmarks baseline.json new.json [threshold]</code>
+ *
+ * <p>The threshold is a proportion (the default, 0.1, allows benchmarks to be up to 10% slower). Benchmarks that
+ * are only in one of the files are listed but don't fail the comparison. The exit code is 1 if there was a
+ * regression.</p>
+ *
+ * @author Nick Malleson
+ */
+public final class CompareBenchmarks
+{
+
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 2 || args.length > 3)
+        {
+            System.err.println("Usage: CompareBenchmarks <baseline json> <new json> [threshold]");
+            System.exit(2);
+        }
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 0.1;
+        Map<String, Result> baseline = read(new File(args[0]));
+        Map<String, Result> current = read(new File(args[1]));
+
+        int regressions = 0;
+        System.out.println(String.format("%-80s %12s %12s %8s", "Benchmark", "Baseline", "New", "Change"));
+        for (Map.Entry<String, Result> e : current.entrySet())
+        {
+            Result now = e.getValue();
+            Result before = baseline.get(e.getKey());
+            if (before == null)
+            {
+                System.out.println(String.format("%-80s %12s %12.3f %8s", e.getKey(), "-", now.score, "new"));
+                continue;
+            }
+            // How much slower the benchmark is (for throughput, bigger scores are better)
+            double slower = now.higherIsBetter() ? before.score / now.score - 1 : now.score / before.score - 1;
+            boolean regression = slower > threshold;
+            if (regression)
+            {
+                regressions++;
+            }
+            System.out.println(String.format("%-80s %12.3f %12.3f %+7.1f%%%s", e.getKey(), before.score, now.score,
+                100 * slower, regression ? "  SLOWER" : ""));
+        }
+        for (String key : baseline.keySet())
+        {
+            if (!current.containsKey(key))
+            {
+                System.out.println(String.format("%-80s %12.3f %12s %8s", key, baseline.get(key).score, "-", "missing"));
+            }
+        }
+
+        if (regressions > 0)
+        {
+            System.out.println(regressions + " benchmark(s) are more than " + Math.round(threshold * 100) +
+                "% slower than the baseline");
+            System.exit(1);
+        }
+    }
+
+    /** Read a JMH json file. The results are keyed by benchmark, mode and parameters. */
+    private static Map<String, Result> read(File file) throws IOException
+    {
+        // (JMH writes a json array, which the config library can read if it's given a name)
+        String json = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        Map<String, Result> results = new LinkedHashMap<String, Result>();
+        for (Config c : ConfigFactory.parseString("results = " + json).getConfigList("results"))
+        {
+            StringBuilder key = new StringBuilder(c.getString("benchmark")).append(" (").append(c.getString("mode"));
+            if (c.hasPath("params"))
+            {
+                Map<String, String> params = new TreeMap<String, String>();
+                for (String p : c.getConfig("params").root().keySet())
+                {
+                    params.put(p, c.getConfig("params").root().get(p).unwrapped().toString());
+                }
+                for (Map.Entry<String, String> p : params.entrySet())
+                {
+                    key.append(", ").append(p.getKey()).append("=").append(p.getValue());
+                }
+            }
+            key.append(")");
+            results.put(key.toString(), new Result(c.getString("mode"), c.getDouble("primaryMetric.score")));
+        }
+        return results;
+    }
+
+    private static final class Result
+    {
+        final String mode;
+        final double score;
+
+        Result(String mode, double score)
+        {
+            this.mode = mode;
+            this.score = score;
+        }
+
+        boolean higherIsBetter()
+        {
+            return "thrpt".equals(mode);
+        }
+    }
+
+}
@@ -0,0 +1,141 @@
+package surf.abm.bench;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigValueFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import sim.util.Bag;
+import sim.util.geo.GeomPlanarGraphDirectedEdge;
+import surf.abm.agents.UrbanAgent;
+import surf.abm.agents.abbf.ABBFAgent;
+import surf.abm.exceptions.RoutingException;
+import surf.abm.main.SurfABM;
+import surf.abm.main.SurfGeometry;
+import surf.abm.surfutil.Util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks that need the whole model: planning a route between two buildings
+ * ({@link UrbanAgent#findNewPath}), stepping an agent ({@link ABBFAgent#step}), and a whole iteration.
+ *
+ * <p>These initialise the model with a configuration from <code>surf-abm.conf</code> (the one set by ModelConfig,
+ * unless another is given with <code>-p modelConfig=...</code>), so they need that configuration's data. The small
+ * bundled datasets can't be used (see {@link BenchmarkData}). The configuration's outputter writes its files as usual
+ * (see the Output block in the configuration to turn them off).</p>
+ *
+ * <p>JMH runs each combination of parameters in a new JVM, so the route cache size can be changed with
+ * <code>routeCache</code>.</p>
+ *
+ * @author Nick Malleson
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ModelBenchmark
+{
+
+    private static final int ROUTES = 1024;
+
+    /** The model configuration to use (empty means the one in surf-abm.conf) */
+    @Param({""})
+    public String modelConfig;
+
+    /** Whether to use the route cache (if not, every route is found with A*) */
+    @Param({"false", "true"})
+    public boolean routeCache;
+
+    private SurfABM state;
+    private final SurfGeometry<?>[] origins = new SurfGeometry<?>[ROUTES];
+    private final SurfGeometry<?>[] destinations = new SurfGeometry<?>[ROUTES];
+    private final List<ABBFAgent> agents = new ArrayList<ABBFAgent>();
+    private int nextRoute = 0;
+    private int nextAgent = 0;
+
+    @Setup
+    public void setup()
+    {
+        // Configure the model before it is initialised (which happens the first time that SurfABM is used)
+        Config conf = Util.config();
+        String name = modelConfig.isEmpty() ? conf.getString("ModelConfig") : modelConfig;
+        conf = conf.withValue("ModelConfig", ConfigValueFactory.fromAnyRef(name));
+        if (!routeCache)
+        {
+            conf = conf.withValue(name + ".RouteCacheSize", ConfigValueFactory.fromAnyRef(0));
+        }
+        Util.config(conf);
+
+        this.state = new SurfABM(1L);
+        state.start();
+
+        for (int i = 0; i < ROUTES; i++)
+        {
+            origins[i] = SurfABM.getRandomBuilding(state);
+            destinations[i] = SurfABM.getRandomBuilding(state);
+        }
+        Bag agentGeoms = state.agentGeoms().getGeometries();
+        for (int i = 0; i < agentGeoms.numObjs; i++)
+        {
+            Object a = ((SurfGeometry<?>) agentGeoms.objs[i]).theObject();
+            if (a instanceof ABBFAgent)
+            {
+                agents.add((ABBFAgent) a);
+            }
+        }
+        if (agents.isEmpty())
+        {
+            throw new IllegalStateException("Model configuration " + name + " doesn't create any ABBF agents");
+        }
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        state.finish();
+    }
+
+    @Benchmark
+    public scala.collection.immutable.List<GeomPlanarGraphDirectedEdge> findNewPath()
+    {
+        int i = nextRoute++ & (ROUTES - 1);
+        try
+        {
+            return UrbanAgent.findNewPath(origins[i], destinations[i], scala.Option.empty());
+        }
+        catch (Exception e)
+        {
+            if (e instanceof RoutingException)
+            {
+                return null; // (Part of the network is disconnected. That's not what's being measured.)
+            }
+            throw e;
+        }
+    }
+
+    /** Step one agent (without moving the clock on, so they behave as if it's always the same time) */
+    @Benchmark
+    public ABBFAgent agentStep()
+    {
+        ABBFAgent a = agents.get(nextAgent);
+        nextAgent = (nextAgent + 1) % agents.size();
+        a.step(state);
+        return a;
+    }
+
+    /** A whole iteration: every agent, the spatial index, cameras, outputter and clock */
+    @Benchmark
+    public boolean iteration()
+    {
+        return state.schedule.step(state);
+    }
+
+}
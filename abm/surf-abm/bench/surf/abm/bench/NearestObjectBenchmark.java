@@ -0,0 +1,86 @@
+package surf.abm.bench;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import ec.util.MersenneTwisterFast;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import sim.util.geo.MasonGeometry;
+import surf.abm.environment.StaticGeomVectorField;
+import surf.abm.main.GISFunctions;
+import surf.abm.main.SurfGeometry;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long {@link GISFunctions#findNearestObject} takes to find the nearest junction (as agents do when they plan a
+ * route) or building to a random point, and to choose one of the nearest few junctions at random (as flexible
+ * activities do).
+ *
+ * @author Nick Malleson
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class NearestObjectBenchmark
+{
+
+    private static final int POINTS = 1024;
+
+    @Param({BenchmarkData.CAMPUS, BenchmarkData.EASEL})
+    public String dataset;
+
+    private StaticGeomVectorField junctions;
+    private StaticGeomVectorField buildings;
+    private final SurfGeometry<?>[] points = new SurfGeometry<?>[POINTS];
+    private final MersenneTwisterFast random = new MersenneTwisterFast(1L);
+    private int next = 0;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        BenchmarkData data = BenchmarkData.get(dataset);
+        this.junctions = data.junctions;
+        this.buildings = data.buildings;
+        // Random points within the area covered by the roads
+        Envelope e = data.roads.getMBR();
+        GeometryFactory fact = new GeometryFactory();
+        for (int i = 0; i < POINTS; i++)
+        {
+            Coordinate c = new Coordinate(e.getMinX() + random.nextDouble() * e.getWidth(),
+                e.getMinY() + random.nextDouble() * e.getHeight());
+            points[i] = new SurfGeometry<Object>(new MasonGeometry(fact.createPoint(c)), null);
+        }
+    }
+
+    @Benchmark
+    public SurfGeometry<?> nearestJunction()
+    {
+        return GISFunctions.findNearestObject(points[next++ & (POINTS - 1)], junctions, false, null, null);
+    }
+
+    @Benchmark
+    public SurfGeometry<?> nearestBuilding()
+    {
+        if (buildings.getGeometries().isEmpty())
+        {
+            return null; // (Not all datasets have buildings)
+        }
+        return GISFunctions.findNearestObject(points[next++ & (POINTS - 1)], buildings, false, null, null);
+    }
+
+    @Benchmark
+    public MasonGeometry randomNearbyJunction()
+    {
+        // (GISFunctions would read the number of candidates from the model configuration, so use the index directly)
+        return junctions.randomWithinKNearest(points[next++ & (POINTS - 1)], 10, random);
+    }
+
+}
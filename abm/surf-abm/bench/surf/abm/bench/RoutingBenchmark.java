@@ -0,0 +1,81 @@
+package surf.abm.bench;
+
+import com.vividsolutions.jts.planargraph.Node;
+import ec.util.MersenneTwisterFast;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import sim.util.geo.GeomPlanarGraphDirectedEdge;
+import surf.abm.agents.AStar;
+import surf.abm.environment.CompactGraph;
+import surf.abm.environment.Landmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long {@link AStar} takes to find a route between two random junctions on the road networks of the bundled
+ * datasets, with and without landmarks. The same (seeded) pairs of junctions are used every time.
+ *
+ * @author Nick Malleson
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RoutingBenchmark
+{
+
+    // The number of random routes (a power of two)
+    private static final int ROUTES = 1024;
+
+    @Param({BenchmarkData.CAMPUS, BenchmarkData.EASEL})
+    public String dataset;
+
+    /** The number of landmarks to guide the search with (0 for none, see {@link Landmarks}) */
+    @Param({"0", "16"})
+    public int landmarks;
+
+    private AStar astar;
+    private final Node[] origins = new Node[ROUTES];
+    private final Node[] destinations = new Node[ROUTES];
+    private final int[] originIds = new int[ROUTES];
+    private final int[] destinationIds = new int[ROUTES];
+    private int next = 0;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        CompactGraph graph = BenchmarkData.get(dataset).compactNetwork;
+        this.astar = new AStar(graph, landmarks == 0 ? null : Landmarks.build(graph, landmarks));
+        MersenneTwisterFast random = new MersenneTwisterFast(1L);
+        for (int i = 0; i < ROUTES; i++)
+        {
+            originIds[i] = random.nextInt(graph.getNumNodes());
+            destinationIds[i] = random.nextInt(graph.getNumNodes());
+            origins[i] = graph.getNode(originIds[i]);
+            destinations[i] = graph.getNode(destinationIds[i]);
+        }
+    }
+
+    /** The route as a list of edges (what agents use) */
+    @Benchmark
+    public List<GeomPlanarGraphDirectedEdge> astarPath()
+    {
+        int i = next++ & (ROUTES - 1);
+        return astar.astarPath(origins[i], destinations[i]);
+    }
+
+    /** The route as edge slots in the compact graph (without building the list of edges) */
+    @Benchmark
+    public int[] astarSlots()
+    {
+        int i = next++ & (ROUTES - 1);
+        return astar.astarSlots(originIds[i], destinationIds[i]);
+    }
+
+}
@@ -0,0 +1,50 @@
+package surf.abm.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import sim.field.geo.GeomVectorField;
+import sim.io.geo.ShapeFileImporter;
+
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long {@link ShapeFileImporter#read} takes to read the bundled shapefiles (the model reads its buildings and
+ * roads this way when it starts).
+ *
+ * @author Nick Malleson
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ShapefileBenchmark
+{
+
+    /** dataset/layer */
+    @Param({"campus/buildings", "campus/roads", "leeds-easel/roads"})
+    public String file;
+
+    private URL url;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        String[] parts = file.split("/");
+        this.url = BenchmarkData.file(parts[0], parts[1]).toURI().toURL();
+    }
+
+    @Benchmark
+    public GeomVectorField read() throws Exception
+    {
+        GeomVectorField field = new GeomVectorField(BenchmarkData.WIDTH, BenchmarkData.HEIGHT);
+        ShapeFileImporter.read(url, field);
+        return field;
+    }
+
+}
@@ -0,0 +1,95 @@
+package surf.abm.bench;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import ec.util.MersenneTwisterFast;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import sim.field.geo.GeomVectorField;
+import sim.util.geo.MasonGeometry;
+import sim.util.geo.PointMoveTo;
+import surf.abm.environment.MovingGeomVectorField;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long {@link GeomVectorField#updateSpatialIndex()} takes once some agents have moved. The model does this once
+ * per iteration for the layer of agents.
+ *
+ * <p>The <code>index</code> is either GeoMason's quadtree (which is built again from every point) or the grid in
+ * {@link MovingGeomVectorField} (which only looks at the points that have moved). <code>moving</code> is the
+ * percentage of agents that move in each iteration.</p>
+ *
+ * @author Nick Malleson
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SpatialIndexBenchmark
+{
+
+    @Param({"1000", "10000", "100000"})
+    public int agents;
+
+    @Param({"quadtree", "grid"})
+    public String index;
+
+    @Param({"10", "100"})
+    public int moving;
+
+    private GeomVectorField field;
+    private MasonGeometry[] points;
+    private Envelope area;
+    private final MersenneTwisterFast random = new MersenneTwisterFast(1L);
+    private final PointMoveTo moveTo = new PointMoveTo();
+
+    @Setup
+    public void setup() throws Exception
+    {
+        this.area = BenchmarkData.get(BenchmarkData.EASEL).roads.getMBR();
+        this.field = "grid".equals(index) ?
+            new MovingGeomVectorField(BenchmarkData.WIDTH, BenchmarkData.HEIGHT, 100) :
+            new GeomVectorField(BenchmarkData.WIDTH, BenchmarkData.HEIGHT);
+        this.points = new MasonGeometry[agents];
+        GeometryFactory fact = new GeometryFactory();
+        for (int i = 0; i < agents; i++)
+        {
+            points[i] = new MasonGeometry(fact.createPoint(new Coordinate(
+                area.getMinX() + random.nextDouble() * area.getWidth(),
+                area.getMinY() + random.nextDouble() * area.getHeight())));
+            field.addGeometry(points[i]);
+        }
+        field.updateSpatialIndex();
+    }
+
+    /** Move some of the agents a little (as they do in an iteration), outside of the measured time */
+    @Setup(Level.Invocation)
+    public void move()
+    {
+        double step = area.getWidth() / 1000;
+        for (int i = 0; i < agents * moving / 100; i++)
+        {
+            MasonGeometry p = points[random.nextInt(agents)];
+            Coordinate c = p.getGeometry().getCoordinate();
+            moveTo.setCoordinate(new Coordinate(c.x + (random.nextDouble() - 0.5) * step,
+                c.y + (random.nextDouble() - 0.5) * step));
+            field.setGeometryLocation(p, moveTo);
+        }
+    }
+
+    @Benchmark
+    public GeomVectorField updateSpatialIndex()
+    {
+        field.updateSpatialIndex();
+        return field;
+    }
+
+}
@@ -0,0 +1,52 @@
+package surf.abm.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import scala.Tuple2;
+import surf.abm.agents.abbf.TimeProfile;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long {@link TimeProfile#calcIntensity(double)} takes for a typical (work) profile. Every activity calls this
+ * for every agent at every iteration.
+ *
+ * @author Nick Malleson
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TimeProfileBenchmark
+{
+
+    private TimeProfile profile;
+    private double time = 0;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup()
+    {
+        // The same shape as the work profiles in the agent loaders
+        this.profile = new TimeProfile(new Tuple2[] {
+            new Tuple2<Object, Object>(6d, 0d), new Tuple2<Object, Object>(8d, 1d),
+            new Tuple2<Object, Object>(16d, 1d), new Tuple2<Object, Object>(22d, 0d) });
+    }
+
+    @Benchmark
+    public double calcIntensity()
+    {
+        // Move through the day in 5 minute steps (as the model does)
+        time += 5d / 60d;
+        if (time >= 24)
+        {
+            time = 0;
+        }
+        return profile.calcIntensity(time);
+    }
+
+}
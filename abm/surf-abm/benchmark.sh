@@ -0,0 +1,58 @@
+#!/bin/bash
+# Run the JMH benchmarks (see bench/surf/abm/bench). The model needs to have been built into ./build/ first (as
+# for run.sh). The JMH jars are downloaded into lib/jmh/ the first time that this is run.
+#
+# Any arguments are passed on to JMH. E.g.:
+#   ./benchmark.sh                                  # Everything (ModelBenchmark needs the data for ModelConfig)
+#   ./benchmark.sh Routing -p dataset=campus        # Just the routing benchmarks, on the campus data
+#   ./benchmark.sh -l                               # List the benchmarks
+#   ./benchmark.sh -h                               # JMH's help
+#
+# Results are written to results/bench/. To fail if anything is more than 10% slower than a previous run (e.g. to
+# check for performance regressions before merging) give the previous results in BASELINE:
+#   BASELINE=results/bench/1234.json ./benchmark.sh Routing NearestObject TimeProfile
+set -e
+
+JMH_VERSION=1.21
+JMH_DIR=./lib/jmh
+THRESHOLD=${THRESHOLD:-0.1} # How much slower than the baseline is too slow
+
+# Scala's library (the model is mostly scala)
+SCALA_LIB=${SCALA_HOME:+$SCALA_HOME/lib}
+SCALA_LIB=${SCALA_LIB:-$(dirname "$(readlink -f "$(which scala)")")/../lib}
+
+# Download JMH if necessary
+if [ ! -f "$JMH_DIR/jmh-core-$JMH_VERSION.jar" ]; then
+  echo "Downloading JMH $JMH_VERSION into $JMH_DIR"
+  mkdir -p "$JMH_DIR"
+  for jar in org/openjdk/jmh/jmh-core/$JMH_VERSION/jmh-core-$JMH_VERSION.jar \
+             org/openjdk/jmh/jmh-generator-annprocess/$JMH_VERSION/jmh-generator-annprocess-$JMH_VERSION.jar \
+             net/sf/jopt-simple/jopt-simple/4.6/jopt-simple-4.6.jar \
+             org/apache/commons/commons-math3/3.2/commons-math3-3.2.jar ; do
+    curl -sSfL -o "$JMH_DIR/$(basename $jar)" "https://repo1.maven.org/maven2/$jar"
+  done
+fi
+
+CP=../resources/mason/mason/build/:\
+../resources/mason/contrib/geomason/build/:\
+../resources/mason_resources/*:\
+./lib/*:\
+$JMH_DIR/*:\
+$SCALA_LIB/*:\
+./build/:\
+../resources/config/classes/
+
+# Compile the benchmarks (JMH's annotation processor generates the code that runs them)
+rm -rf ./build/bench
+mkdir -p ./build/bench
+javac -cp "$CP" -d ./build/bench bench/surf/abm/bench/*.java
+
+# Run them
+mkdir -p results/bench
+OUT=results/bench/$(date +%s).json
+java -Xmx4G -cp "$CP:./build/bench" org.openjdk.jmh.Main -rf json -rff "$OUT" "$@"
+
+# Compare with the baseline
+if [ -n "$BASELINE" ] && [ -f "$OUT" ]; then
+  java -cp "$CP:./build/bench" surf.abm.bench.CompareBenchmarks "$BASELINE" "$OUT" "$THRESHOLD"
+fi
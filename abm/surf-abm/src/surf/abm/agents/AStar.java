@@ -12,221 +12,297 @@
  **/
 package surf.abm.agents;
 
-import com.vividsolutions.jts.geom.Coordinate;
-import com.vividsolutions.jts.planargraph.DirectedEdgeStar;
 import com.vividsolutions.jts.planargraph.Node;
 import sim.util.geo.GeomPlanarGraphDirectedEdge;
+import surf.abm.environment.CompactGraph;
+import surf.abm.environment.GeomPlanarGraphSurf;
+import surf.abm.environment.Landmarks;
+import surf.abm.exceptions.RoutingException;
+import surf.abm.surfutil.IndexedMinHeap;
+import surf.abm.surfutil.Metrics;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 
 
+/**
+ * A* search over a road network that has been compiled into a {@link CompactGraph}.
+ *
+ * <p>Nodes are referred to by their integer ids (see {@link GeomPlanarGraphSurf#getNodeId(Node)}), and the
+ * information about each node (cost so far, estimated total cost, how it was reached) is held in primitive arrays
+ * rather than in wrapper objects. The open set is an indexed binary heap, so finding the next node to expand,
+ * checking whether a node is open and decreasing its cost are all O(log n) or better, rather than the O(n) list
+ * scans that the original implementation used. Neighbours are read straight from the CompactGraph's arrays, so
+ * expanding a node does not touch any JTS objects.</p>
+ *
+ * <p>The arrays are held in a {@link Workspace} that is reused by every search that runs on the same thread,
+ * so a search does not allocate anything other than the returned path. Each search marks the nodes that it touches
+ * with a unique search number, which means that the arrays never need to be cleared between searches.</p>
+ *
+ * <p>If {@link Landmarks} are given then the estimate of the distance to the goal is the larger of the straight-line
+ * distance and the landmarks' estimate, which is usually much closer to the real distance, so far fewer nodes are
+ * expanded. Both estimates never overestimate, so the paths are still the shortest ones.</p>
+ */
 @SuppressWarnings("restriction")
 public class AStar
 {
 
-    public ArrayList<GeomPlanarGraphDirectedEdge> astarPath(Node start, Node goal)
+    /** Search state, created once per thread and reused by every search on that thread. */
+    private static final ThreadLocal<Workspace> WORKSPACE = new ThreadLocal<Workspace>()
+    {
+        @Override
+        protected Workspace initialValue()
+        {
+            return new Workspace();
+        }
+    };
+
+    private static final int[] NO_PATH = new int[0];
+
+    // How long searches take and how many nodes they expand (see Metrics)
+    private static final Metrics.Timer SEARCH_TIME = Metrics.timer("routing.astar");
+    private static final Metrics.Histogram EXPANSIONS = Metrics.histogram("routing.astar.expansions");
+
+    /** The number of landmarks that each search uses (the ones that give the best estimate from start to goal) */
+    static final int ACTIVE_LANDMARKS = 4;
+
+    private final CompactGraph graph;
+    private final Landmarks landmarks;
+
+    /**
+     * @param graph The compiled network to search. The nodes passed to the search methods must belong to the
+     *              GeomPlanarGraphSurf that it was compiled from.
+     */
+    public AStar(CompactGraph graph)
+    {
+        this(graph, null);
+    }
+
+    /**
+     * @param graph The compiled network to search
+     * @param landmarks Landmarks for the network, to guide the search (or null to just use the straight-line distance)
+     */
+    public AStar(CompactGraph graph, Landmarks landmarks)
+    {
+        this.graph = graph;
+        this.landmarks = landmarks;
+    }
+
+    /** The number of nodes that the last search on this thread expanded (e.g. to see how well landmarks work) */
+    public static int lastExpanded()
+    {
+        return WORKSPACE.get().expanded;
+    }
+
+    /**
+     * Find the shortest path between two nodes.
+     *
+     * @param start The node to start from
+     * @param goal The node to go to
+     * @return The directed edges that make up the path, in order, or an empty list if there is no path
+     * @throws RoutingException If either of the nodes is null
+     */
+    public ArrayList<GeomPlanarGraphDirectedEdge> astarPath(Node start, Node goal) throws RoutingException
     {
 
         // initial check
         if (start == null || goal == null)
         {
-            System.out.println("Error: invalid node provided to AStar");
+            throw new RoutingException("Invalid node provided to AStar (start: " + start + ", goal: " + goal + ")");
         }
 
-        // set up the containers for the result
-        ArrayList<GeomPlanarGraphDirectedEdge> result =
-            new ArrayList<GeomPlanarGraphDirectedEdge>();
-
-        // containers for the metainformation about the Nodes relative to the
-        // A* search
-        HashMap<Node, AStarNodeWrapper> foundNodes =
-            new HashMap<Node, AStarNodeWrapper>();
-
-        AStarNodeWrapper startNode = new AStarNodeWrapper(start);
-        AStarNodeWrapper goalNode = new AStarNodeWrapper(goal);
-        foundNodes.put(start, startNode);
-        foundNodes.put(goal, goalNode);
+        final int[] slots = astarSlots(GeomPlanarGraphSurf.getNodeId(start), GeomPlanarGraphSurf.getNodeId(goal));
+        final ArrayList<GeomPlanarGraphDirectedEdge> result = new ArrayList<GeomPlanarGraphDirectedEdge>(slots.length);
+        for (int slot : slots)
+        {
+            result.add(graph.getDirectedEdge(slot));
+        }
+        return result;
+    }
 
-        startNode.gx = 0;
-        startNode.hx = heuristic(start, goal);
-        startNode.fx = heuristic(start, goal);
+    /**
+     * Find the shortest path between two nodes.
+     *
+     * @param startId The id of the node to start from
+     * @param goalId The id of the node to go to
+     * @return The CompactGraph slots (directed edges) that make up the path, in order, or an empty array if
+     * there is no path (or the nodes are the same)
+     */
+    public int[] astarSlots(int startId, int goalId)
+    {
+        final Workspace w = WORKSPACE.get();
+        final long start = SEARCH_TIME.start();
+        try
+        {
+            return search(w, startId, goalId);
+        }
+        finally
+        {
+            SEARCH_TIME.stop(start);
+            EXPANSIONS.record(w.expanded);
+        }
+    }
 
-        // A* containers: nodes to be investigated, nodes that have been investigated
-        ArrayList<AStarNodeWrapper> closedSet = new ArrayList<AStarNodeWrapper>(),
-            openSet = new ArrayList<AStarNodeWrapper>();
-        openSet.add(startNode);
+    private int[] search(Workspace w, int startId, int goalId)
+    {
+        final int search = w.newSearch(graph.getNumNodes());
+        final IndexedMinHeap openSet = w.openSet;
+        w.numActive = landmarks == null ? 0 : landmarks.selectActive(startId, goalId, w.active, w.activeScores);
 
+        w.discover(startId, search);
+        w.gx[startId] = 0;
+        w.hx[startId] = heuristic(w, startId, goalId);
+        openSet.insertOrDecrease(startId, w.hx[startId]);
 
-        while (openSet.size() > 0)
+        while (!openSet.isEmpty())
         { // while there are reachable nodes to investigate
 
-            AStarNodeWrapper x = findMin(openSet); // find the shortest path so far
-            if (x.node == goal)
+            final int x = openSet.pollMin(); // find the shortest path so far
+            if (x == goalId)
             { // we have found the shortest possible path to the goal!
                 // Reconstruct the path and send it back.
-                return reconstructPath(goalNode);
+                return reconstructPath(w, goalId);
             }
-            openSet.remove(x); // maintain the lists
-            closedSet.add(x);
+            w.closed[x] = search;
+            w.expanded++;
 
             // check all the edges out from this Node
-            DirectedEdgeStar des = x.node.getOutEdges();
-            for (Object o : des.getEdges().toArray())
+            for (int s = graph.firstSlot(x), end = graph.endSlot(x); s < end; s++)
             {
-                GeomPlanarGraphDirectedEdge l = (GeomPlanarGraphDirectedEdge) o;
-                Node next = null;
-                next = l.getToNode();
+                final int nextId = graph.target(s);
 
-                // get the A* meta information about this Node
-                AStarNodeWrapper nextNode;
-                if (foundNodes.containsKey(next))
-                {
-                    nextNode = foundNodes.get(next);
-                } else
-                {
-                    nextNode = new AStarNodeWrapper(next);
-                    foundNodes.put(next, nextNode);
-                }
-
-                if (closedSet.contains(nextNode)) // it has already been considered
-                {
-                    continue;
-                }
-
-                // otherwise evaluate the cost of this node/edge combo
-                double tentativeCost = x.gx + length(l);
                 boolean better = false;
-
-                if (!openSet.contains(nextNode))
-                {
-                    openSet.add(nextNode);
-                    nextNode.hx = heuristic(next, goal);
+                final double tentativeCost;
+                if (w.found[nextId] != search)
+                { // First time this node has been seen
+                    w.discover(nextId, search);
+                    w.hx[nextId] = heuristic(w, nextId, goalId);
+                    tentativeCost = w.gx[x] + graph.length(s);
                     better = true;
-                } else if (tentativeCost < nextNode.gx)
+                } else if (w.closed[nextId] == search) // it has already been considered
                 {
-                    better = true;
+                    continue;
+                } else
+                { // otherwise evaluate the cost of this node/edge combo
+                    tentativeCost = w.gx[x] + graph.length(s);
+                    better = tentativeCost < w.gx[nextId];
                 }
 
                 // store A* information about this promising candidate node
                 if (better)
                 {
-                    nextNode.cameFrom = x;
-                    nextNode.edgeFrom = l;
-                    nextNode.gx = tentativeCost;
-                    nextNode.fx = nextNode.gx + nextNode.hx;
+                    w.cameFrom[nextId] = x;
+                    w.slotFrom[nextId] = s;
+                    w.gx[nextId] = tentativeCost;
+                    openSet.insertOrDecrease(nextId, tentativeCost + w.hx[nextId]);
                 }
             }
         }
 
-        return result;
+        return NO_PATH;
     }
 
 
 
     /**
-     * Takes the information about the given node n and returns the path that
-     * found it.
+     * Follows the chain of edges that were used to reach the given node back to the start of the search.
+     * @param w the workspace that holds the results of the search
      * @param n the end point of the path
-     * @return an ArrayList of GeomPlanarGraphDirectedEdges that lead from the
-     * given Node to the Node from which the serach began
+     * @return the slots of the directed edges that lead from the
+     * Node from which the search began to the given Node
      */
-    ArrayList<GeomPlanarGraphDirectedEdge> reconstructPath(AStarNodeWrapper n)
+    int[] reconstructPath(Workspace w, int n)
     {
-        ArrayList<GeomPlanarGraphDirectedEdge> result =
-            new ArrayList<GeomPlanarGraphDirectedEdge>();
-        AStarNodeWrapper x = n;
-        while (x.cameFrom != null)
+        int length = 0;
+        for (int x = n; w.cameFrom[x] != -1; x = w.cameFrom[x])
         {
-            result.add(0, x.edgeFrom); // add this edge to the front of the list
-            x = x.cameFrom;
+            length++;
+        }
+        final int[] result = new int[length];
+        int x = n;
+        while (w.cameFrom[x] != -1)
+        { // edges are found from the goal backwards
+            result[--length] = w.slotFrom[x];
+            x = w.cameFrom[x];
         }
-
         return result;
     }
 
 
 
-    /**
-     * Measure of the estimated distance between two Nodes. Extremely basic, just
-     * Euclidean distance as implemented here.
-     * @param x
-     * @param y
-     * @return notional "distance" between the given nodes.
-     */
-    double heuristic(Node x, Node y)
+    /** The estimate used by a search: the straight-line distance, or the landmarks' estimate if that is larger */
+    private double heuristic(Workspace w, int x, int goal)
     {
-        Coordinate xnode = x.getCoordinate();
-        Coordinate ynode = y.getCoordinate();
-        return Math.sqrt(Math.pow(xnode.x - ynode.x, 2)
-            + Math.pow(xnode.y - ynode.y, 2));
+        final double h = graph.distance(x, goal);
+        if (w.numActive == 0)
+        {
+            return h;
+        }
+        return Math.max(h, landmarks.lowerBound(x, goal, w.active, w.numActive));
     }
 
 
 
     /**
-     * @param e
-     * @return The length of an edge
+     * The A* meta information about the Nodes, stored in arrays indexed by node id. A node's entries are only
+     * valid if it has been discovered by the current search (i.e. <code>found[id] == search</code>), so nothing
+     * has to be reset between searches.
      */
-    double length(GeomPlanarGraphDirectedEdge e)
+    static final class Workspace
     {
-        Coordinate xnode = e.getFromNode().getCoordinate();
-        Coordinate ynode = e.getToNode().getCoordinate();
-        return Math.sqrt(Math.pow(xnode.x - ynode.x, 2)
-            + Math.pow(xnode.y - ynode.y, 2));
-    }
-
 
-
-    /**
-     *  Considers the list of Nodes open for consideration and returns the node
-     *  with minimum fx value
-     * @param set list of open Nodes
-     * @return
-     */
-    AStarNodeWrapper findMin(ArrayList<AStarNodeWrapper> set)
-    {
-        double min = 100000;
-        AStarNodeWrapper minNode = null;
-        for (AStarNodeWrapper n : set)
+        // the search that last discovered/closed each node
+        int[] found = new int[0];
+        int[] closed = new int[0];
+        // the Node from which this Node was most profitably linked (-1 for the start node)
+        int[] cameFrom = new int[0];
+        // the slot (directed edge) by which this Node was discovered
+        int[] slotFrom = new int[0];
+        double[] gx = new double[0], hx = new double[0];
+        // the open set: nodes to be investigated, ordered by fx = gx + hx
+        final IndexedMinHeap openSet = new IndexedMinHeap(1024);
+        // the landmarks that the current search is using (if there are any)
+        final int[] active = new int[ACTIVE_LANDMARKS];
+        final double[] activeScores = new double[ACTIVE_LANDMARKS];
+        int numActive = 0;
+        // the number of nodes that the current search has expanded
+        int expanded = 0;
+
+        private int search = 0;
+
+        /** Start a new search over a graph with the given number of nodes and return its unique number */
+        int newSearch(int numNodes)
         {
-            if (n.fx < min)
+            openSet.clear();
+            expanded = 0;
+            if (numNodes > found.length)
             {
-                min = n.fx;
-                minNode = n;
+                grow(numNodes);
+            }
+            if (++search == Integer.MAX_VALUE)
+            { // Have run out of search numbers (unlikely!). Start again.
+                Arrays.fill(found, 0);
+                Arrays.fill(closed, 0);
+                search = 1;
             }
+            return search;
         }
-        return minNode;
-    }
-
-
-
-    /**
-     * A wrapper to contain the A* meta information about the Nodes
-     *
-     */
-    class AStarNodeWrapper
-    {
-
-        // the underlying Node associated with the metainformation
-        Node node;
-        // the Node from which this Node was most profitably linked
-        AStarNodeWrapper cameFrom;
-        // the edge by which this Node was discovered
-        GeomPlanarGraphDirectedEdge edgeFrom;
-        double gx, hx, fx;
-
 
+        void discover(int id, int search)
+        {
+            found[id] = search;
+            cameFrom[id] = -1;
+        }
 
-        public AStarNodeWrapper(Node n)
+        private void grow(int n)
         {
-            node = n;
-            gx = 0;
-            hx = 0;
-            fx = 0;
-            cameFrom = null;
-            edgeFrom = null;
+            found = Arrays.copyOf(found, n);
+            closed = Arrays.copyOf(closed, n);
+            cameFrom = Arrays.copyOf(cameFrom, n);
+            slotFrom = Arrays.copyOf(slotFrom, n);
+            gx = Arrays.copyOf(gx, n);
+            hx = Arrays.copyOf(hx, n);
         }
 
     }
-}
\ No newline at end of file
+}
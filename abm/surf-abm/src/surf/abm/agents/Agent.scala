@@ -1,11 +1,14 @@
 package surf.abm.agents
 
+import java.util.concurrent.atomic.AtomicInteger
+
 import com.vividsolutions.jts.geom.Coordinate
+import ec.util.MersenneTwisterFast
 import org.apache.log4j.Logger
 import sim.engine.Steppable
 import sim.util.geo.{MasonGeometry, PointMoveTo}
 import surf.abm.environment.Building
-import surf.abm.main.{SurfABM, SurfGeometry}
+import surf.abm.main.{Parameters, SurfABM, SurfGeometry}
 
 /**
   * Base class for all agents
@@ -15,25 +18,45 @@ import surf.abm.main.{SurfABM, SurfGeometry}
 abstract class Agent (val state:SurfABM, val home:SurfGeometry[Building]) extends Steppable with Serializable {
 
   // A unique id for each agent with a public accessor.
-  private val _id : Int = Agent.uniqueID()
+  private val _id : Int = Agent.uniqueID(state)
   def id() : Int = this._id
 
   // The location where the agent currently is. Begins at 'home'. It is protected, with a public accessor.
   // Important to create a new MasonGeometry, not use the home geometry. Otherwise bad things happen!
   protected var _location: SurfGeometry[_ <: Any] =  SurfGeometry(new MasonGeometry(this.home.getGeometry().getCentroid()), null)
   def location() = this._location // accessor to location
+
+  // The random number generator that the agent should use while it is being stepped. This is the model's generator
+  // unless the agents are being stepped in parallel (see surf.abm.main.AgentScheduler).
+  private var _random: MersenneTwisterFast = null
+  def random: MersenneTwisterFast = if (this._random == null) this.state.random else this._random
+  def random_=(r: MersenneTwisterFast): Unit = this._random = r
   //protected def location_=(g:MasonGeometry) { _location = g } // protected mutator
 
+  /**
+    * The iteration when the agent next needs to be stepped. Agents that know they won't do anything for a while can
+    * set this, and if agents are event-driven (see [[surf.abm.main.AgentScheduler]]) they are left alone until then.
+    * Otherwise they are stepped every iteration.
+    */
+  var nextWake: Long = 0
+
+  /**
+    * The basic (walking) rate that agents move at. It is set by the 'BaseMoveRate' parameter (see
+    * [[surf.abm.main.Parameters]]; it can be different in each run) when the agent is created.
+    */
+  private val _baseMoveRate = Parameters(state.replication, "BaseMoveRate")
+
   /**
     * The default (aka 'base') move rate. For the Agent super class, this is set to the
     * 'BaseMoveRate' parameter. See [[surf.abm.agents.Agent._baseMoveRate]] for details. Be careful about changing
     * this value as sub-classes will probably use it to work out what walking pace is, and hence other
     * relative transport speeds. See an example in [[surf.abm.agents.abbf.ABBFAgent]].
     */
-  protected def moveRate() : Double = Agent._baseMoveRate
+  protected def moveRate() : Double = this._baseMoveRate
 
-  // Convenience for moving a point. Don't want to create this object each iteration.
-  // val pmt : PointMoveTo = new PointMoveTo()
+  // Convenience for moving a point. Don't want to create these objects each iteration.
+  private val _moveToCoord = new Coordinate()
+  private val _moveTo = new PointMoveTo(_moveToCoord)
 
   /**
     * Move the agent to the given coordinate
@@ -41,17 +64,24 @@ abstract class Agent (val state:SurfABM, val home:SurfGeometry[Building]) extend
     * @param c The Coordinate to move to
     * @return Unit
     */
-  def moveToCoordinate(c : Coordinate) : Unit = {
-    //this.pmt.setCoordinate(c)
-    //this.location.getGeometry().apply(this.pmt)
-    //this.location.geometry.geometryChanged()
-    val p = new PointMoveTo()
-    p.setCoordinate(c)
-    this.location.getGeometry().apply(p)
-    this.location.geometry.geometryChanged()
+  def moveToCoordinate(c : Coordinate) : Unit = this.moveTo(c.x, c.y)
 
+  /**
+    * Move the agent to the given position. The agent's point is moved in place, so nothing is created.
+    */
+  def moveTo(x: Double, y: Double) : Unit = {
+    this._moveToCoord.x = x
+    this._moveToCoord.y = y
+    // Move through the agent field so that it knows to update its spatial index
+    this.state.agentGeoms.setGeometryLocation(this.location, this._moveTo)
   }
 
+  /**
+    * Called when the agent leaves the run (e.g. it has moved to another region of a distributed model; see
+    * [[surf.abm.main.RegionAgents]]) so that it can give back anything that the run keeps for it.
+    */
+  def release(): Unit = {}
+
   override def toString() = s"Agent [${this.id()}]"
 
 }
@@ -63,19 +93,19 @@ object Agent extends Serializable {
   //val LOG: Logger = Logger.getLogger(this.getClass);
   def LOG() = AgentLog
 
+  /** A unique ID that can be given to each agent (unique within each run of the model; see Replication) */
+  private val newIDCounter = () => new AtomicInteger(-1) // First ID is now zero.
+  private def uniqueID(state: SurfABM) : Int = state.replication.state(this, newIDCounter).incrementAndGet()
+
   /**
-    * The basic (walking) rate that agents move at. It is by the 'BaseMoveRate' in the surf-abm.conf file.
-    * This is accessed by the [[surf.abm.agents.Agent.moveRate()]] function which
-    * can be overidden by agents who are able to move at different rates for whatever reason.
-    * */
-  private val _baseMoveRate = SurfABM.conf.getDouble(SurfABM.ModelConfig+".BaseMoveRate")
-
-  /** A unique ID that can be given to each agent */
-  private var _uniqueID : Int= -1 // First ID is now zero.
-  private def uniqueID() : Int = {
-    _uniqueID+=1
-    _uniqueID
-  }
+    * Use up the ID that the next agent would have been given, e.g. because that agent isn't being created in this
+    * process (see [[surf.abm.main.AgentScheduler.newAgent()]]), so that the other agents get the same IDs as they would
+    * have done.
+    */
+  def skipID(state: SurfABM): Unit = uniqueID(state)
+
+  /** The number of IDs that have been given out (or skipped) in the model's run, i.e. the agents' IDs are below this */
+  def numIDs(state: SurfABM): Int = state.replication.state(this, newIDCounter).get() + 1
 
 }
 
@@ -0,0 +1,153 @@
+package surf.abm.agents
+
+import java.util
+
+import com.vividsolutions.jts.geom.Coordinate
+import sim.util.geo.GeomPlanarGraphDirectedEdge
+import surf.abm.environment.{GeomPlanarGraphEdgeSurf, Road}
+
+import scala.collection.mutable
+
+/**
+  * A path (a list of roads) flattened into a single line, so that an agent can move along it by just saying how
+  * far along it they are. The points along the line are in the order that the agent passes them (the direction that
+  * each road is travelled in is worked out when the path is compiled), with the distance to each one from the start.
+  *
+  * Where one road ends and the next one begins the distance doesn't change, so if the roads don't quite meet the
+  * agent jumps from the end of one to the start of the next (as they always have).
+  *
+  * The roads that have cameras on them are remembered, with the distance at which the agent reaches them. So are all
+  * of the roads, if they are being counted (see [[surf.abm.main.RoadRecorder]]).
+  *
+  * @param xs The x coordinates of the points along the line
+  * @param ys The y coordinates
+  * @param distances The distance along the path to each point
+  * @param cameraDistances The distances at which the agent reaches roads with cameras
+  * @param cameraIDs The cameras on those roads (each camera is only included the first time that it is reached)
+  * @param roadDistances The distances at which the agent starts going along each road (if roads are being counted)
+  * @param roadRows The rows of those roads in the road counts
+  */
+@SerialVersionUID(1L)
+class CompiledPath private(
+                            private val xs: Array[Double],
+                            private val ys: Array[Double],
+                            private val distances: Array[Double],
+                            private val cameraDistances: Array[Double],
+                            private val cameraIDs: Array[Int],
+                            private val roadDistances: Array[Double],
+                            private val roadRows: Array[Int]
+                          ) extends Serializable {
+
+  /** The total length of the path */
+  val length: Double = if (distances.isEmpty) 0d else distances(distances.length - 1)
+
+  def numCameras: Int = cameraIDs.length
+
+  /** The distance along the path at which the agent reaches the i'th camera */
+  def cameraDistance(i: Int): Double = cameraDistances(i)
+
+  def cameraID(i: Int): Int = cameraIDs(i)
+
+  /** The number of roads that are being counted on the path (0 if roads aren't being counted) */
+  def numRoads: Int = roadRows.length
+
+  /** The distance along the path at which the agent starts going along the i'th road */
+  def roadDistance(i: Int): Double = roadDistances(i)
+
+  /** The row of the i'th road in the road counts */
+  def roadRow(i: Int): Int = roadRows(i)
+
+  /**
+    * Find the segment of the line (the part between point <code>i</code> and <code>i+1</code>) that the given
+    * distance is on. Agents only move forwards, so the search starts at the segment that they were on last time.
+    *
+    * @param distance How far along the path
+    * @param from The segment to start looking from
+    */
+  def segmentAt(distance: Double, from: Int): Int = {
+    var s = from
+    while (s < distances.length - 2 && distances(s + 1) < distance) {
+      s += 1
+    }
+    s
+  }
+
+  /** The x coordinate of the point at <code>distance</code>, which must be on the given segment */
+  def x(segment: Int, distance: Double): Double = interpolate(xs, segment, distance)
+
+  /** The y coordinate of the point at <code>distance</code>, which must be on the given segment */
+  def y(segment: Int, distance: Double): Double = interpolate(ys, segment, distance)
+
+  private def interpolate(values: Array[Double], segment: Int, distance: Double): Double = {
+    val d0 = distances(segment)
+    val d1 = distances(segment + 1)
+    if (d1 <= d0) {
+      return values(segment + 1)
+    }
+    val f = math.min(1d, math.max(0d, (distance - d0) / (d1 - d0)))
+    values(segment) + (values(segment + 1) - values(segment)) * f
+  }
+
+}
+
+object CompiledPath {
+
+  /**
+    * Compile a path.
+    *
+    * @param path The roads to follow (e.g. from [[surf.abm.agents.UrbanAgent.findNewPath()]])
+    * @param start Where the agent is starting from. Used to decide which way to go along the first road if it
+    *              isn't clear from the path.
+    * @param roadRows The row of each road (its geometry) in the road counts, or null if roads aren't being counted
+    *                 (see [[surf.abm.main.RoadRecorder]])
+    */
+  def apply(path: Seq[GeomPlanarGraphDirectedEdge], start: Coordinate,
+            roadRows: util.IdentityHashMap[AnyRef, Integer] = null): CompiledPath = {
+    val xs = new mutable.ArrayBuilder.ofDouble()
+    val ys = new mutable.ArrayBuilder.ofDouble()
+    val distances = new mutable.ArrayBuilder.ofDouble()
+    val cameraDistances = new mutable.ArrayBuilder.ofDouble()
+    val cameraIDs = new mutable.ArrayBuilder.ofInt()
+    val cameras = mutable.Set[Int]()
+    val roadDistances = new mutable.ArrayBuilder.ofDouble()
+    val rows = new mutable.ArrayBuilder.ofInt()
+
+    var distance = 0d
+    var position = start // Where the agent will be when they reach the road
+    for (directedEdge <- path) {
+      val edge = directedEdge.getEdge.asInstanceOf[GeomPlanarGraphEdgeSurf[Road]]
+      val coords = edge.getLine.getCoordinates
+      // The road should start at the node that the agent is coming from. If it doesn't (e.g. the path doesn't join
+      // up) go from whichever end is closest to where the agent will be.
+      val from = if (directedEdge.getFromNode != null) directedEdge.getFromNode.getCoordinate else position
+      val forwards = from.distance(coords(0)) <= from.distance(coords(coords.length - 1))
+
+      val cameraID = edge.getGeometry.theObject.cameraID
+      if (cameraID != -1 && cameras.add(cameraID)) {
+        cameraDistances += distance
+        cameraIDs += cameraID
+      }
+      if (roadRows != null) {
+        val row = roadRows.get(edge.getGeometry)
+        if (row != null) {
+          roadDistances += distance
+          rows += row.intValue
+        }
+      }
+
+      for (i <- coords.indices) {
+        val c = if (forwards) coords(i) else coords(coords.length - 1 - i)
+        if (i > 0) {
+          distance += c.distance(position)
+        }
+        xs += c.x
+        ys += c.y
+        distances += distance
+        position = c
+      }
+    }
+    new CompiledPath(xs.result(), ys.result(), distances.result(), cameraDistances.result(), cameraIDs.result(),
+      roadDistances.result(), rows.result())
+  }
+
+}
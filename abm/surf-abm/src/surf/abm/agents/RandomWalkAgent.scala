@@ -33,7 +33,7 @@ class RandomWalkAgent(state:SurfABM, home:SurfGeometry[Building]) extends Agent(
     // Do a random walk
     val current : Coordinate = this.location.getGeometry.getCoordinate
     def r(n:Double) : Double =  { // Randomize the input number by +- the moveRate
-      n + ( ( this.state.random.nextDouble() * moveRate * 2 ) - moveRate )
+      n + ( ( this.random.nextDouble() * moveRate * 2 ) - moveRate )
     }
     val newCoord = new Coordinate( r(current.x), r(current.y) )
     // Check that the new position is correct
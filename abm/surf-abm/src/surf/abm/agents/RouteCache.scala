@@ -0,0 +1,142 @@
+package surf.abm.agents
+
+import java.util.concurrent.atomic.AtomicLong
+
+import com.typesafe.config.ConfigException
+import org.apache.log4j.Logger
+import surf.abm.environment.Building
+import surf.abm.exceptions.RoutingException
+import surf.abm.main.{SurfABM, SurfGeometry}
+
+/**
+  * A bounded cache of routes between pairs of network nodes. Agents often travel between the same places (e.g.
+  * commuters go between the same home and work building every day) so rather than running A* every time,
+  * [[surf.abm.agents.UrbanAgent.findNewPath()]] asks the cache first.
+  *
+  * Routes are stored against the ids of the origin and destination nodes (see
+  * [[surf.abm.environment.GeomPlanarGraphSurf.getNodeId()]]). When the cache is full, the least recently used route is
+  * thrown away. The cache can be used by many threads at once.
+  *
+  * A route is kept as the slots of its directed edges in the [[surf.abm.environment.CompactGraph]] (as returned by
+  * [[surf.abm.agents.AStar.astarSlots()]]) rather than as a list of edge objects, so each route costs about 80 bytes
+  * (the map entry, key and array header) plus 4 bytes per road on it. E.g. 5000 routes of 200 roads are about 4.5MB.
+  * (A list of edges costs about 24 bytes per road, and can't be shared with the route's other uses.)
+  *
+  * @param maxSize The maximum number of routes to store. If 0 then nothing is cached.
+  */
+class RouteCache(val maxSize: Int) {
+
+  // A LinkedHashMap in 'access order' keeps the least recently used route at the front, ready to be evicted.
+  private val cache = new java.util.LinkedHashMap[Long, Array[Int]](1024, 0.75f, true) {
+    override def removeEldestEntry(eldest: java.util.Map.Entry[Long, Array[Int]]): Boolean =
+      this.size() > maxSize
+  }
+
+  private val _hits = new AtomicLong(0)
+  private val _misses = new AtomicLong(0)
+
+  /** The number of times that a route was found in the cache */
+  def hits(): Long = _hits.get()
+
+  /** The number of times that a route had to be calculated */
+  def misses(): Long = _misses.get()
+
+  /** The number of routes currently in the cache */
+  def size(): Int = cache.synchronized(cache.size())
+
+  /**
+    * Get the route between two nodes, calculating it (and remembering it) if it isn't in the cache already.
+    * Empty routes (which mean that the nodes aren't connected) are not cached.
+    *
+    * @param origin The id of the node at the start of the route
+    * @param destination The id of the node at the end of the route
+    * @param route A function to calculate the route (the CompactGraph slots of its edges) if necessary
+    * @return The slots of the route's edges. The array is shared, so it mustn't be changed.
+    */
+  def getOrElseUpdate(origin: Int, destination: Int, route: => Array[Int]): Array[Int] = {
+    if (maxSize <= 0) {
+      return route
+    }
+    val key = RouteCache.key(origin, destination)
+    val cached = cache.synchronized(cache.get(key))
+    if (cached != null) {
+      _hits.incrementAndGet()
+      return cached
+    }
+    _misses.incrementAndGet()
+    // Calculate the route outside the lock so that other threads can still use the cache. Occasionally two
+    // threads will calculate the same route, but that's harmless
+    val path = route
+    if (path.nonEmpty) {
+      cache.synchronized(cache.put(key, path))
+    }
+    path
+  }
+
+  /** Forget all routes and reset the counters */
+  def clear(): Unit = {
+    cache.synchronized(cache.clear())
+    _hits.set(0)
+    _misses.set(0)
+  }
+
+  override def toString: String = {
+    val total = hits() + misses()
+    val rate = if (total == 0) 0d else 100d * hits() / total
+    f"RouteCache(size: ${size()}/$maxSize, hits: ${hits()}, misses: ${misses()}, hit rate: $rate%.1f%%)"
+  }
+
+}
+
+object RouteCache {
+
+  private val LOG: Logger = Logger.getLogger(this.getClass)
+
+  /** The number of routes to cache if the configuration doesn't say (RouteCacheSize), i.e. no cache */
+  val DEFAULT_SIZE = 0
+
+  /** The cache used by all agents. The size is read from the RouteCacheSize configuration parameter. */
+  lazy val shared: RouteCache = {
+    val size = try {
+      SurfABM.conf.getInt(SurfABM.ModelConfig + ".RouteCacheSize")
+    }
+    catch {
+      case _: ConfigException.Missing => DEFAULT_SIZE
+    }
+    LOG.info(s"Route cache will store up to $size routes")
+    new RouteCache(size)
+  }
+
+  /** Pack two node ids into a single key */
+  private def key(origin: Int, destination: Int): Long = (origin.toLong << 32) | (destination & 0xffffffffL)
+
+  /**
+    * Fill the shared cache with the routes between pairs of places (in both directions), e.g. the homes and
+    * workplaces of the agents. Only does anything if the PrewarmRouteCache configuration parameter is true.
+    *
+    * @param pairs The places to find routes between
+    */
+  def prewarm(pairs: Iterable[(SurfGeometry[Building], SurfGeometry[Building])]): Unit = {
+    val prewarm = try {
+      SurfABM.conf.getBoolean(SurfABM.ModelConfig + ".PrewarmRouteCache")
+    }
+    catch {
+      case _: ConfigException.Missing => false
+    }
+    if (!prewarm) {
+      return
+    }
+    LOG.info(s"Pre-warming the route cache with routes between ${pairs.size} pairs of places")
+    for ((a, b) <- pairs if !(a eq b)) {
+      try {
+        UrbanAgent.findNewPath(a, b)
+        UrbanAgent.findNewPath(b, a)
+      }
+      catch { // Not fatal here. The agent will get the same error when it tries to travel.
+        case e: RoutingException => LOG.warn(s"Could not pre-warm the route between $a and $b: ${e.getMessage}")
+      }
+    }
+    LOG.info(s"Finished pre-warming: ${shared.toString}")
+  }
+
+}
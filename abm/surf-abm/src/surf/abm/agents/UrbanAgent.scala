@@ -1,13 +1,12 @@
 package surf.abm.agents
 
 
-import com.vividsolutions.jts.geom.{Coordinate, LineString}
-import com.vividsolutions.jts.linearref.LengthIndexedLine
+import com.vividsolutions.jts.planargraph.Node
 import sim.util.geo.GeomPlanarGraphDirectedEdge
-import surf.abm.environment.{Building, GeomPlanarGraphEdgeSurf, Junction, Road}
+import surf.abm.environment.{Building, GeomPlanarGraphSurf, Junction}
 import surf.abm.exceptions.RoutingException
-import surf.abm.main.{GISFunctions, SurfABM, SurfGeometry, Clock, CameraRecorder}
-import scala.collection.mutable.ListBuffer
+import surf.abm.main.{GISFunctions, SurfABM, SurfGeometry, Clock, CameraRecorder, RoadRecorder}
+import surf.abm.surfutil.Metrics
 
 import scala.collection.JavaConversions._ // TODO: this won't be necessary once I have re-written A* Path
 
@@ -30,27 +29,17 @@ abstract class UrbanAgent (state:SurfABM, home:SurfGeometry[Building]) extends A
   private var _atDestination = false
   def atDestination() = this._atDestination
 
-  // Used by agent to walk along line segment; assigned in setNewRoute()
-  private var segment: LengthIndexedLine = null
-  private var startIndex = 0.0
-  private var endIndex = 0.0
-  private var currentIndex = 0.0
-
   // A list of roads that need to be followed to reach the destination
   private var _path: List[GeomPlanarGraphDirectedEdge] = null
   protected def path(): List[GeomPlanarGraphDirectedEdge] = _path // Protected accessor
 
-  // A list of cameras that the agent has passed by on his path
-  var tempCameras = new ListBuffer[Int]()
-  //var tempCameraHours = new ListBuffer[Int]()
-  //private var _cameras: List[Int] = null
-  //def cameras(): List[Int] = _cameras // Accessor to cameras. Necessary??
-  //private var _cameraHours: List[Int] = null
-  //def cameraHours(): List[Int] = _cameraHours // Accessor to cameraHours. Necessary??
-
-  private var indexOnPath = 0
-  private var pathDirection = 1
-  private var linkDirection = 1
+  // The path as a single line (see CompiledPath), how far along it the agent is, the segment of the line that they
+  // are on, and the next camera that they will pass. Assigned in newDestination()
+  private var compiledPath: CompiledPath = null
+  private var distanceOnPath = 0.0
+  private var segmentOnPath = 0
+  private var nextCamera = 0
+  private var nextRoad = 0 // (The next road to count, if roads are being counted)
 
   /**
     * Set a new destination for this agent
@@ -68,6 +57,11 @@ abstract class UrbanAgent (state:SurfABM, home:SurfGeometry[Building]) extends A
     }
     // Now find a path
     this._path = UrbanAgent.findNewPath(this.location, dest) // Set the Agent's path variable (the roads it must pass through)
+    this.compiledPath = CompiledPath(this._path, this.location.getGeometry.getCoordinate, RoadRecorder.rows)
+    this.distanceOnPath = 0.0
+    this.segmentOnPath = 0
+    this.nextCamera = 0
+    this.nextRoad = 0
   }
 
 
@@ -88,30 +82,32 @@ abstract class UrbanAgent (state:SurfABM, home:SurfGeometry[Building]) extends A
 
         case Some(_) => {
           // There is a destination
+          val path = this.compiledPath
 
-          this.currentIndex += (moveRate * linkDirection)
+          this.distanceOnPath += moveRate
           //Agent.LOG().info(this,s"moveRate is $moveRate")
 
-          // check to see if the progress has taken the current index beyond its goal
-          // given the direction of movement. If so, proceed to the next edge
-          if (this.linkDirection == 1 && this.currentIndex > this.endIndex) {
-            this._atDestination = transitionToNextEdge(this.currentIndex - this.endIndex)
+          // Tell the CameraRecorder about any roads with cameras that the agent has reached
+          while (this.nextCamera < path.numCameras && path.cameraDistance(this.nextCamera) < this.distanceOnPath) {
+            CameraRecorder.add(this.state, path.cameraID(this.nextCamera))
+            this.nextCamera += 1
           }
-          else if (this.linkDirection == -1 && this.currentIndex < this.startIndex) {
-            this._atDestination = transitionToNextEdge(this.startIndex - this.currentIndex)
+
+          // And about the roads that they have started going along (if roads are being counted)
+          while (this.nextRoad < path.numRoads && path.roadDistance(this.nextRoad) < this.distanceOnPath) {
+            RoadRecorder.add(this.state, path.roadRow(this.nextRoad))
+            this.nextRoad += 1
           }
 
-          // In some cases, where the origin and destination are the same, the segment will be null here,
-          // as the agent has already reached its destination without actually creating a path.
-          // Check for this. If it is not the case, then just move along the path as normal.
-          if (this._atDestination) {
+          // See if the agent has gone past the end of the path.
+          if (this.distanceOnPath > path.length) {
+            this._atDestination = true
+            this.arrive()
             return
           }
-          assert(this.segment != null,
-            s"Internal error, segment should not be null. Debug info:\n\tAgent: $this\n\tdestination:${this._destination}\n\tcurrentIndex:${this.currentIndex}\n\tstartIndex:${this.startIndex}\n\tlinkDirection:${this.linkDirection}\n\tatDestination?:${this._atDestination}\n\tpath:${this._path}" )
 
-          val currentPos: Coordinate = this.segment.extractPoint(currentIndex)
-          this.moveToCoordinate(currentPos)
+          this.segmentOnPath = path.segmentAt(this.distanceOnPath, this.segmentOnPath)
+          this.moveTo(path.x(this.segmentOnPath, this.distanceOnPath), path.y(this.segmentOnPath, this.distanceOnPath))
           //println(currentPos.x+","+currentPos.y+","+this.state.schedule.getSteps)
 
         }
@@ -134,105 +130,17 @@ abstract class UrbanAgent (state:SurfABM, home:SurfGeometry[Building]) extends A
   }
 
   /**
-    * Sets this Agent up to proceed along an Edge
-    *
-    * @param edge the GeomPlanarGraphEdge to traverse next
-    *
-    */
-  private def setupEdge(edge: GeomPlanarGraphEdgeSurf[Road]) {
-    val line: LineString = edge.getLine
-    this.segment = new LengthIndexedLine(line)
-    this.startIndex = this.segment.getStartIndex
-    this.endIndex = this.segment.getEndIndex
-    val distanceToStart: Double = line.getStartPoint.distance(this.location.geometry)
-    val distanceToEnd: Double = line.getEndPoint.distance(this.location.geometry)
-    if (distanceToStart <= distanceToEnd) {
-      this.currentIndex = this.startIndex
-      this.linkDirection = 1
-    }
-    else if (distanceToEnd < distanceToStart) {
-      this.currentIndex = this.endIndex
-      this.linkDirection = -1
-    }
-  }
-
-  /**
-    * Transition to the next edge in the path
-    *
-    * @param residualMove the amount of distance the agent can still travel
-    *                     this turn
-    * @return True if the agent has reached the end of the path, false otherwise.
+    * The agent has reached the end of their path. Move them to the destination and reset everything.
     */
-  private def transitionToNextEdge(residualMove: Double): Boolean = {
-    assert(this._path != null, s"The path shouldn't be null ${this.toString()}")
-
-
-
-    indexOnPath += pathDirection
-    // See if the agent has reached the end of the path. If so, reset the counters and return true.
-    if ((this.pathDirection > 0 && this.indexOnPath >= this._path.size) ||
-      (this.pathDirection < 0 && this.indexOnPath < 0)) {
-
-      // (nasty way of checking that destination!=null before calling moveToCoordinate)
-      this.destination() match { // Check that destination is not None
-        case Some(_) => this.moveToCoordinate(this.destination().get.getGeometry.getCoordinate())
-        case None => throw new RoutingException("Cannot transitionToNextEdge - destination is None")
-      }
-//      this.moveToCoordinate(this.destination.get.getGeometry.getCoordinate)
-
-      //this._cameras = tempCameras.toList
-      //this._cameraHours = tempCameraHours.toList
-
-      //this._cameras.foreach()
-      //for (c <- this._cameras) {
-
-      //}
-      //CameraRecorder.step(state)
-      //CameraRecorder.add(this._cameras, this._cameraHours)
-
-
-      tempCameras.clear()
-      this.startIndex = -1.0
-      this.endIndex = -1.0
-      this.currentIndex = -1.0
-      this._destination = None
-      this._path = null
-      //this._cameras = null
-      //this._cameraHours = null
-      this.indexOnPath = -1
-      return true
-    }
-
-    // move to the next edge in the path
-    val edge: GeomPlanarGraphEdgeSurf[Road] = this._path(indexOnPath).getEdge.asInstanceOf[GeomPlanarGraphEdgeSurf[Road]]
-    assert(edge != null)
-    this.setupEdge(edge)
-    val speed: Double = residualMove * linkDirection
-    currentIndex += speed
-
-    // Save ListBuffer of cameras passed by (+ according time)
-    if (edge.getGeometry.theObject.cameraID != -1 && (tempCameras == null || !tempCameras.contains(edge.getGeometry.theObject.cameraID))) {
-      // TESTING
-      //AgentLog.info(this, "Found road ID: %s\n".format( edge.getGeometry.theObject.id  ) )
-      //AgentLog.info(this, "Found camera ID: %s at iteration %d\n".format( edge.getGeometry.theObject.cameraID, Clock.getIterations()  ) )
-      val camID = edge.getGeometry.theObject.cameraID
-      tempCameras += camID
-      //tempCameraHours += Clock.currentHour().toInt
-      CameraRecorder.add(camID)
-    }
-
-    // check to see if the progress has taken the current index beyond its goal
-    // given the direction of movement. If so, proceed to the next edge
-    if (linkDirection == 1 && currentIndex > endIndex) {
-      return transitionToNextEdge(currentIndex - endIndex)
-    }
-    else if (linkDirection == -1 && currentIndex < startIndex) {
-      return transitionToNextEdge(startIndex - currentIndex)
-    }
-
-    // If here then don't need to transition onto another edge and haven't
-    // reached the destination yet.
-    return false
+  private def arrive(): Unit = {
+    this.moveToCoordinate(this.destination().get.getGeometry.getCoordinate())
+    this._destination = None
+    this._path = null
+    this.compiledPath = null
+    this.distanceOnPath = 0.0
+    this.segmentOnPath = 0
+    this.nextCamera = 0
+    this.nextRoad = 0
   }
 
 
@@ -240,6 +148,9 @@ abstract class UrbanAgent (state:SurfABM, home:SurfGeometry[Building]) extends A
 
 object UrbanAgent {
 
+  // How long it takes to find paths (see Metrics)
+  private val FIND_NEW_PATH = Metrics.timer("routing.findNewPath")
+
   /**
     * Find a path from an origin to a destination.
     *
@@ -253,6 +164,17 @@ object UrbanAgent {
                    end:SurfGeometry[_ <: Any],
                    caller : Option[_] = None
                  ) : List[GeomPlanarGraphDirectedEdge] = {
+    val t = FIND_NEW_PATH.start()
+    try {
+      _findNewPath(start, end, caller)
+    }
+    finally {
+      FIND_NEW_PATH.stop(t)
+    }
+  }
+
+  private def _findNewPath(start: SurfGeometry[_ <: Any], end: SurfGeometry[_ <: Any], caller: Option[_]
+                          ): List[GeomPlanarGraphDirectedEdge] = {
 
     // TODO - break this method up and test it properly. (remember Sam's advice - each function should have simple, clear inputs and outputs
 
@@ -261,14 +183,12 @@ object UrbanAgent {
     /* First, find the nearest node to the start. We're very unlikely to be at the exact location of a Node,
     so find the nearest junction. */
 
-    val nearestJunctionToCurrent: SurfGeometry[Junction] = GISFunctions.findNearestObject[Junction](start, SurfABM.junctions)
-    val currentNode = SurfABM.network.findNode(nearestJunctionToCurrent.getGeometry.getCoordinate)
+    val currentNode: Node = nearestNode(start)
 
     assert(currentNode != null, s"Could not find the current junction for the object ${caller.getOrElse("[Not Provided]")}")
 
     /* Now find the junction that is closest to the destination */
-    val nearestJunctionToDestination: SurfGeometry[Junction] = GISFunctions.findNearestObject[Junction](end, SurfABM.junctions)
-    val destinationNode = SurfABM.network.findNode(nearestJunctionToDestination.getGeometry.getCoordinate)
+    val destinationNode: Node = nearestNode(end)
 
     assert(destinationNode != null, s"Could not find a junction for the destination ${end.toString} for the object ${caller.getOrElse("[Not Provided]")}")
 
@@ -279,9 +199,13 @@ object UrbanAgent {
 
     }
 
-    // find the appropriate A* path between them
-    val pathfinder: AStar = new AStar
-    val paths: List[GeomPlanarGraphDirectedEdge] = List(pathfinder.astarPath(currentNode, destinationNode): _*) // (Splat the java list)
+    // find the appropriate A* path between them (or re-use one that has been found before). The cache keeps the
+    // roads' slots in the CompactGraph, which are turned back into the edges here.
+    val origin = GeomPlanarGraphSurf.getNodeId(currentNode)
+    val destination = GeomPlanarGraphSurf.getNodeId(destinationNode)
+    val slots: Array[Int] = RouteCache.shared.getOrElseUpdate(origin, destination,
+      new AStar(SurfABM.compactNetwork, SurfABM.landmarks).astarSlots(origin, destination))
+    val paths: List[GeomPlanarGraphDirectedEdge] = slots.map(s => SurfABM.compactNetwork.getDirectedEdge(s)).toList
 
     // if the path works, lay it in
     if (paths != null && paths.size > 0) {
@@ -295,7 +219,7 @@ object UrbanAgent {
         //throw new RoutingException("Agent " + this.toString + "(home " + this.getHomeID(state) + ", destination " + state.buildingIDs.inverse.get(destination) + ")" + " got an empty path between junctions " + currentJunction + " and " + destinationJunction + ". Probably the network is disconnected.")
         throw new RoutingException(
           s"Object ${caller.getOrElse("[Not Provided]")} got an empty path between junctions\n\t" +
-            s"Current: ${nearestJunctionToCurrent.toString} \n\tDestination: ${nearestJunctionToDestination.toString}.\n\t" +
+            s"Current: ${currentNode.getCoordinate} \n\tDestination: ${destinationNode.getCoordinate}.\n\t" +
             "The network is probably disconnected. Run disconnected-islands plugin in QGIS"
         )
       }
@@ -303,9 +227,21 @@ object UrbanAgent {
 
   }
 
-
-
-
-
+  /**
+    * Find the network node that is closest to the given object. Buildings don't move, so their nearest nodes have
+    * been worked out already (see [[surf.abm.main.SurfABM.buildingNode()]]). For anything else, search for the nearest
+    * junction.
+    */
+  private def nearestNode(g: SurfGeometry[_ <: Any]): Node = {
+    g.theObject match {
+      case b: Building =>
+        val n = SurfABM.buildingNode(b)
+        if (n != -1) {
+          return SurfABM.compactNetwork.getNode(n)
+        }
+      case _ =>
+    }
+    GISFunctions.findNearestObject[Junction](g, SurfABM.junctions).theObject.node
+  }
 
 }
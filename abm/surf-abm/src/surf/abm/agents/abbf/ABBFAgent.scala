@@ -1,5 +1,7 @@
 package surf.abm.agents.abbf
 
+import java.io.ObjectInputStream
+
 import sim.engine.SimState
 import sim.util.geo.{GeomPlanarGraphDirectedEdge}
 import surf.abm.agents.abbf.activities.ActivityTypes.SHOPPING
@@ -7,7 +9,8 @@ import surf.abm.agents.abbf.activities._
 import surf.abm.agents.{Agent, UrbanAgent}
 import surf.abm.environment.{Building, GeomPlanarGraphEdgeSurf}
 import surf.abm.exceptions.RoutingException
-import surf.abm.main.{Clock, SurfABM, SurfGeometry}
+import surf.abm.main.{AgentScheduler, Clock, SurfABM, SurfGeometry}
+import surf.abm.surfutil.Metrics
 
 /**
   *
@@ -22,7 +25,35 @@ abstract class ABBFAgent(override val state:SurfABM, override val home:SurfGeome
   /**
     * A set of of the [[surf.abm.agents.abbf.activities.Activity]]s that are driving an agent
     */
-  var activities: Set[_ <: Activity] = Set.empty
+  private var _activities: Set[_ <: Activity] = Set.empty
+  def activities: Set[_ <: Activity] = _activities
+
+  def activities_=(activities: Set[_ <: Activity]): Unit = {
+    this._activities = activities
+    // Keep the activities, and their slots in the ActivityEngine, in arrays so that they can be looped over quickly
+    // (in the same order as the set, so that ties are broken in the same way as before)
+    this._activityArray = activities.toArray[Activity]
+    this._slots = this._activityArray.map(a => a.slot)
+    // Make sure that the engine knows how much each activity increases by
+    this._activityArray.foreach(a => a.backgroundIncreasePerTick())
+  }
+
+  private var _activityArray: Array[Activity] = Array.empty
+  // The engine belongs to the run, and the activities are given new slots when they are read (see Activity), so
+  // neither is written with the agent
+  @transient private var _slots: Array[Int] = Array.empty
+  @transient private var engine = ActivityEngine(state.replication)
+
+  private def readObject(in: ObjectInputStream): Unit = {
+    in.defaultReadObject()
+    this.engine = ActivityEngine()
+    this._slots = this._activityArray.map(a => a.slot)
+  }
+
+  /** Give back the activities' slots in the ActivityEngine (the agent has left the run) */
+  override def release(): Unit = {
+    this._activityArray.foreach(a => this.engine.release(a.slot))
+  }
 
   /**
     * The current activity that the agent is doing. Can be None.
@@ -41,27 +72,130 @@ abstract class ABBFAgent(override val state:SurfABM, override val home:SurfGeome
     *
     * @return
     */
-  def highestActivity(): Activity = this.activities.maxBy(a => a.intensity())
+  def highestActivity(): Activity = {
+    val i = this.engine.highest(this._slots, Clock.currentHour(this.state))
+    if (i < 0) {
+      throw new UnsupportedOperationException("The agent has no activities")
+    }
+    this._activityArray(i)
+  }
+
+  /** The slot (in the ActivityEngine) of the current activity, or -1 if there isn't one */
+  private def _currentSlot: Int = this._currentActivity match {
+    case Some(a) => a.slot
+    case None => -1
+  }
 
   /**
-    * Keep track of whether the activity changes, as this is useful for writing out information
+    * Keep track of whether the activity changes, as this is useful for writing out information. This is the
+    * iteration when it last changed (set in _changeActivity()).
     */
-  private var _changedActivity = false
-  def changedActivity() = _changedActivity // public accessor to private member
+  private var _changedAt = -1L
+  def changedActivity() = _changedAt == this.state.schedule.getSteps // public accessor to private member
+
+  /**
+    * The iteration up to which the activities' intensities are up to date. If agents are event-driven (see
+    * [[surf.abm.main.AgentScheduler]]) the agent isn't stepped while it is just getting on with its current activity,
+    * and the intensities are caught up later.
+    */
+  private var _updatedTo = -1L
 
 
   override def step(state: SimState): Unit = {
+    val now = state.schedule.getSteps
+    // Catch up on any iterations that the agent has been left alone for
+    this._updateIntensities(now - 1)
+    this._step()
+    this._updatedTo = now
+    if (AgentScheduler.eventDriven) {
+      this.nextWake = now + 1 + this._idleIterations()
+    }
+  }
 
-    // Keep track of whether the agent changes activity in this iteration. This is made true in _changeActivity()
-    _changedActivity = false
+  /**
+    * Bring the intensities of the activities up to date, if the agent hasn't been stepped in this iteration because
+    * it didn't need to be. Anything that looks at the intensities (e.g. an outputter) should call this first.
+    */
+  def updateIntensities(): Unit = this._updateIntensities(this.state.schedule.getSteps)
 
-    // Update all activity intensities. The amount that they go up by is unique to each activity. Call the '++' function
-    // which, in turn, calls the activity's backgroundIncrease() function, which can be overridden by subclasses.
-    for (a <- this.activities){
-      if (this.currentActivity().isEmpty || a != this._currentActivity.get) {
-        a ++() // Increase this activity
+  /**
+    * Apply the iterations, up to and including <code>upTo</code>, that the agent wasn't stepped in. In those
+    * iterations the agent was doing its current activity in place (see <code>_idleIterations()</code>), so all that a
+    * step would have done is increase the other activities and decrease the current one.
+    *
+    * This is iterative, not closed-form: the iterations are applied one at a time, exactly as step() would have
+    * applied them, so that the intensities are identical (to the last bit) to those if the agent had been stepped.
+    * (Adding n increases at once would round differently.) It costs a few additions per activity for each iteration
+    * that was skipped, which is much less than stepping the agent.
+    */
+  private def _updateIntensities(upTo: Long): Unit = {
+    if (this._updatedTo < 0) {
+      this._updatedTo = upTo // Not stepped yet, so nothing to catch up on
+    }
+    while (this._updatedTo < upTo) {
+      this.engine.increaseAll(this._slots, this._currentSlot)
+      this._currentActivity.foreach(a => a --())
+      this._updatedTo += 1
+    }
+  }
+
+  /**
+    * The number of iterations after this one in which stepping the agent would do nothing apart from change the
+    * intensities of its activities. That is the case while the agent is doing its current activity in place and
+    * either it hasn't reduced the intensity enough to think about changing, or no other activity could become intense
+    * enough to take over (and the current one won't drop to zero). The intensities could cross the thresholds a bit
+    * later than this, but never earlier.
+    */
+  private def _idleIterations(): Long = {
+    val current: Activity = this._currentActivity match {
+      case Some(a) if a.inPlace() => a
+      case _ => return 0 // The agent is travelling, getting ready, or has nothing to do
+    }
+    val maxIterations = SurfABM.ticksPerDay.toLong // (Step the agent at least once a day)
+    val reduce = current.reduceActivityAmount()
+
+    // Iterations before the current activity has gone down enough for the agent to consider changing
+    val remaining = current.MINIMUM_INTENSITY_DECREASE - current.currentIntensityDecrease() - ABBFAgent.EPSILON
+    val undecided: Long =
+      if (remaining <= 0) 0
+      else if (reduce <= 0) maxIterations
+      else math.max(0L, math.min(maxIterations, math.ceil(remaining / reduce).toLong - 1))
+
+    // Iterations before another activity could take over. The further ahead, the more likely it is, so search.
+    var lo = 0L
+    var hi = maxIterations
+    while (lo < hi) {
+      val mid = (lo + hi + 1) / 2
+      if (this._noChangePossible(current, mid)) lo = mid else hi = mid - 1
+    }
+    math.max(undecided, lo)
+  }
+
+  /**
+    * Whether the agent will definitely not change activity in any of the given number of iterations: the current
+    * activity will stay above zero and no other activity will reach HIGHEST_ACTIVITY_THRESHOLD.
+    */
+  private def _noChangePossible(current: Activity, iterations: Long): Boolean = {
+    val hour = Clock.currentHour(this.state)
+    val hours = iterations * Clock.minsPerTick / 60d
+    if (current.backgroundIntensity() - iterations * current.reduceActivityAmount() +
+      current.timeProfile.minIntensity(hour, hours) <= ABBFAgent.EPSILON) {
+      return false
+    }
+    for (a <- this._activityArray if a != current) {
+      if (a.backgroundIntensity() + iterations * a.backgroundIncreasePerTick() +
+        a.timeProfile.maxIntensity(hour, hours) >= ABBFAgent.HIGHEST_ACTIVITY_THRESHOLD - ABBFAgent.EPSILON) {
+        return false
       }
     }
+    true
+  }
+
+  private def _step(): Unit = {
+
+    // Update all activity intensities. The amount that they go up by is unique to each activity (it is the same as
+    // the '++' function, which uses the activity's backgroundIncrease(), but done in one go by the ActivityEngine).
+    this.engine.increaseAll(this._slots, this._currentSlot)
 
     // Check that the agent has increased the current activity by a sufficient amount before changing *and* it
     // is possible to decrease the amount further (if it is almost zero then don't keep going, even if the agent
@@ -112,14 +246,14 @@ abstract class ABBFAgent(override val state:SurfABM, override val home:SurfGeome
           }
 
           // Check that TimeIntensity > 0 before changing
-          if (highestActivity.timeIntensity(Clock.currentHour()) <= 0d) {
+          if (highestActivity.timeIntensity(Clock.currentHour(this.state)) <= 0d) {
             // If not, don't change activity
             msg += s"Time intensity of (${highestActivity.toString}) is 0. Not changing activity."
             if (this.currentActivity().isDefined && this.currentActivity().get.intensity < 0) {
               def sortedActivities: Seq[Activity] = this.activities.toSeq.sortBy(a => a.intensity()).reverse
               for (a <- sortedActivities) {
                 if (a != sortedActivities.head) {
-                  if (a.timeIntensity(Clock.currentHour()) > 0d) {
+                  if (a.timeIntensity(Clock.currentHour(this.state)) > 0d) {
                     msg += s"Changing from ${this.currentActivity.getOrElse(None)} to ${Some(a)}. "
                     this._changeActivity(Some(a))
                     return // No point in continuing
@@ -151,7 +285,8 @@ abstract class ABBFAgent(override val state:SurfABM, override val home:SurfGeome
     this.currentActivity.foreach(a => a.activityChanged()) // Note: the for loop only iterates if an Activity has been defined (nice!)
     this._previousActivity = this.currentActivity // Remember what the current activity was
     this._currentActivity = newActivity
-    this._changedActivity = true // Indicate that the agent has changed their activity in this iteration (will be set back to false next time this.step() is called).
+    this._changedAt = this.state.schedule.getSteps // Indicate that the agent has changed their activity in this iteration.
+    ABBFAgent.ACTIVITY_CHANGES.increment()
     //Agent.LOG.debug(this, s"has changed activity from ${this.previousActivity.getOrElse("[None]")} to ${this.currentActivity.getOrElse("[None]")}")
   }
 
@@ -168,6 +303,14 @@ object ABBFAgent {
     */
   private val HIGHEST_ACTIVITY_THRESHOLD = 0.75
 
+  /** The number of times that agents have changed their activity (see Metrics) */
+  private val ACTIVITY_CHANGES = Metrics.counter("agents.activityChanges")
+
+  /**
+    * Allowance for rounding errors when working out how long an agent can be left alone.
+    */
+  private val EPSILON = 1e-9
+
   /**
     * The minimum amount that the intensity of an activity must decrease before the agent stops trying to satisfy it.
     * This prevents the agents quickly switching from one activity to another
@@ -5,7 +5,7 @@ import surf.abm.agents.{Agent, UrbanAgent}
 import surf.abm.agents.abbf.activities.ActivityTypes.{SLEEPING, WORKING}
 import surf.abm.agents.abbf.activities._
 import surf.abm.agents.abbf.occupations.SimpleABBFAgent
-import surf.abm.main.{SurfABM, SurfGeometry}
+import surf.abm.main.{AgentScheduler, SurfABM, SurfGeometry}
 import surf.abm.main.SurfGeometry
 
 /**
@@ -32,59 +32,61 @@ object ABBFAgentLoader {
       // Instantiate the agent.
 
       val home = SurfABM.getRandomBuilding(state)
-      val a: SimpleABBFAgent = SimpleABBFAgent(state, home)
-
-      // Next the activities that this agent can do (later this will be done by reading data)
-
-      // WORKING
-
-      // Work place is a building in town
-      val workPlace = Place(
-        location = SurfABM.buildingIDGeomMap(SurfABM.conf.getInt(SurfABM.ModelConfig + ".WorkAddress")),
-        activityType = WORKING,
-        openingTimes = null // Assume it's open all the time
-      )
-      // Work time profile is 0 before 6 and after 10, and 1 between 10-4 with a bit of randomness thrown in
-      val rnd = state.random.nextDouble()*4d // A random number between 0 and 2
-      val workTimeProfile = TimeProfile(Array((6d, 0d), (7d+rnd, 1d), (14d+rnd, 1d), (22d, 0d)))
-      //val workTimeProfile = TimeProfile(Array((5d, 0d), (10d, 1d), (16d, 1d), (22d, 0d))) // without randomness
-      val workActivity = WorkActivity(timeProfile = workTimeProfile, agent=a, place = workPlace)
-
-      // SHOPPING
-      val shoppingTimeProfile = TimeProfile(Array((0d, 0.2d))) // A constant, low intensity
-      //val shoppingActivity = ShopActivity(timeProfile = shoppingTimeProfile, agent=a)
-
-
-      // SLEEPING (high between 11pm and 6am)
-      val atHomePlace = Place(home, SLEEPING, null)
-      val atHomeActivity = SleepActivity(TimeProfile(Array( (0d, 1d), (9d, 0d), (23d, 1d) )), agent=a)
-      //val atHomeActivity = SleepActivity(TimeProfile(Array((0d, 0.5d))), agent=a)
-      // Increase this activity to make it the most powerful activity to begin with, but with a bit of randomness
-      // (repeatedly call the ++ function to increase it)
-      for (j <- 1.until((rnd * 30).toInt) ) {
-        atHomeActivity.++()
-        if(i % 10 == 0 && j % 10 == 0) {
-          printf("Active for agent %d at iteration %d increased to %5.3f",i,j,atHomeActivity)
+      val created = AgentScheduler.newAgent(state, home) {
+        val a: SimpleABBFAgent = SimpleABBFAgent(state, home)
+
+        // Next the activities that this agent can do (later this will be done by reading data)
+
+        // WORKING
+
+        // Work place is a building in town
+        val workPlace = Place(
+          location = SurfABM.buildingIDGeomMap(SurfABM.conf.getInt(SurfABM.ModelConfig + ".WorkAddress")),
+          activityType = WORKING,
+          openingTimes = null // Assume it's open all the time
+        )
+        // Work time profile is 0 before 6 and after 10, and 1 between 10-4 with a bit of randomness thrown in
+        val rnd = state.random.nextDouble()*4d // A random number between 0 and 2
+        val workTimeProfile = TimeProfile(Array((6d, 0d), (7d+rnd, 1d), (14d+rnd, 1d), (22d, 0d)))
+        //val workTimeProfile = TimeProfile(Array((5d, 0d), (10d, 1d), (16d, 1d), (22d, 0d))) // without randomness
+        val workActivity = WorkActivity(timeProfile = workTimeProfile, agent=a, place = workPlace)
+
+        // SHOPPING
+        val shoppingTimeProfile = TimeProfile(Array((0d, 0.2d))) // A constant, low intensity
+        //val shoppingActivity = ShopActivity(timeProfile = shoppingTimeProfile, agent=a)
+
+
+        // SLEEPING (high between 11pm and 6am)
+        val atHomePlace = Place(home, SLEEPING, null)
+        val atHomeActivity = SleepActivity(TimeProfile(Array( (0d, 1d), (9d, 0d), (23d, 1d) )), agent=a)
+        //val atHomeActivity = SleepActivity(TimeProfile(Array((0d, 0.5d))), agent=a)
+        // Increase this activity to make it the most powerful activity to begin with, but with a bit of randomness
+        // (repeatedly call the ++ function to increase it)
+        for (j <- 1.until((rnd * 30).toInt) ) {
+          atHomeActivity.++()
+          if(i % 10 == 0 && j % 10 == 0) {
+            printf("Active for agent %d at iteration %d increased to %5.3f",i,j,atHomeActivity.intensity())
+          }
         }
-      }
-
-
-      // Add these activities to the agent's activity list. At Home is the strongest initially.
-      // TODO ADD IN SHOPPING ACTIVITY
-      //val activities = Set[Activity](workActivity , shoppingActivity , atHomeActivity )
-      val activities = Set[Activity](workActivity , atHomeActivity )
 
-      // Finally tell the agent about them
-      a.activities = activities
 
+        // Add these activities to the agent's activity list. At Home is the strongest initially.
+        // TODO ADD IN SHOPPING ACTIVITY
+        //val activities = Set[Activity](workActivity , shoppingActivity , atHomeActivity )
+        val activities = Set[Activity](workActivity , atHomeActivity )
 
-      // Last bits of admin required: add the geometry and schedule the agent and the spatial index updater
-
-      SurfABM.agentGeoms.addGeometry(SurfGeometry[ABBFAgent](a.location, a))
-      state.schedule.scheduleRepeating(a, SurfABM.AGENTS_STEP, 1)
+        // Finally tell the agent about them
+        a.activities = activities
+        a
+      }
 
-      SurfABM.agentGeoms.setMBR(SurfABM.mbr)
-      state.schedule.scheduleRepeating(SurfABM.agentGeoms.scheduleSpatialIndexUpdater, SurfABM.AGENTS_STEP, 1.0)
+      // Last bits of admin required: add the geometry and schedule the agent (SurfABM schedules the spatial index updater)
+      // (There is no agent if the model is distributed and it lives in another region)
+      for (a <- created) {
+        SurfABM.agentGeoms.addGeometry(SurfGeometry[ABBFAgent](a.location, a))
+        AgentScheduler.schedule(state, a)
+        SurfABM.agentGeoms.setMBR(SurfABM.mbr)
+      }
 
     }
 
@@ -2,12 +2,14 @@ package surf.abm.agents.abbf
 
 import org.apache.log4j.Logger
 import sim.field.geo.GeomVectorField
+import surf.abm.agents.RouteCache
 import surf.abm.agents.abbf.activities.ActivityTypes.{LUNCHING, DINNER, GOING_OUT, SHOPPING, SLEEPING, WORKING}
 import surf.abm.agents.abbf.activities._
 import surf.abm.agents.abbf.occupations._
 import surf.abm.environment.{Building, Junction}
-import surf.abm.main.{BUILDING_FIELDS, GISFunctions, SurfABM, SurfGeometry}
+import surf.abm.main.{AgentScheduler, BUILDING_FIELDS, GISFunctions, SurfABM, SurfGeometry}
 
+import scala.collection.mutable.ListBuffer
 import scala.io.Source
 
 /**
@@ -73,6 +75,9 @@ object ABBFAgentLoaderOtley {
     val sportType: String = "SPORT"
 
 
+    // The homes and workplaces of the commuters (used to pre-warm the route cache)
+    val commutes = ListBuffer[(SurfGeometry[Building], SurfGeometry[Building])]()
+
     // READ COMMUTER DATA
     LOG.info(s"Reading agents from file: '$flowFilename'")
     // Get line and line number as a tuple
@@ -142,14 +147,17 @@ object ABBFAgentLoaderOtley {
               //val currentNode = SurfABM.network.findNode(nearestJunctionToCurrent.getGeometry.getCoordinate)
 
               //makeAgent(state, home, work)
-              val a: CommuterAgent = CommuterAgent(state, home, work)
-              a.defineActivities()
-
-              SurfABM.agentGeoms.addGeometry(SurfGeometry[ABBFAgent](a.location(), a))
-              state.schedule.scheduleRepeating(a, SurfABM.AGENTS_STEP, 1)
-
-              SurfABM.agentGeoms.setMBR(SurfABM.mbr)
-              state.schedule.scheduleRepeating(SurfABM.agentGeoms.scheduleSpatialIndexUpdater, SurfABM.AGENTS_STEP, 1.0)
+              val created = AgentScheduler.newAgent(state, home) {
+                val a: CommuterAgent = CommuterAgent(state, home, work)
+                a.defineActivities()
+                a
+              }
+              for (a <- created) { // (None if the model is distributed and the agent lives in another region)
+                commutes += ((home, work)) // Remember the commute, in case the route cache is pre-warmed
+                SurfABM.agentGeoms.addGeometry(SurfGeometry[ABBFAgent](a.location(), a))
+                AgentScheduler.schedule(state, a)
+                SurfABM.agentGeoms.setMBR(SurfABM.mbr)
+              }
             }
           }
         }
@@ -159,6 +167,9 @@ object ABBFAgentLoaderOtley {
 
     LOG.info(s"Have created ${SurfABM.agentGeoms.getGeometries.size()} commuter agents")
 
+    // Optionally find the routes between the commuters' homes and workplaces now, rather than as they travel
+    RouteCache.prewarm(commutes)
+
 
     // READ RETIRED DATA (and other agent classes that only have one fixed activity (home) could be added)
     if (inputfilesVersion == 2) {
@@ -192,14 +203,16 @@ object ABBFAgentLoaderOtley {
               val home: SurfGeometry[Building] = SurfABM.buildingIDGeomMap(homeID)
 
               //makeAgent(state, home)
-              val a: RetiredAgent = RetiredAgent(state, home)
-              a.defineActivities()
-
-              SurfABM.agentGeoms.addGeometry(SurfGeometry[ABBFAgent](a.location(), a))
-              state.schedule.scheduleRepeating(a, SurfABM.AGENTS_STEP, 1)
-
-              SurfABM.agentGeoms.setMBR(SurfABM.mbr)
-              state.schedule.scheduleRepeating(SurfABM.agentGeoms.scheduleSpatialIndexUpdater, SurfABM.AGENTS_STEP, 1.0)
+              val created = AgentScheduler.newAgent(state, home) {
+                val a: RetiredAgent = RetiredAgent(state, home)
+                a.defineActivities()
+                a
+              }
+              for (a <- created) { // (None if the model is distributed and the agent lives in another region)
+                SurfABM.agentGeoms.addGeometry(SurfGeometry[ABBFAgent](a.location(), a))
+                AgentScheduler.schedule(state, a)
+                SurfABM.agentGeoms.setMBR(SurfABM.mbr)
+              }
             }
 
           }
@@ -1,10 +1,12 @@
 package surf.abm.agents.abbf
 
 import org.apache.log4j.Logger
+import surf.abm.agents.RouteCache
 import surf.abm.agents.abbf.occupations._
 import surf.abm.environment.Building
-import surf.abm.main.{BUILDING_FIELDS, SurfABM, SurfGeometry}
+import surf.abm.main.{AgentScheduler, BUILDING_FIELDS, SurfABM, SurfGeometry}
 
+import scala.collection.mutable.ListBuffer
 import scala.io.Source
 
 /**
@@ -60,6 +62,9 @@ object ABBFAgentLoaderOtleyPRIME {
     val sportType: String = "SPORT"
 
 
+    // The homes and workplaces of the commuters (used to pre-warm the route cache)
+    val commutes = ListBuffer[(SurfGeometry[Building], SurfGeometry[Building])]()
+
     // READ DATA
     LOG.info(s"Reading agents from file: '$flowFilename'")
     var lineCounter = 0
@@ -138,14 +143,17 @@ object ABBFAgentLoaderOtleyPRIME {
                 //val currentNode = SurfABM.network.findNode(nearestJunctionToCurrent.getGeometry.getCoordinate)
 
                 //makeAgent(state, home, work)
-                val a: CommuterAgent = CommuterAgent(state, home, work)
-                a.defineActivities()
-
-                SurfABM.agentGeoms.addGeometry(SurfGeometry[ABBFAgent](a.location(), a))
-                state.schedule.scheduleRepeating(a, SurfABM.AGENTS_STEP, 1)
-
-                SurfABM.agentGeoms.setMBR(SurfABM.mbr)
-                state.schedule.scheduleRepeating(SurfABM.agentGeoms.scheduleSpatialIndexUpdater, SurfABM.AGENTS_STEP, 1.0)
+                val created = AgentScheduler.newAgent(state, home) {
+                  val a: CommuterAgent = CommuterAgent(state, home, work)
+                  a.defineActivities()
+                  a
+                }
+                for (a <- created) { // (None if the model is distributed and the agent lives in another region)
+                  commutes += ((home, work)) // Remember the commute, in case the route cache is pre-warmed
+                  SurfABM.agentGeoms.addGeometry(SurfGeometry[ABBFAgent](a.location(), a))
+                  AgentScheduler.schedule(state, a)
+                  SurfABM.agentGeoms.setMBR(SurfABM.mbr)
+                }
               } // for commuters
             } // if worklist
 
@@ -158,14 +166,16 @@ object ABBFAgentLoaderOtleyPRIME {
               val home: SurfGeometry[Building] = SurfABM.buildingIDGeomMap(homeID)
 
               //makeAgent(state, home)
-              val a: RetiredAgent = RetiredAgent(state, home)
-              a.defineActivities()
-
-              SurfABM.agentGeoms.addGeometry(SurfGeometry[ABBFAgent](a.location(), a))
-              state.schedule.scheduleRepeating(a, SurfABM.AGENTS_STEP, 1)
-
-              SurfABM.agentGeoms.setMBR(SurfABM.mbr)
-              state.schedule.scheduleRepeating(SurfABM.agentGeoms.scheduleSpatialIndexUpdater, SurfABM.AGENTS_STEP, 1.0)
+              val created = AgentScheduler.newAgent(state, home) {
+                val a: RetiredAgent = RetiredAgent(state, home)
+                a.defineActivities()
+                a
+              }
+              for (a <- created) { // (None if the model is distributed and the agent lives in another region)
+                SurfABM.agentGeoms.addGeometry(SurfGeometry[ABBFAgent](a.location(), a))
+                AgentScheduler.schedule(state, a)
+                SurfABM.agentGeoms.setMBR(SurfABM.mbr)
+              }
             } // for noncommuters (retired)
 
 
@@ -182,5 +192,8 @@ object ABBFAgentLoaderOtleyPRIME {
 
     LOG.info(s"Have read $lineCounter lines and created ${SurfABM.agentGeoms.getGeometries.size()} agents")
 
+    // Optionally find the routes between the commuters' homes and workplaces now, rather than as they travel
+    RouteCache.prewarm(commutes)
+
   } // createAgents
 }
@@ -1,20 +1,25 @@
 package surf.abm.agents.abbf
 
 import java.io
-import java.io.{BufferedWriter, File, FileWriter}
+import java.io.File
 import java.time.temporal.TemporalAmount
 
+import com.typesafe.config.ConfigException
 import com.vividsolutions.jts.geom
 import com.vividsolutions.jts.geom.Coordinate
+import ec.util.MersenneTwisterFast
 import org.apache.log4j.Logger
 import org.scalatest.time.Days
 import sim.engine.{SimState, Steppable}
-import surf.abm.agents.abbf.ABBFOutputter.AgentsToOutput
+import surf.abm.agents.Agent
 import surf.abm.agents.abbf.activities.{Activity, ShopActivity, SleepActivity, WorkActivity}
 import surf.abm.main.SurfABM.conf
 import surf.abm.main._
+import surf.abm.surfutil.AsyncOutputWriter
+
+import scala.collection.BitSet
+import scala.collection.JavaConverters._
 
-import scala.collection.mutable.ListBuffer
 
 /**
   * An outputter written specifically for the ABBF agents. To use this, include the following in the configuation file:<br/>
@@ -28,72 +33,174 @@ object ABBFOutputter extends Outputter with Serializable {
 
   private val LOG: Logger = Logger.getLogger(this.getClass);
 
-  // BufferedWriters to write the output
-  private var agentMainBR : BufferedWriter = null // Locations etc. of agents at every iteration
-  private var agentActivitiesBR : BufferedWriter = null // Info about agent activities
-  private var cameraCountsBR: BufferedWriter = null // Camera counts
-  private var agentChangeActivity: BufferedWriter = null // Information written each time an agent changes activity
+  // Each run of the model has its own files (see Replication). Not Serializable, so when a run is restored from a
+  // checkpoint the files are opened again in the new run's directory (see OutputFactory.reopen).
+  private class RunState {
+    // Writers for the output. They write on their own threads so the model doesn't have to wait for the disk.
+    var agentMainBR : AsyncOutputWriter = null // Locations etc. of agents at every iteration
+    var agentActivitiesBR : AsyncOutputWriter = null // Info about agent activities
+    var cameraCountsBR: AsyncOutputWriter = null // Camera counts
+    var roadCountsBR: AsyncOutputWriter = null // Counts of agents on each road (if roads are being counted)
+    var dir: File = null // Where the files are
+    var agentChangeActivity: AsyncOutputWriter = null // Information written each time an agent changes activity
+    var activityCountsBR: AsyncOutputWriter = null // The number of agents doing each activity in each OA (or building type)
+
+    // How often to write to each file (configured in an Output block; see OutputOptions)
+    var agentMainOptions: OutputOptions = null
+    var agentActivitiesOptions: OutputOptions = null
+    var agentChangeOptions: OutputOptions = null
+    var activityCountsOptions: OutputOptions = null
+    var activityCounter: ActivityCounter = null // Does the counting for the activity-counts file
+
+    // Might only write information for some agents: the IDs of the ones to write about (null for all of them). Chosen
+    // in the first step(), once the agents exist
+    var AgentsToOutput : BitSet = null
+    var chosen = false
+  }
+  private val newRunState = () => new RunState
+  private def run: RunState = Replication.current.state(this, newRunState)
+
+  // Abbreviations for the types of the columns in the output files
+  private val L = AsyncOutputWriter.ColumnType.LONG
+  private val D = AsyncOutputWriter.ColumnType.DOUBLE
+  private val S = AsyncOutputWriter.ColumnType.STRING
+
+  /** The number of rows that are kept in memory for each output file before they are handed to its writer */
+  private lazy val OUTPUT_BATCH_ROWS: Int = try {
+    SurfABM.conf.getInt(SurfABM.ModelConfig + ".OutputBatchRows")
+  } catch {
+    case _: ConfigException.Missing => 8192
+  }
 
-  // Might only write information for some agents. This will be populated shortly
-  private var AgentsToOutput : List[Int] = null
+  /** The number of batches of rows for each output file. If they are all waiting to be written, the model waits. */
+  private lazy val OUTPUT_BATCHES: Int = try {
+    SurfABM.conf.getInt(SurfABM.ModelConfig + ".OutputBatches")
+  } catch {
+    case _: ConfigException.Missing => 4
+  }
 
 
   def apply() : Outputter = {
-
-    // See if we are going to write information for some agents, or all
-    val NumAgentsToOutput = SurfABM.conf.getInt(SurfABM.ModelConfig+".NumAgentsToOutput");
-    // Make a list of all agent IDs
-    val agentIDs : List[Int] = { for (i <- 0 until SurfABM.agentGeoms.getGeometries().size()) yield {
-      SurfABM.agentGeoms.getGeometries.get(i).asInstanceOf[SurfGeometry[ABBFAgent]].theObject.id()
-    } }.toList
-    ABBFOutputter.AgentsToOutput = { // Choose which IDs to write about (all, or a random sample)
-      if (NumAgentsToOutput < 0) agentIDs
-      else scala.util.Random.shuffle(agentIDs).take(NumAgentsToOutput)
+    val run = this.run
+
+    // The columns in each file (names and types)
+    val AGENT_MAIN_HEADER = Seq("Iterations" -> D, "Time" -> S, "Agent" -> L, "Class" -> S, "Activity" -> S,
+      "x" -> D, "y" -> D) // Main file; one line per agent
+    val AGENT_ACTIVITY_HEADER = Seq("Iterations" -> D, "Time" -> S, "Agent" -> L, "AgentClass" -> S, "Activity" -> S,
+      "Intensity" -> D, "BackgroundIntensity" -> D, "TimeIntensity" -> D, "CurrentActivity" -> L) // More detailed information about all activities (multiple lines per agent)
+    val CAMERA_COUNTS_HEADER = Seq("Camera" -> L, "Date" -> S, "Hour" -> L, "Count" -> L) // Camera counts of agents passing by every hour
+    val ROAD_COUNTS_HEADER = Seq("Road" -> L, "Date" -> S, "Hour" -> L, "Count" -> L) // The same for every road (only non-zero counts)
+    val CHANGE_ACTIVITY_HEADER = Seq("Iteration" -> D, "Time" -> S, "Agent" -> L, "AgentClass" -> S,
+      "PreviousActivity" -> S, "Px" -> D, "Py" -> D, "NextActivity" -> S, "Nx" -> D, "Ny" -> D) // Info about previous and next activities each time an agent changes
+    val ACTIVITY_COUNTS_HEADER = Seq("Iterations" -> D, "Time" -> S, "Group" -> S, "Activity" -> S, "Agents" -> L,
+      "Travelling" -> L) // The number of agents doing each activity in each group of buildings (all agents, not just those that are sampled)
+
+    // Find out how often to write each file. By default, everything is written every iteration except the counts.
+    run.agentMainOptions = OutputOptions("agents", OutputOptions(OutputMode.EVERY))
+    run.agentActivitiesOptions = OutputOptions("agent-activities", OutputOptions(OutputMode.EVERY))
+    run.agentChangeOptions = OutputOptions("agent-change-activity", OutputOptions(OutputMode.CHANGE))
+    run.activityCountsOptions = OutputOptions("activity-counts", OutputOptions(OutputMode.OFF, 1, "oa"))
+    LOG.info(s"Output: agents: ${run.agentMainOptions}; agent-activities: ${run.agentActivitiesOptions}; " +
+      s"agent-change-activity: ${run.agentChangeOptions}; activity-counts: ${run.activityCountsOptions}")
+
+    // The format to write in ("csv" or "binary")
+    val format = try {
+      AsyncOutputWriter.Format.parse(SurfABM.conf.getString(SurfABM.ModelConfig + ".OutputFormat"))
+    } catch {
+      case _: ConfigException.Missing => AsyncOutputWriter.Format.CSV
     }
-    LOG.info(s"ABBFOutputter will write information about the following agents: "+AgentsToOutput.toString())
-
-
-    val AGENT_MAIN_HEADER = "Iterations,Time,Agent,Class,Activity,x,y\n" // Main csv file; one line per agent
-    val AGENT_ACTIVITY_HEADER = "Iterations,Time,Agent,AgentClass,Activity,Intensity,BackgroundIntensity,TimeIntensity,CurrentActivity\n" // More detailed information about all activities (multiple lines per agent)
-    val CAMERA_COUNTS_HEADER = "Camera,Date,Hour,Count\n" // Camera counts of agents passing by every hour
-    val CHANGE_ACTIVITY_HEADER = "Iteration,Time,Agent,AgentClass,PreviousActivity,Px,Py,NextActivity,Nx,Ny\n" // Info about previous and next activities each time an agent changes
 
-    // Make a new directory for this model
-    val dir = new File("./results/out/"+SurfABM.ModelConfig+"/"+System.currentTimeMillis()+"/")
+    // Make a new directory for this model (unless the run has been given one, e.g. by the BatchRunner)
+    val dir = Replication.current.outputDirectory.getOrElse(
+      new File("./results/out/"+SurfABM.ModelConfig+"/"+System.currentTimeMillis()+"/"))
     dir.mkdirs()
+    run.dir = dir
     LOG.info(s"Initialising ABBFOutputter and writing results to: $dir")
 
 
-    // Create the output files
-    this.agentMainBR = new BufferedWriter( new FileWriter ( new File(dir.getAbsolutePath+"/agents.csv")))
-    this.agentActivitiesBR = new BufferedWriter( new FileWriter ( new File(dir.getAbsolutePath+"/agent-activities.csv")))
-    this.cameraCountsBR = new BufferedWriter( new FileWriter( new File(dir.getAbsolutePath+"/camera-counts.csv")))
-    this.agentChangeActivity = new BufferedWriter( new FileWriter( new File(dir.getAbsolutePath+"/agent-change-activity.csv")))
-
-
-    // Write the headers
-    this.agentMainBR.write(AGENT_MAIN_HEADER)
-    this.agentActivitiesBR.write(AGENT_ACTIVITY_HEADER)
-    this.cameraCountsBR.write(CAMERA_COUNTS_HEADER)
-    this.agentChangeActivity.write(CHANGE_ACTIVITY_HEADER)
+    // Create the output files (the writers write the headers). Files that are turned off aren't created.
+    def writer(name: String, columns: Seq[(String, AsyncOutputWriter.ColumnType)], options: OutputOptions = null) =
+      if (options != null && options.mode == OutputMode.OFF) null
+      else new AsyncOutputWriter(new File(dir, name), format, columns.map(_._1).toArray, columns.map(_._2).toArray,
+        OUTPUT_BATCH_ROWS, OUTPUT_BATCHES)
+    run.agentMainBR = writer("agents", AGENT_MAIN_HEADER, run.agentMainOptions)
+    run.agentActivitiesBR = writer("agent-activities", AGENT_ACTIVITY_HEADER, run.agentActivitiesOptions)
+    run.cameraCountsBR = writer("camera-counts", CAMERA_COUNTS_HEADER)
+    run.roadCountsBR = if (RoadRecorder.enabled) writer("road-counts", ROAD_COUNTS_HEADER) else null
+    run.agentChangeActivity = writer("agent-change-activity", CHANGE_ACTIVITY_HEADER, run.agentChangeOptions)
+    run.activityCountsBR = writer("activity-counts", ACTIVITY_COUNTS_HEADER, run.activityCountsOptions)
+    if (run.activityCountsBR != null) {
+      run.activityCounter = new ActivityCounter(run.activityCountsOptions.aggregateBy)
+      LOG.info(s"Counting activities in ${run.activityCounter.numGroups} groups of buildings")
+    }
 
     return this
 
   }
 
+  /**
+    * Choose which agents to write about: all of them, or (if NumAgentsToOutput isn't negative) a random sample of
+    * their IDs. The sample is drawn from all of the IDs that the model has given out, with a generator seeded by the
+    * model's seed, so that when the model is distributed (see [[surf.abm.main.Distributed]]) every worker chooses the
+    * same agents, and an agent that moves to another region is still written about there.
+    */
+  private def chooseAgents(state: SimState): BitSet = {
+    val NumAgentsToOutput = SurfABM.conf.getInt(SurfABM.ModelConfig+".NumAgentsToOutput");
+    if (NumAgentsToOutput < 0) {
+      LOG.info("ABBFOutputter will write information about all agents")
+      return null
+    }
+    val ids = Array.range(0, Agent.numIDs(state.asInstanceOf[SurfABM]))
+    val random = new MersenneTwisterFast(state.seed())
+    var i = ids.length - 1
+    while (i > 0) { // (Shuffle the IDs)
+      val j = random.nextInt(i + 1)
+      val id = ids(i)
+      ids(i) = ids(j)
+      ids(j) = id
+      i -= 1
+    }
+    val chosen = BitSet(ids.take(NumAgentsToOutput): _*)
+    LOG.info(s"ABBFOutputter will write information about the following agents: "+chosen.mkString(", "))
+    chosen
+  }
+
   /**
     * This should be scheduled to be called at every iteration and write out model info.
     *
     * @param state
     */
   def step(state: SimState): Unit = {
+    val run = this.run
+    if (!run.chosen) {
+      run.AgentsToOutput = chooseAgents(state)
+      run.chosen = true
+    }
 
     val ticks = state.schedule.getTime()
-    val time = Clock.getTime
-    //for (i <- 0 until SurfABM.agentGeoms.getGeometries().size()) {
-    for (i <- AgentsToOutput) { // Only iterate over the agents who we are outputting
-      //LOG.info(i)
-      val agentGeom = SurfABM.agentGeoms.getGeometries.get(i).asInstanceOf[SurfGeometry[ABBFAgent]]
+    val time = Clock.getTime.toString // (Only need to convert the time to a string once)
+    val hour = Clock.currentHour() // Need to know the time of day for the intensity
+    val iteration = Clock.getIterations()
+
+    // The counts are worked out for all agents (they're cheap)
+    if (run.activityCountsOptions.sample(iteration)) {
+      val agents = SurfABM.agentGeoms.getGeometries.iterator.asScala.map(_.asInstanceOf[SurfGeometry[ABBFAgent]].theObject)
+      run.activityCounter.write(agents, run.activityCountsBR, ticks, time)
+    }
+
+    // Don't look at the individual agents unless at least one of the files needs to be written this iteration
+    if (!(run.agentMainOptions.sample(iteration) || run.agentActivitiesOptions.sample(iteration) ||
+      run.agentChangeOptions.sample(iteration))) {
+      return
+    }
+
+    // Only write about the agents who we are outputting. The agents are found by ID, not by their position in
+    // agentGeoms, which changes as agents are removed (e.g. when they move to another region).
+    val agentGeoms = SurfABM.agentGeoms.getGeometries
+    for (i <- 0 until agentGeoms.size()
+         if run.AgentsToOutput == null ||
+           run.AgentsToOutput.contains(agentGeoms.get(i).asInstanceOf[SurfGeometry[ABBFAgent]].theObject.id())) {
+      val agentGeom = agentGeoms.get(i).asInstanceOf[SurfGeometry[ABBFAgent]]
       val agent = agentGeom.theObject // The object that is represented by the SurfGeometry
       val coord = agent.location().geometry.getCoordinate // The agent's location
       val act = agent.currentActivity.getOrElse(None) // The current activity. An Option, so will either be Some[Activity] or None.
@@ -101,19 +208,26 @@ object ABBFOutputter extends Outputter with Serializable {
       val agentClass = agent.getClass.getSimpleName // The agent's occupation class
 
       // Write the main agent file
-      this.agentMainBR.write(s"$ticks,$time,${agent.id()},$agentClass,${act.getClass.getSimpleName},${coord.x},${coord.y}\n")
+      if (run.agentMainOptions.write(iteration, agent.changedActivity())) {
+        run.agentMainBR.putDouble(ticks).putString(time).putLong(agent.id()).putString(agentClass).
+          putString(act.getClass.getSimpleName).putDouble(coord.x).putDouble(coord.y).endRow()
+      }
 
       // Now write the intensities of each activity (one line per agent-activity)
-      val hour = Clock.currentHour() // Need to know the time of day for the intensity
-      agent.activities.foreach(a => {
-        // Find the current activity, first checking that there is an activity (it can be empty)
-        val current = if (agent.currentActivity == None) 0 else { if (agent.currentActivity.get.getClass == a.getClass) 1 else 0 }
-        this.agentActivitiesBR.write(s"$ticks,$time,${agent.id()},$agentClass,${a.getClass.getSimpleName},${a.intensity()},${a.backgroundIntensity()},${a.timeIntensity(hour)},$current\n")
+      if (run.agentActivitiesOptions.write(iteration, agent.changedActivity())) {
+        agent.updateIntensities() // (In case the agent hasn't been stepped this iteration)
+        agent.activities.foreach(a => {
+          // Find the current activity, first checking that there is an activity (it can be empty)
+          val current = if (agent.currentActivity == None) 0 else { if (agent.currentActivity.get.getClass == a.getClass) 1 else 0 }
+          run.agentActivitiesBR.putDouble(ticks).putString(time).putLong(agent.id()).putString(agentClass).
+            putString(a.getClass.getSimpleName).putDouble(a.intensity()).putDouble(a.backgroundIntensity()).
+            putDouble(a.timeIntensity(hour)).putLong(current).endRow()
+        }
+        )
       }
-      )
 
      // Write information about new and previous activities each time an agent's activity changes.
-      if (agent.changedActivity()) { // This agent has changed their activity. Write information about the old and new activities
+      if (run.agentChangeOptions.sample(iteration) && agent.changedActivity()) { // This agent has changed their activity. Write information about the old and new activities
 
         // Get the next and previous activity, checking that it not none
         val prevAct = if (agent.previousActivity() == None) None else agent.previousActivity()
@@ -124,16 +238,14 @@ object ABBFOutputter extends Outputter with Serializable {
         // the activity changes.
         // IF THIS CAUSES PROBLEMS FOR STELIOS I'LL HAVE TO FIGURE OUT HOW TO EITHER GET THE LOCAITON NOW, OR DELAY
         // SETTING agent.activity_changed UNTIL THE NEXT ITERATION.
-        val px = get_coord_from_activity(prevAct).x
-        val py = get_coord_from_activity(prevAct).y
-        val nx = get_coord_from_activity(nextAct).x
-        val ny = get_coord_from_activity(nextAct).y
+        val p = get_coord_from_activity(prevAct)
+        val n = get_coord_from_activity(nextAct)
 
         // Write out the info:
         // Iteration,Time,Agent,AgentClass,PreviousActivity,Px,Py,NextActivity,Nx,Ny
-        this.agentChangeActivity.write(s"$ticks,$time,${agent.id()},$agentClass,"+
-          s"${prevAct.getOrElse(None).getClass.getSimpleName},${px},${py},"+
-          s"${nextAct.getOrElse(None).getClass.getSimpleName},${nx},${ny},\n")
+        run.agentChangeActivity.putDouble(ticks).putString(time).putLong(agent.id()).putString(agentClass).
+          putString(prevAct.getOrElse(None).getClass.getSimpleName).putDouble(p.x).putDouble(p.y).
+          putString(nextAct.getOrElse(None).getClass.getSimpleName).putDouble(n.x).putDouble(n.y).endRow()
 
       }
 
@@ -159,26 +271,44 @@ object ABBFOutputter extends Outputter with Serializable {
     * knitr session to analyse them
     */
   def finish() : Unit  = {
-
-    // Write the camera count file
-    val camCounts: Map[Int, ListBuffer[Int]] = collection.immutable.Map(CameraRecorder.tempCameraMaps.toSeq: _*)
-
-    for (c <- camCounts) {
-      val camCountsIndex = c._2.zipWithIndex
-
-      for (h <- camCountsIndex) {
-        val extraDays: Int = (Clock.getStartHour + h._2) / 24
-        this.cameraCountsBR.write(s"${c._1},${Clock.getStartDate.plusDays(extraDays)},${(Clock.getStartHour + h._2) % 24},${h._1}\n") // cameraID (key of map), date, hour (index of list mod 24), count (value of list)
+    val run = this.run
+
+    // Write the camera count file (reading straight from the matrix of counts; one row per camera, one column per hour)
+    val camCounts = CameraRecorder.counts
+    for ((cameraID, row) <- CameraRecorder.cameraList.zipWithIndex) {
+      var h = 0
+      while (h < camCounts.getNumColumns) {
+        val extraDays: Int = (Clock.getStartHour + h) / 24
+        run.cameraCountsBR.putLong(cameraID.longValue).putString(Clock.getStartDate.plusDays(extraDays).toString).
+          putLong((Clock.getStartHour + h) % 24).putLong(camCounts.get(row, h)).endRow() // cameraID, date, hour (column mod 24), count
+        h += 1
       }
+    }
 
+    // Write the counts for every road (only the ones that aren't zero, as most roads are quiet most of the time)
+    if (run.roadCountsBR != null) {
+      val roadCounts = RoadRecorder.counts
+      for ((road, row) <- RoadRecorder.roads.zipWithIndex) {
+        var h = 0
+        while (h < roadCounts.getNumColumns) {
+          val count = roadCounts.get(row, h)
+          if (count > 0) {
+            val extraDays: Int = (Clock.getStartHour + h) / 24
+            run.roadCountsBR.putLong(road.theObject.id).putString(Clock.getStartDate.plusDays(extraDays).toString).
+              putLong((Clock.getStartHour + h) % 24).putLong(count).endRow()
+          }
+          h += 1
+        }
+      }
+      RoadRecorder.writeShapefile(new File(run.dir, "road-counts"))
     }
 
-    // Close files
+    // Close files (waiting for the writers to write everything that they have been given)
     LOG.info("Closing output files")
-    this.agentActivitiesBR.close()
-    this.agentMainBR.close()
-    this.cameraCountsBR.close()
-    this.agentChangeActivity.close()
+    for (w <- List(run.agentActivitiesBR, run.agentMainBR, run.cameraCountsBR, run.roadCountsBR, run.agentChangeActivity,
+                   run.activityCountsBR) if w != null) {
+      w.close()
+    }
     // Start knitr and generate the output file
     // TODO this should generate outputs in the same directory as the results, not the same directory as the script
     /*try {
@@ -0,0 +1,90 @@
+package surf.abm.agents.abbf
+
+import surf.abm.environment.Building
+import surf.abm.main.{BUILDING_FIELDS, SurfABM}
+import surf.abm.surfutil.AsyncOutputWriter
+
+import scala.collection.mutable
+import scala.collection.mutable.ArrayBuffer
+
+/**
+  * Counts the number of agents who are doing each activity in each group of buildings, so that the counts can be
+  * written instead of (much larger) information about every agent. Buildings are grouped by one of their attributes,
+  * either the output area ('oa') or the building type ('building-type'). Agents are counted in the group of the
+  * building where their current activity takes place (whether or not they have got there yet). Agents whose activity
+  * doesn't happen in a building that has the attribute are counted in the 'None' group.
+  *
+  * @param aggregateBy What to group buildings by ('oa' or 'building-type')
+  */
+class ActivityCounter(val aggregateBy: String) {
+
+  private val attribute = aggregateBy.trim.toLowerCase match {
+    case "oa" => BUILDING_FIELDS.BUILDINGS_OA.toString
+    case "building-type" => BUILDING_FIELDS.BUILDINGS_TYPE.toString
+    case other => throw new Exception(s"Cannot count activities by '$other'. Should be 'oa' or 'building-type'")
+  }
+
+  // The name of each group. Group 0 is for places that aren't in a building that has the attribute.
+  private val groupNames = ArrayBuffer[String]("None")
+
+  // The group of each building, indexed by building ID
+  private val buildingGroups: Array[Int] = {
+    val maxID = if (SurfABM.buildingIDGeomMap.isEmpty) -1 else SurfABM.buildingIDGeomMap.keys.max
+    val groups = Array.fill[Int](maxID + 1)(0)
+    val index = mutable.HashMap[String, Int]()
+    for ((id, b) <- SurfABM.buildingIDGeomMap if id >= 0 && b.hasAttribute(attribute)) {
+      val value = b.getStringAttribute(attribute)
+      if (value != null) {
+        groups(id) = index.getOrElseUpdate(value, { groupNames += value; groupNames.size - 1 })
+      }
+    }
+    groups
+  }
+
+  // Activities are given an index when they are first seen. "None" is for agents who don't have an activity.
+  private val activityIndex = mutable.HashMap[Class[_], Int]()
+  private val activityNames = ArrayBuffer[String]("None")
+  // counts(activity)(2 * group) is the number of agents; counts(activity)(2 * group + 1) is the number travelling
+  private val counts = ArrayBuffer[Array[Int]](new Array[Int](2 * groupNames.size))
+
+  /** The number of groups that buildings have been put in (including 'None') */
+  def numGroups: Int = groupNames.size
+
+  /**
+    * Count the agents and write a row for each group and activity that has at least one agent. The writer needs
+    * to have the following columns: Iterations (double), Time (string), Group (string), Activity (string),
+    * Agents (long), Travelling (long)
+    */
+  def write(agents: Iterator[ABBFAgent], writer: AsyncOutputWriter, ticks: Double, time: String): Unit = {
+    counts.foreach(java.util.Arrays.fill(_, 0))
+    for (agent <- agents) {
+      val (a, g) = agent.currentActivity() match {
+        case Some(act) => (activity(act.getClass), group(act.currentPlace()))
+        case None => (0, 0)
+      }
+      counts(a)(2 * g) += 1
+      if (!agent.atDestination()) {
+        counts(a)(2 * g + 1) += 1
+      }
+    }
+    for (g <- 0 until groupNames.size; a <- 0 until activityNames.size if counts(a)(2 * g) > 0) {
+      writer.putDouble(ticks).putString(time).putString(groupNames(g)).putString(activityNames(a)).
+        putLong(counts(a)(2 * g)).putLong(counts(a)(2 * g + 1)).endRow()
+    }
+  }
+
+  private def activity(cls: Class[_]): Int = activityIndex.getOrElseUpdate(cls, {
+    activityNames += cls.getSimpleName
+    counts += new Array[Int](2 * groupNames.size)
+    activityNames.size - 1
+  })
+
+  private def group(place: Place): Int = {
+    if (place == null || place.location == null) return 0
+    place.location.theObject match {
+      case b: Building if b.id >= 0 && b.id < buildingGroups.length => buildingGroups(b.id)
+      case _ => 0
+    }
+  }
+
+}
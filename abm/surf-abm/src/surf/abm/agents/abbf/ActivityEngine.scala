@@ -0,0 +1,184 @@
+package surf.abm.agents.abbf
+
+import surf.abm.main.{Parameters, Replication, SurfABM}
+
+/**
+  * Holds the numbers that drive every agent's [[surf.abm.agents.abbf.activities.Activity]]s in columns (one
+  * primitive array per quantity) rather than in the activity objects themselves. Each activity is given a slot when
+  * it is created, and its background intensity, background increase, random multiplier and time profile are kept in
+  * that slot. Agents keep the slots of their activities so that they can update them, and find the most intense one,
+  * with simple loops over arrays.
+  *
+  * The time-of-day intensity of each slot is remembered for the hour that it was last worked out for, so each
+  * [[surf.abm.agents.abbf.TimeProfile]] is only interpolated once per iteration however many times the intensity is
+  * needed.
+  *
+  * Slots are only allocated while agents are being created or read (on one thread). After that each slot is only
+  * used by the agent that owns it, so agents can update their own slots at the same time as each other. When an agent
+  * leaves the run (e.g. moves to another region of a distributed model) its slots are released, and are given to the
+  * next activities that are allocated.
+  *
+  * The engine isn't written to checkpoints: each activity writes the numbers in its own slot, and is given a new
+  * slot when it is read.
+  */
+@SerialVersionUID(1L)
+class ActivityEngine extends Serializable {
+
+  private var _size = 0
+  private var backgrounds = new Array[Double](ActivityEngine.INITIAL_SIZE)
+  private var multipliers = new Array[Double](ActivityEngine.INITIAL_SIZE)
+  private var increases = new Array[Double](ActivityEngine.INITIAL_SIZE) // (NaN until it is known)
+  private var profiles = new Array[TimeProfile](ActivityEngine.INITIAL_SIZE)
+  private var timeHour = new Array[Double](ActivityEngine.INITIAL_SIZE) // The hour of the remembered time intensity
+  private var timeValue = new Array[Double](ActivityEngine.INITIAL_SIZE)
+  private var released = new Array[Int](16) // Slots that can be allocated again
+  private var _numReleased = 0
+
+  /** The number of slots that have been allocated (including ones that have been released) */
+  def size: Int = _size
+
+  /** The number of slots that are being used */
+  def used: Int = _size - _numReleased
+
+  /**
+    * Allocate a slot for a new activity.
+    *
+    * @param profile The activity's time profile
+    * @param multiplier The random number that this activity's background increase is multiplied by
+    * @return The slot
+    */
+  def allocate(profile: TimeProfile, multiplier: Double): Int = synchronized {
+    if (_numReleased > 0) {
+      _numReleased -= 1
+      val slot = released(_numReleased)
+      this.reset(slot, profile, multiplier)
+      return slot
+    }
+    if (_size == backgrounds.length) {
+      val n = backgrounds.length * 2
+      backgrounds = java.util.Arrays.copyOf(backgrounds, n)
+      multipliers = java.util.Arrays.copyOf(multipliers, n)
+      increases = java.util.Arrays.copyOf(increases, n)
+      profiles = java.util.Arrays.copyOf(profiles, n)
+      timeHour = java.util.Arrays.copyOf(timeHour, n)
+      timeValue = java.util.Arrays.copyOf(timeValue, n)
+    }
+    val slot = _size
+    this.reset(slot, profile, multiplier)
+    _size += 1
+    slot
+  }
+
+  private def reset(slot: Int, profile: TimeProfile, multiplier: Double): Unit = {
+    backgrounds(slot) = 0d
+    multipliers(slot) = multiplier
+    increases(slot) = Double.NaN
+    profiles(slot) = profile
+    timeHour(slot) = Double.NaN
+  }
+
+  /**
+    * Give back a slot that is no longer needed (its activity has left the run), so that it can be allocated again.
+    */
+  def release(slot: Int): Unit = synchronized {
+    if (_numReleased == released.length) {
+      released = java.util.Arrays.copyOf(released, released.length * 2)
+    }
+    released(_numReleased) = slot
+    _numReleased += 1
+    profiles(slot) = null
+  }
+
+  def backgroundIntensity(slot: Int): Double = backgrounds(slot)
+
+  def setBackgroundIntensity(slot: Int, value: Double): Unit = backgrounds(slot) = value
+
+  def multiplier(slot: Int): Double = multipliers(slot)
+
+  /** The amount that the background intensity goes up by each iteration (NaN if it hasn't been set yet) */
+  def increase(slot: Int): Double = increases(slot)
+
+  def setIncrease(slot: Int, value: Double): Unit = increases(slot) = value
+
+  /** The time-of-day intensity of the slot's profile at the given hour (remembered until the hour changes) */
+  def timeIntensity(slot: Int, hour: Double): Double = {
+    if (timeHour(slot) != hour) {
+      timeValue(slot) = profiles(slot).calcIntensity(hour)
+      timeHour(slot) = hour
+    }
+    timeValue(slot)
+  }
+
+  /** The total intensity (background plus time of day) */
+  def intensity(slot: Int, hour: Double): Double = backgrounds(slot) + timeIntensity(slot, hour)
+
+  /**
+    * Increase the background intensity of each of the slots by its background increase, except for one.
+    *
+    * @param slots The slots to increase
+    * @param except A slot not to increase (e.g. an agent's current activity) or -1 to increase all of them
+    */
+  def increaseAll(slots: Array[Int], except: Int): Unit = {
+    var i = 0
+    while (i < slots.length) {
+      val s = slots(i)
+      if (s != except) {
+        backgrounds(s) += increases(s)
+      }
+      i += 1
+    }
+  }
+
+  /**
+    * @return The index (in <code>slots</code>) of the slot with the highest total intensity. If there are several,
+    *         the first. -1 if there are no slots.
+    */
+  def highest(slots: Array[Int], hour: Double): Int = {
+    var best = -1
+    var bestIntensity = Double.NegativeInfinity
+    var i = 0
+    while (i < slots.length) {
+      val intensity = this.intensity(slots(i), hour)
+      if (best < 0 || intensity > bestIntensity) {
+        best = i
+        bestIntensity = intensity
+      }
+      i += 1
+    }
+    best
+  }
+
+}
+
+object ActivityEngine {
+
+  private val INITIAL_SIZE = 1024
+
+  /**
+    * The random multipliers of the activities' background increases are in the range [1-R/2, 1+R/2] where R is
+    * BackgroundRndRange (a [[surf.abm.main.Parameters]], so it can be different in each run).
+    */
+  def backgroundRndRange(replication: Replication): Double = Parameters(replication, "BackgroundRndRange")
+
+  // Each run of the model has its own engine (see Replication). It isn't Serializable, so it isn't kept in
+  // checkpoints: the activities put their numbers in the run's engine as they are read.
+  private class RunState {
+    var engine = new ActivityEngine()
+  }
+  private val newRunState = () => new RunState
+  private def run: RunState = Replication.current.state(this, newRunState)
+
+  /** The engine that activities are currently being created in */
+  def apply(): ActivityEngine = this.run.engine
+
+  /** The engine that the given run's activities are being created in (quicker than apply() if the run is known) */
+  def apply(replication: Replication): ActivityEngine = replication.state(this, newRunState).engine
+
+  /**
+    * Needs to be called before any agents are created (it gets rid of the activities of any previous run).
+    */
+  def create(state: SurfABM): Unit = {
+    this.run.engine = new ActivityEngine()
+  }
+
+}
@@ -102,6 +102,37 @@ case class TimeProfile(val profile: Array[(Double, Double)]) {
     return interpolate(t, t0, i0, t1, i1)
   }
 
+  /**
+    * The highest intensity at any time in a period. Used to work out how long it will be before an activity
+    * could become intense enough to matter.
+    *
+    * @param from The start of the period (in the range [0,24))
+    * @param hours The length of the period. It can go past midnight.
+    */
+  def maxIntensity(from: Double, hours: Double): Double = this.extremeIntensity(from, hours, math.max)
+
+  /**
+    * The lowest intensity at any time in a period (see [[maxIntensity()]]).
+    */
+  def minIntensity(from: Double, hours: Double): Double = this.extremeIntensity(from, hours, math.min)
+
+  private def extremeIntensity(from: Double, hours: Double, f: (Double, Double) => Double): Double = {
+    if (hours >= 24) {
+      return this.intensities.reduce(f) // The whole day
+    }
+    // The intensities are interpolated linearly, so the extremes are either at the ends of the period, or at
+    // one of the profile's times within it
+    val to = from + hours
+    var e = f(this.calcIntensity(from), this.calcIntensity(to % 24))
+    for (i <- this.times.indices) {
+      val t = this.times(i)
+      if ((t > from && t < to) || (t + 24 > from && t + 24 < to)) {
+        e = f(e, this.intensities(i))
+      }
+    }
+    e
+  }
+
   /**
     * Linear interpolation between the two points. Note: x1>x2 or an IllegalArgumentException is thrown
     *
@@ -1,9 +1,11 @@
 package surf.abm.agents.abbf.activities
 
+import java.io.{ObjectInputStream, ObjectOutputStream}
+
 import surf.abm.agents.{Agent, UrbanAgent}
-import surf.abm.agents.abbf.{ABBFAgent, Place, TimeProfile}
+import surf.abm.agents.abbf.{ABBFAgent, ActivityEngine, Place, TimeProfile}
 import surf.abm.agents.abbf.activities.ActivityTypes.ActivityType
-import surf.abm.main.{Clock, SurfABM}
+import surf.abm.main.{Clock, Parameters, SurfABM}
 import surf.abm.main.SurfABM.conf
 
 
@@ -35,19 +37,58 @@ import surf.abm.main.SurfABM.conf
 abstract class Activity ( val activityType: ActivityType, val timeProfile: TimeProfile, val agent: ABBFAgent)
   extends Serializable {
 
-  private var _backgroundIntensity = 0d // Private variable with public accessor
+  // The numbers that drive the activity (background intensity etc.) are kept in the ActivityEngine, in this slot.
+  // The background increase is multiplied by a random number in the range [1-R/2, 1+R/2] to strengthen or weaken
+  // it for each agent, and by the rate for this type of activity (the 'ActivityRates.<type>' parameter, 1 by
+  // default) to make all agents do it more or less often.
+  // The engine belongs to the run, so it isn't written with the activity (see writeObject()).
+  @transient private var engine = ActivityEngine(agent.state.replication)
+  @transient private var _slot: Int = {
+    val backgroundRndRange = ActivityEngine.backgroundRndRange(agent.state.replication)
+    val rate = Parameters(agent.state.replication, s"ActivityRates.${activityType.name}", 1.0)
+    engine.allocate(timeProfile,
+      rate * (agent.state.random.nextDouble() * backgroundRndRange + 1.0 - (backgroundRndRange / 2.0)))
+  }
+  def slot: Int = _slot
+
+  // Write the numbers in the activity's slot, rather than the whole engine (e.g. when an agent moves to another
+  // region; see surf.abm.main.RegionAgents)
+  private def writeObject(out: ObjectOutputStream): Unit = {
+    out.defaultWriteObject()
+    out.writeDouble(this.engine.multiplier(this._slot))
+    out.writeDouble(this.engine.backgroundIntensity(this._slot))
+    out.writeDouble(this.engine.increase(this._slot))
+  }
+
+  // Put the numbers in a new slot in the engine of the run that the activity is being read into. That happens in
+  // readResolve() because subclasses override timeProfile, and their fields haven't been read yet in readObject().
+  @transient private var _read: Array[Double] = null
+  private def readObject(in: ObjectInputStream): Unit = {
+    in.defaultReadObject()
+    this._read = Array(in.readDouble(), in.readDouble(), in.readDouble())
+  }
+
+  protected def readResolve(): AnyRef = {
+    this.engine = ActivityEngine()
+    this._slot = this.engine.allocate(this.timeProfile, this._read(0))
+    this.engine.setBackgroundIntensity(this._slot, this._read(1))
+    this.engine.setIncrease(this._slot, this._read(2))
+    this._read = null
+    this
+  }
+
   /**
     * The current background intensity of the activity. I.e. the base amount that will gradually increase until the
     * activity is undertaken.
     */
-  def backgroundIntensity() = _backgroundIntensity
+  def backgroundIntensity() = this.engine.backgroundIntensity(this.slot)
 
   /**
     * The current extra time-of-day intensity for this activity.
     *
     * @param currentTime Current decimal 24-hour of the day (e.g. 3.5 = 03:30)
     */
-  def timeIntensity(currentTime: Double) = this.timeProfile.calcIntensity(currentTime)
+  def timeIntensity(currentTime: Double) = this.engine.timeIntensity(this.slot, currentTime)
 
   /**
     * Calculate the current total intensity of this activity at the current time. (I.e. background intensity plus
@@ -55,11 +96,7 @@ abstract class Activity ( val activityType: ActivityType, val timeProfile: TimeP
     *
     * @return
     */
-  def intensity() = this._backgroundIntensity + this.timeProfile.calcIntensity(Clock.currentHour())
-
-  // activityIncreaseRnd is used to strengthen or weaken activity increase for every agent by multiplying it to a random number in a range [1-R/2, 1+R/2]
-  val backgroundRndRange: Double = SurfABM.conf.getDouble(SurfABM.ModelConfig+".BackgroundRndRange")
-  private val activityIncreaseRnd = scala.util.Random.nextDouble() * backgroundRndRange + 1.0 - (backgroundRndRange / 2.0)
+  def intensity() = this.engine.intensity(this.slot, Clock.currentHour(this.agent.state))
 
   /**
     * The minimum amount that the intensity of an activity must decrease before the agent stops trying to satisfy it.
@@ -67,6 +104,13 @@ abstract class Activity ( val activityType: ActivityType, val timeProfile: TimeP
     */
   val MINIMUM_INTENSITY_DECREASE: Double
 
+  /**
+    * The minimum intensity decrease for this type of activity: the 'MinimumIntensityDecrease.<type>' parameter (see
+    * [[surf.abm.main.Parameters]]) or, if there isn't one, the given default.
+    */
+  protected def minimumIntensityDecrease(default: Double): Double =
+    Parameters(agent.state.replication, s"MinimumIntensityDecrease.${activityType.name}", default)
+
 
   protected var _currentIntensityDecrease = 0d
   /**
@@ -110,6 +154,14 @@ abstract class Activity ( val activityType: ActivityType, val timeProfile: TimeP
     */
   def performActivity() : Boolean
 
+  /**
+    * Whether the agent is doing this activity at the place where it happens (rather than getting ready to do it or
+    * travelling there). While this is true, performActivity() will keep returning true, and doing nothing else,
+    * until the activity changes. Subclasses that can tell should override this, as it lets agents that are just
+    * getting on with their activity be left alone (see [[surf.abm.agents.abbf.ABBFAgent]]).
+    */
+  def inPlace() : Boolean = false
+
   /**
     * This method will be called if this Activity was being performed, but now a new one is in charge. This gives
     * the Activity the opportunity to reset itself ready for the next time it is called. For example, in
@@ -131,7 +183,21 @@ abstract class Activity ( val activityType: ActivityType, val timeProfile: TimeP
     *
     */
   def ++() : Unit = {
-    this._backgroundIntensity += this.backgroundIncrease() * this.activityIncreaseRnd
+    this.engine.setBackgroundIntensity(this.slot, this.backgroundIntensity() + this.backgroundIncreasePerTick())
+  }
+
+  /**
+    * The amount that <code>++()</code> increases the background intensity by (the background increase, adjusted
+    * for this agent). It is worked out the first time that it is needed (backgroundIncrease() shouldn't change).
+    */
+  def backgroundIncreasePerTick() : Double = {
+    val increase = this.engine.increase(this.slot)
+    if (!increase.isNaN) {
+      return increase
+    }
+    val i = this.backgroundIncrease() * this.engine.multiplier(this.slot)
+    this.engine.setIncrease(this.slot, i)
+    i
   }
 
   /**
@@ -150,7 +216,7 @@ abstract class Activity ( val activityType: ActivityType, val timeProfile: TimeP
     */
   def --(simulate:Boolean = false) : Boolean = {
     if (!simulate) {
-      this._backgroundIntensity -= this.reduceActivityAmount()
+      this.engine.setBackgroundIntensity(this.slot, this.backgroundIntensity() - this.reduceActivityAmount())
       // below is an experimental option that prohibits backgroundIntensity of becoming negative
       /*if (this._backgroundIntensity - this.reduceActivityAmount() >= 0) {
         this._backgroundIntensity -= this.reduceActivityAmount()
@@ -172,8 +238,9 @@ abstract class Activity ( val activityType: ActivityType, val timeProfile: TimeP
     else {
       // Stupidity check - make sure that the intensity calculation here matches that in the intensity() function (I don't
       // want to change the intensity() function and forget to change the calculation here!)
-      assert (this._backgroundIntensity + this.timeProfile.calcIntensity(Clock.currentHour()) == this.intensity())
-      if ( ( this._backgroundIntensity - this.reduceActivityAmount() + this.timeProfile.calcIntensity(Clock.currentHour()) ) < 0 ) {
+      val hour = Clock.currentHour(this.agent.state)
+      assert (this.backgroundIntensity() + this.timeProfile.calcIntensity(hour) == this.intensity())
+      if ( ( this.backgroundIntensity() - this.reduceActivityAmount() + this.timeProfile.calcIntensity(hour) ) < 0 ) {
         return false // Reducing the intensity would take the total intensity below zero
       }
       return true
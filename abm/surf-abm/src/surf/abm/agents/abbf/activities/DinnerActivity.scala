@@ -93,6 +93,8 @@ case class DinnerActivity (
 
   }
 
+  override def inPlace(): Boolean = this.currentAction == HAVING_DINNER
+
   override def activityChanged(): Unit = {
     this.currentAction = INITIALISING
     this._currentIntensityDecrease = 0d
@@ -114,7 +116,7 @@ case class DinnerActivity (
     return 16d / SurfABM.ticksPerDay
   }
 
-  override val MINIMUM_INTENSITY_DECREASE = 0.7
+  override val MINIMUM_INTENSITY_DECREASE = minimumIntensityDecrease(0.7)
 
 }
 
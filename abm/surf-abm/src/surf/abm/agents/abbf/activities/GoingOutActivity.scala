@@ -51,7 +51,7 @@ case class GoingOutActivity (
 
       case INITIALISING => {
         Agent.LOG.debug(agent, "is initialising GoingOut")
-        val goingOutLocation: SurfGeometry[Building] = GISFunctions.findNearestObject[Building](this.agent.location(), SurfABM.goingOutGeoms, true, state)
+        val goingOutLocation: SurfGeometry[Building] = GISFunctions.findNearbyDestination[Building](this.agent.location(), SurfABM.goingOutGeoms, state, agent.random)
         this.place.location = goingOutLocation
         // See if the agent is in a pub/bar
         if (this.place.location.equalLocation(
@@ -89,6 +89,8 @@ case class GoingOutActivity (
 
   }
 
+  override def inPlace(): Boolean = this.currentAction == AT_THE_EVENT
+
   override def activityChanged(): Unit = {
     this.currentAction = INITIALISING
     this._currentIntensityDecrease = 0d
@@ -109,5 +111,5 @@ case class GoingOutActivity (
     return 12d / SurfABM.ticksPerDay
   }
 
-  override val MINIMUM_INTENSITY_DECREASE = 0.7
+  override val MINIMUM_INTENSITY_DECREASE = minimumIntensityDecrease(0.7)
 }
@@ -49,7 +49,7 @@ case class LunchActivity(
 
       case INITIALISING => {
         Agent.LOG.debug(agent, "is initialising LunchActivity")
-        val lunchLocation: SurfGeometry[Building] = GISFunctions.findNearestObject[Building](this.agent.location(), SurfABM.lunchGeoms, true, state)
+        val lunchLocation: SurfGeometry[Building] = GISFunctions.findNearbyDestination[Building](this.agent.location(), SurfABM.lunchGeoms, state, agent.random)
         this.place.location = lunchLocation
         // See if the agent is in a lunch place
         if (this.place.location.equalLocation(
@@ -87,6 +87,8 @@ case class LunchActivity(
 
   }
 
+  override def inPlace(): Boolean = this.currentAction == HAVING_LUNCH
+
   override def activityChanged(): Unit = {
     this.currentAction = INITIALISING
     this._currentIntensityDecrease = 0d
@@ -121,5 +123,5 @@ case class LunchActivity(
     }
   }
 
-  override val MINIMUM_INTENSITY_DECREASE = 0.6
+  override val MINIMUM_INTENSITY_DECREASE = minimumIntensityDecrease(0.6)
 }
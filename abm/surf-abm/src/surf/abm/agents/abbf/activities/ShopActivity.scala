@@ -25,7 +25,7 @@ case class ShopActivity(
   // (Note: in SleepActivity, these are defined as case classes that extend a sealed trait, but this way is probably
   // more efficient)
 
-  private val LOG: Logger = Logger.getLogger(this.getClass)
+  @transient private lazy val LOG: Logger = Logger.getLogger(this.getClass) // (Loggers aren't Serializable)
 
   private val IN_THE_SHOP = 1
   private val TRAVELLING = 2
@@ -57,7 +57,7 @@ case class ShopActivity(
         Agent.LOG.debug(agent, "initialising ShopActivity")
         //LOG.info(s"x coordinate is ${this.agent.location().getGeometry.getCentroid.getX}")
         //LOG.info(s"y coordinate is ${this.agent.location().getGeometry.getCentroid.getY}")
-        val shoppingLocation: SurfGeometry[Building] = GISFunctions.findNearestObject[Building](this.agent.location(), SurfABM.otherShopGeoms, true, state)
+        val shoppingLocation: SurfGeometry[Building] = GISFunctions.findNearbyDestination[Building](this.agent.location(), SurfABM.otherShopGeoms, state, agent.random)
         this.place.location = shoppingLocation
         // See if the agent is in the shop
         if (this.place.location.equalLocation(
@@ -96,6 +96,8 @@ case class ShopActivity(
   //throw new NotImplementedError("Have not implemented Shopping activity yet")
   }
 
+  override def inPlace(): Boolean = this.currentAction == IN_THE_SHOP
+
   override def activityChanged(): Unit = {
     this.currentAction = INITIALISING
     this._currentIntensityDecrease = 0d
@@ -131,5 +133,5 @@ case class ShopActivity(
     }
   }
 
-  override val MINIMUM_INTENSITY_DECREASE = 0.5
+  override val MINIMUM_INTENSITY_DECREASE = minimumIntensityDecrease(0.5)
 }
@@ -117,6 +117,8 @@ case class SleepActivity(
 
     }
 
+  override def inPlace(): Boolean = this.currentAction.isInstanceOf[Sleeping]
+
   /**
     *  Reset the private members that control the state of this activity
     */
@@ -157,6 +159,6 @@ case class SleepActivity(
     }
   }
 
-  override val MINIMUM_INTENSITY_DECREASE = 0.1
+  override val MINIMUM_INTENSITY_DECREASE = minimumIntensityDecrease(0.1)
 
 }
@@ -24,7 +24,7 @@ case class SportActivity (
     // (Note: in SleepActivity, these are defined as case classes that extend a sealed trait, but this way is probably
     // more efficient)
 
-    private val LOG: Logger = Logger.getLogger(this.getClass)
+    @transient private lazy val LOG: Logger = Logger.getLogger(this.getClass) // (Loggers aren't Serializable)
 
     private val DOING_SPORTS = 1
     private val TRAVELLING = 2
@@ -53,7 +53,7 @@ case class SportActivity (
 
       case INITIALISING => {
         Agent.LOG.debug(agent, "initialising SportActivity")
-        val sportLocation: SurfGeometry[Building] = GISFunctions.findNearestObject[Building](this.agent.location(), SurfABM.sportGeoms, true, state)
+        val sportLocation: SurfGeometry[Building] = GISFunctions.findNearbyDestination[Building](this.agent.location(), SurfABM.sportGeoms, state, agent.random)
         this.place.location = sportLocation
         // See if the agent is in the sports location
         if (this.place.location.equalLocation(
@@ -92,6 +92,8 @@ case class SportActivity (
     //throw new NotImplementedError("Have not implemented Sport activity yet")
   }
 
+    override def inPlace(): Boolean = this.currentAction == DOING_SPORTS
+
     override def activityChanged(): Unit = {
     this.currentAction = INITIALISING
     this._currentIntensityDecrease = 0d
@@ -127,6 +129,6 @@ case class SportActivity (
     }
   }
 
-    override val MINIMUM_INTENSITY_DECREASE = 0.5
+    override val MINIMUM_INTENSITY_DECREASE = minimumIntensityDecrease(0.5)
 
   }
@@ -25,7 +25,7 @@ case class SupermarketActivity(
   // (Note: in SleepActivity, these are defined as case classes that extend a sealed trait, but this way is probably
   // more efficient)
 
-  private val LOG: Logger = Logger.getLogger(this.getClass)
+  @transient private lazy val LOG: Logger = Logger.getLogger(this.getClass) // (Loggers aren't Serializable)
 
   private val IN_THE_SUPERMARKET = 1
   private val TRAVELLING = 2
@@ -56,7 +56,7 @@ case class SupermarketActivity(
 
       case INITIALISING => {
         Agent.LOG.debug(agent, "initialising SupermarketActivity")
-        val supermarketLocation: SurfGeometry[Building] = GISFunctions.findNearestObject[Building](this.agent.location(), SurfABM.supermarketGeoms, true, state)
+        val supermarketLocation: SurfGeometry[Building] = GISFunctions.findNearbyDestination[Building](this.agent.location(), SurfABM.supermarketGeoms, state, agent.random)
         this.place.location = supermarketLocation
         // See if the agent is in the supermarket
         if (this.place.location.equalLocation(
@@ -95,6 +95,8 @@ case class SupermarketActivity(
     //throw new NotImplementedError("Have not implemented Shopping activity yet")
   }
 
+  override def inPlace(): Boolean = this.currentAction == IN_THE_SUPERMARKET
+
   override def activityChanged(): Unit = {
     this.currentAction = INITIALISING
     this._currentIntensityDecrease = 0d
@@ -130,5 +132,5 @@ case class SupermarketActivity(
     }
   }
 
-  override val MINIMUM_INTENSITY_DECREASE = 0.5
+  override val MINIMUM_INTENSITY_DECREASE = minimumIntensityDecrease(0.5)
 }
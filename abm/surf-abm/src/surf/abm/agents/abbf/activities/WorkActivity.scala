@@ -76,6 +76,8 @@ case class WorkActivity(
     return false
   }
 
+  override def inPlace(): Boolean = this.currentAction == WORKING
+
   override def activityChanged(): Unit = {
     this.currentAction = INITIALISING
     this._currentIntensityDecrease = 0d
@@ -97,6 +99,6 @@ case class WorkActivity(
     return 3d / SurfABM.ticksPerDay
   }
 
-  override val MINIMUM_INTENSITY_DECREASE = 0.45
+  override val MINIMUM_INTENSITY_DECREASE = minimumIntensityDecrease(0.45)
 
 }
@@ -0,0 +1,214 @@
+package surf.abm.environment;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.planargraph.Edge;
+import com.vividsolutions.jts.planargraph.Node;
+import sim.util.geo.GeomPlanarGraphDirectedEdge;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/** An immutable, compact snapshot of a road network in compressed sparse row (CSR) format.
+ *
+ * Routing algorithms spend most of their time asking "which nodes can I get to from here, and how far away are
+ * they?". In a JTS PlanarGraph answering that means following pointers from Node to DirectedEdgeStar to a list
+ * of DirectedEdges to more Nodes. Here the same information is held in a few primitive arrays:
+ *
+ * <ul>
+ *     <li>Nodes are numbered 0..numNodes-1 (the same ids as {@link GeomPlanarGraphSurf#getNodeId(Node)}).</li>
+ *     <li>The directed edges out of node <code>n</code> occupy the <i>slots</i>
+ *     <code>offsets[n] .. offsets[n+1]-1</code>. For each slot, <code>targets</code> gives the node at the other
+ *     end, <code>lengths</code> the routing cost and <code>edgeIds</code> the undirected road edge.</li>
+ *     <li>Road edges are numbered 0..numEdges-1, and {@link #getEdge(int)} gives the
+ *     {@link GeomPlanarGraphEdgeSurf} (and hence the underlying <code>Road</code>) for each one.</li>
+ * </ul>
+ *
+ * The out-edges of each node are stored in the order that <code>node.getOutEdges().getEdges()</code> returns them,
+ * so algorithms that iterate over slots visit edges in the same order as those that walk the JTS graph.
+ *
+ * Create one with {@link GeomPlanarGraphSurf#compile()} once the network has been built. If the network changes
+ * afterwards the snapshot must be compiled again.
+ *
+ * @author Nick Malleson
+ */
+public final class CompactGraph
+{
+
+    private final int numNodes;
+    private final int numEdges;
+
+    // Node information, indexed by node id
+    private final Node[] nodes;
+    private final double[] nodeX;
+    private final double[] nodeY;
+
+    // CSR adjacency. offsets has numNodes+1 entries, the others have one entry per slot (directed edge)
+    private final int[] offsets;
+    private final int[] targets;
+    private final double[] lengths;
+    private final int[] edgeIds;
+    private final GeomPlanarGraphDirectedEdge[] dirEdges;
+
+    // Road edge information, indexed by edge id
+    private final GeomPlanarGraphEdgeSurf<?>[] edges;
+    private final double[] roadLengths;
+
+    private CompactGraph(GeomPlanarGraphSurf graph)
+    {
+        this.numNodes = graph.getNumNodes();
+        this.nodes = new Node[numNodes];
+        this.nodeX = new double[numNodes];
+        this.nodeY = new double[numNodes];
+        this.offsets = new int[numNodes + 1];
+
+        // Number the (undirected) edges
+        IdentityHashMap<Edge, Integer> edgeIndex = new IdentityHashMap<Edge, Integer>();
+        this.edges = new GeomPlanarGraphEdgeSurf<?>[graph.getEdges().size()];
+        for (Iterator<?> it = graph.edgeIterator(); it.hasNext();)
+        {
+            GeomPlanarGraphEdgeSurf<?> e = (GeomPlanarGraphEdgeSurf<?>) it.next();
+            edges[edgeIndex.size()] = e;
+            edgeIndex.put(e, edgeIndex.size());
+        }
+        this.numEdges = edgeIndex.size();
+        this.roadLengths = new double[numEdges];
+        for (int i = 0; i < numEdges; i++)
+        {
+            roadLengths[i] = edges[i].getLine().getLength();
+        }
+
+        // Count the out-edges of each node to work out where each node's slots begin
+        int slots = 0;
+        for (int n = 0; n < numNodes; n++)
+        {
+            Node node = graph.getNodeById(n);
+            nodes[n] = node;
+            nodeX[n] = node.getCoordinate().x;
+            nodeY[n] = node.getCoordinate().y;
+            offsets[n] = slots;
+            slots += node.getOutEdges().getDegree();
+        }
+        offsets[numNodes] = slots;
+
+        // Now fill in the slots
+        this.targets = new int[slots];
+        this.lengths = new double[slots];
+        this.edgeIds = new int[slots];
+        this.dirEdges = new GeomPlanarGraphDirectedEdge[slots];
+        for (int n = 0; n < numNodes; n++)
+        {
+            List<?> out = nodes[n].getOutEdges().getEdges();
+            for (int i = 0, s = offsets[n]; i < out.size(); i++, s++)
+            {
+                GeomPlanarGraphDirectedEdge de = (GeomPlanarGraphDirectedEdge) out.get(i);
+                int to = GeomPlanarGraphSurf.getNodeId(de.getToNode());
+                targets[s] = to;
+                lengths[s] = distance(n, to);
+                edgeIds[s] = edgeIndex.get(de.getEdge());
+                dirEdges[s] = de;
+            }
+        }
+    }
+
+    /** Build a snapshot of the given graph. */
+    public static CompactGraph build(GeomPlanarGraphSurf graph)
+    {
+        return new CompactGraph(graph);
+    }
+
+    public int getNumNodes()
+    {
+        return numNodes;
+    }
+
+    /** @return The number of (undirected) road edges */
+    public int getNumEdges()
+    {
+        return numEdges;
+    }
+
+    /** @return The number of slots (directed edges). Each road edge has two. */
+    public int getNumSlots()
+    {
+        return targets.length;
+    }
+
+    public Node getNode(int node)
+    {
+        return nodes[node];
+    }
+
+    public double getX(int node)
+    {
+        return nodeX[node];
+    }
+
+    public double getY(int node)
+    {
+        return nodeY[node];
+    }
+
+    /** @return The first slot of the edges out of the node */
+    public int firstSlot(int node)
+    {
+        return offsets[node];
+    }
+
+    /** @return One past the last slot of the edges out of the node */
+    public int endSlot(int node)
+    {
+        return offsets[node + 1];
+    }
+
+    /** @return The node at the end of the directed edge in the slot */
+    public int target(int slot)
+    {
+        return targets[slot];
+    }
+
+    /** @return The routing cost of the directed edge in the slot. This is the straight-line distance between the
+     * nodes at either end, which is what the router has always used. */
+    public double length(int slot)
+    {
+        return lengths[slot];
+    }
+
+    /** @return The id of the road edge that the directed edge in the slot belongs to */
+    public int edgeId(int slot)
+    {
+        return edgeIds[slot];
+    }
+
+    public GeomPlanarGraphDirectedEdge getDirectedEdge(int slot)
+    {
+        return dirEdges[slot];
+    }
+
+    public GeomPlanarGraphEdgeSurf<?> getEdge(int edgeId)
+    {
+        return edges[edgeId];
+    }
+
+    /** @return The length of the line that makes up the road edge (not the straight-line distance between its nodes) */
+    public double roadLength(int edgeId)
+    {
+        return roadLengths[edgeId];
+    }
+
+    /** @return The straight-line distance between two nodes */
+    public double distance(int a, int b)
+    {
+        final double dx = nodeX[a] - nodeX[b];
+        final double dy = nodeY[a] - nodeY[b];
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    /** @return The id of the node at the given coordinate, or -1 if there isn't one. */
+    public static int nodeIdAt(GeomPlanarGraphSurf graph, Coordinate c)
+    {
+        Node n = graph.findNode(c);
+        return n == null ? -1 : GeomPlanarGraphSurf.getNodeId(n);
+    }
+
+}
@@ -0,0 +1,375 @@
+package surf.abm.environment;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.io.InStream;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKBReader;
+import com.vividsolutions.jts.io.WKBWriter;
+import sim.util.geo.AttributeValue;
+import sim.util.geo.MasonGeometry;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A copy of the GIS data that the model's environment is built from (the buildings and roads with their attributes,
+ * and the nearest junction to each building) in a binary file that is much quicker to read than the shapefiles.
+ *
+ * <p>Snapshots are keyed by a hash of the files that they were made from (see {@link #hash(List, String...)}). When
+ * a snapshot is read, the hash of the current files is given, and if it doesn't match (or the snapshot was written
+ * by a different version of this class) the snapshot is ignored so that the environment is read from the shapefiles
+ * again.</p>
+ *
+ * <p>The file is memory-mapped when it is read, and the geometries are parsed (as WKB) straight out of the mapped
+ * buffer. The fields, network and indexes are cheap to build compared with reading the shapefiles, so they are
+ * built from the snapshot in the same way as from the shapefiles. That way the environment is identical whichever
+ * one it came from: the objects are in the same order and the network's nodes have the same ids.</p>
+ *
+ * @author Nick Malleson
+ */
+public final class EnvironmentSnapshot
+{
+
+    /** Increase this if the format changes, so that old snapshots are ignored */
+    public static final int VERSION = 1;
+
+    private static final int MAGIC = 0x53555246; // "SURF"
+
+    // The types of attribute values (the ones that the ShapeFileImporter creates)
+    private static final byte STRING = 0, INTEGER = 1, DOUBLE = 2, BOOLEAN = 3;
+
+    private final String hash;
+    private final List<MasonGeometry> buildings;
+    private final List<MasonGeometry> roads;
+    private final int[] buildingNodes;
+
+    /**
+     * @param hash The hash of the files that the environment was read from
+     * @param buildings The buildings, in the order that they were read
+     * @param roads The roads, in the order that they were read
+     * @param buildingNodes The nearest network node to each building, indexed by building ID
+     */
+    public EnvironmentSnapshot(String hash, List<MasonGeometry> buildings, List<MasonGeometry> roads,
+                               int[] buildingNodes)
+    {
+        this.hash = hash;
+        this.buildings = buildings;
+        this.roads = roads;
+        this.buildingNodes = buildingNodes;
+    }
+
+    public String getHash()
+    {
+        return hash;
+    }
+
+    public List<MasonGeometry> getBuildings()
+    {
+        return buildings;
+    }
+
+    public List<MasonGeometry> getRoads()
+    {
+        return roads;
+    }
+
+    public int[] getBuildingNodes()
+    {
+        return buildingNodes;
+    }
+
+    /**
+     * Work out the hash that identifies some input files. Anything else that changes how the files are read (e.g.
+     * which attributes are read) can be included too.
+     *
+     * @param files The files. Ones that don't exist are included by name only.
+     * @param extra Anything else that should change the hash
+     * @return A hex string
+     */
+    public static String hash(List<File> files, String... extra) throws IOException
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("SHA-256 should always be available", e);
+        }
+        digest.update(Integer.toString(VERSION).getBytes(StandardCharsets.UTF_8));
+        byte[] buffer = new byte[1 << 16];
+        for (File f : files)
+        {
+            digest.update(f.getName().getBytes(StandardCharsets.UTF_8));
+            if (!f.isFile())
+            {
+                continue;
+            }
+            InputStream in = new FileInputStream(f);
+            try
+            {
+                int n;
+                while ((n = in.read(buffer)) > 0)
+                {
+                    digest.update(buffer, 0, n);
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        for (String s : extra)
+        {
+            digest.update(s.getBytes(StandardCharsets.UTF_8));
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest())
+        {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /** Write the snapshot (to a temporary file first, so that a half-written snapshot is never read) */
+    public void write(File file) throws IOException
+    {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, hash);
+
+            // The names of all the attributes (there aren't many, so the geometries just refer to them by number)
+            Map<String, Integer> names = new LinkedHashMap<String, Integer>();
+            addNames(buildings, names);
+            addNames(roads, names);
+            out.writeInt(names.size());
+            for (String name : names.keySet())
+            {
+                writeString(out, name);
+            }
+
+            WKBWriter wkb = new WKBWriter();
+            writeLayer(out, buildings, names, wkb);
+            writeLayer(out, roads, names, wkb);
+
+            out.writeInt(buildingNodes.length);
+            for (int n : buildingNodes)
+            {
+                out.writeInt(n);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+        if (file.exists() && !file.delete())
+        {
+            throw new IOException("Could not replace the snapshot " + file);
+        }
+        if (!temp.renameTo(file))
+        {
+            throw new IOException("Could not rename " + temp + " to " + file);
+        }
+    }
+
+    private static void addNames(List<MasonGeometry> layer, Map<String, Integer> names)
+    {
+        for (MasonGeometry g : layer)
+        {
+            for (String name : g.getAttributes().keySet())
+            {
+                if (!names.containsKey(name))
+                {
+                    names.put(name, names.size());
+                }
+            }
+        }
+    }
+
+    private static void writeLayer(DataOutputStream out, List<MasonGeometry> layer, Map<String, Integer> names,
+                                   WKBWriter wkb) throws IOException
+    {
+        out.writeInt(layer.size());
+        for (MasonGeometry g : layer)
+        {
+            Map<String, AttributeValue> attributes = g.getAttributes();
+            out.writeInt(attributes.size());
+            for (Map.Entry<String, AttributeValue> a : attributes.entrySet())
+            {
+                out.writeInt(names.get(a.getKey()));
+                Object value = a.getValue().getValue();
+                if (value instanceof Integer)
+                {
+                    out.writeByte(INTEGER);
+                    out.writeInt((Integer) value);
+                }
+                else if (value instanceof Double)
+                {
+                    out.writeByte(DOUBLE);
+                    out.writeDouble((Double) value);
+                }
+                else if (value instanceof Boolean)
+                {
+                    out.writeByte(BOOLEAN);
+                    out.writeBoolean((Boolean) value);
+                }
+                else
+                {
+                    out.writeByte(STRING);
+                    writeString(out, value == null ? "" : value.toString());
+                }
+            }
+            byte[] bytes = wkb.write(g.getGeometry());
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Read a snapshot.
+     *
+     * @param file The snapshot file
+     * @param hash The hash of the files that the environment would otherwise be read from
+     * @return The snapshot, or null if there isn't one, or it is out of date, or it can't be read.
+     */
+    public static EnvironmentSnapshot read(File file, String hash) throws IOException
+    {
+        if (!file.isFile())
+        {
+            return null;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE)
+            {
+                return null; // (Too big to map in one go)
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 8 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION ||
+                    !hash.equals(readString(buffer)))
+            {
+                return null;
+            }
+
+            String[] names = new String[buffer.getInt()];
+            for (int i = 0; i < names.length; i++)
+            {
+                names[i] = readString(buffer);
+            }
+
+            WKBReader wkb = new WKBReader(new GeometryFactory());
+            List<MasonGeometry> buildings = readLayer(buffer, names, wkb);
+            List<MasonGeometry> roads = readLayer(buffer, names, wkb);
+
+            int[] buildingNodes = new int[buffer.getInt()];
+            buffer.asIntBuffer().get(buildingNodes);
+
+            return new EnvironmentSnapshot(hash, buildings, roads, buildingNodes);
+        }
+        catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e)
+        {
+            return null; // The file has been truncated or corrupted
+        }
+        catch (ParseException e)
+        {
+            throw new IOException("Could not read a geometry from the snapshot " + file, e);
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    private static List<MasonGeometry> readLayer(final MappedByteBuffer buffer, String[] names, WKBReader wkb)
+            throws ParseException, IOException
+    {
+        int n = buffer.getInt();
+        List<MasonGeometry> layer = new ArrayList<MasonGeometry>(n);
+        // Read the WKB straight from the buffer
+        InStream in = new InStream()
+        {
+            @Override
+            public void read(byte[] buf)
+            {
+                buffer.get(buf);
+            }
+        };
+        for (int i = 0; i < n; i++)
+        {
+            int numAttributes = buffer.getInt();
+            Map<String, AttributeValue> attributes = new HashMap<String, AttributeValue>(numAttributes * 2);
+            for (int a = 0; a < numAttributes; a++)
+            {
+                String name = names[buffer.getInt()];
+                byte type = buffer.get();
+                Object value;
+                switch (type)
+                {
+                    case INTEGER:
+                        value = buffer.getInt();
+                        break;
+                    case DOUBLE:
+                        value = buffer.getDouble();
+                        break;
+                    case BOOLEAN:
+                        value = buffer.get() != 0;
+                        break;
+                    default:
+                        value = readString(buffer);
+                }
+                attributes.put(name, new AttributeValue(value));
+            }
+            int length = buffer.getInt();
+            int end = buffer.position() + length;
+            Geometry geometry = wkb.read(in);
+            buffer.position(end);
+            MasonGeometry g = new MasonGeometry(geometry);
+            if (!attributes.isEmpty())
+            {
+                g.addAttributes(attributes);
+            }
+            layer.add(g);
+        }
+        return layer;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException
+    {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(MappedByteBuffer buffer)
+    {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
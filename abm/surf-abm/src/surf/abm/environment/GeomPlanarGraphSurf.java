@@ -7,6 +7,7 @@ import com.vividsolutions.jts.planargraph.DirectedEdge;
 import com.vividsolutions.jts.planargraph.Edge;
 import com.vividsolutions.jts.planargraph.Node;
 import com.vividsolutions.jts.planargraph.PlanarGraph;
+import java.util.ArrayList;
 import java.util.Iterator;
 import sim.field.geo.GeomVectorField;
 import sim.field.network.Network;
@@ -33,6 +34,11 @@ import surf.abm.main.SurfGeometry;
 public class GeomPlanarGraphSurf extends PlanarGraph
 {
 
+    /* All nodes, in the order in which they were created. A node's position in this list is its integer id,
+     * which is also stored in the node's data field so that routing algorithms can use plain arrays rather than
+     * hash maps to store information about nodes. See getNodeId(). */
+    private final ArrayList<Node> nodeList = new ArrayList<Node>();
+
     public GeomPlanarGraphSurf()
     {
         super();
@@ -118,12 +124,44 @@ public class GeomPlanarGraphSurf extends PlanarGraph
         if (node == null)
         {
             node = new Node(pt);
+            node.setData(nodeList.size()); // the node's integer id
+            nodeList.add(node);
             // ensure node is only added once to graph
             add(node);
         }
         return node;
     }
 
+    /** Get the integer id of a node in this graph. Ids run from 0 to getNumNodes()-1.
+     *
+     * @param node A node that was created by a GeomPlanarGraphSurf
+     * @return the node's id
+     */
+    public static int getNodeId(Node node)
+    {
+        return (Integer) node.getData();
+    }
+
+    /** @return the node with the given id (see getNodeId()) */
+    public Node getNodeById(int id)
+    {
+        return nodeList.get(id);
+    }
+
+    /** @return the number of nodes in the graph. This is also one greater than the largest node id. */
+    public int getNumNodes()
+    {
+        return nodeList.size();
+    }
+
+    /** Create an immutable, array-based snapshot of this graph for routing (see CompactGraph). Call this once
+     * the graph has been fully built.
+     */
+    public CompactGraph compile()
+    {
+        return CompactGraph.build(this);
+    }
+
     /** Create a MASON Network from this planar graph
      *
      * XXX Unfortunately we need this since JTS planar graphs do not support
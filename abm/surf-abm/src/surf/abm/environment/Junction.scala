@@ -1,5 +1,7 @@
 package surf.abm.environment
 
+import java.util.concurrent.atomic.AtomicInteger
+
 import com.vividsolutions.jts.planargraph.Node
 
 /**
@@ -21,11 +23,8 @@ case class Junction(node: Node) {
 }
 object Junction {
   /** A unique ID that can be given to each agent */
-  private var _uniqueID : Int = 0
-  private def uniqueID() = {
-    _uniqueID += 1
-    _uniqueID
-  }
+  private val _uniqueID = new AtomicInteger(0)
+  private def uniqueID() = _uniqueID.incrementAndGet()
 
   /**
     * Constructor for Junctions
@@ -0,0 +1,351 @@
+package surf.abm.environment;
+
+import surf.abm.surfutil.IndexedMinHeap;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Distances from a few <i>landmark</i> nodes to every node in the road network, used to give A* a much better
+ * estimate of the distance that is left to travel than the straight-line distance (the "ALT" algorithm: A*,
+ * landmarks and the triangle inequality).
+ *
+ * <p>For any landmark L, the distance from a node v to the goal t is at least |d(L,t) - d(L,v)|. Roads can be
+ * travelled in both directions and are the same length each way, so d(L,v) is the same as d(v,L) and only one
+ * table is needed. The estimate never overestimates the real distance, and neither does the straight-line distance,
+ * so A* using the larger of the two still finds the shortest path, but it can rule out most of the network straight
+ * away (e.g. everything on the far side of the city from the goal).</p>
+ *
+ * <p>Landmarks are chosen so that they are spread out around the edge of the network: the first is the node that
+ * is furthest from node 0, and each of the others is the node that is furthest from all of the landmarks that have
+ * already been chosen. A search only uses the few landmarks that give the best estimate between its start and goal
+ * (see {@link #selectActive(int, int, int[], double[])}).</p>
+ *
+ * <p>Working out the distances takes one search of the whole network per landmark, so the table can be saved
+ * (see {@link #load(File, CompactGraph, int)}). It is tied to the network by a hash of the graph, and is built again
+ * if the network changes.</p>
+ *
+ * @author Nick Malleson
+ */
+public final class Landmarks
+{
+
+    /** Increase this if the format changes, so that old files are ignored */
+    public static final int VERSION = 1;
+
+    private static final int MAGIC = 0x53414c54; // "SALT"
+
+    private final int numLandmarks;
+    private final int numNodes;
+    private final int[] landmarks;
+    // distances[node * numLandmarks + l] is the distance from landmark l to the node (infinite if it can't be reached)
+    private final double[] distances;
+    private final long graphHash;
+
+    private Landmarks(int[] landmarks, int numNodes, double[] distances, long graphHash)
+    {
+        this.numLandmarks = landmarks.length;
+        this.numNodes = numNodes;
+        this.landmarks = landmarks;
+        this.distances = distances;
+        this.graphHash = graphHash;
+    }
+
+    public int getNumLandmarks()
+    {
+        return numLandmarks;
+    }
+
+    /** The id of the node that is the i'th landmark */
+    public int getLandmark(int i)
+    {
+        return landmarks[i];
+    }
+
+    /** The distance along the network from the i'th landmark to a node */
+    public double distance(int landmark, int node)
+    {
+        return distances[node * numLandmarks + landmark];
+    }
+
+    /**
+     * Choose the landmarks that give the best estimate of the distance between two nodes. Searches from start to
+     * goal only need to look at these.
+     *
+     * @param active Filled with the chosen landmarks (as many as it has room for, or all of them if there are fewer)
+     * @param scores Somewhere to keep the estimates while choosing (at least as long as <code>active</code>)
+     * @return The number of landmarks chosen
+     */
+    public int selectActive(int start, int goal, int[] active, double[] scores)
+    {
+        final int n = Math.min(active.length, numLandmarks);
+        final double[] best = scores;
+        Arrays.fill(best, 0, n, -1);
+        for (int l = 0; l < numLandmarks; l++)
+        {
+            final double b = bound(l, start, goal);
+            // Insertion sort into the best n so far
+            int i = n;
+            while (i > 0 && b > best[i - 1])
+            {
+                if (i < n)
+                {
+                    best[i] = best[i - 1];
+                    active[i] = active[i - 1];
+                }
+                i--;
+            }
+            if (i < n)
+            {
+                best[i] = b;
+                active[i] = l;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * A lower bound on the distance from one node to another, using the given landmarks.
+     *
+     * @param active The landmarks to use (e.g. from {@link #selectActive(int, int, int[], double[])})
+     * @param numActive How many of them there are
+     */
+    public double lowerBound(int node, int goal, int[] active, int numActive)
+    {
+        double h = 0;
+        for (int i = 0; i < numActive; i++)
+        {
+            final double b = bound(active[i], node, goal);
+            if (b > h)
+            {
+                h = b;
+            }
+        }
+        return h;
+    }
+
+    private double bound(int l, int node, int goal)
+    {
+        final double dn = distances[node * numLandmarks + l];
+        final double dg = distances[goal * numLandmarks + l];
+        if (Double.isInfinite(dn) || Double.isInfinite(dg))
+        {
+            return 0; // (Says nothing, unless the goal can't be reached, in which case nothing is going to help)
+        }
+        return Math.abs(dg - dn);
+    }
+
+    /**
+     * Choose landmarks and work out the distance from each one to every node.
+     *
+     * @param graph The network
+     * @param numLandmarks How many landmarks to choose (fewer are chosen if there aren't enough nodes)
+     */
+    public static Landmarks build(CompactGraph graph, int numLandmarks)
+    {
+        final int n = graph.getNumNodes();
+        numLandmarks = Math.max(0, Math.min(numLandmarks, n));
+        final int[] landmarks = new int[numLandmarks];
+        final double[] distances = new double[n * numLandmarks];
+        if (numLandmarks == 0)
+        {
+            return new Landmarks(landmarks, n, distances, hash(graph));
+        }
+
+        // Each new landmark is the node that is furthest from the landmarks that have been chosen so far
+        // (nodes that can't be reached from them are never chosen)
+        final double[] nearest = new double[n];
+        Arrays.fill(nearest, Double.POSITIVE_INFINITY);
+        int next = farthest(dijkstra(graph, 0));
+        for (int l = 0; l < numLandmarks; l++)
+        {
+            landmarks[l] = next;
+            final double[] d = dijkstra(graph, next);
+            double farthest = -1;
+            for (int v = 0; v < n; v++)
+            {
+                distances[v * numLandmarks + l] = d[v];
+                if (d[v] < nearest[v])
+                {
+                    nearest[v] = d[v];
+                }
+                if (!Double.isInfinite(nearest[v]) && nearest[v] > farthest)
+                {
+                    farthest = nearest[v];
+                    next = v;
+                }
+            }
+        }
+        return new Landmarks(landmarks, n, distances, hash(graph));
+    }
+
+    /** The node that is furthest away (out of those that can be reached) */
+    private static int farthest(double[] d)
+    {
+        int best = 0;
+        for (int v = 1; v < d.length; v++)
+        {
+            if (!Double.isInfinite(d[v]) && d[v] > d[best])
+            {
+                best = v;
+            }
+        }
+        return best;
+    }
+
+    /** The shortest distance from a node to every other node (infinite if there is no path) */
+    static double[] dijkstra(CompactGraph graph, int source)
+    {
+        final double[] d = new double[graph.getNumNodes()];
+        Arrays.fill(d, Double.POSITIVE_INFINITY);
+        final IndexedMinHeap open = new IndexedMinHeap(graph.getNumNodes());
+        d[source] = 0;
+        open.insertOrDecrease(source, 0);
+        while (!open.isEmpty())
+        {
+            final int x = open.pollMin();
+            for (int s = graph.firstSlot(x), end = graph.endSlot(x); s < end; s++)
+            {
+                final int y = graph.target(s);
+                final double dy = d[x] + graph.length(s);
+                if (dy < d[y])
+                {
+                    d[y] = dy;
+                    open.insertOrDecrease(y, dy);
+                }
+            }
+        }
+        return d;
+    }
+
+    /** A hash of the network (its nodes and the routing costs between them) */
+    static long hash(CompactGraph graph)
+    {
+        long h = 0xcbf29ce484222325L; // (FNV-1a)
+        h = mix(h, graph.getNumNodes());
+        for (int v = 0; v < graph.getNumNodes(); v++)
+        {
+            h = mix(h, Double.doubleToLongBits(graph.getX(v)));
+            h = mix(h, Double.doubleToLongBits(graph.getY(v)));
+            for (int s = graph.firstSlot(v), end = graph.endSlot(v); s < end; s++)
+            {
+                h = mix(h, graph.target(s));
+                h = mix(h, Double.doubleToLongBits(graph.length(s)));
+            }
+        }
+        return h;
+    }
+
+    private static long mix(long h, long value)
+    {
+        for (int i = 0; i < 8; i++)
+        {
+            h ^= (value >>> (i * 8)) & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /** Write the landmarks (to a temporary file first, so that a half-written file is never read) */
+    public void write(File file) throws IOException
+    {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(graphHash);
+            out.writeInt(numNodes);
+            out.writeInt(numLandmarks);
+            for (int l : landmarks)
+            {
+                out.writeInt(l);
+            }
+            for (double d : distances)
+            {
+                out.writeDouble(d);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+        if (file.exists() && !file.delete())
+        {
+            throw new IOException("Could not replace the landmarks " + file);
+        }
+        if (!temp.renameTo(file))
+        {
+            throw new IOException("Could not rename " + temp + " to " + file);
+        }
+    }
+
+    /**
+     * Read landmarks that were written for a network.
+     *
+     * @return The landmarks, or null if there aren't any, or they are for a different network, or they can't be read
+     */
+    public static Landmarks read(File file, CompactGraph graph) throws IOException
+    {
+        if (!file.isFile())
+        {
+            return null;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE)
+            {
+                return null; // (Too big to map in one go)
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            final long hash = hash(graph);
+            if (buffer.remaining() < 8 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION ||
+                    buffer.getLong() != hash || buffer.getInt() != graph.getNumNodes())
+            {
+                return null;
+            }
+            int[] landmarks = new int[buffer.getInt()];
+            buffer.asIntBuffer().get(landmarks);
+            buffer.position(buffer.position() + landmarks.length * 4);
+            double[] distances = new double[graph.getNumNodes() * landmarks.length];
+            buffer.asDoubleBuffer().get(distances);
+            return new Landmarks(landmarks, graph.getNumNodes(), distances, hash);
+        }
+        catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e)
+        {
+            return null; // The file has been truncated or corrupted
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * Read the landmarks for a network from a file, or build them (and write the file) if the file doesn't exist or
+     * is for a different network or number of landmarks.
+     */
+    public static Landmarks load(File file, CompactGraph graph, int numLandmarks) throws IOException
+    {
+        Landmarks landmarks = read(file, graph);
+        if (landmarks != null && landmarks.numLandmarks == Math.min(numLandmarks, graph.getNumNodes()))
+        {
+            return landmarks;
+        }
+        landmarks = build(graph, numLandmarks);
+        landmarks.write(file);
+        return landmarks;
+    }
+
+}
@@ -0,0 +1,431 @@
+package surf.abm.environment;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateSequenceFilter;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import sim.engine.SimState;
+import sim.engine.Steppable;
+import sim.field.geo.GeomVectorField;
+import sim.util.Bag;
+import sim.util.geo.MasonGeometry;
+import surf.abm.surfutil.Metrics;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/** A GeomVectorField for objects that move (e.g. agents).
+ *
+ * GeomVectorField's spatial index is a quadtree that is thrown away and built again from every geometry whenever
+ * anything has moved. This class keeps its objects in a uniform grid instead. Objects that move are remembered
+ * (moving one with {@link #setGeometryLocation(MasonGeometry, CoordinateSequenceFilter)} is the only way that the
+ * field finds out) and when the index is updated only those objects are looked at, and only the ones that have
+ * changed cell are moved in the grid. So updating the index costs roughly the number of objects that moved, not the
+ * number in the field.
+ *
+ * Objects can be moved from several threads at once (e.g. when agents are stepped in parallel), but they must not
+ * be added or removed at the same time. Queries apply any outstanding moves first, so they always see the current
+ * positions.
+ *
+ * The grid covers the field's MBR. Objects are put in the cell that contains the centre of their envelope (objects
+ * that move outside the MBR go in the nearest cell on the edge).
+ *
+ * The final query methods in GeomVectorField (getCoveringObjects, getCoveredObjects, getContainingObjects and
+ * getTouchingObjects) can't be overridden, and still use the positions that the objects had when they were added.
+ *
+ * @author Nick Malleson
+ */
+public class MovingGeomVectorField extends GeomVectorField
+{
+
+    private static final long serialVersionUID = 1L;
+
+    /** The grid won't have more cells than this (if the MBR is very large, the cells are made bigger) */
+    private static final int MAX_CELLS = 1 << 22;
+
+    /** How long updating the index takes (see Metrics) */
+    private static final Metrics.Timer UPDATE_TIME = Metrics.timer("spatialIndex.update");
+
+    private final double cellSize;
+
+    /** Every object in the field, keyed by its (JTS) geometry, which is shared with the objects' owners */
+    private final IdentityHashMap<Geometry, Entry> entries = new IdentityHashMap<Geometry, Entry>();
+
+    /** Objects that have moved since the index was last updated */
+    private final ConcurrentLinkedQueue<Entry> moved = new ConcurrentLinkedQueue<Entry>();
+
+    // The grid. It is (re)built when it is needed if it is null.
+    private Entry[][] cells = null;
+    private int[] cellCounts;
+    private int cols, rows;
+    private double minX, minY, size;
+
+    /** Half of the width and height of the largest object, so that queries find objects that overlap a cell */
+    private double maxHalfWidth = 0, maxHalfHeight = 0;
+
+    private final GeometryFactory fact = new GeometryFactory();
+
+    private final Steppable updater = new Steppable()
+    {
+        private static final long serialVersionUID = 1L;
+        private long lastUpdated = -1;
+
+        @Override
+        public void step(SimState state)
+        {
+            // Only update once per iteration, however many times this has been scheduled
+            long steps = state.schedule.getSteps();
+            if (steps != lastUpdated)
+            {
+                lastUpdated = steps;
+                updateSpatialIndex();
+            }
+        }
+    };
+
+    /**
+     * @param cellSize The width and height of the grid cells (in the units of the geometries). Queries are fastest
+     *                 if there are only a few objects in each cell.
+     */
+    public MovingGeomVectorField(int w, int h, double cellSize)
+    {
+        super(w, h);
+        if (cellSize <= 0)
+        {
+            throw new IllegalArgumentException("The cell size must be positive, not " + cellSize);
+        }
+        this.cellSize = cellSize;
+    }
+
+    @Override
+    public synchronized void addGeometry(MasonGeometry g)
+    {
+        super.addGeometry(g);
+        Entry e = new Entry(g);
+        entries.put(g.getGeometry(), e);
+        Envelope env = g.getGeometry().getEnvelopeInternal();
+        maxHalfWidth = Math.max(maxHalfWidth, env.getWidth() / 2);
+        maxHalfHeight = Math.max(maxHalfHeight, env.getHeight() / 2);
+        if (cells != null)
+        {
+            if (insideGrid(env))
+            {
+                insert(e);
+            }
+            else
+            {
+                cells = null; // The grid needs to cover more space
+            }
+        }
+    }
+
+    @Override
+    public synchronized void removeGeometry(MasonGeometry g)
+    {
+        super.removeGeometry(g);
+        Entry e = entries.remove(g.getGeometry());
+        if (e != null && e.cell >= 0 && cells != null)
+        {
+            remove(e);
+        }
+    }
+
+    @Override
+    public synchronized void clear()
+    {
+        super.clear();
+        entries.clear();
+        moved.clear();
+        cells = null;
+        maxHalfWidth = 0;
+        maxHalfHeight = 0;
+    }
+
+    @Override
+    public synchronized void setMBR(Envelope MBR)
+    {
+        if (!MBR.equals(getMBR()))
+        {
+            cells = null; // The grid needs to cover the new MBR
+        }
+        super.setMBR(MBR);
+    }
+
+    /**
+     * Move a geometry and remember that it needs to be moved in the index. It doesn't matter if the geometry isn't
+     * in this field (it is still moved). This can be called from several threads at once.
+     */
+    @Override
+    public void setGeometryLocation(MasonGeometry g, CoordinateSequenceFilter p)
+    {
+        Geometry geom = g.getGeometry();
+        geom.apply(p);
+        geom.geometryChanged();
+        Entry e = entries.get(geom);
+        if (e != null && PENDING.compareAndSet(e, 0, 1))
+        {
+            moved.add(e);
+        }
+    }
+
+    /** Move the objects that have moved since the last update to their new cells. */
+    @Override
+    public synchronized void updateSpatialIndex()
+    {
+        final long start = UPDATE_TIME.start();
+        try
+        {
+            update();
+        }
+        finally
+        {
+            UPDATE_TIME.stop(start);
+        }
+    }
+
+    private void update()
+    {
+        if (cells == null)
+        {
+            buildGrid();
+            return;
+        }
+        Entry e;
+        while ((e = moved.poll()) != null)
+        {
+            e.pending = 0; // (Before looking at the position, in case it is moved again while this happens)
+            if (e.cell < 0)
+            {
+                continue; // It has been removed
+            }
+            int c = cellOf(e.geometry.getGeometry().getEnvelopeInternal());
+            if (c != e.cell)
+            {
+                remove(e);
+                insert(e);
+            }
+        }
+    }
+
+    /**
+     * @return A Steppable that updates the index. The same Steppable is returned every time, and it only updates the
+     * index once per iteration, so it doesn't matter if it is scheduled more than once.
+     */
+    @Override
+    public Steppable scheduleSpatialIndexUpdater()
+    {
+        return updater;
+    }
+
+    @Override
+    public synchronized MasonGeometry findGeometry(MasonGeometry g)
+    {
+        Entry e = entries.get(g.getGeometry());
+        return e == null ? g : e.geometry;
+    }
+
+    @Override
+    public synchronized Bag queryField(Envelope e)
+    {
+        List<MasonGeometry> candidates = candidates(e);
+        Bag result = new Bag(candidates.size());
+        for (MasonGeometry g : candidates)
+        {
+            if (e.intersects(g.getGeometry().getEnvelopeInternal()))
+            {
+                result.add(g);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized Bag getObjectsWithinDistance(Geometry g, double dist)
+    {
+        Envelope e = new Envelope(g.getEnvelopeInternal());
+        e.expandBy(dist);
+        Bag result = new Bag();
+        for (MasonGeometry candidate : candidates(e))
+        {
+            if (g.isWithinDistance(candidate.getGeometry(), dist))
+            {
+                result.add(candidate);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized boolean isCovered(MasonGeometry g)
+    {
+        if (g.preparedGeometry == null)
+        {
+            g.preparedGeometry = PreparedGeometryFactory.prepare(g.getGeometry());
+        }
+        for (MasonGeometry candidate : candidates(g.getGeometry().getEnvelopeInternal()))
+        {
+            Geometry g1 = candidate.getGeometry();
+            if (!g.equals(g1) && g.preparedGeometry.covers(g1))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized boolean isCovered(Coordinate point)
+    {
+        Geometry p = fact.createPoint(point);
+        for (MasonGeometry candidate : candidates(new Envelope(point)))
+        {
+            if (p.intersects(candidate.getGeometry()))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return The number of objects that have moved but haven't been moved in the index yet */
+    public int getNumPendingMoves()
+    {
+        return moved.size();
+    }
+
+    /** @return The objects in the cells that the envelope overlaps (after applying any outstanding moves). */
+    private List<MasonGeometry> candidates(Envelope e)
+    {
+        updateSpatialIndex();
+        List<MasonGeometry> result = new ArrayList<MasonGeometry>();
+        if (entries.isEmpty() || e.isNull())
+        {
+            return result;
+        }
+        // Objects are in the cell of their centre, so look far enough around the envelope to find any that overlap it
+        int c0 = col(e.getMinX() - maxHalfWidth), c1 = col(e.getMaxX() + maxHalfWidth);
+        int r0 = row(e.getMinY() - maxHalfHeight), r1 = row(e.getMaxY() + maxHalfHeight);
+        for (int r = r0; r <= r1; r++)
+        {
+            for (int c = c0; c <= c1; c++)
+            {
+                int cell = r * cols + c;
+                Entry[] es = cells[cell];
+                for (int i = 0; i < cellCounts[cell]; i++)
+                {
+                    result.add(es[i].geometry);
+                }
+            }
+        }
+        return result;
+    }
+
+    /** (Re)build the grid so that it covers the MBR and everything in the field */
+    private void buildGrid()
+    {
+        moved.clear();
+        Envelope area = new Envelope(getMBR());
+        for (Entry e : entries.values())
+        {
+            e.pending = 0;
+            area.expandToInclude(e.geometry.getGeometry().getEnvelopeInternal());
+        }
+        if (area.isNull())
+        {
+            area = new Envelope(0, 0, 0, 0);
+        }
+        this.minX = area.getMinX();
+        this.minY = area.getMinY();
+        this.size = cellSize;
+        while ((area.getWidth() / size + 1) * (area.getHeight() / size + 1) > MAX_CELLS)
+        {
+            size *= 2;
+        }
+        this.cols = (int) (area.getWidth() / size) + 1;
+        this.rows = (int) (area.getHeight() / size) + 1;
+        this.cells = new Entry[cols * rows][];
+        this.cellCounts = new int[cols * rows];
+        for (Entry e : entries.values())
+        {
+            insert(e);
+        }
+    }
+
+    private boolean insideGrid(Envelope env)
+    {
+        double x = (env.getMinX() + env.getMaxX()) / 2, y = (env.getMinY() + env.getMaxY()) / 2;
+        return x >= minX && y >= minY && x < minX + cols * size && y < minY + rows * size;
+    }
+
+    private int col(double x)
+    {
+        return Math.max(0, Math.min(cols - 1, (int) Math.floor((x - minX) / size)));
+    }
+
+    private int row(double y)
+    {
+        return Math.max(0, Math.min(rows - 1, (int) Math.floor((y - minY) / size)));
+    }
+
+    private int cellOf(Envelope env)
+    {
+        return row((env.getMinY() + env.getMaxY()) / 2) * cols + col((env.getMinX() + env.getMaxX()) / 2);
+    }
+
+    private void insert(Entry e)
+    {
+        int c = cellOf(e.geometry.getGeometry().getEnvelopeInternal());
+        Entry[] es = cells[c];
+        int n = cellCounts[c];
+        if (es == null)
+        {
+            es = cells[c] = new Entry[4];
+        }
+        else if (n == es.length)
+        {
+            es = cells[c] = java.util.Arrays.copyOf(es, n * 2);
+        }
+        es[n] = e;
+        cellCounts[c] = n + 1;
+        e.cell = c;
+        e.slot = n;
+    }
+
+    /** Remove an entry from its cell (by swapping the last one in the cell into its place) */
+    private void remove(Entry e)
+    {
+        Entry[] es = cells[e.cell];
+        int last = --cellCounts[e.cell];
+        Entry moving = es[last];
+        es[e.slot] = moving;
+        moving.slot = e.slot;
+        es[last] = null;
+        e.cell = -1;
+    }
+
+    private static final AtomicIntegerFieldUpdater<Entry> PENDING =
+        AtomicIntegerFieldUpdater.newUpdater(Entry.class, "pending");
+
+    /** An object in the field, and where it is in the grid */
+    private static final class Entry implements java.io.Serializable
+    {
+        private static final long serialVersionUID = 1L;
+
+        final MasonGeometry geometry;
+        int cell = -1;
+        int slot;
+        /** 1 if the object is in the queue of objects that have moved */
+        volatile int pending = 0;
+
+        Entry(MasonGeometry geometry)
+        {
+            this.geometry = geometry;
+        }
+    }
+
+}
@@ -0,0 +1,236 @@
+package surf.abm.environment;
+
+import ec.util.MersenneTwisterFast;
+
+import java.util.Arrays;
+
+/**
+ * For every node in the road network, the K destinations (e.g. shops) that are closest to it along the roads.
+ * Agents choosing somewhere to go for a flexible activity can then just pick one of the candidates for the node
+ * that they are nearest to, rather than searching for nearby destinations as the crow flies.
+ *
+ * <p>The candidates for all nodes are found together, with one Dijkstra search that starts from every destination
+ * at once. Each node keeps the first K different destinations that reach it. Labels (a destination and its
+ * distance) are taken from the queue shortest first, so those are the K closest, and a node only passes on the
+ * labels that it keeps, so each node is only expanded K times.</p>
+ *
+ * <p>A destination starts at its nearest node, at the straight-line distance from the node to the destination.
+ * Destinations that aren't near to any node are never candidates.</p>
+ *
+ * @author Nick Malleson
+ */
+public final class NetworkCandidates
+{
+
+    private final int k;
+    // candidates[node * k + i] is the i'th closest destination to the node (the destinations' indices)
+    private final int[] candidates;
+    // The number of candidates that each node has (fewer than k if there aren't k destinations that it can reach)
+    private final int[] counts;
+
+    private NetworkCandidates(int k, int[] candidates, int[] counts)
+    {
+        this.k = k;
+        this.candidates = candidates;
+        this.counts = counts;
+    }
+
+    /**
+     * Find the candidates for every node.
+     *
+     * @param graph The network
+     * @param k How many candidates each node should have
+     * @param destinationNodes The node nearest to each destination (or -1 if it doesn't have one)
+     * @param destinationDistances The distance from each destination to its node
+     */
+    public static NetworkCandidates build(CompactGraph graph, int k, int[] destinationNodes,
+                                          double[] destinationDistances)
+    {
+        final int n = graph.getNumNodes();
+        final int[] candidates = new int[n * k];
+        final int[] counts = new int[n];
+        final LabelQueue queue = new LabelQueue(Math.max(16, destinationNodes.length));
+        for (int d = 0; d < destinationNodes.length; d++)
+        {
+            if (destinationNodes[d] >= 0)
+            {
+                queue.add(destinationNodes[d], d, destinationDistances[d]);
+            }
+        }
+        while (!queue.isEmpty())
+        {
+            final int node = queue.node();
+            final int destination = queue.destination();
+            final double distance = queue.distance();
+            queue.pop();
+            if (!keep(candidates, counts, k, node, destination))
+            {
+                continue;
+            }
+            for (int s = graph.firstSlot(node), end = graph.endSlot(node); s < end; s++)
+            {
+                final int next = graph.target(s);
+                if (counts[next] < k)
+                {
+                    queue.add(next, destination, distance + graph.length(s));
+                }
+            }
+        }
+        return new NetworkCandidates(k, candidates, counts);
+    }
+
+    /**
+     * Give a node a candidate, unless it has enough already or already has that destination. The labels are taken
+     * from the queue nearest first, so a node's candidates end up in order of distance without storing the distances.
+     */
+    private static boolean keep(int[] candidates, int[] counts, int k, int node, int destination)
+    {
+        final int c = counts[node];
+        if (c == k)
+        {
+            return false;
+        }
+        final int base = node * k;
+        for (int i = 0; i < c; i++)
+        {
+            if (candidates[base + i] == destination)
+            {
+                return false;
+            }
+        }
+        candidates[base + c] = destination;
+        counts[node] = c + 1;
+        return true;
+    }
+
+    /** The number of candidates that each node can have */
+    public int getK()
+    {
+        return k;
+    }
+
+    /** The number of candidates that a node has */
+    public int count(int node)
+    {
+        return counts[node];
+    }
+
+    /** The i'th closest destination to a node (an index into the destinations that were given to build()) */
+    public int candidate(int node, int i)
+    {
+        return candidates[node * k + i];
+    }
+
+    /**
+     * Choose one of a node's candidates at random.
+     *
+     * @return The index of the destination, or -1 if the node doesn't have any
+     */
+    public int random(int node, MersenneTwisterFast random)
+    {
+        final int c = counts[node];
+        if (c == 0)
+        {
+            return -1;
+        }
+        return candidates[node * k + random.nextInt(c)];
+    }
+
+    /** A binary heap of labels (node, destination, distance), shortest distance first. */
+    private static final class LabelQueue
+    {
+        private int[] nodes;
+        private int[] destinations;
+        private double[] distances;
+        private int size = 0;
+
+        LabelQueue(int capacity)
+        {
+            nodes = new int[capacity];
+            destinations = new int[capacity];
+            distances = new double[capacity];
+        }
+
+        boolean isEmpty()
+        {
+            return size == 0;
+        }
+
+        int node()
+        {
+            return nodes[0];
+        }
+
+        int destination()
+        {
+            return destinations[0];
+        }
+
+        double distance()
+        {
+            return distances[0];
+        }
+
+        void add(int node, int destination, double distance)
+        {
+            if (size == nodes.length)
+            {
+                nodes = Arrays.copyOf(nodes, size * 2);
+                destinations = Arrays.copyOf(destinations, size * 2);
+                distances = Arrays.copyOf(distances, size * 2);
+            }
+            int i = size++;
+            while (i > 0)
+            {
+                final int parent = (i - 1) >>> 1;
+                if (distances[parent] <= distance)
+                {
+                    break;
+                }
+                set(i, parent);
+                i = parent;
+            }
+            nodes[i] = node;
+            destinations[i] = destination;
+            distances[i] = distance;
+        }
+
+        void pop()
+        {
+            final int last = --size;
+            final int node = nodes[last];
+            final int destination = destinations[last];
+            final double distance = distances[last];
+            int i = 0;
+            while (true)
+            {
+                int child = 2 * i + 1;
+                if (child >= size)
+                {
+                    break;
+                }
+                if (child + 1 < size && distances[child + 1] < distances[child])
+                {
+                    child++;
+                }
+                if (distance <= distances[child])
+                {
+                    break;
+                }
+                set(i, child);
+                i = child;
+            }
+            nodes[i] = node;
+            destinations[i] = destination;
+            distances[i] = distance;
+        }
+
+        private void set(int to, int from)
+        {
+            nodes[to] = nodes[from];
+            destinations[to] = destinations[from];
+            distances[to] = distances[from];
+        }
+    }
+
+}
@@ -0,0 +1,148 @@
+package surf.abm.environment;
+
+import java.util.Arrays;
+
+/**
+ * The connected components of a road network: groups of nodes that can all be reached from each other. If there is
+ * more than one then some routes can't be found, e.g. to a building whose nearest junction is on a road that isn't
+ * joined to the rest of the network.
+ *
+ * <p>Components are numbered by size, so component 0 is the largest (the main network) and the others are the
+ * islands that are disconnected from it. They are found with union-find, which only needs one pass over the edges
+ * and runs in a fraction of a second even for a whole city.</p>
+ *
+ * @author Nick Malleson
+ */
+public final class NetworkComponents
+{
+
+    // The component of each node
+    private final int[] nodeComponents;
+    // The component of each road edge (both of its nodes are in the same one)
+    private final int[] edgeComponents;
+    // The number of nodes in each component (largest first)
+    private final int[] sizes;
+
+    private NetworkComponents(int[] nodeComponents, int[] edgeComponents, int[] sizes)
+    {
+        this.nodeComponents = nodeComponents;
+        this.edgeComponents = edgeComponents;
+        this.sizes = sizes;
+    }
+
+    /**
+     * Find the connected components of a network.
+     */
+    public static NetworkComponents analyse(CompactGraph graph)
+    {
+        final int n = graph.getNumNodes();
+
+        // Union-find: join the two ends of every edge (union by size, with path halving)
+        final int[] parent = new int[n];
+        final int[] size = new int[n];
+        for (int v = 0; v < n; v++)
+        {
+            parent[v] = v;
+            size[v] = 1;
+        }
+        for (int v = 0; v < n; v++)
+        {
+            for (int s = graph.firstSlot(v), end = graph.endSlot(v); s < end; s++)
+            {
+                int a = find(parent, v);
+                int b = find(parent, graph.target(s));
+                if (a != b)
+                {
+                    if (size[a] < size[b])
+                    {
+                        final int t = a;
+                        a = b;
+                        b = t;
+                    }
+                    parent[b] = a;
+                    size[a] += size[b];
+                }
+            }
+        }
+
+        // Number the components, largest first (and then by their lowest node, so that it is always the same)
+        int numComponents = 0;
+        final int[] roots = new int[n];
+        for (int v = 0; v < n; v++)
+        {
+            if (parent[v] == v)
+            {
+                roots[numComponents++] = v;
+            }
+        }
+        final Integer[] order = new Integer[numComponents];
+        for (int c = 0; c < numComponents; c++)
+        {
+            order[c] = roots[c];
+        }
+        Arrays.sort(order, (a, b) -> size[a] != size[b] ? Integer.compare(size[b], size[a]) : Integer.compare(a, b));
+        final int[] rootComponents = new int[n];
+        final int[] sizes = new int[numComponents];
+        for (int c = 0; c < numComponents; c++)
+        {
+            rootComponents[order[c]] = c;
+            sizes[c] = size[order[c]];
+        }
+
+        final int[] nodeComponents = new int[n];
+        for (int v = 0; v < n; v++)
+        {
+            nodeComponents[v] = rootComponents[find(parent, v)];
+        }
+        final int[] edgeComponents = new int[graph.getNumEdges()];
+        for (int v = 0; v < n; v++)
+        {
+            for (int s = graph.firstSlot(v), end = graph.endSlot(v); s < end; s++)
+            {
+                edgeComponents[graph.edgeId(s)] = nodeComponents[v];
+            }
+        }
+        return new NetworkComponents(nodeComponents, edgeComponents, sizes);
+    }
+
+    private static int find(int[] parent, int v)
+    {
+        while (parent[v] != v)
+        {
+            parent[v] = parent[parent[v]];
+            v = parent[v];
+        }
+        return v;
+    }
+
+    /** The number of components (1 if the network is connected, or 0 if it doesn't have any nodes) */
+    public int getNumComponents()
+    {
+        return sizes.length;
+    }
+
+    /** Whether every node can be reached from every other node */
+    public boolean isConnected()
+    {
+        return sizes.length <= 1;
+    }
+
+    /** The component that a node is in (0 is the largest) */
+    public int component(int node)
+    {
+        return nodeComponents[node];
+    }
+
+    /** The component that a road edge is in (see {@link CompactGraph#getEdge(int)}) */
+    public int edgeComponent(int edgeId)
+    {
+        return edgeComponents[edgeId];
+    }
+
+    /** The number of nodes in a component */
+    public int size(int component)
+    {
+        return sizes[component];
+    }
+
+}
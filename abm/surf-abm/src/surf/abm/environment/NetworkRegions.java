@@ -0,0 +1,209 @@
+package surf.abm.environment;
+
+import java.util.Arrays;
+
+/**
+ * Splits the area that the road network covers into regions that each have about the same number of road nodes, so
+ * that each region can be simulated by a different process (see <code>surf.abm.main.Distributed</code>).
+ *
+ * <p>The regions are made by recursive bisection of the network's nodes: the nodes are split in two with a line
+ * across the longer side of their bounding box, positioned so that each side gets its share of the nodes, and then
+ * each side is split again until there are enough regions. Busy parts of the network (e.g. the city centre) therefore
+ * end up in smaller regions than quiet ones. The lines make a tree, so finding the region that any point (e.g. an
+ * agent) is in only needs a few comparisons.</p>
+ *
+ * @author Nick Malleson
+ */
+public final class NetworkRegions
+{
+
+    private final int numRegions;
+    // The tree of lines. Each split has an axis (0 is x, 1 is y), a position, and the two sides (either another split
+    // or, if negative, -(region + 1))
+    private final int[] axes;
+    private final double[] cuts;
+    private final int[] below;
+    private final int[] above;
+    private final int root;
+    // The region of each node
+    private final int[] nodeRegions;
+    // The number of nodes in each region
+    private final int[] sizes;
+    // The number of road edges whose ends are in different regions
+    private final int numCutEdges;
+
+    private NetworkRegions(int numRegions, int[] axes, double[] cuts, int[] below, int[] above, int root,
+                           CompactGraph graph)
+    {
+        this.numRegions = numRegions;
+        this.axes = axes;
+        this.cuts = cuts;
+        this.below = below;
+        this.above = above;
+        this.root = root;
+        this.nodeRegions = new int[graph.getNumNodes()];
+        this.sizes = new int[numRegions];
+        for (int v = 0; v < nodeRegions.length; v++)
+        {
+            nodeRegions[v] = regionAt(graph.getX(v), graph.getY(v));
+            sizes[nodeRegions[v]]++;
+        }
+        int cut = 0;
+        for (int v = 0; v < nodeRegions.length; v++)
+        {
+            for (int s = graph.firstSlot(v), end = graph.endSlot(v); s < end; s++)
+            {
+                if (nodeRegions[graph.target(s)] != nodeRegions[v])
+                {
+                    cut++;
+                }
+            }
+        }
+        this.numCutEdges = cut / 2; // (Each edge is in two slots)
+    }
+
+    /**
+     * Split a network into regions.
+     *
+     * @param graph The network
+     * @param numRegions The number of regions (at least one)
+     */
+    public static NetworkRegions partition(CompactGraph graph, int numRegions)
+    {
+        if (numRegions < 1)
+        {
+            throw new IllegalArgumentException("There must be at least one region, not " + numRegions);
+        }
+        final Integer[] nodes = new Integer[graph.getNumNodes()];
+        for (int v = 0; v < nodes.length; v++)
+        {
+            nodes[v] = v;
+        }
+        // There are numRegions - 1 splits
+        final Builder b = new Builder(graph, Math.max(1, numRegions - 1));
+        final int root = b.split(nodes, 0, nodes.length, 0, numRegions);
+        return new NetworkRegions(numRegions, b.axes, b.cuts, b.below, b.above, root, graph);
+    }
+
+    /** Builds the tree of splits */
+    private static final class Builder
+    {
+        private final CompactGraph graph;
+        final int[] axes;
+        final double[] cuts;
+        final int[] below;
+        final int[] above;
+        private int numSplits = 0;
+
+        Builder(CompactGraph graph, int maxSplits)
+        {
+            this.graph = graph;
+            axes = new int[maxSplits];
+            cuts = new double[maxSplits];
+            below = new int[maxSplits];
+            above = new int[maxSplits];
+        }
+
+        /**
+         * Split nodes[from, to) into the regions firstRegion to firstRegion + numRegions - 1.
+         *
+         * @return The split (or -(region + 1) if there is only one region)
+         */
+        int split(Integer[] nodes, int from, int to, int firstRegion, int numRegions)
+        {
+            if (numRegions == 1)
+            {
+                return -(firstRegion + 1);
+            }
+            // Split across the longer side of the nodes' bounding box
+            double minX = Double.POSITIVE_INFINITY, maxX = Double.NEGATIVE_INFINITY;
+            double minY = Double.POSITIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+            for (int i = from; i < to; i++)
+            {
+                final int v = nodes[i];
+                minX = Math.min(minX, graph.getX(v));
+                maxX = Math.max(maxX, graph.getX(v));
+                minY = Math.min(minY, graph.getY(v));
+                maxY = Math.max(maxY, graph.getY(v));
+            }
+            final int axis = (to - from == 0 || maxX - minX >= maxY - minY) ? 0 : 1;
+            Arrays.sort(nodes, from, to, (a, c) -> Double.compare(coordinate(a, axis), coordinate(c, axis)));
+
+            // Each side gets its share of the nodes. The line is half way between the last node on one side and the
+            // first on the other. (Nodes that are exactly on the line go above it, so the sides might not be exactly
+            // the right size if lots of nodes are in a line.)
+            final int regionsBelow = numRegions / 2;
+            final int n = to - from;
+            final int numBelow = (int) Math.round((double) n * regionsBelow / numRegions);
+            final double cut;
+            if (n == 0)
+            {
+                cut = 0;
+            }
+            else if (numBelow == 0)
+            {
+                cut = coordinate(nodes[from], axis);
+            }
+            else if (numBelow == n)
+            {
+                cut = Math.nextUp(coordinate(nodes[to - 1], axis));
+            }
+            else
+            {
+                cut = (coordinate(nodes[from + numBelow - 1], axis) + coordinate(nodes[from + numBelow], axis)) / 2;
+            }
+            int mid = from;
+            while (mid < to && coordinate(nodes[mid], axis) < cut)
+            {
+                mid++;
+            }
+
+            final int s = numSplits++;
+            axes[s] = axis;
+            cuts[s] = cut;
+            below[s] = split(nodes, from, mid, firstRegion, regionsBelow);
+            above[s] = split(nodes, mid, to, firstRegion + regionsBelow, numRegions - regionsBelow);
+            return s;
+        }
+
+        private double coordinate(int node, int axis)
+        {
+            return axis == 0 ? graph.getX(node) : graph.getY(node);
+        }
+    }
+
+    /** The region that a point is in (every point is in one, even if it is outside the network) */
+    public int regionAt(double x, double y)
+    {
+        int t = root;
+        while (t >= 0)
+        {
+            t = (axes[t] == 0 ? x : y) < cuts[t] ? below[t] : above[t];
+        }
+        return -t - 1;
+    }
+
+    /** The region that a node is in */
+    public int region(int node)
+    {
+        return nodeRegions[node];
+    }
+
+    public int getNumRegions()
+    {
+        return numRegions;
+    }
+
+    /** The number of nodes in a region */
+    public int size(int region)
+    {
+        return sizes[region];
+    }
+
+    /** The number of road edges that cross from one region to another */
+    public int getNumCutEdges()
+    {
+        return numCutEdges;
+    }
+
+}
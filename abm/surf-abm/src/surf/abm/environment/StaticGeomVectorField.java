@@ -0,0 +1,114 @@
+package surf.abm.environment;
+
+import ec.util.MersenneTwisterFast;
+import sim.field.geo.GeomVectorField;
+import sim.util.Bag;
+import sim.util.geo.MasonGeometry;
+import surf.abm.surfutil.PackedSTRtree;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** A GeomVectorField for objects that never move (e.g. buildings and junctions) that can answer nearest-neighbour
+ * queries.
+ *
+ * GeomVectorField can only find the objects within a given distance of a point, so finding the nearest object
+ * means guessing a search radius and trying again if nothing is found. Once all of the objects have been added,
+ * call {@link #buildNearestNeighbourIndex()} and this class will build a {@link PackedSTRtree} that can find the
+ * nearest (or k nearest) objects directly.
+ *
+ * Adding or removing a geometry after the index has been built throws the index away, and it must be built again.
+ *
+ * @author Nick Malleson
+ */
+public class StaticGeomVectorField extends GeomVectorField
+{
+
+    private static final long serialVersionUID = 1L;
+
+    private transient PackedSTRtree<MasonGeometry> index = null;
+
+    public StaticGeomVectorField(int w, int h)
+    {
+        super(w, h);
+    }
+
+    /** Build the nearest-neighbour index. Call this once all geometries have been added. */
+    public void buildNearestNeighbourIndex()
+    {
+        Bag geometries = getGeometries();
+        List<MasonGeometry> list = new ArrayList<MasonGeometry>(geometries.numObjs);
+        for (int i = 0; i < geometries.numObjs; i++)
+        {
+            list.add((MasonGeometry) geometries.objs[i]);
+        }
+        this.index = new PackedSTRtree<MasonGeometry>(list);
+    }
+
+    /** @return true if the nearest-neighbour index has been built (and no geometries have been added or removed since) */
+    public boolean hasNearestNeighbourIndex()
+    {
+        return index != null;
+    }
+
+    @Override
+    public void addGeometry(MasonGeometry g)
+    {
+        super.addGeometry(g);
+        this.index = null; // The index is out of date
+    }
+
+    @Override
+    public void removeGeometry(MasonGeometry g)
+    {
+        super.removeGeometry(g);
+        this.index = null; // The index is out of date
+    }
+
+    @Override
+    public void clear()
+    {
+        super.clear();
+        this.index = null;
+    }
+
+    /**
+     * @param centre The object to search around. If it is in this field it will be found (it is not ignored).
+     * @return The nearest object to the centre, or null if the field is empty.
+     */
+    public MasonGeometry nearest(MasonGeometry centre)
+    {
+        return checkIndex().nearest(centre.getGeometry(), centre);
+    }
+
+    /**
+     * Find the k nearest objects to the centre.
+     *
+     * @param result A list to put the objects in (nearest first). It is cleared first.
+     * @return The number of objects found
+     */
+    public int kNearest(MasonGeometry centre, int k, List<? super MasonGeometry> result)
+    {
+        return checkIndex().kNearest(centre.getGeometry(), k, centre, result);
+    }
+
+    /**
+     * @return An object chosen at random from the k objects that are nearest to the centre, or null if the field is
+     * empty.
+     */
+    public MasonGeometry randomWithinKNearest(MasonGeometry centre, int k, MersenneTwisterFast random)
+    {
+        return checkIndex().randomWithinKNearest(centre.getGeometry(), k, centre, random);
+    }
+
+    private PackedSTRtree<MasonGeometry> checkIndex()
+    {
+        if (index == null)
+        {
+            throw new IllegalStateException("The nearest-neighbour index has not been built. Call " +
+                "buildNearestNeighbourIndex() after adding geometries.");
+        }
+        return index;
+    }
+
+}
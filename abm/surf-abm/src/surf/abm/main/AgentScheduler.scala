@@ -0,0 +1,265 @@
+package surf.abm.main
+
+import java.io.ObjectInputStream
+
+import com.typesafe.config.ConfigException
+import ec.util.MersenneTwisterFast
+import org.apache.log4j.Logger
+import sim.engine.{ParallelSequence, SimState, Steppable}
+import surf.abm.agents.Agent
+import surf.abm.environment.Building
+
+import scala.collection.mutable.ArrayBuffer
+
+/**
+  * Decides how agents are stepped. By default, each agent is scheduled individually (and MASON steps them one after
+  * the other, in a random order, on a single thread).
+  *
+  * If the ParallelAgents configuration parameter is set (to the number of threads to use, or -1 for one thread per
+  * CPU) then the agents are split into AgentPartitions groups instead and the groups are stepped at the same time
+  * using a MASON ParallelSequence. Each group has its own random number generator, created from the model's seed, so
+  * the results of a run do not depend on how many threads there are or how the threads happen to be scheduled.
+  * Agents should use [[surf.abm.agents.Agent.random]] rather than <code>state.random</code> for this to work.
+  *
+  * If EventDrivenAgents is set then agents are only stepped when they need to be. After each step an agent can say
+  * when it next needs to be stepped (by setting [[surf.abm.agents.Agent.nextWake]]), and is left alone until then.
+  * (Agents that don't set it are still stepped every iteration.) Agents that aren't stepped in parallel are then
+  * stepped by one AgentPartition, which shuffles all of them with the model's random number generator every iteration
+  * (as MASON would) and skips the ones that are being left alone. The shuffle doesn't depend on which agents are
+  * awake, so, as long as an agent that is left alone wouldn't have used any random numbers, a run is identical to one
+  * where every agent is stepped every iteration (whether or not the agents are stepped in parallel).
+  *
+  * If the model is distributed over several processes (see [[surf.abm.main.Distributed]]) then each process only
+  * creates the agents whose homes are in its region, and steps them as above but with the region's random numbers
+  * (see [[surf.abm.main.RegionAgents]]).
+  *
+  * Loaders must create each of their agents with [[surf.abm.main.AgentScheduler.newAgent()]], and call
+  * [[surf.abm.main.AgentScheduler.schedule()]] for the ones that are created, rather than scheduling them directly.
+  */
+object AgentScheduler {
+
+  private val LOG: Logger = Logger.getLogger(this.getClass)
+
+  /** The number of threads to step agents with (0 means don't step them in parallel, -1 means one per CPU) */
+  lazy val threads: Int = try {
+    SurfABM.conf.getInt(SurfABM.ModelConfig + ".ParallelAgents")
+  }
+  catch {
+    case _: ConfigException.Missing => 0
+  }
+
+  /** The number of groups to split agents into. This (not the number of threads) determines the random streams. */
+  lazy val numPartitions: Int = try {
+    SurfABM.conf.getInt(SurfABM.ModelConfig + ".AgentPartitions")
+  }
+  catch {
+    case _: ConfigException.Missing => 64
+  }
+
+  /** Whether agents are only stepped when they need to be (see [[surf.abm.agents.Agent.nextWake]]) */
+  lazy val eventDriven: Boolean = try {
+    SurfABM.conf.getBoolean(SurfABM.ModelConfig + ".EventDrivenAgents")
+  }
+  catch {
+    case _: ConfigException.Missing => false
+  }
+
+  // Each run of the model has its own partitions (see Replication)
+  @SerialVersionUID(1L)
+  private class RunState extends Serializable {
+    var partitions: Array[AgentPartition] = null
+    var sequence: ParallelSequence = null
+    var sequential: AgentPartition = null // (Steps all the agents when they are event-driven but not parallel)
+    @transient var region: RegionAgents = null // (Distributed runs can't be checkpointed)
+  }
+  private val newRunState = () => new RunState
+  private def run: RunState = Replication.current.state(this, newRunState)
+
+  /** Whether agents are being stepped in parallel */
+  def isParallel: Boolean = threads != 0
+
+  /**
+    * Only keep (and step) the agents in one region. Needs to be called before the model is started.
+    */
+  def distribute(region: RegionAgents): Unit = {
+    this.run.region = region
+  }
+
+  /** The agents in this process's region, or null if the model isn't distributed */
+  def region: RegionAgents = this.run.region
+
+  /**
+    * Needs to be called before any agents are created.
+    */
+  def create(state: SurfABM): Unit = {
+    val run = this.run
+    finish() // Get rid of any threads from a previous run
+    if (isParallel && run.region == null) {
+      LOG.info(s"Agents will be stepped in parallel, in $numPartitions groups, using " +
+        s"${if (threads < 0) "one thread per CPU" else threads + " threads"}")
+      // Each partition's random number generator is seeded with the model seed and the partition number
+      run.partitions = Array.tabulate(numPartitions)(i =>
+        new AgentPartition(new MersenneTwisterFast(Array((state.seed() >>> 32).toInt, state.seed().toInt, i)),
+          Replication.current))
+    }
+    else {
+      run.partitions = null
+    }
+    run.sequential =
+      if (eventDriven && !isParallel && run.region == null)
+        new AgentPartition(state.random, Replication.current, shuffle = true)
+      else null
+  }
+
+  /**
+    * Create an agent whose home is the given building, unless the model is distributed and the home isn't in this
+    * process's region. (Then the agent and its activities aren't created at all, so each process only ever holds its
+    * own agents.) In a distributed model each agent is created with its own random number generator, seeded by one
+    * number from the model's generator, and an agent that isn't created still uses up that number and its ID. So
+    * every process makes the same random choices for the agents that come after it, and gives them the same IDs, as
+    * long as the loader doesn't use random numbers between choosing an agent's home and calling this.
+    *
+    * @param home Where the agent will start
+    * @param make Creates the agent (and its activities)
+    * @return The agent, or None if it belongs to another region
+    */
+  def newAgent[A <: Agent](state: SurfABM, home: SurfGeometry[Building])(make: => A): Option[A] = {
+    val region = this.run.region
+    if (region == null) {
+      return Some(make)
+    }
+    val seed = state.random.nextLong()
+    if (!region.contains(home)) {
+      Agent.skipID(state)
+      return None
+    }
+    val random = state.random
+    state.random = new MersenneTwisterFast(seed)
+    try {
+      Some(make)
+    }
+    finally {
+      state.random = random
+    }
+  }
+
+  /**
+    * Schedule an agent so that it is stepped every iteration (or, if agents are event-driven, when it needs to be).
+    */
+  def schedule(state: SurfABM, a: Agent): Unit = {
+    val region = this.run.region
+    if (region != null) {
+      region.offer(a)
+    }
+    else if (isParallel) {
+      // Agents are always put in the same partition, so they always get the same random numbers
+      val partitions = this.run.partitions
+      val p = partitions(a.id() % partitions.length)
+      p.agents += a
+      a.random = p.random
+    }
+    else if (eventDriven) {
+      this.run.sequential.agents += a
+    }
+    else {
+      state.schedule.scheduleRepeating(a, SurfABM.AGENTS_STEP, 1)
+    }
+  }
+
+  /**
+    * Needs to be called once all the agents have been created. If agents are stepped in parallel or are event-driven
+    * this schedules the partitions (or, if the model is distributed, the region's agents).
+    */
+  def start(state: SurfABM): Unit = {
+    val run = this.run
+    if (run.region != null) {
+      run.region.start(state)
+      state.schedule.scheduleRepeating(run.region, SurfABM.AGENTS_STEP, 1)
+    }
+    else if (isParallel) {
+      val steps: Array[Steppable] = run.partitions.filter(_.agents.nonEmpty).toArray
+      run.sequence = new ParallelSequence(steps, if (threads < 0) ParallelSequence.CPUS else threads)
+      state.schedule.scheduleRepeating(run.sequence, SurfABM.AGENTS_STEP, 1)
+    }
+    else if (run.sequential != null) {
+      state.schedule.scheduleRepeating(run.sequential, SurfABM.AGENTS_STEP, 1)
+    }
+  }
+
+  /**
+    * Give the agents' random number generators a new seed, e.g. so that copies of a run (see
+    * [[surf.abm.main.ParticleFilter]]) don't all do the same thing. Each partition's generator is seeded as it is in
+    * create().
+    */
+  def reseed(state: SurfABM, seed: Long): Unit = {
+    state.random.setSeed(seed)
+    val partitions = this.run.partitions
+    if (partitions != null) {
+      for ((p, i) <- partitions.zipWithIndex) {
+        p.random.setSeed(Array((seed >>> 32).toInt, seed.toInt, i))
+      }
+    }
+  }
+
+  /**
+    * Stop the threads that step the agents (if there are any).
+    */
+  def finish(): Unit = {
+    val run = this.run
+    if (run.sequence != null) {
+      run.sequence.cleanup()
+      run.sequence = null
+    }
+    if (run.region != null) {
+      run.region.finish()
+    }
+  }
+
+}
+
+/**
+  * A group of agents that are stepped, one after the other, on the same thread. Agents that are event-driven are
+  * skipped until they next need to be stepped.
+  *
+  * @param random The random number generator that the agents in this group use
+  * @param replication The run that the agents are part of. The ParallelSequence's threads might not know (they can
+  *                    be shared between runs) so the agents are stepped as part of it explicitly.
+  * @param shuffle Whether to shuffle all of the agents (with <code>random</code>, in the same way as a MASON Bag)
+  *                before each step. Otherwise they are always stepped in the order that they were added.
+  */
+@SerialVersionUID(1L)
+class AgentPartition(val random: MersenneTwisterFast, @transient private var replication: Replication,
+                     val shuffle: Boolean = false) extends Steppable {
+
+  val agents = ArrayBuffer[Agent]()
+
+  // A partition that is restored from a checkpoint becomes part of the run that it is restored into
+  private def readObject(in: ObjectInputStream): Unit = {
+    in.defaultReadObject()
+    replication = Replication.current
+  }
+
+  override def step(state: SimState): Unit = replication.run {
+    if (shuffle) {
+      // Every agent is shuffled, whether or not it is awake, so the random numbers used don't depend on which are
+      var i = agents.size - 1
+      while (i > 0) {
+        val j = random.nextInt(i + 1)
+        val a = agents(i)
+        agents(i) = agents(j)
+        agents(j) = a
+        i -= 1
+      }
+    }
+    val steps = state.schedule.getSteps
+    var i = 0
+    while (i < agents.size) {
+      val a = agents(i)
+      if (a.nextWake <= steps) { // (Always true unless agents are event-driven)
+        a.step(state)
+      }
+      i += 1
+    }
+  }
+
+}
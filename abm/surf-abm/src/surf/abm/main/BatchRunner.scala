@@ -0,0 +1,167 @@
+package surf.abm.main
+
+import java.io.{BufferedWriter, File, FileWriter}
+import java.util.concurrent.{Callable, Executors, Future}
+
+import org.apache.log4j.Logger
+
+import scala.collection.mutable.ListBuffer
+
+/**
+  * Runs the model a number of times (with different seeds) in the same JVM, several at once. This is quicker than
+  * starting a new JVM for each run (as <code>run-multiple.sh</code> does) because the environment (buildings, roads,
+  * etc.) is only read once and then shared by all of the runs. Everything else (the clock, camera counts, agents,
+  * outputters, etc.) belongs to a [[surf.abm.main.Replication]], so the runs don't affect each other.
+  *
+  * Each run writes its usual output files to its own directory (<code>seed-N</code>) in the output directory. Once
+  * they have all finished, a summary of each run (<code>summary.csv</code>) and the total camera counts from each run
+  * (<code>camera-totals.csv</code>) are written there too.
+  *
+  * Usage:
+  * {{{
+  *   surf.abm.main.BatchRunner <runs> <iterations> [threads] [output directory]
+  * }}}
+  * The seeds are 1 to <code>runs</code>. By default there is one thread per CPU and the output directory is
+  * <code>./results/out/&lt;ModelConfig&gt;/batch-&lt;time&gt;/</code>.
+  */
+object BatchRunner {
+
+  private val LOG: Logger = Logger.getLogger(this.getClass)
+
+  /** What happened in one run */
+  case class RunSummary(name: String, seed: Long, iterations: Long, seconds: Double, agents: Int,
+                        outputDirectory: File, cameraTotals: Map[Int, Long])
+
+  /**
+    * Run the model once for each seed and wait for them all to finish.
+    *
+    * @param seeds The seed for each run
+    * @param iterations How many iterations to run each model for
+    * @param threads How many models to run at once
+    * @param outputDirectory Where to put the output
+    * @return A summary of each run, in the same order as the seeds
+    */
+  def runAll(seeds: Seq[Long], iterations: Long, threads: Int, outputDirectory: File): List[RunSummary] = {
+    // Read the environment now, on one thread, rather than having the runs wait for whichever one gets there first
+    LOG.info(s"Environment has ${SurfABM.buildingGeoms.getGeometries.size()} buildings. Starting ${seeds.size} " +
+      s"runs of $iterations iterations on $threads threads")
+    inParallel(threads, for (seed <- seeds) yield {
+      () => runOne(seed, iterations, new File(outputDirectory, s"seed-$seed"))
+    })
+  }
+
+  /**
+    * Do some runs, <code>threads</code> at a time, and wait for them all to finish.
+    *
+    * @return What each run returned (e.g. its summary), in the same order as the runs
+    */
+  private[main] def inParallel[T](threads: Int, runs: Seq[() => T]): List[T] = {
+    val pool = Executors.newFixedThreadPool(threads)
+    try {
+      val futures: Seq[Future[T]] = for (r <- runs) yield {
+        pool.submit(new Callable[T] {
+          override def call(): T = r()
+        })
+      }
+      futures.map(_.get()).toList
+    }
+    finally {
+      pool.shutdown()
+    }
+  }
+
+  /**
+    * Run the model once, as its own replication.
+    */
+  def runOne(seed: Long, iterations: Long, dir: File): RunSummary = {
+    val replication = new Replication(s"seed-$seed", Some(dir))
+    replication.run {
+      val startTime = System.currentTimeMillis()
+      LOG.info(s"$replication starting")
+      val model = new SurfABM(seed)
+      model.start()
+      finish(model, replication, iterations, startTime)
+    }
+  }
+
+  /**
+    * Step a model that has been started (or restored) until it has done the given number of iterations, then finish
+    * it and summarise the run. Must be called as part of the model's replication.
+    */
+  private[main] def finish(model: SurfABM, replication: Replication, iterations: Long, startTime: Long): RunSummary = {
+    while (model.schedule.getSteps < iterations && model.schedule.step(model)) {}
+    model.finish()
+    summarise(model, replication, startTime)
+  }
+
+  /**
+    * Summarise a run that has finished. Must be called as part of the model's replication.
+    */
+  private[main] def summarise(model: SurfABM, replication: Replication, startTime: Long): RunSummary = {
+    val counts = CameraRecorder.counts
+    val totals = for ((camera, row) <- CameraRecorder.cameraList.zipWithIndex) yield {
+      camera.intValue -> (0 until counts.getNumColumns).map(counts.get(row, _)).sum
+    }
+    val summary = RunSummary(replication.name, model.seed(), model.schedule.getSteps,
+      (System.currentTimeMillis() - startTime) / 1000d, SurfABM.agentGeoms.getGeometries.size(),
+      replication.outputDirectory.orNull, totals.toMap)
+    LOG.info(s"$replication finished after ${summary.iterations} iterations in ${summary.seconds} seconds")
+    summary
+  }
+
+  /**
+    * Write the summary of each run, and the camera counts from each run, to the output directory.
+    */
+  def writeSummaries(summaries: List[RunSummary], outputDirectory: File): Unit = {
+    val summaryLines = ListBuffer("Run,Seed,Iterations,Seconds,Agents,OutputDirectory")
+    val cameraLines = ListBuffer("Run,Seed,Camera,Count")
+    for (s <- summaries) {
+      val dir = if (s.outputDirectory == null) "" else s.outputDirectory.getPath
+      summaryLines += s"${s.name},${s.seed},${s.iterations},${s.seconds},${s.agents},$dir"
+      for ((camera, count) <- s.cameraTotals.toList.sortBy(_._1)) {
+        cameraLines += s"${s.name},${s.seed},$camera,$count"
+      }
+    }
+    write(new File(outputDirectory, "summary.csv"), summaryLines)
+    write(new File(outputDirectory, "camera-totals.csv"), cameraLines)
+  }
+
+  private def write(file: File, lines: Seq[String]): Unit = {
+    val bw = new BufferedWriter(new FileWriter(file))
+    try {
+      lines.foreach(l => { bw.write(l); bw.newLine() })
+    }
+    finally {
+      bw.close()
+    }
+  }
+
+  def main(args: Array[String]): Unit = {
+    if (args.length < 2) {
+      System.err.println("Usage: surf.abm.main.BatchRunner <runs> <iterations> [threads] [output directory]")
+      System.exit(1)
+    }
+    val runs = args(0).toInt
+    val iterations = args(1).toLong
+    val threads = if (args.length > 2) args(2).toInt else Runtime.getRuntime.availableProcessors()
+    val outputDirectory = if (args.length > 3) new File(args(3))
+      else new File("./results/out/" + SurfABM.ModelConfig + "/batch-" + System.currentTimeMillis() + "/")
+    if (!outputDirectory.exists() && !outputDirectory.mkdirs()) {
+      throw new Exception(s"Could not create the output directory $outputDirectory")
+    }
+
+    try {
+      val summaries = runAll((1 to runs).map(_.toLong), iterations, threads, outputDirectory)
+      writeSummaries(summaries, outputDirectory)
+      LOG.info(s"Finished ${summaries.size} runs. Results are in $outputDirectory")
+    }
+    catch {
+      case e: Exception => {
+        LOG.error("Exception thrown while running the models.", e)
+        throw e
+      }
+    }
+    System.exit(0) // (MASON's threads might otherwise keep the JVM alive)
+  }
+
+}
@@ -0,0 +1,313 @@
+package surf.abm.main
+
+import java.io.{BufferedWriter, File, FileWriter}
+
+import ec.util.MersenneTwisterFast
+import org.apache.log4j.Logger
+
+import scala.collection.mutable.ArrayBuffer
+
+/**
+  * Calibrates some of the model's parameters (see [[surf.abm.main.Parameters]], e.g. <code>BaseMoveRate</code>,
+  * <code>BackgroundRndRange</code>, <code>ActivityRates.Shopping</code> or
+  * <code>MinimumIntensityDecrease.Working</code>) against observed camera counts, using Approximate Bayesian
+  * Computation with Sequential Monte Carlo (ABC-SMC).
+  *
+  * Each generation is a population of parameter sets (particles) whose runs were within a tolerance of the
+  * observations. The first generation is drawn from the priors (uniform ranges) and every run is accepted. After that
+  * the tolerance is a quantile of the previous generation's distances, and particles are proposed by choosing one
+  * from the previous generation (by weight) and perturbing it with a Gaussian kernel, so the population closes in on
+  * the parameters that reproduce the observations. The particles in the last generation approximate the posterior.
+  *
+  * The distance between a run and the observations is the root mean squared difference between the hourly counts
+  * for all of the observed cameras and hours in the run. It is worked out as the model runs, straight from the
+  * [[surf.abm.main.CameraRecorder]], and (because it is divided by the number of observations in the whole run, not
+  * the number so far) it can only go up as more hours are compared. So as soon as a run is further from the
+  * observations than the tolerance it is stopped, as it can't be accepted. Most proposals in later generations are
+  * rejected, and most of them can be stopped early in the run.
+  *
+  * Runs happen in the same JVM, several at once, each as its own [[surf.abm.main.Replication]] (without writing any
+  * output) that has been given the particle's parameters. The observations are read as for the
+  * [[surf.abm.main.ParticleFilter]]. Each generation's particles are written to <code>calibration.csv</code> in the
+  * output directory.
+  *
+  * Usage:
+  * {{{
+  *   surf.abm.main.Calibration <particles> <generations> <observations> <iterations> <threads> <output directory>
+  *                             <Parameter=min:max> [Parameter=min:max ...]
+  * }}}
+  */
+object Calibration {
+
+  private val LOG: Logger = Logger.getLogger(this.getClass)
+
+  /** The proportion of a generation's distances that are below the next generation's tolerance */
+  val TOLERANCE_QUANTILE = 0.5
+
+  /** How many runs a generation can have (for each particle that it needs) before giving up */
+  val MAX_RUNS_PER_PARTICLE = 50
+
+  /** A uniform prior for a parameter */
+  case class Prior(name: String, min: Double, max: Double) {
+    def contains(value: Double): Boolean = value >= min && value <= max
+  }
+
+  /** A particle that has been accepted: its parameters (in the same order as the priors), the seed of its run, etc. */
+  case class Sample(parameters: Array[Double], seed: Long, distance: Double, weight: Double)
+
+  /** How a run went */
+  private case class Result(distance: Double, iterations: Long, stoppedEarly: Boolean)
+
+  /** Read a prior, defined as "Parameter=min:max" */
+  def prior(definition: String): Prior = {
+    val split = definition.split("[=:]")
+    if (split.length != 3) {
+      throw new Exception(s"Invalid prior: $definition . Priors should be in the format Parameter=min:max")
+    }
+    val p = Prior(split(0), split(1).toDouble, split(2).toDouble)
+    if (!(p.min < p.max)) {
+      throw new Exception(s"Invalid prior: $definition . The minimum must be less than the maximum")
+    }
+    p
+  }
+
+  /** The distance between a run and the observations (see above) */
+  def distance(sumOfSquares: Double, observations: Int): Double = math.sqrt(sumOfSquares / observations)
+
+  /** The value that the given proportion of the values are at or below */
+  def quantile(values: Seq[Double], q: Double): Double = {
+    val sorted = values.sorted
+    sorted(math.min(sorted.size - 1, math.max(0, math.ceil(q * sorted.size).toInt - 1)))
+  }
+
+  /**
+    * The standard deviation of the perturbation kernel for each parameter: twice the weighted variance of the
+    * parameter in the previous generation (Beaumont et al., 2009), or a tiny proportion of the prior's range if the
+    * particles all have the same value.
+    */
+  def kernelScales(population: Seq[Sample], priors: Seq[Prior]): Array[Double] = {
+    priors.indices.map { k =>
+      val mean = population.map(s => s.weight * s.parameters(k)).sum
+      val variance = population.map(s => s.weight * (s.parameters(k) - mean) * (s.parameters(k) - mean)).sum
+      math.max(math.sqrt(2 * variance), 1e-6 * (priors(k).max - priors(k).min))
+    }.toArray
+  }
+
+  /** The standard normal cumulative distribution function (using the approximation of erfc from Numerical Recipes) */
+  def normalCdf(x: Double): Double = {
+    val z = math.abs(x) / math.sqrt(2)
+    val t = 1 / (1 + 0.5 * z)
+    val erfc = t * math.exp(-z * z - 1.26551223 + t * (1.00002368 + t * (0.37409196 + t * (0.09678418 +
+      t * (-0.18628806 + t * (0.27886807 + t * (-1.13520398 + t * (1.48851587 + t * (-0.82215223 + t * 0.17087277)))))))))
+    if (x >= 0) 1 - 0.5 * erfc else 0.5 * erfc
+  }
+
+  /**
+    * The importance weights of a new generation's particles (which add up to one). The priors are uniform, so a
+    * particle's weight is inversely proportional to the probability of it being proposed from the previous generation.
+    * Proposals outside the priors are thrown away (see propose()), so each previous particle's kernel is truncated to
+    * the priors and is divided by the mass that it has inside them. Otherwise particles proposed from near the edge
+    * of a prior would be given too much weight.
+    */
+  def importanceWeights(parameters: Seq[Array[Double]], previous: Seq[Sample], scales: Array[Double],
+                        priors: Seq[Prior]): Array[Double] = {
+    // The probability of a perturbation of each previous particle being inside the priors
+    val mass = previous.map(s => priors.indices.map { k =>
+      normalCdf((priors(k).max - s.parameters(k)) / scales(k)) - normalCdf((priors(k).min - s.parameters(k)) / scales(k))
+    }.product)
+    val w = parameters.map { theta =>
+      var proposal = 0d
+      for ((s, m) <- previous.zip(mass)) {
+        var density = s.weight / m
+        for (k <- theta.indices) {
+          val z = (theta(k) - s.parameters(k)) / scales(k)
+          density *= math.exp(-0.5 * z * z) / scales(k)
+        }
+        proposal += density
+      }
+      1 / proposal
+    }.toArray
+    val total = w.sum
+    w.map(_ / total)
+  }
+
+  /** Choose some parameters from the priors (in the first generation) or by perturbing a previous particle */
+  private def propose(priors: Seq[Prior], population: Seq[Sample], scales: Array[Double],
+                      random: MersenneTwisterFast): Array[Double] = {
+    if (population == null) {
+      return priors.map(p => p.min + random.nextDouble() * (p.max - p.min)).toArray
+    }
+    // Keep perturbing particles until one is inside the priors
+    Iterator.continually {
+      // Choose a particle by weight
+      var u = random.nextDouble()
+      var i = 0
+      while (i < population.size - 1 && u >= population(i).weight) {
+        u -= population(i).weight
+        i += 1
+      }
+      population(i).parameters.indices.map(k => population(i).parameters(k) + scales(k) * random.nextGaussian()).toArray
+    }.find(theta => theta.indices.forall(k => priors(k).contains(theta(k)))).get
+  }
+
+  /**
+    * Run the model with some parameters, stopping as soon as it is further than the tolerance from the observations.
+    *
+    * @param cells The observations in the hours that the run covers, in order of hour
+    */
+  private def simulate(name: String, parameters: Map[String, Double], seed: Long, iterations: Long, hours: Int,
+                       cells: Array[((Int, Int), Long)], tolerance: Double): Result = {
+    val replication = new Replication(name, None, writeOutput = false, parameters = parameters)
+    replication.run {
+      val model = new SurfABM(seed)
+      model.start()
+      try {
+        var next = 0 // The next observation to compare
+        var sumOfSquares = 0d
+        def compare(before: Int): Unit = {
+          val counts = CameraRecorder.counts
+          while (next < cells.length && cells(next)._1._2 < before) {
+            val ((row, column), observed) = cells(next)
+            val d = (counts.get(row, column) - observed).toDouble
+            sumOfSquares += d * d
+            next += 1
+          }
+        }
+        var stopped = false
+        while (!stopped && model.schedule.getSteps < iterations && model.schedule.step(model)) {
+          // Compare the hours that have finished (the last column is the current hour)
+          compare(CameraRecorder.counts.getNumColumns - 1)
+          stopped = distance(sumOfSquares, cells.length) > tolerance
+        }
+        if (!stopped) {
+          compare(hours) // (The last hour might not have been closed yet)
+        }
+        Result(distance(sumOfSquares, cells.length), model.schedule.getSteps, stopped)
+      }
+      finally {
+        model.finish()
+      }
+    }
+  }
+
+  /**
+    * Run the calibration.
+    *
+    * @param priors The parameters to calibrate, and their ranges
+    * @param numParticles How many particles to have in each generation
+    * @param generations How many generations to run
+    * @param observations The observed counts (see [[surf.abm.main.ParticleFilter.readObservations]])
+    * @param iterations How many iterations to run the model for each time
+    * @param threads How many runs to do at once
+    * @param outputDirectory Where to write the particles
+    * @param seed Seeds the random numbers for choosing parameters, and the runs' seeds
+    * @return The last generation of particles
+    */
+  def run(priors: Seq[Prior], numParticles: Int, generations: Int, observations: Map[(Int, Int), Long],
+          iterations: Long, threads: Int, outputDirectory: File, seed: Long): Seq[Sample] = {
+    val random = new MersenneTwisterFast(seed)
+    val hours = (iterations * Clock.minsPerTick / 60).toInt
+    val cells = observations.filter { case ((_, column), _) => column < hours }.toArray.sortBy(_._1._2)
+    if (cells.isEmpty) {
+      throw new Exception(s"None of the observations are in the first $hours hours, which are all that will be run")
+    }
+    LOG.info(s"Environment has ${SurfABM.buildingGeoms.getGeometries.size()} buildings. Calibrating " +
+      s"${priors.map(_.name).mkString(", ")} with $numParticles particles, $generations generations and " +
+      s"${cells.length} observations, on $threads threads")
+
+    val out = new BufferedWriter(new FileWriter(new File(outputDirectory, "calibration.csv")))
+    try {
+      out.write(("Generation,Tolerance,Seed,Distance,Weight" +: priors.map(_.name)).mkString(","))
+      out.newLine()
+
+      var population: Seq[Sample] = null
+      var tolerance = Double.PositiveInfinity
+      var runs = 0
+      for (g <- 0 until generations) {
+        val scales = if (population == null) null else kernelScales(population, priors)
+        val accepted = ArrayBuffer[(Array[Double], Long, Double)]()
+        var attempts = 0
+        var stoppedEarly = 0
+        var iterationsRun = 0L
+        while (accepted.size < numParticles && attempts < numParticles * MAX_RUNS_PER_PARTICLE) {
+          val batch = for (_ <- 0 until math.max(threads, numParticles - accepted.size)) yield {
+            runs += 1
+            (s"calibration-$runs", propose(priors, population, scales, random), random.nextLong())
+          }
+          val results = BatchRunner.inParallel(threads, for ((name, theta, runSeed) <- batch) yield {
+            val parameters = priors.map(_.name).zip(theta).toMap
+            () => simulate(name, parameters, runSeed, iterations, hours, cells, tolerance)
+          })
+          for (((_, theta, runSeed), r) <- batch.zip(results)) {
+            attempts += 1
+            iterationsRun += r.iterations
+            if (r.stoppedEarly) {
+              stoppedEarly += 1
+            }
+            else if (r.distance <= tolerance && accepted.size < numParticles) {
+              accepted += ((theta, runSeed, r.distance))
+            }
+          }
+        }
+        if (accepted.isEmpty) {
+          throw new Exception(s"No runs were within the tolerance ($tolerance) in generation $g")
+        }
+        if (accepted.size < numParticles) {
+          LOG.warn(s"Only ${accepted.size} of $numParticles particles were accepted in generation $g")
+        }
+
+        val weights = if (population == null) Array.fill(accepted.size)(1d / accepted.size)
+          else importanceWeights(accepted.map(_._1), population, scales, priors)
+        population = for (((theta, runSeed, d), w) <- accepted.zip(weights)) yield Sample(theta, runSeed, d, w)
+        for (s <- population) {
+          out.write((Seq(g, tolerance, s.seed, s.distance, s.weight) ++ s.parameters).mkString(","))
+          out.newLine()
+        }
+        out.flush()
+        LOG.info(s"Generation $g: tolerance $tolerance, accepted ${accepted.size} of $attempts runs, " +
+          s"$stoppedEarly stopped early (${attempts * iterations - iterationsRun} iterations saved). Means: " +
+          priors.indices.map(k => s"${priors(k).name}=${population.map(s => s.weight * s.parameters(k)).sum}")
+            .mkString(", "))
+        tolerance = quantile(population.map(_.distance), TOLERANCE_QUANTILE)
+      }
+      population
+    }
+    finally {
+      out.close()
+    }
+  }
+
+  def main(args: Array[String]): Unit = {
+    if (args.length < 7) {
+      System.err.println("Usage: surf.abm.main.Calibration <particles> <generations> <observations> <iterations> " +
+        "<threads> <output directory> <Parameter=min:max> [Parameter=min:max ...]")
+      System.exit(1)
+    }
+    val numParticles = args(0).toInt
+    val generations = args(1).toInt
+    val observationsFile = new File(args(2))
+    val iterations = args(3).toLong
+    val threads = args(4).toInt
+    val outputDirectory = new File(args(5))
+    val priors = args.drop(6).toSeq.map(prior)
+    if (!outputDirectory.exists() && !outputDirectory.mkdirs()) {
+      throw new Exception(s"Could not create the output directory $outputDirectory")
+    }
+
+    try {
+      val observations = ParticleFilter.readObservations(observationsFile, CameraRecorder.cameraList.map(_.intValue),
+        SurfABM.startDate, SurfABM.startHour)
+      run(priors, numParticles, generations, observations, iterations, threads, outputDirectory,
+        System.currentTimeMillis())
+      LOG.info(s"Finished calibrating. Results are in $outputDirectory")
+    }
+    catch {
+      case e: Exception => {
+        LOG.error("Exception thrown while calibrating the model.", e)
+        throw e
+      }
+    }
+    System.exit(0) // (MASON's threads might otherwise keep the JVM alive)
+  }
+
+}
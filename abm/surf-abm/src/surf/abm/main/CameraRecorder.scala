@@ -4,24 +4,38 @@ import java.io.{BufferedWriter, File, FileWriter}
 
 import org.apache.log4j.Logger
 import sim.engine.{SimState, Steppable}
+import surf.abm.surfutil.StripedCounterMatrix
 
 import collection.JavaConverters._
-import scala.collection.mutable.ListBuffer
 
 /**
   * Created by tomas on 31/10/2017.
   */
 object CameraRecorder extends Steppable{
 
-  private var initialised = false
+  // Each run of the model has its own counts (see Replication)
+  @SerialVersionUID(1L)
+  private[main] class RunState extends Serializable {
+    var initialised = false
+    var state : SimState = null // This will point to the sim state (useful)
+    val counts = new StripedCounterMatrix(cameraList.size, 24 * 7)
+  }
+  private val newRunState = () => new RunState
+  private def run: RunState = Replication.current.state(this, newRunState)
 
-  private var state : SimState = null // This will point to the sim state (useful)
+  /** The counts of the given run (the model keeps them, see [[surf.abm.main.SurfABM.replication]]) */
+  private[main] def runOf(replication: Replication): RunState = replication.state(this, newRunState)
 
   private val LOG: Logger = Logger.getLogger(this.getClass)
 
-  val tempCameraMaps = scala.collection.mutable.Map[Int, ListBuffer[Int]]()
+  /** The IDs of the cameras, in the order of the rows in the count matrix */
+  val cameraList: List[Integer] = SurfABM.conf.getIntList(SurfABM.ModelConfig+".CameraList").asScala.toList
+
+  // The row in the count matrix for each camera ID
+  private val cameraRows = new CameraRows(cameraList.map(_.intValue))
 
-  private val cameraList: List[Integer] = SurfABM.conf.getIntList(SurfABM.ModelConfig+".CameraList").asScala.toList
+  /** The number of agents that passed each camera (row) in each hour (column). The last column is the current hour. */
+  def counts: StripedCounterMatrix = this.run.counts
 
 
   /**
@@ -29,25 +43,18 @@ object CameraRecorder extends Steppable{
     */
   def create(state:SurfABM): Unit = {
 
-    if (initialised) {
+    val run = this.run
+    if (run.initialised) {
       throw new Exception("ERROR! CameraRecorder has already been initialised")
     }
 
 
-    // Init code goes here
-    for (c <- cameraList) {
-      var b = new ListBuffer[Int]()
-      b += 0
-      this.tempCameraMaps.put(c,b)
-     // LOG.info("camera %d gets a listBuffer\n".format(c))
-    }
-
-    this.state = state
+    run.state = state
 
-    this.initialised = true
+    run.initialised = true
 
     // Schedule the step method
-    this.state.schedule.scheduleRepeating(this, SurfABM.CAMERA_RECORDER_STEP, 60.0/Clock.minsPerTick)
+    state.schedule.scheduleRepeating(this, SurfABM.CAMERA_RECORDER_STEP, 60.0/Clock.minsPerTick)
 
 
   }
@@ -59,31 +66,77 @@ object CameraRecorder extends Steppable{
     // Code to do stuff with the cameras goes here
     LOG.debug("CameraRecorder.step() has been called")
 
-    // Every hour, a new element has to be added to the camera counts, starting with value zero.
-    for (c <- cameraList) {
-      this.tempCameraMaps(c) += 0
-      //LOG.info("new element added to camera %d\n".format(c))
-    }
+    // Every hour, the counts move on to a new column (starting with zero). Agents aren't stepped at the same time.
+    this.counts.nextColumn()
 
 
   }
 
   /**
-    * Can be called by an agent if the agent has passed by a camera
+    * Can be called by an agent if the agent has passed by a camera. Agents might be stepped in parallel, but the
+    * counts don't need to be locked.
     */
   def add(cameraID: Int): Unit = {
+    this.counts.increment(this.row(cameraID))
+    //LOG.info("camera %d at index %d, hour %d, time %s and iteration %d is passed by %d agents\n".format(cameraID,this.counts.getNumColumns -1, Clock.currentHour().toInt, Clock.getTime().toString, Clock.getIterations(), this.counts.get(row, this.counts.getNumColumns - 1)))
+  }
 
-    if(!this.tempCameraMaps.contains(cameraID)){
+  /**
+    * Count an agent passing a camera in the given model. This is quicker than add(cameraID) (the model already knows
+    * which run it is part of), so it is the one for agents to use.
+    */
+  def add(state: SurfABM, cameraID: Int): Unit = {
+    state.cameraRun.counts.increment(this.row(cameraID))
+  }
+
+  private def row(cameraID: Int): Int = {
+    val row = cameraRows(cameraID)
+    if (row < 0) {
       throw new Exception ("ERROR! Camera "+cameraID+" was not initialised! It was probably not defined in the configuration file.")
     }
+    row
+  }
 
-    val hoursList = this.tempCameraMaps(cameraID)
-    val currentVal = hoursList.last
 
-    this.tempCameraMaps(cameraID).update(hoursList.size - 1, currentVal+1)
-    //LOG.info("camera %d at index %d, hour %d, time %s and iteration %d is passed by %d agents\n".format(cameraID,hoursList.size -1, Clock.currentHour().toInt, Clock.getTime().toString, Clock.getIterations(), this.tempCameraMaps(cameraID).last))
+}
+
+/**
+  * The row in the count matrix for each camera ID. Agents look up a row every time they pass a camera, so if the IDs
+  * are small they are looked up in an array indexed by ID. Otherwise (e.g. if the IDs come from another data set and
+  * are in the millions) they are looked up in a map, rather than allocating an array as big as the largest ID.
+  *
+  * @param ids The IDs of the cameras, in the order of the rows. They can't be negative (a road whose cameraID is
+  *            negative doesn't have a camera) and there can't be two cameras with the same ID.
+  */
+private[main] class CameraRows(ids: Seq[Int]) {
 
+  ids.find(_ < 0).foreach { id =>
+    throw new Exception(s"ERROR! Camera $id in the CameraList is negative. Camera IDs must be 0 or more.")
+  }
+  if (ids.distinct.size != ids.size) {
+    throw new Exception("ERROR! These cameras are in the CameraList more than once: " +
+      ids.diff(ids.distinct).distinct.mkString(", "))
   }
 
+  // rows(id) is the row for the camera with that ID, or -1 if it isn't a camera (null if the IDs are too big)
+  private val rows: Array[Int] = if (ids.isEmpty || ids.max < CameraRows.MAX_ARRAY_SIZE) {
+    val a = Array.fill[Int](if (ids.isEmpty) 0 else ids.max + 1)(-1)
+    ids.zipWithIndex.foreach { case (c, i) => a(c) = i }
+    a
+  } else null
+
+  private val map: Map[Int, Int] = if (rows == null) ids.zipWithIndex.toMap else null
+
+  /** The row for the camera with the given ID, or -1 if it isn't a camera */
+  def apply(id: Int): Int =
+    if (rows != null) { if (id >= 0 && id < rows.length) rows(id) else -1 }
+    else map.getOrElse(id, -1)
+
+}
+
+private[main] object CameraRows {
+
+  /** The largest array of rows (indexed by camera ID) to allocate. Bigger IDs are looked up in a map instead. */
+  val MAX_ARRAY_SIZE: Int = 1 << 16
 
 }
@@ -0,0 +1,355 @@
+package surf.abm.main
+
+import java.io._
+import java.nio.file.Files
+import java.util
+
+import com.vividsolutions.jts.geom.prep.PreparedGeometry
+import org.apache.log4j.Logger
+import sim.field.geo.GeomVectorField
+import surf.abm.main.BatchRunner.RunSummary
+
+import scala.collection.JavaConverters._
+
+/**
+  * Saves a running model to a file (a checkpoint) so that it can be carried on from there later, e.g. so that lots of
+  * runs can start from a model whose agents have already settled into their daily routines, rather than each one
+  * having to simulate the first day or so itself.
+  *
+  * MASON can checkpoint a <code>SimState</code>, but that misses everything that the model keeps in singleton
+  * objects (the clock, camera counts, activity engine, etc.). Those are all kept in the run's
+  * [[surf.abm.main.Replication]], so a checkpoint is the model plus the replication's states (the ones that can be
+  * saved; the outputters' files are opened again in the new run's directory when it is restored), which include
+  * the GISFunctions search radius tuning.
+  *
+  * The environment (buildings, roads, the network, etc.) is not saved. Anything in it that the agents refer to (e.g.
+  * their homes, or the roads on their path) is written as a reference to the object, and restored as the same object
+  * in the environment of the JVM that reads the checkpoint, so a checkpoint has to be read by a model that uses the
+  * same configuration and data as the one that wrote it. Similarly, singleton objects are written as references so
+  * that their fields aren't saved and they are still singletons when the checkpoint is read.
+  *
+  * A checkpoint can be restored many times, and each one becomes an independent run (see fork()).
+  *
+  * Usage:
+  * {{{
+  *   surf.abm.main.Checkpoint save <iterations> <checkpoint file> [seed]
+  *   surf.abm.main.Checkpoint fork <checkpoint file> <iterations> <threads> <output directory> [Class::Method ...]
+  * }}}
+  * <code>save</code> runs the model for some iterations and then writes the checkpoint. <code>fork</code> carries on
+  * from a checkpoint for some more iterations, once as it is (the 'baseline' run) and once for each variant. A variant
+  * is a method (like an agent loader, see [[surf.abm.main.SurfABM]]) that is passed the restored model and can change
+  * it before it carries on. The runs are written to directories in the output directory as for the
+  * [[surf.abm.main.BatchRunner]].
+  */
+object Checkpoint {
+
+  private val LOG: Logger = Logger.getLogger(this.getClass)
+
+  /** Increase this if the format changes, so that old checkpoints are not read */
+  val VERSION = 4
+
+  private val MAGIC = 0x53434b50 // "SCKP"
+
+  /**
+    * The objects in the environment, in an order that is the same every time the environment is read (the fields in
+    * the order that they are declared, then the objects in each one, then the network's nodes, directed edges and
+    * edges in the order of their ids). Also used to send agents from one process to another (see
+    * [[surf.abm.main.Distributed]]).
+    */
+  private[main] lazy val environment: Array[AnyRef] = {
+    val objects = new util.ArrayList[AnyRef]()
+    val fields: Seq[GeomVectorField] = Seq(SurfABM.buildingGeoms, SurfABM.supermarketGeoms, SurfABM.lunchGeoms,
+      SurfABM.goingOutGeoms, SurfABM.sportGeoms, SurfABM.otherShopGeoms, SurfABM.roadGeoms, SurfABM.junctions)
+    for (field <- fields) {
+      objects.add(field)
+      for (o <- field.getGeometries.asScala) {
+        objects.add(o.asInstanceOf[AnyRef])
+        o match {
+          case g: SurfGeometry[_] if g.theObject != null => objects.add(g.theObject.asInstanceOf[AnyRef])
+          case _ =>
+        }
+      }
+    }
+    val graph = SurfABM.compactNetwork
+    objects.add(SurfABM.buildingIDGeomMap)
+    objects.add(SurfABM.network)
+    objects.add(graph)
+    objects.add(SurfABM.mbr)
+    for (i <- 0 until graph.getNumNodes) objects.add(graph.getNode(i))
+    for (i <- 0 until graph.getNumSlots) objects.add(graph.getDirectedEdge(i))
+    for (i <- 0 until graph.getNumEdges) objects.add(graph.getEdge(i))
+    objects.toArray
+  }
+
+  // The position of each object in the environment (worked out once, as lots of checkpoints might be written)
+  private lazy val environmentIndex = CheckpointOutputStream.index(environment)
+
+  /**
+    * Write a checkpoint. Must be called between iterations, as part of the model's replication.
+    */
+  def write(state: SurfABM, file: File): Unit = {
+    val temp = new File(file.getPath + ".tmp")
+    try {
+      writeTo(state, new BufferedOutputStream(new FileOutputStream(temp), 1 << 16))
+      if (file.exists() && !file.delete()) {
+        throw new IOException(s"Could not replace the checkpoint $file")
+      }
+      if (!temp.renameTo(file)) {
+        throw new IOException(s"Could not rename $temp to $file")
+      }
+    }
+    finally {
+      temp.delete() // (If the checkpoint couldn't be written, don't leave half of it behind)
+    }
+    LOG.info(s"Wrote a checkpoint of ${Replication.current} at iteration ${state.schedule.getSteps} to $file")
+  }
+
+  /**
+    * Write a checkpoint into memory (e.g. to copy a model, see [[surf.abm.main.ParticleFilter]]). Must be called
+    * between iterations, as part of the model's replication.
+    */
+  def toBytes(state: SurfABM): Array[Byte] = {
+    val bytes = new ByteArrayOutputStream()
+    writeTo(state, bytes)
+    bytes.toByteArray
+  }
+
+  private def writeTo(state: SurfABM, stream: OutputStream): Unit = {
+    val replication = Replication.current
+    val out = new CheckpointOutputStream(stream, environmentIndex)
+    state.preCheckpoint()
+    try {
+      out.writeInt(MAGIC)
+      out.writeInt(VERSION)
+      out.writeUTF(SurfABM.ModelConfig)
+      out.writeInt(environment.length)
+      out.writeObject(state)
+      // The singletons' states, keyed by the name of the singleton
+      val states = new util.LinkedHashMap[String, AnyRef]()
+      for ((owner, s) <- replication.serializableStates) {
+        val name = CheckpointOutputStream.moduleName(owner)
+        if (name == null) {
+          LOG.warn(s"Cannot save the state of $owner in a checkpoint because it is not a singleton")
+        }
+        else {
+          states.put(name, s)
+        }
+      }
+      out.writeObject(states)
+    }
+    finally {
+      out.close()
+      state.postCheckpoint()
+    }
+  }
+
+  /**
+    * Restore a model from a checkpoint, as part of the given replication (which should be a new one). The model
+    * carries on from where it was when the checkpoint was written, and must be stepped as part of the replication.
+    */
+  def read(file: File, replication: Replication): SurfABM = read(Files.readAllBytes(file.toPath), replication)
+
+  /**
+    * Restore a model from a checkpoint that has already been read into memory.
+    */
+  def read(checkpoint: Array[Byte], replication: Replication): SurfABM = replication.run {
+    val in = new CheckpointInputStream(new ByteArrayInputStream(checkpoint), environment)
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("This is not a checkpoint, or it was written by a different version of the model")
+      }
+      val config = in.readUTF()
+      if (config != SurfABM.ModelConfig) {
+        throw new IOException(s"The checkpoint is of a '$config' model, not '${SurfABM.ModelConfig}'")
+      }
+      if (in.readInt() != environment.length) {
+        throw new IOException("The checkpoint was written by a model with a different environment")
+      }
+      val state = in.readObject().asInstanceOf[SurfABM]
+      val states = in.readObject().asInstanceOf[util.Map[String, AnyRef]]
+      for ((name, s) <- states.asScala) {
+        replication.restoreState(CheckpointInputStream.module(name), s)
+      }
+      state.replication // (The model finds its run's states through this, so only once they have been restored)
+      state.awakeFromCheckpoint()
+      OutputFactory.reopen(state)
+      LOG.info(s"Restored $replication from a checkpoint at iteration ${state.schedule.getSteps}")
+      state
+    }
+    finally {
+      in.close()
+    }
+  }
+
+  /**
+    * Restore a checkpoint once for each variant and carry on with each one for the given number of iterations.
+    *
+    * @param file The checkpoint
+    * @param iterations How many more iterations to run for
+    * @param threads How many variants to run at once
+    * @param outputDirectory Each variant writes to a directory in here, named after the variant
+    * @param variants The name of each variant, and a function that is given the restored model to change
+    * @return A summary of each run, in the same order as the variants
+    */
+  def fork(file: File, iterations: Long, threads: Int, outputDirectory: File,
+           variants: Seq[(String, SurfABM => Unit)]): List[RunSummary] = {
+    val checkpoint = Files.readAllBytes(file.toPath) // (Read once, restored many times)
+    BatchRunner.inParallel(threads, for ((name, variant) <- variants) yield { () =>
+      val replication = new Replication(name, Some(new File(outputDirectory, name)))
+      replication.run {
+        val startTime = System.currentTimeMillis()
+        val model = read(checkpoint, replication)
+        variant(model)
+        BatchRunner.finish(model, replication, model.schedule.getSteps + iterations, startTime)
+      }
+    })
+  }
+
+  /**
+    * Find the method for a variant, defined as "Class::Method". The method should receive one parameter: the model.
+    */
+  def variant(definition: String): SurfABM => Unit = {
+    val split = definition.split("::")
+    if (split.size != 2) {
+      throw new Exception(s"Invalid variant definition: $definition . The variant should be in the format Class::Method")
+    }
+    val cls: Class[_] = Class.forName(split(0))
+    val method = cls.getMethod(split(1), classOf[SurfABM])
+    state => method.invoke(cls, state)
+  }
+
+  def main(args: Array[String]): Unit = {
+    try {
+      args.headOption match {
+        case Some("save") if args.length >= 3 => {
+          val iterations = args(1).toLong
+          val file = new File(args(2))
+          val seed = if (args.length > 3) args(3).toLong else System.currentTimeMillis()
+          val model = new SurfABM(seed)
+          model.start()
+          while (model.schedule.getSteps < iterations && model.schedule.step(model)) {}
+          write(model, file)
+          model.finish()
+        }
+        case Some("fork") if args.length >= 5 => {
+          val file = new File(args(1))
+          val iterations = args(2).toLong
+          val threads = args(3).toInt
+          val outputDirectory = new File(args(4))
+          if (!outputDirectory.exists() && !outputDirectory.mkdirs()) {
+            throw new Exception(s"Could not create the output directory $outputDirectory")
+          }
+          val none: SurfABM => Unit = _ => ()
+          val variants = ("baseline", none) +: args.drop(5).toSeq.map(d => (d.replace("::", "-"), variant(d)))
+          val summaries = fork(file, iterations, threads, outputDirectory, variants)
+          BatchRunner.writeSummaries(summaries, outputDirectory)
+          LOG.info(s"Finished ${summaries.size} runs. Results are in $outputDirectory")
+        }
+        case _ => {
+          System.err.println("Usage: surf.abm.main.Checkpoint save <iterations> <checkpoint file> [seed]\n" +
+            "       surf.abm.main.Checkpoint fork <checkpoint file> <iterations> <threads> <output directory> " +
+            "[Class::Method ...]")
+          System.exit(1)
+        }
+      }
+    }
+    catch {
+      case e: Exception => {
+        LOG.error("Exception thrown while checkpointing.", e)
+        throw e
+      }
+    }
+    System.exit(0) // (MASON's threads might otherwise keep the JVM alive)
+  }
+
+}
+
+/** Written in place of an object in the environment (its position in the list of environment objects) */
+@SerialVersionUID(1L)
+private[main] case class EnvironmentRef(index: Int)
+
+/** Written in place of a singleton object */
+@SerialVersionUID(1L)
+private[main] case class ModuleRef(name: String)
+
+/**
+  * Writes objects, replacing any that are in the environment, or are singletons, with references to them.
+  *
+  * @param index The position of each object that should be written as a reference (see
+  *              <code>CheckpointOutputStream.index()</code>)
+  */
+private[main] class CheckpointOutputStream(out: OutputStream, index: util.IdentityHashMap[AnyRef, Integer])
+  extends ObjectOutputStream(out) {
+
+  /**
+    * @param environment The objects that should be written as references
+    */
+  def this(out: OutputStream, environment: Array[AnyRef]) = this(out, CheckpointOutputStream.index(environment))
+
+  enableReplaceObject(true)
+
+  override def replaceObject(obj: AnyRef): AnyRef = {
+    if (obj.isInstanceOf[PreparedGeometry]) {
+      return null // A MasonGeometry's cached copy of its geometry, which can't be written (see SurfGeometry.readObject)
+    }
+    val i = index.get(obj)
+    if (i != null) {
+      return EnvironmentRef(i)
+    }
+    val name = CheckpointOutputStream.moduleName(obj)
+    if (name != null) ModuleRef(name) else obj
+  }
+
+}
+
+private[main] object CheckpointOutputStream {
+
+  /** The position of each object in the environment. (Worth keeping if lots of streams will be written.) */
+  def index(environment: Array[AnyRef]): util.IdentityHashMap[AnyRef, Integer] = {
+    val index = new util.IdentityHashMap[AnyRef, Integer](environment.length * 2)
+    for (i <- environment.indices) {
+      index.put(environment(i), i)
+    }
+    index
+  }
+
+  /** The name of the class of a singleton object, or null if the object isn't one */
+  def moduleName(obj: AnyRef): String = {
+    val cls = obj.getClass
+    if (!cls.getName.endsWith("$")) { // (Quick check first; this is called for every object)
+      return null
+    }
+    try {
+      if (cls.getField("MODULE$").get(null) eq obj) cls.getName else null
+    }
+    catch {
+      case _: NoSuchFieldException => null
+    }
+  }
+
+}
+
+/**
+  * Reads objects that were written by a [[surf.abm.main.CheckpointOutputStream]].
+  *
+  * @param environment The objects that references to the environment refer to
+  */
+private[main] class CheckpointInputStream(in: InputStream, environment: Array[AnyRef])
+  extends ObjectInputStream(in) {
+
+  enableResolveObject(true)
+
+  override def resolveObject(obj: AnyRef): AnyRef = obj match {
+    case EnvironmentRef(i) => environment(i)
+    case ModuleRef(name) => CheckpointInputStream.module(name)
+    case _ => obj
+  }
+
+}
+
+private[main] object CheckpointInputStream {
+
+  /** Find a singleton object from the name of its class */
+  def module(name: String): AnyRef = Class.forName(name).getField("MODULE$").get(null)
+
+}
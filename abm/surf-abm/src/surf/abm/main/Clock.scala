@@ -15,9 +15,17 @@ import sim.engine.{SimState, Steppable}
   */
 object Clock extends Steppable {
 
-  private var clock : Clock = null // Clock is not defined until it has been created with create()
+  // Each run of the model has its own clock (see Replication)
+  @SerialVersionUID(1L)
+  private[main] class RunState extends Serializable {
+    var clock : Clock = null // Clock is not defined until it has been created with create()
+    var state : SimState = null // This will point to the sim state (useful)
+  }
+  private val newRunState = () => new RunState
+  private def run: RunState = Replication.current.state(this, newRunState)
 
-  private var state : SimState = null // This will point to the sim state (useful)
+  /** The clock of the given run (the model keeps it, see [[surf.abm.main.SurfABM.replication]]) */
+  private[main] def runOf(replication: Replication): RunState = replication.state(this, newRunState)
 
   /**  The number of simulated minutes that elapse after each tick/iteration.  */
   val minsPerTick: Int = SurfABM.conf.getInt(SurfABM.ModelConfig+".MinsPerTick")
@@ -36,13 +44,14 @@ object Clock extends Steppable {
                startTime: LocalDateTime = LocalDateTime.of(2011, 1, 1, 0, 0) ) {
 
     LOG.info("Attempting to initialise simulation clock")
-    if (this.clock != null) {
+    val run = this.run
+    if (run.clock != null) {
       throw new Exception("Cannot create more than one Clock instance")
     }
-    this.clock = new Clock(startTime)
-    this.state = state
+    run.clock = new Clock(startTime)
+    run.state = state
     state.schedule.scheduleRepeating(this, SurfABM.CLOCK_STEP, 1)
-    LOG.info(s"Simulation clock initialised to ${this.clock.currentTime}")
+    LOG.info(s"Simulation clock initialised to ${run.clock.currentTime}")
   }
 
   /**
@@ -51,8 +60,7 @@ object Clock extends Steppable {
     * @return The current time object. It is immutable, so it doesn't matter if others manipulate it.
     */
   def getTime () = {
-    check()
-    clock.currentTime
+    check().clock.currentTime
   }
 
   /**
@@ -61,8 +69,7 @@ object Clock extends Steppable {
     * @return The number of iterations from the state object
     */
   def getIterations() : Long = {
-    check()
-    return this.state.schedule.getSteps
+    return check().state.schedule.getSteps
   }
 
   /**
@@ -89,13 +96,26 @@ object Clock extends Steppable {
     * Convenience to find the current decimal hour
     */
   def currentHour() : Double = {
-    this.getTime().getHour.toDouble + (this.clock.currentTime.getMinute.toDouble / 60d)
+    val time = this.getTime()
+    time.getHour.toDouble + (time.getMinute.toDouble / 60d)
+  }
+
+  /**
+    * The current decimal hour in the given model. This is quicker than currentHour() (the model already knows which
+    * run it is part of), so it is the one to use in code that runs for every agent in every iteration.
+    */
+  def currentHour(state: SurfABM) : Double = {
+    val time = check(state.clockRun).clock.currentTime
+    time.getHour.toDouble + (time.getMinute.toDouble / 60d)
   }
 
-  private def check() = {
-    if (this.clock == null) {
+  private def check(): RunState = check(this.run)
+
+  private def check(run: RunState): RunState = {
+    if (run.clock == null) {
       throw new Exception("There is no clock to get the time from. Have you called create() ?")
     }
+    run
   }
 
 
@@ -104,14 +124,16 @@ object Clock extends Steppable {
     * It should not be called by the programmer, only by the Mason scheduler.
     */
   override def step(state: SimState): Unit = {
-    assert(this.clock!=null)
+    val clock = this.run.clock
+    assert(clock!=null)
     // Increment the clock by x minutes. It is immutable, so need to create a copy
-    this.clock.currentTime = this.clock.currentTime.plusMinutes(this.minsPerTick)
+    clock.currentTime = clock.currentTime.plusMinutes(this.minsPerTick)
     //LOG.debug(s"Stepping clock. Time: ${this.clock.currentTime.toString}")
   }
 
   // underlying clock object
-  private class Clock (val startTime: LocalDateTime = LocalDateTime.of(2011, 1, 1, 0, 0) ) {
+  @SerialVersionUID(1L)
+  private[main] class Clock (val startTime: LocalDateTime = LocalDateTime.of(2011, 1, 1, 0, 0) ) extends Serializable {
 
     var currentTime:LocalDateTime = startTime // Current time is initially the start time.
 
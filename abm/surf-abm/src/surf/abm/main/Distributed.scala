@@ -0,0 +1,439 @@
+package surf.abm.main
+
+import java.io._
+import java.lang.management.ManagementFactory
+import java.net.{InetAddress, ServerSocket, Socket, URLClassLoader}
+import java.util
+
+import ec.util.MersenneTwisterFast
+import org.apache.log4j.Logger
+import sim.engine.{ParallelSequence, SimState, Steppable}
+import sim.util.geo.MasonGeometry
+import surf.abm.agents.Agent
+import surf.abm.environment.{Building, NetworkRegions}
+import surf.abm.main.BatchRunner.RunSummary
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+import scala.collection.mutable.ArrayBuffer
+
+/**
+  * Runs one model over several processes, each of which simulates the agents in one region of the area (see
+  * [[surf.abm.environment.NetworkRegions]]), so that populations that are too big for one JVM can be simulated.
+  *
+  * A coordinator starts a worker process for each region (or waits for workers that have been started by hand, e.g.
+  * on other machines) and they talk to it over sockets. Every worker reads the whole environment and creates the
+  * model with the same seed, so its agent loader goes through the same agents as every other worker, but it only
+  * creates the ones whose homes are in its region (see [[surf.abm.main.AgentScheduler.newAgent()]]). So each worker
+  * only ever holds its own agents (and the environment). After each iteration, each worker sends the agents that
+  * have moved into another region (written in the same way as a [[surf.abm.main.Checkpoint]], so the buildings and
+  * roads that they refer to aren't copied) and its camera counts to the coordinator. Once all of the workers have finished the
+  * iteration, the coordinator gives each one the agents that have arrived in its region, and they carry on.
+  *
+  * Each worker writes its usual output files to its own directory (<code>region-N</code>) in the output directory.
+  * At the end, the coordinator writes a summary of each region, and of the whole model, as the
+  * [[surf.abm.main.BatchRunner]] does.
+  *
+  * Agents that are in different regions can't see each other, and agents get different random numbers in each
+  * region, so a distributed run won't give exactly the same results as a run in one process.
+  *
+  * Usage:
+  * {{{
+  *   surf.abm.main.Distributed run <regions> <iterations> [seed] [output directory]
+  *   surf.abm.main.Distributed coordinate <regions> <iterations> <port> [seed] [output directory]
+  *   surf.abm.main.Distributed worker <host> <port>
+  * }}}
+  * <code>run</code> starts a worker JVM for each region on this machine (with the same JVM options and classpath).
+  * <code>coordinate</code> waits on the given port for workers that are started separately with <code>worker</code>.
+  */
+object Distributed {
+
+  private val LOG: Logger = Logger.getLogger(this.getClass)
+
+  /* The messages that the coordinator and workers send each other */
+
+  /** Tells a worker which region to simulate */
+  @SerialVersionUID(1L)
+  private[main] case class Setup(region: Int, regions: Int, seed: Long, iterations: Long, outputDirectory: File)
+
+  /** Sent by a worker after each iteration: the agents leaving its region (by destination region), and the total
+    * number of times that each camera (in the order of [[surf.abm.main.CameraRecorder.cameraList]]) has been passed */
+  @SerialVersionUID(1L)
+  private[main] case class Iterated(emigrants: Map[Int, Array[Byte]], cameraTotals: Array[Long], agents: Int)
+
+  /** Sent to a worker once every worker has finished an iteration: the agents that are arriving in its region */
+  @SerialVersionUID(1L)
+  private[main] case class Arrivals(immigrants: Seq[Array[Byte]])
+
+  /** Sent by a worker when it has finished */
+  @SerialVersionUID(1L)
+  private[main] case class Finished(summary: RunSummary)
+
+  /** A connection to a worker (or, for a worker, to the coordinator) */
+  private class Connection(socket: Socket) {
+    private val out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream, 1 << 16))
+    out.flush() // (Writes the stream header, which the other end waits for)
+    private val in = new ObjectInputStream(new BufferedInputStream(socket.getInputStream, 1 << 16))
+
+    def send(message: AnyRef): Unit = {
+      out.writeObject(message)
+      out.reset() // (Otherwise the stream keeps a reference to everything that has been sent)
+      out.flush()
+    }
+
+    def receive[T](): T = in.readObject().asInstanceOf[T]
+
+    def close(): Unit = socket.close()
+  }
+
+  /**
+    * Coordinate a distributed run.
+    *
+    * @param regions The number of regions (and workers)
+    * @param iterations How many iterations to run for
+    * @param seed The seed for all of the workers' models
+    * @param outputDirectory Each worker writes to a directory in here
+    * @param server Where the workers connect to
+    * @param launch Whether to start the workers (on this machine) rather than wait for them to be started
+    * @return A summary of each region
+    */
+  def coordinate(regions: Int, iterations: Long, seed: Long, outputDirectory: File, server: ServerSocket,
+                 launch: Boolean): List[RunSummary] = {
+    val processes = if (launch) (0 until regions).map(_ => startWorker(server.getLocalPort)) else Seq()
+    LOG.info(s"Waiting for $regions workers to connect to port ${server.getLocalPort}")
+    val workers = for (region <- 0 until regions) yield {
+      val w = new Connection(server.accept())
+      w.send(Setup(region, regions, seed, iterations, outputDirectory))
+      w
+    }
+    LOG.info(s"All $regions workers have connected. Starting $iterations iterations")
+    try {
+      val cameraTotals = new Array[Array[Long]](regions)
+      var migrations = 0L
+      for (iteration <- 1L to iterations) {
+        // Wait for every worker to finish the iteration, then send the agents on to their new regions
+        val arrivals = Array.fill(regions)(ArrayBuffer[Array[Byte]]())
+        var agents = 0
+        for (region <- 0 until regions) {
+          val done = workers(region).receive[Iterated]()
+          for ((to, emigrants) <- done.emigrants) {
+            arrivals(to) += emigrants
+          }
+          cameraTotals(region) = done.cameraTotals
+          agents += done.agents
+        }
+        for (region <- 0 until regions) {
+          migrations += arrivals(region).size
+          workers(region).send(Arrivals(arrivals(region)))
+        }
+        if (iteration % 100 == 0) {
+          LOG.info(s"Iteration $iteration: $agents agents, ${cameraTotals.map(_.sum).sum} camera counts")
+        }
+      }
+      val summaries = workers.map(_.receive[Finished]().summary).toList
+      LOG.info(s"Finished. Groups of agents moved between regions $migrations times")
+      processes.foreach(_.waitFor())
+      summaries
+    }
+    finally {
+      workers.foreach(_.close())
+    }
+  }
+
+  /**
+    * Start a worker JVM on this machine, with the same JVM options and classpath as this one.
+    */
+  private def startWorker(port: Int): Process = {
+    val java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath
+    // (The scala runner puts the classpath in a class loader rather than in java.class.path)
+    val classPath = (getClass.getClassLoader match {
+      case l: URLClassLoader => l.getURLs.toSeq.map(u => new File(u.toURI).getPath)
+      case _ => Seq()
+    }) :+ System.getProperty("java.class.path")
+    val jvmOptions = ManagementFactory.getRuntimeMXBean.getInputArguments.asScala.filterNot(_.startsWith("-agentlib"))
+    val command = Seq(java) ++ jvmOptions ++ Seq("-cp", classPath.filter(_.nonEmpty).mkString(File.pathSeparator),
+      getClass.getName.stripSuffix("$"), "worker", InetAddress.getLoopbackAddress.getHostAddress, port.toString)
+    new ProcessBuilder(command.asJava).inheritIO().start()
+  }
+
+  /**
+    * Be a worker: connect to the coordinator, find out which region to simulate and then simulate it.
+    */
+  def work(host: String, port: Int): Unit = {
+    val coordinator = new Connection(new Socket(host, port))
+    try {
+      val setup = coordinator.receive[Setup]()
+      val replication = new Replication(s"region-${setup.region}",
+        Some(new File(setup.outputDirectory, s"region-${setup.region}")))
+      replication.run {
+        val startTime = System.currentTimeMillis()
+        val regions = NetworkRegions.partition(SurfABM.compactNetwork, setup.regions)
+        LOG.info(s"$replication has ${regions.size(setup.region)} of the ${SurfABM.compactNetwork.getNumNodes} " +
+          s"road nodes (${regions.getNumCutEdges} roads cross between regions)")
+        val model = new SurfABM(setup.seed)
+        val agents = new RegionAgents(regions, setup.region, setup.seed)
+        AgentScheduler.distribute(agents)
+        model.start()
+        for (_ <- 1L to setup.iterations) {
+          model.schedule.step(model)
+          val counts = CameraRecorder.counts
+          val cameraTotals = Array.tabulate(CameraRecorder.cameraList.size)(row =>
+            (0 until counts.getNumColumns).map(counts.get(row, _)).sum)
+          coordinator.send(Iterated(agents.emigrate(), cameraTotals, agents.agents.size))
+          coordinator.receive[Arrivals]().immigrants.foreach(agents.immigrate)
+        }
+        model.finish()
+        coordinator.send(Finished(BatchRunner.summarise(model, replication, startTime)))
+      }
+    }
+    finally {
+      coordinator.close()
+    }
+  }
+
+  def main(args: Array[String]): Unit = {
+    try {
+      args.headOption match {
+        case Some(mode @ ("run" | "coordinate")) if args.length >= (if (mode == "run") 3 else 4) => {
+          val regions = args(1).toInt
+          val iterations = args(2).toLong
+          val rest = if (mode == "run") args.drop(3) else args.drop(4)
+          val port = if (mode == "run") 0 else args(3).toInt
+          val seed = if (rest.length > 0) rest(0).toLong else System.currentTimeMillis()
+          val outputDirectory = if (rest.length > 1) new File(rest(1))
+            else new File("./results/out/" + SurfABM.ModelConfig + "/distributed-" + System.currentTimeMillis() + "/")
+          if (!outputDirectory.exists() && !outputDirectory.mkdirs()) {
+            throw new Exception(s"Could not create the output directory $outputDirectory")
+          }
+          val server = new ServerSocket(port, regions, if (mode == "run") InetAddress.getLoopbackAddress else null)
+          val summaries = try {
+            coordinate(regions, iterations, seed, outputDirectory, server, mode == "run")
+          }
+          finally {
+            server.close()
+          }
+          // Add up the regions to summarise the whole model
+          val total = RunSummary("total", seed, iterations, summaries.map(_.seconds).max, summaries.map(_.agents).sum,
+            outputDirectory, summaries.flatMap(_.cameraTotals).groupBy(_._1).mapValues(_.map(_._2).sum).toMap)
+          BatchRunner.writeSummaries(summaries :+ total, outputDirectory)
+          LOG.info(s"Results are in $outputDirectory")
+        }
+        case Some("worker") if args.length == 3 => work(args(1), args(2).toInt)
+        case _ => {
+          System.err.println("Usage: surf.abm.main.Distributed run <regions> <iterations> [seed] [output directory]\n" +
+            "       surf.abm.main.Distributed coordinate <regions> <iterations> <port> [seed] [output directory]\n" +
+            "       surf.abm.main.Distributed worker <host> <port>")
+          System.exit(1)
+        }
+      }
+    }
+    catch {
+      case e: Exception => {
+        LOG.error("Exception thrown while running the distributed model.", e)
+        throw e
+      }
+    }
+    System.exit(0) // (MASON's threads might otherwise keep the JVM alive)
+  }
+
+}
+
+/**
+  * The agents in one region of a distributed model (see [[surf.abm.main.Distributed]]). They are stepped one after
+  * the other, with the region's random number generator, or, if ParallelAgents is set, in AgentPartitions groups
+  * that are stepped at the same time and have their own random number generators (see
+  * [[surf.abm.main.AgentScheduler]]).
+  *
+  * @param regions The regions that the area is split into
+  * @param region The region that these agents are in
+  * @param seed The model's seed (the region's random number generators are seeded with it and the region)
+  */
+class RegionAgents(val regions: NetworkRegions, val region: Int, seed: Long) extends Steppable {
+
+  /** The random number generator that the agents use (unless they are stepped in parallel) */
+  val random = new MersenneTwisterFast(Array((seed >>> 32).toInt, seed.toInt, region))
+
+  val agents = ArrayBuffer[Agent]()
+
+  // The groups that the agents are split into, if they are stepped in parallel (otherwise null)
+  private val partitions: Array[AgentPartition] =
+    if (!AgentScheduler.isParallel) null
+    else Array.tabulate(AgentScheduler.numPartitions)(i => new AgentPartition(
+      new MersenneTwisterFast(Array((seed >>> 32).toInt, seed.toInt, region, i)), Replication.current))
+  private var sequence: ParallelSequence = null
+
+  // The agents' geometries in SurfABM.agentGeoms
+  private val geoms = new util.IdentityHashMap[Agent, MasonGeometry]()
+
+  // The model (set in start()), and the environment plus the model (which the agents refer to) for writing and
+  // reading agents that move region
+  private var model: SurfABM = null
+  private var environment: Array[AnyRef] = null
+  private var environmentIndex: util.IdentityHashMap[AnyRef, Integer] = null
+
+  /** The region that an agent is in at the moment */
+  def regionOf(a: Agent): Int = {
+    val c = a.location().getGeometry.getCoordinate
+    regions.regionAt(c.x, c.y)
+  }
+
+  /** Whether an agent whose home is the given building would start in this region */
+  def contains(home: SurfGeometry[Building]): Boolean = {
+    val c = home.getGeometry.getCentroid.getCoordinate
+    regions.regionAt(c.x, c.y) == region
+  }
+
+  /**
+    * Keep an agent that has just been created if it is in this region. (Agents created with
+    * [[surf.abm.main.AgentScheduler.newAgent()]] always are. Any others are released, and their geometries are removed
+    * in start().)
+    */
+  def offer(a: Agent): Unit = {
+    if (regionOf(a) == region) {
+      this.add(a)
+    }
+    else {
+      a.release()
+    }
+  }
+
+  private def add(a: Agent): Unit = {
+    agents += a
+    if (partitions == null) {
+      a.random = random
+    }
+    else {
+      // (As in AgentScheduler, an agent is always put in the same group)
+      val p = partitions(a.id() % partitions.length)
+      p.agents += a
+      a.random = p.random
+    }
+  }
+
+  /**
+    * Get rid of the geometries of any agents that weren't kept, and start the threads if the agents are stepped in
+    * parallel. Called once all of the agents have been created.
+    */
+  def start(state: SurfABM): Unit = {
+    val kept = util.Collections.newSetFromMap(new util.IdentityHashMap[Agent, java.lang.Boolean]())
+    agents.foreach(kept.add)
+    val all = state.agentGeoms.getGeometries.toArray
+    state.agentGeoms.clear() // (Much quicker than removing them one at a time)
+    for (g <- all) {
+      g.asInstanceOf[SurfGeometry[_]].theObject match {
+        case a: Agent if kept.contains(a) => {
+          state.agentGeoms.addGeometry(g.asInstanceOf[MasonGeometry])
+          geoms.put(a, g.asInstanceOf[MasonGeometry])
+        }
+        case _: Agent =>
+        case _ => state.agentGeoms.addGeometry(g.asInstanceOf[MasonGeometry])
+      }
+    }
+    state.agentGeoms.setMBR(SurfABM.mbr)
+    model = state
+    environment = Checkpoint.environment :+ state
+    environmentIndex = CheckpointOutputStream.index(environment)
+    if (partitions != null) {
+      // Every group is stepped, even if it is empty now, because agents might move into the region later
+      sequence = new ParallelSequence(partitions.toArray[Steppable],
+        if (AgentScheduler.threads < 0) ParallelSequence.CPUS else AgentScheduler.threads)
+    }
+  }
+
+  override def step(state: SimState): Unit = {
+    if (sequence != null) {
+      sequence.step(state)
+      return
+    }
+    val steps = state.schedule.getSteps
+    var i = 0
+    while (i < agents.size) {
+      val a = agents(i)
+      if (a.nextWake <= steps) { // (Always true unless agents are event-driven)
+        a.step(state)
+      }
+      i += 1
+    }
+  }
+
+  /** Stop the threads that step the agents (if there are any) */
+  def finish(): Unit = {
+    if (sequence != null) {
+      sequence.cleanup()
+      sequence = null
+    }
+  }
+
+  /**
+    * Remove the agents that have left the region.
+    *
+    * @return The agents, written as bytes, for each region that they have moved to
+    */
+  def emigrate(): Map[Int, Array[Byte]] = {
+    val leaving = mutable.HashMap[Int, ArrayBuffer[Agent]]()
+    RegionAgents.removeIf(agents, a => {
+      val r = regionOf(a)
+      if (r != region) {
+        leaving.getOrElseUpdate(r, ArrayBuffer[Agent]()) += a
+        model.agentGeoms.removeGeometry(geoms.remove(a))
+      }
+      r != region
+    })
+    if (partitions != null && leaving.nonEmpty) {
+      val left = util.Collections.newSetFromMap(new util.IdentityHashMap[Agent, java.lang.Boolean]())
+      leaving.values.foreach(_.foreach(left.add))
+      partitions.foreach(p => RegionAgents.removeIf(p.agents, left.contains))
+    }
+    leaving.map { case (r, as) =>
+      val bytes = RegionAgents.write(as.toArray, environmentIndex)
+      as.foreach(a => a.release()) // (Only once they have been written)
+      r -> bytes
+    }.toMap
+  }
+
+  /** Add agents that have moved into the region (written by emigrate() in another process) */
+  def immigrate(bytes: Array[Byte]): Unit = {
+    val arriving = RegionAgents.read(bytes, environment)
+    for (a <- arriving) {
+      this.add(a)
+      val g = SurfGeometry[Agent](a.location(), a)
+      geoms.put(a, g)
+      model.agentGeoms.addGeometry(g)
+    }
+  }
+
+}
+
+object RegionAgents {
+
+  /**
+    * Write agents that are moving to another region. Anything in the environment (see
+    * [[surf.abm.main.CheckpointOutputStream]]) is written as a reference, and the agents' activities only write the
+    * numbers in their own slots of the [[surf.abm.agents.abbf.ActivityEngine]].
+    */
+  private[main] def write(agents: Array[Agent], environmentIndex: util.IdentityHashMap[AnyRef, Integer]): Array[Byte] = {
+    val bytes = new ByteArrayOutputStream()
+    val out = new CheckpointOutputStream(bytes, environmentIndex)
+    try out.writeObject(agents) finally out.close()
+    bytes.toByteArray
+  }
+
+  /** Remove the agents that match, keeping the others in order */
+  private def removeIf(agents: ArrayBuffer[Agent], remove: Agent => Boolean): Unit = {
+    var kept = 0
+    for (a <- agents) {
+      if (!remove(a)) {
+        agents(kept) = a
+        kept += 1
+      }
+    }
+    agents.reduceToSize(kept)
+  }
+
+  /** Read agents that have been written by write(), into the current run */
+  private[main] def read(bytes: Array[Byte], environment: Array[AnyRef]): Array[Agent] = {
+    val in = new CheckpointInputStream(new ByteArrayInputStream(bytes), environment)
+    try in.readObject().asInstanceOf[Array[Agent]] finally in.close()
+  }
+
+}
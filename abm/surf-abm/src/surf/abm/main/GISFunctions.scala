@@ -1,11 +1,17 @@
 package surf.abm.main
 
+import com.typesafe.config.ConfigException
+import ec.util.MersenneTwisterFast
 import org.apache.log4j.Logger
 import sim.engine.SimState
 import sim.field.geo.GeomVectorField
 import sim.util.Bag
+import sim.util.geo.MasonGeometry
+import surf.abm.environment.{Building, GeomPlanarGraphSurf, Junction, NetworkCandidates, StaticGeomVectorField}
 import surf.abm.exceptions.RoutingException
-import surf.abm.surfutil.Util
+import surf.abm.surfutil.{Metrics, Util}
+
+import scala.collection.JavaConverters._
 
 
 /**
@@ -15,12 +21,46 @@ object GISFunctions {
 
   private val LOG: Logger = Logger.getLogger(GISFunctions.getClass)
 
-  private var MIN_SEARCH_RADIUS_DENOMINATOR: Double = 1000000.0
-
-  private var initRadius= true // The object is currently trying to find the most suitable value for the search radius
-  private var numCalls : Int = 0 // The number of times the findNearestObject function has been called
   private val NUM_CALLS_TO_INIT = 5000 // The number of times the function is called before initialisation finishes
-  private val distanceList = scala.collection.mutable.ArrayBuffer.empty[Double] // An list to store all the distances during initialisation
+
+  // Each run of the model tunes its own search radius (see findNearestObject), which is saved in the run's
+  // checkpoints along with its other states (see Replication and Checkpoint)
+  @SerialVersionUID(1L)
+  private class RunState extends Serializable {
+    var MIN_SEARCH_RADIUS_DENOMINATOR: Double = 1000000.0
+    var initRadius = true // The run is currently trying to find the most suitable value for the search radius
+    var numCalls : Int = 0 // The number of times the findNearestObject function has been called
+    val distanceList = scala.collection.mutable.ArrayBuffer.empty[Double] // An list to store all the distances during initialisation
+  }
+  private val newRunState = () => new RunState
+  private def run: RunState = Replication.current.state(this, newRunState)
+
+  // How long it takes to find nearby objects, and how many times radius searches have to increase the radius (see Metrics)
+  private val FIND_NEAREST = Metrics.timer("gis.findNearestObject")
+  private val RADIUS_EXPANSIONS = Metrics.histogram("gis.findNearestObject.expansions")
+
+  /** When choosing a random nearby object (e.g. for a Flexible Activity), the number of nearest objects to choose
+    * from. Set by the NearbyCandidates configuration parameter. */
+  lazy val NEARBY_CANDIDATES: Int = try {
+    SurfABM.conf.getInt(SurfABM.ModelConfig + ".NearbyCandidates")
+  }
+  catch {
+    case _: ConfigException.Missing => 10
+  }
+
+  /** Whether flexible activities choose from the nearest places along the roads rather than as the crow flies (see
+    * findNearbyDestination). Set by the NetworkCandidates configuration parameter. */
+  lazy val NETWORK_CANDIDATES: Boolean = try {
+    SurfABM.conf.getBoolean(SurfABM.ModelConfig + ".NetworkCandidates")
+  }
+  catch {
+    case _: ConfigException.Missing => false
+  }
+
+  // The nearest places along the roads to each node, for each layer that has been used with findNearbyDestination
+  // (along with the layer's objects, which the candidates refer to by index)
+  private val networkCandidates =
+    new java.util.IdentityHashMap[GeomVectorField, (NetworkCandidates, Array[SurfGeometry[_]])]()
 
   /**
     * Find the nearest object to the given input coordinate. It is used quite a lot to do agent routing.
@@ -35,18 +75,61 @@ object GISFunctions {
     *
     * A randomise parameter has been added to pick a random object within the search radius rather than the actual most
     * nearby one. This parameter can be set to True to choose a location for flexible activities.
+    *
+    * If the layer is a [[surf.abm.environment.StaticGeomVectorField]] with a nearest-neighbour index then none of the
+    * above is necessary: the index finds the nearest object directly, and randomise chooses one of the
+    * NEARBY_CANDIDATES nearest objects. Only layers without an index (e.g. ones whose objects move) use the radius
+    * search. Each run tunes its own radius, so only one of a run's threads can do a radius search at a time.
+    *
+    * @param random The random number generator to use if randomise is true. If null, use the state's generator.
+    *               Agents that might be stepped in parallel should pass their own ([[surf.abm.agents.Agent.random]]).
     */
-  def findNearestObject[T](centre: SurfGeometry[_], geom: GeomVectorField, randomise: Boolean = false, state:SimState = null) : SurfGeometry[T] = {
+  def findNearestObject[T](centre: SurfGeometry[_], geom: GeomVectorField, randomise: Boolean = false, state:SimState = null,
+                           random: MersenneTwisterFast = null) : SurfGeometry[T] = {
+
+    val rnd = if (random != null) random else if (state != null) state.random else null
+
+    val t = FIND_NEAREST.start()
+    try {
+      // If the layer has a nearest-neighbour index then use that. Otherwise fall back to searching within a radius.
+      geom match {
+        case s: StaticGeomVectorField if s.hasNearestNeighbourIndex => {
+          val closest =
+            if (randomise) s.randomWithinKNearest(centre, GISFunctions.NEARBY_CANDIDATES, rnd) // For Flexible Activities
+            else s.nearest(centre)
+          if (closest == null) {
+            throw new RoutingException("Could not find any objects near to " + centre.toString)
+          }
+          closest.asInstanceOf[SurfGeometry[T]]
+        }
+        case _ => _findNearestObjectWithinRadius[T](centre, geom, randomise, rnd)
+      }
+    }
+    finally {
+      FIND_NEAREST.stop(t)
+    }
+  } // findNearestObject
+
+  /**
+    * Find the nearest object by searching within a gradually increasing radius (see findNearestObject). This is
+    * synchronized (on the run's state) because it tunes the run's radius as it goes.
+    */
+  private def _findNearestObjectWithinRadius[T](centre: SurfGeometry[_], geom: GeomVectorField, randomise: Boolean,
+                                                random: MersenneTwisterFast) : SurfGeometry[T] = {
+    val tuning = run
+    tuning.synchronized {
+    import tuning._
 
     numCalls+=1 // Increment the number of times this function has been called
 
-    var radius: Double = SurfABM.mbr.getArea / GISFunctions.MIN_SEARCH_RADIUS_DENOMINATOR
+    var radius: Double = SurfABM.mbr.getArea / MIN_SEARCH_RADIUS_DENOMINATOR
     var closest: SurfGeometry[T] = null // The closest object
     var minDist = Double.MaxValue // The distance to the closest object
 
     // Find the nearest object, increasing the search radius if necessary
 
-    var currentDenominator = GISFunctions.MIN_SEARCH_RADIUS_DENOMINATOR // Necessary to memorise the denominator as we loop
+    var currentDenominator = MIN_SEARCH_RADIUS_DENOMINATOR // Necessary to memorise the denominator as we loop
+    var expansions = 0 // The number of times that the radius had to be increased
 
     //while (radius < SurfABM.mbr.getArea) {
     while (closest == null) { // Gradually increase the radius until the closest object has been found
@@ -56,6 +139,7 @@ object GISFunctions {
 
         if (closeObjects.isEmpty) { // Could not find an object, increase the radius
 
+          expansions += 1
           val oldRadius = SurfABM.mbr.getArea / currentDenominator
           val oldDenominator = currentDenominator
 
@@ -67,9 +151,9 @@ object GISFunctions {
 
           // If we're initialising then make this change permanent (for the meantime anyway)
           if (initRadius) {
-            GISFunctions.MIN_SEARCH_RADIUS_DENOMINATOR = currentDenominator
+            MIN_SEARCH_RADIUS_DENOMINATOR = currentDenominator
             LOG.warn("Initialising radius. Increased from %s(%s) to %s(%s).".format(
-              oldRadius, oldDenominator, radius, GISFunctions.MIN_SEARCH_RADIUS_DENOMINATOR))
+              oldRadius, oldDenominator, radius, MIN_SEARCH_RADIUS_DENOMINATOR))
           }
           else {
             //LOG.warn("Increasing search radius from %s(%s) to %s(%s).\n\tThis is very inefficient if it happens regularly.".format(
@@ -80,7 +164,7 @@ object GISFunctions {
         else { // Have found some objects. Work out which is closest
 
           if (randomise) { // choose any of the nearby objects for Flexible Activities (and call it "closest" even though it's not necessarily the closest one)
-            val rnd = (state.random.nextDouble() * closeObjects.length).toInt
+            val rnd = (random.nextDouble() * closeObjects.length).toInt
             closest = closeObjects.apply(rnd) match {
               case x: SurfGeometry[T@unchecked] => x
               case _ => throw new ClassCastException
@@ -113,6 +197,8 @@ object GISFunctions {
 
     } // while searchRadius
 
+    RADIUS_EXPANSIONS.record(expansions)
+
     // At this point we should have the closest object
     if (closest==null) {
       throw new RoutingException("Could not find any objects near to " + centre.toString)
@@ -136,12 +222,12 @@ object GISFunctions {
         val finalRadius = median * 2
         val finalDenominator = SurfABM.mbr.getArea / finalRadius
 
-        GISFunctions.MIN_SEARCH_RADIUS_DENOMINATOR = finalDenominator
+        MIN_SEARCH_RADIUS_DENOMINATOR = finalDenominator
 
         initRadius = false
         LOG.info("Finished finding optimal radius: %s(%s)".format(
           finalRadius, // The final radius
-          GISFunctions.MIN_SEARCH_RADIUS_DENOMINATOR // The final denominator
+          MIN_SEARCH_RADIUS_DENOMINATOR // The final denominator
         ))
       }
     }
@@ -153,7 +239,90 @@ object GISFunctions {
     }
 
 
-    return closest
-  } // findNearestObject
+    closest
+    } // synchronized
+  } // _findNearestObjectWithinRadius
+
+  /**
+    * Find the k nearest objects to the centre. The layer must be a [[surf.abm.environment.StaticGeomVectorField]]
+    * whose nearest-neighbour index has been built.
+    *
+    * @return The objects, nearest first. There will be fewer than k if the layer doesn't have k objects.
+    */
+  def findKNearestObjects[T](centre: SurfGeometry[_], geom: StaticGeomVectorField, k: Int) : List[SurfGeometry[T]] = {
+    val result = new java.util.ArrayList[MasonGeometry](k)
+    geom.kNearest(centre, k, result)
+    result.asScala.map(_.asInstanceOf[SurfGeometry[T]]).toList
+  }
+
+  /**
+    * Choose an object at random from the k nearest objects to the centre. The layer must be a
+    * [[surf.abm.environment.StaticGeomVectorField]] whose nearest-neighbour index has been built.
+    */
+  def findRandomNearbyObject[T](centre: SurfGeometry[_], geom: StaticGeomVectorField, k: Int, random: MersenneTwisterFast) : SurfGeometry[T] = {
+    val o = geom.randomWithinKNearest(centre, k, random)
+    if (o == null) {
+      throw new RoutingException("Could not find any objects near to " + centre.toString)
+    }
+    o.asInstanceOf[SurfGeometry[T]]
+  }
+
+  /**
+    * Choose a place for a flexible activity. If the NetworkCandidates parameter is true then this is one of the
+    * NEARBY_CANDIDATES places that are closest along the roads to the network node nearest the centre (see
+    * [[surf.abm.environment.NetworkCandidates]]). These are worked out for every node the first time that a layer is
+    * used, so choosing one is then just a matter of picking from an array. Otherwise (or if no places can be reached
+    * from the node) this is the same as findNearestObject with randomise set to true.
+    */
+  def findNearbyDestination[T](centre: SurfGeometry[_], geom: GeomVectorField, state: SimState,
+                               random: MersenneTwisterFast) : SurfGeometry[T] = {
+    if (NETWORK_CANDIDATES) {
+      val (candidates, places) = _networkCandidates(geom)
+      val node = _nearestNode(centre)
+      val i = if (node == -1) -1 else candidates.random(node, if (random != null) random else state.random)
+      if (i != -1) {
+        return places(i).asInstanceOf[SurfGeometry[T]]
+      }
+    }
+    findNearestObject[T](centre, geom, true, state, random)
+  }
+
+  /** The candidates for a layer, working them out if this is the first time that the layer has been used */
+  private def _networkCandidates(geom: GeomVectorField): (NetworkCandidates, Array[SurfGeometry[_]]) =
+    networkCandidates.synchronized {
+      var c = networkCandidates.get(geom)
+      if (c == null) {
+        val places = geom.getGeometries.asScala.map(_.asInstanceOf[SurfGeometry[_]]).toArray
+        val graph = SurfABM.compactNetwork
+        val nodes = places.map(_nearestNode)
+        val distances = places.indices.map(i =>
+          if (nodes(i) == -1) 0.0
+          else {
+            val p = places(i).geometry.getCentroid
+            math.hypot(p.getX - graph.getX(nodes(i)), p.getY - graph.getY(nodes(i)))
+          }
+        ).toArray
+        val start = System.currentTimeMillis()
+        c = (NetworkCandidates.build(graph, NEARBY_CANDIDATES, nodes, distances), places)
+        LOG.info(s"Found the nearest ${NEARBY_CANDIDATES} of ${places.length} places along the roads to each node " +
+          s"in ${System.currentTimeMillis() - start}ms")
+        networkCandidates.put(geom, c)
+      }
+      c
+    }
+
+  /** The id of the network node nearest to an object (see [[surf.abm.environment.GeomPlanarGraphSurf.getNodeId()]]) */
+  private def _nearestNode(g: SurfGeometry[_]): Int = {
+    g.theObject match {
+      case b: Building =>
+        val n = SurfABM.buildingNode(b)
+        if (n != -1) {
+          return n
+        }
+      case _ =>
+    }
+    val junction = findNearestObject[Junction](g, SurfABM.junctions)
+    if (junction == null) -1 else GeomPlanarGraphSurf.getNodeId(junction.theObject.node)
+  }
 
 }
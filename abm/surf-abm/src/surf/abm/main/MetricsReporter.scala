@@ -0,0 +1,115 @@
+package surf.abm.main
+
+import com.typesafe.config.ConfigException
+import org.apache.log4j.Logger
+import sim.engine.{SimState, Steppable}
+import surf.abm.surfutil.Metrics
+
+/**
+  * Times each group of things that are scheduled at the same ordering in an iteration (the agents, updating the
+  * spatial index, the camera recorder, the outputter and the clock; see [[surf.abm.main.SurfABM]]) and regularly
+  * logs a summary of all the [[surf.abm.surfutil.Metrics]] (e.g. how long routing and finding nearby objects are
+  * taking). The metrics can also be watched while the model is running with a JMX client such as VisualVM.
+  *
+  * The groups are timed by markers that are scheduled just before each of them: a marker stops the timer for the
+  * group before it and starts the timer for the next one. The times are called <code>phase.AGENTS_STEP</code> etc.,
+  * and <code>phase.TICK</code> is the time for the whole iteration.
+  *
+  * Metrics are recorded unless <code>Metrics = false</code> in the model's configuration. The summary is logged
+  * every <code>MetricsLogHours</code> simulated hours (24 by default, or never if 0) and at the end of a run.
+  */
+object MetricsReporter extends Steppable {
+
+  private val LOG: Logger = Logger.getLogger(this.getClass)
+
+  /** Whether metrics are being recorded */
+  lazy val enabled: Boolean = try {
+    SurfABM.conf.getBoolean(SurfABM.ModelConfig + ".Metrics")
+  }
+  catch {
+    case _: ConfigException.Missing => true
+  }
+
+  /** How often (in simulated hours) to log the metrics */
+  lazy val logHours: Int = try {
+    SurfABM.conf.getInt(SurfABM.ModelConfig + ".MetricsLogHours")
+  }
+  catch {
+    case _: ConfigException.Missing => 24
+  }
+
+  /** The groups that are timed, and the ordering that each one is scheduled at */
+  val PHASES: Array[(String, Int)] = Array(
+    "AGENTS_STEP" -> SurfABM.AGENTS_STEP,
+    "UPDATE_SPATIAL_INDEX" -> SurfABM.UPDATE_SPATIAL_INDEX,
+    "CAMERA_RECORDER_STEP" -> SurfABM.CAMERA_RECORDER_STEP,
+    "OUTPUTTER_STEP" -> SurfABM.OUTPUTTER_STEP,
+    "CLOCK_STEP" -> SurfABM.CLOCK_STEP
+  )
+
+  private val phaseTimers: Array[Metrics.Timer] = PHASES.map { case (name, _) => Metrics.timer("phase." + name) }
+  private val tickTimer = Metrics.timer("phase.TICK")
+
+  // Each run of the model times its own phases (see Replication). The times are only meaningful in this JVM, so
+  // they aren't kept in checkpoints.
+  @SerialVersionUID(1L)
+  private class RunState extends Serializable {
+    @transient var phase: Int = -1 // The phase that is being timed (-1 if none)
+    @transient var phaseStarted: Long = 0L
+    @transient var tickStarted: Long = 0L
+  }
+  private val newRunState = () => new RunState
+  private def run: RunState = Replication.current.state(this, newRunState)
+
+  /**
+    * Marks the start of a phase (or the end of the last one, if <code>next</code> is -1).
+    */
+  @SerialVersionUID(1L)
+  private class PhaseMarker(next: Int) extends Steppable {
+    override def step(state: SimState): Unit = {
+      val run = MetricsReporter.run
+      if (run.phase >= 0) {
+        phaseTimers(run.phase).stop(run.phaseStarted)
+      }
+      if (next == 0) {
+        run.tickStarted = tickTimer.start()
+      }
+      else if (next < 0) {
+        tickTimer.stop(run.tickStarted)
+        run.tickStarted = 0L
+      }
+      run.phase = next
+      run.phaseStarted = if (next >= 0) phaseTimers(next).start() else 0L
+    }
+  }
+
+  /**
+    * Needs to be called when the model starts, after the clock has been created.
+    */
+  def create(state: SurfABM): Unit = {
+    Metrics.setEnabled(enabled)
+    if (!enabled) {
+      return
+    }
+    for (((_, ordering), i) <- PHASES.zipWithIndex) {
+      state.schedule.scheduleRepeating(new PhaseMarker(i), ordering - 1, 1)
+    }
+    state.schedule.scheduleRepeating(new PhaseMarker(-1), SurfABM.CLOCK_STEP + 1, 1)
+    if (logHours > 0) {
+      state.schedule.scheduleRepeating(this, SurfABM.CLOCK_STEP + 2, logHours * 60.0 / Clock.minsPerTick)
+    }
+  }
+
+  /** Log the metrics */
+  override def step(state: SimState): Unit = {
+    LOG.info(Metrics.summary())
+  }
+
+  /** Log the metrics at the end of a run */
+  def finish(): Unit = {
+    if (enabled) {
+      LOG.info(Metrics.summary())
+    }
+  }
+
+}
@@ -0,0 +1,83 @@
+package surf.abm.main
+
+import com.typesafe.config.ConfigException
+
+/**
+  * The ways in which rows can be chosen for an output file.
+  */
+object OutputMode extends Enumeration {
+  type OutputMode = Value
+  /** Write rows every 'Every' iterations */
+  val EVERY = Value("every")
+  /** Only write rows about agents whose activity has changed (checked every 'Every' iterations) */
+  val CHANGE = Value("change")
+  /** Don't write the file at all */
+  val OFF = Value("off")
+}
+
+/**
+  * How often an outputter should write to one of its files, and how much it should write. These are configured
+  * separately for each file in an 'Output' block in the model's configuration. E.g.:
+  *
+  * {{{
+  * Output {
+  *   agents { Mode = every, Every = 12 } # Write every hour (with 5 minute iterations)
+  *   agent-activities { Mode = change } # Only write when an agent changes activity
+  *   activity-counts { Mode = every, Every = 1, AggregateBy = oa } # Count the agents doing each activity in each OA
+  * }
+  * }}}
+  *
+  * Anything that isn't configured takes the default that the outputter gives.
+  *
+  * @param mode How to choose rows to write
+  * @param every Only write rows in iterations that are multiples of this
+  * @param aggregateBy For files that count agents rather than write about individual agents, what to count them by
+  *                    (it's up to the outputter what this can be)
+  */
+case class OutputOptions(mode: OutputMode.OutputMode, every: Int = 1, aggregateBy: String = "") {
+
+  if (every < 1) {
+    throw new Exception(s"Output must be written at least every iteration (not every $every iterations)")
+  }
+
+  /** Whether anything should be written in this iteration */
+  def sample(iteration: Long): Boolean = mode != OutputMode.OFF && iteration % every == 0
+
+  /**
+    * Whether a row should be written about an agent in this iteration
+    *
+    * @param changed Whether the agent's activity has changed (only checked in [[OutputMode.CHANGE]] mode)
+    */
+  def write(iteration: Long, changed: => Boolean): Boolean =
+    sample(iteration) && (mode == OutputMode.EVERY || changed)
+
+  override def toString: String =
+    s"$mode${if (every > 1) s" (every $every iterations)" else ""}${if (aggregateBy.nonEmpty) s" by $aggregateBy" else ""}"
+}
+
+object OutputOptions {
+
+  /**
+    * Read the options for a file from the model's configuration.
+    *
+    * @param file The name of the file (without an extension), e.g. 'agents'
+    * @param default The options to use for anything that isn't in the configuration
+    */
+  def apply(file: String, default: OutputOptions): OutputOptions = {
+    val path = SurfABM.ModelConfig + ".Output." + file
+    def get[T](key: String, value: String => T, d: T): T = try {
+      value(path + "." + key)
+    }
+    catch {
+      case _: ConfigException.Missing => d
+    }
+    val mode = get("Mode", p => SurfABM.conf.getString(p), default.mode.toString)
+    OutputOptions(
+      OutputMode.values.find(_.toString.equalsIgnoreCase(mode.trim)).getOrElse(
+        throw new Exception(s"Unrecognised output mode '$mode' for $file. Should be one of ${OutputMode.values.mkString(", ")}")),
+      get("Every", p => SurfABM.conf.getInt(p), default.every),
+      get("AggregateBy", p => SurfABM.conf.getString(p), default.aggregateBy)
+    )
+  }
+
+}
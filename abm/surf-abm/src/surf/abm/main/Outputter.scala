@@ -46,7 +46,13 @@ trait Outputter extends Steppable{
 
 object OutputFactory  {
 
-  private var _outputter : Outputter = null // Remember the outputter that we create
+  // Remember the outputter that we create (one for each run of the model, see Replication)
+  @SerialVersionUID(1L)
+  private class RunState extends Serializable {
+    var outputter : Outputter = null
+  }
+  private val newRunState = () => new RunState
+  private def run: RunState = Replication.current.state(this, newRunState)
 
 
   /**
@@ -58,7 +64,11 @@ object OutputFactory  {
     */
   def apply(state: SurfABM) : Outputter = {
 
-    if (_outputter == null) { // Make a new outputter, call its apply method to initialise and schedule its step method
+    val run = this.run
+    if (run.outputter == null && !Replication.current.writeOutput) {
+      run.outputter = NoOutputter // (Not scheduled, as it doesn't do anything)
+    }
+    if (run.outputter == null) { // Make a new outputter, call its apply method to initialise and schedule its step method
 
       // Find out which Outputter to use
       try {
@@ -70,15 +80,15 @@ object OutputFactory  {
 
         val applyMethod: Method = cls.getMethod("apply");
         val o = applyMethod.invoke(null).asInstanceOf[Outputter];
-        this._outputter = o
-        state.schedule.scheduleRepeating(this._outputter, SurfABM.OUTPUTTER_STEP, 1)
+        run.outputter = o
+        state.schedule.scheduleRepeating(run.outputter, SurfABM.OUTPUTTER_STEP, 1)
 
       }
       catch {
         case e: ConfigException.Missing => {
           // No outputter, create a default
-          this._outputter = DefaultOutputter()
-          state.schedule.scheduleRepeating(this._outputter, SurfABM.OUTPUTTER_STEP, 1)
+          run.outputter = DefaultOutputter()
+          state.schedule.scheduleRepeating(run.outputter, SurfABM.OUTPUTTER_STEP, 1)
         }
         case e: Exception => {
           // Some other exception with reflection
@@ -87,8 +97,21 @@ object OutputFactory  {
         }
       }
     }
-    return this._outputter
+    return run.outputter
+
+  }
 
+  /**
+    * Initialise the outputter again, without scheduling it again. Used when a run has been restored from a checkpoint
+    * (see [[surf.abm.main.Checkpoint]]): the outputter is already on the schedule but its files belong to the run
+    * that the checkpoint was made from.
+    */
+  def reopen(state: SurfABM): Outputter = {
+    val run = this.run
+    if (run.outputter == null) {
+      return this.apply(state)
+    }
+    run.outputter.apply()
   }
 
   private val LOG: Logger = Logger.getLogger(this.getClass);
@@ -133,3 +156,17 @@ object DefaultOutputter extends Outputter with Serializable {
 
   private val LOG: Logger = Logger.getLogger(this.getClass);
 }
+
+
+/**
+  * An Outputter that doesn't write anything. Used for runs whose replication doesn't write output.
+  */
+object NoOutputter extends Outputter with Serializable {
+
+  override def apply(): Outputter = this
+
+  override def step(state: SimState): Unit = {}
+
+  override def finish(): Unit = {}
+
+}
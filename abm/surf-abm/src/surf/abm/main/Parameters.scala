@@ -0,0 +1,57 @@
+package surf.abm.main
+
+import java.util.concurrent.ConcurrentHashMap
+
+import com.typesafe.config.ConfigException
+
+/**
+  * Numerical parameters of the model that can be different in each run, e.g. so that lots of runs with different
+  * parameters can be tried at once when calibrating the model (see [[surf.abm.main.Calibration]]). A parameter's value
+  * is the one that the run's [[surf.abm.main.Replication]] has been given, if there is one, otherwise the one in the
+  * model's configuration (e.g. <code>BaseMoveRate</code>), otherwise a default.
+  *
+  * Parameters are looked up when things are created (e.g. agents and their activities), not every iteration.
+  */
+object Parameters {
+
+  // The values in the configuration (or None if a parameter isn't configured), so that it is only read once
+  private val configured = new ConcurrentHashMap[String, Option[Double]]()
+
+  private def fromConfig(name: String): Option[Double] = {
+    val v = configured.get(name)
+    if (v != null) {
+      return v
+    }
+    val value = try {
+      Some(SurfABM.conf.getDouble(SurfABM.ModelConfig + "." + name))
+    }
+    catch {
+      case _: ConfigException.Missing => None
+    }
+    configured.put(name, value)
+    value
+  }
+
+  /** The value of a parameter that has to be in the configuration (unless the run has been given one) */
+  def apply(name: String): Double = apply(Replication.current, name)
+
+  /** The value of a parameter, or the default if neither the run nor the configuration has one */
+  def apply(name: String, default: Double): Double = apply(Replication.current, name, default)
+
+  /**
+    * The value of a parameter in the given run. Things that know which run they are part of (e.g. agents, through
+    * [[surf.abm.main.SurfABM.replication]]) should use this, rather than looking up the current run.
+    */
+  def apply(replication: Replication, name: String): Double = replication.parameters.get(name) match {
+    case Some(v) => v
+    case None => fromConfig(name).getOrElse(
+      throw new ConfigException.Missing(SurfABM.ModelConfig + "." + name))
+  }
+
+  /** The value of a parameter in the given run, or the default if neither the run nor the configuration has one */
+  def apply(replication: Replication, name: String, default: Double): Double = replication.parameters.get(name) match {
+    case Some(v) => v
+    case None => fromConfig(name).getOrElse(default)
+  }
+
+}
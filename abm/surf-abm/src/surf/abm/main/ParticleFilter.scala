@@ -0,0 +1,318 @@
+package surf.abm.main
+
+import java.io.{BufferedWriter, File, FileWriter}
+import java.time.LocalDate
+import java.time.temporal.ChronoUnit
+
+import ec.util.MersenneTwisterFast
+import org.apache.log4j.Logger
+
+import scala.io.Source
+
+/**
+  * Keeps a model in step with real footfall data by running an ensemble of copies of it (particles) and, every few
+  * simulated hours (a window), keeping the ones whose camera counts are closest to the counts that were observed at
+  * the same cameras.
+  *
+  * All of the particles run in the same JVM and share the environment, each as its own [[surf.abm.main.Replication]]
+  * (without writing any output), as for the [[surf.abm.main.BatchRunner]]. At the end of each window every particle
+  * is given a weight from how well its hourly counts for the window match the observations (the observation error is
+  * assumed to be Gaussian) and then the particles are resampled: particles with a high weight are copied and those
+  * with a low weight are dropped. A particle that survives once carries on as it is. One that survives more than once
+  * is written to memory with [[surf.abm.main.Checkpoint]] once, and each of the other copies is restored from the
+  * same bytes and given new random seeds so that they don't all do the same thing afterwards.
+  *
+  * The observations are in the same format as the model's <code>camera-counts.csv</code> output:
+  * <code>Camera,Date,Hour,Count</code>. Cameras that aren't in the model's CameraList are ignored.
+  *
+  * The output directory gets <code>assimilation.csv</code> (the observed count and the range of the particles'
+  * counts for each camera and hour, before they were resampled), <code>particles.csv</code> (the weight of each
+  * particle in each window) and the summaries of the particles that are left at the end (as for the BatchRunner).
+  *
+  * Usage:
+  * {{{
+  *   surf.abm.main.ParticleFilter <particles> <observations> <iterations> [window hours] [observation error]
+  *                                [threads] [output directory]
+  * }}}
+  * By default the window is 1 hour, the observation error (the standard deviation of an hourly count) is 10, there is
+  * one thread per CPU and the output directory is <code>./results/out/&lt;ModelConfig&gt;/filter-&lt;time&gt;/</code>.
+  */
+object ParticleFilter {
+
+  private val LOG: Logger = Logger.getLogger(this.getClass)
+
+  /** One copy of the model */
+  private class Particle(val name: String, val replication: Replication, val model: SurfABM)
+
+  /**
+    * Read observed camera counts.
+    *
+    * @return The count for each (camera row, hour column), as in the counts of [[surf.abm.main.CameraRecorder]]
+    */
+  def readObservations(file: File, cameras: Seq[Int], startDate: LocalDate, startHour: Int): Map[(Int, Int), Long] = {
+    val source = Source.fromFile(file)
+    try {
+      parseObservations(source.getLines(), cameras, startDate, startHour)
+    }
+    finally {
+      source.close()
+    }
+  }
+
+  /**
+    * Parse lines of observed camera counts (<code>Camera,Date,Hour,Count</code>, with or without a header). Hours
+    * before the model starts and cameras that aren't in the model are ignored. If there is more than one count for a
+    * camera and hour they are added together.
+    *
+    * @param cameras The IDs of the cameras in the model (the rows of the counts)
+    * @param startDate The date when the model starts (its first column of counts is this date and the start hour)
+    */
+  def parseObservations(lines: Iterator[String], cameras: Seq[Int], startDate: LocalDate,
+                        startHour: Int): Map[(Int, Int), Long] = {
+    val rows = cameras.zipWithIndex.toMap
+    val counts = scala.collection.mutable.Map[(Int, Int), Long]()
+    var ignored = 0
+    for (line <- lines.map(_.trim) if line.nonEmpty && !line.startsWith("Camera")) {
+      val fields = line.split(",").map(_.trim)
+      if (fields.length < 4) {
+        throw new Exception(s"Invalid observation: '$line'. Observations should be Camera,Date,Hour,Count")
+      }
+      val days = ChronoUnit.DAYS.between(startDate, LocalDate.parse(fields(1)))
+      val column = (days * 24 + fields(2).toInt - startHour).toInt
+      rows.get(fields(0).toInt) match {
+        case Some(row) if column >= 0 => {
+          val key = (row, column)
+          counts(key) = counts.getOrElse(key, 0L) + fields(3).toLong
+        }
+        case _ => ignored += 1
+      }
+    }
+    if (ignored > 0) {
+      LOG.warn(s"Ignored $ignored observations that were of cameras that aren't in the model, or before it starts")
+    }
+    counts.toMap
+  }
+
+  /**
+    * The log-likelihood of some observed counts given the counts in a particle (up to a constant, which is the same
+    * for all particles).
+    *
+    * @param sigma The standard deviation of the observation error
+    */
+  def logLikelihood(simulated: Seq[Long], observed: Seq[Long], sigma: Double): Double = {
+    var sum = 0d
+    for ((s, o) <- simulated.zip(observed)) {
+      val d = (s - o).toDouble
+      sum += d * d
+    }
+    -sum / (2 * sigma * sigma)
+  }
+
+  /**
+    * Turn log-likelihoods into weights that add up to one. (Subtracting the largest first means that they don't all
+    * become zero when the likelihoods are tiny.)
+    */
+  def weights(logLikelihoods: Array[Double]): Array[Double] = {
+    val max = logLikelihoods.max
+    val w = logLikelihoods.map(l => math.exp(l - max))
+    val total = w.sum
+    w.map(_ / total)
+  }
+
+  /** The effective number of particles: N if the weights are all the same, down to 1 if one particle has them all */
+  def effectiveSampleSize(weights: Array[Double]): Double = 1 / weights.map(w => w * w).sum
+
+  /**
+    * Systematic resampling: choose as many particles as there are weights, each one with probability equal to its
+    * weight, using one random number (so a particle with weight w is always chosen floor(wN) or ceil(wN) times).
+    *
+    * @param u A random number in [0, 1)
+    * @return The number of times that each particle was chosen
+    */
+  def resample(weights: Array[Double], u: Double): Array[Int] = {
+    val n = weights.length
+    val copies = new Array[Int](n)
+    var cumulative = weights(0)
+    var i = 0
+    for (k <- 0 until n) {
+      val position = (u + k) / n
+      while (position >= cumulative && i < n - 1) {
+        i += 1
+        cumulative += weights(i)
+      }
+      copies(i) += 1
+    }
+    copies
+  }
+
+  /**
+    * Run the filter.
+    *
+    * @param numParticles How many copies of the model to run
+    * @param observations The observed counts (see readObservations())
+    * @param iterations How many iterations to run the model for
+    * @param windowHours How many simulated hours to run the particles for between resampling them
+    * @param sigma The standard deviation of the observation error
+    * @param threads How many particles to run at once
+    * @param outputDirectory Where to write the results
+    * @param seed Seeds the random numbers for resampling, and the particles' seeds
+    * @return A summary of each particle that is left at the end
+    */
+  def run(numParticles: Int, observations: Map[(Int, Int), Long], iterations: Long, windowHours: Int, sigma: Double,
+          threads: Int, outputDirectory: File, seed: Long): List[BatchRunner.RunSummary] = {
+    val random = new MersenneTwisterFast(seed)
+    val startTime = System.currentTimeMillis()
+    var created = 0
+    def newReplication(): (String, Replication) = {
+      created += 1
+      val name = s"particle-$created"
+      (name, new Replication(name, None, writeOutput = false))
+    }
+
+    LOG.info(s"Environment has ${SurfABM.buildingGeoms.getGeometries.size()} buildings. Starting $numParticles " +
+      s"particles on $threads threads, with ${observations.size} observations")
+    var particles = BatchRunner.inParallel(threads, for (_ <- 0 until numParticles) yield {
+      val (name, replication) = newReplication()
+      val particleSeed = random.nextLong()
+      () => replication.run {
+        val model = new SurfABM(particleSeed)
+        model.start()
+        new Particle(name, replication, model)
+      }
+    })
+
+    val window = math.max(1L, windowHours * 60L / Clock.minsPerTick)
+    val assimilation = new BufferedWriter(new FileWriter(new File(outputDirectory, "assimilation.csv")))
+    val weightsFile = new BufferedWriter(new FileWriter(new File(outputDirectory, "particles.csv")))
+    try {
+      assimilation.write("Window,Iterations,Camera,Date,Hour,Observed,Mean,Min,Max")
+      assimilation.newLine()
+      weightsFile.write("Window,Particle,LogLikelihood,Weight,Copies")
+      weightsFile.newLine()
+
+      var scored = 0 // The hours (columns of counts) that have been compared with the observations so far
+      var w = 0
+      while (particles.head.model.schedule.getSteps < iterations) {
+        w += 1
+        val until = math.min(iterations, particles.head.model.schedule.getSteps + window)
+        BatchRunner.inParallel(threads, for (p <- particles) yield { () =>
+          p.replication.run {
+            while (p.model.schedule.getSteps < until && p.model.schedule.step(p.model)) {}
+          }
+        })
+
+        // Compare the hours that have finished since the last window (the last column is the current hour)
+        val closed = particles.head.replication.run(CameraRecorder.counts.getNumColumns - 1)
+        val cells = observations.filter { case ((_, column), _) => column >= scored && column < closed }
+          .toList.sortBy(_._1)
+        scored = closed
+        if (cells.nonEmpty) {
+          val observed = cells.map(_._2)
+          val simulated = particles.map(p => p.replication.run {
+            val counts = CameraRecorder.counts
+            cells.map { case ((row, column), _) => counts.get(row, column) }
+          })
+          val logLikelihoods = simulated.map(logLikelihood(_, observed, sigma)).toArray
+          val weights = this.weights(logLikelihoods)
+          val copies = resample(weights, random.nextDouble())
+          LOG.info(s"Window $w (iteration $until): compared ${cells.size} counts, effective number of particles " +
+            s"${effectiveSampleSize(weights)}, ${copies.count(_ > 0)} survived")
+
+          // Write how close the particles were
+          val steps = particles.head.model.schedule.getSteps
+          for ((((row, column), count), i) <- cells.zipWithIndex) {
+            val s = simulated.map(_ (i))
+            val extraDays = (SurfABM.startHour + column) / 24
+            assimilation.write(s"$w,$steps,${CameraRecorder.cameraList(row)}," +
+              s"${SurfABM.startDate.plusDays(extraDays)},${(SurfABM.startHour + column) % 24},$count," +
+              s"${s.sum.toDouble / s.size},${s.min},${s.max}")
+            assimilation.newLine()
+          }
+          for ((p, i) <- particles.zipWithIndex) {
+            weightsFile.write(s"$w,${p.name},${logLikelihoods(i)},${weights(i)},${copies(i)}")
+            weightsFile.newLine()
+          }
+
+          particles = resampled(particles, copies, threads, random, newReplication)
+        }
+      }
+    }
+    finally {
+      assimilation.close()
+      weightsFile.close()
+    }
+
+    val summaries = for (p <- particles) yield p.replication.run {
+      p.model.finish()
+      BatchRunner.summarise(p.model, p.replication, startTime)
+    }
+    summaries
+  }
+
+  /**
+    * Make the next generation of particles: finish the ones that weren't chosen, keep the ones that were chosen once,
+    * and copy the ones that were chosen more than once.
+    */
+  private def resampled(particles: List[Particle], copies: Array[Int], threads: Int, random: MersenneTwisterFast,
+                        newReplication: () => (String, Replication)): List[Particle] = {
+    // Each particle that needs copying is only written once, however many copies there are
+    val checkpoints = BatchRunner.inParallel(threads, for ((p, c) <- particles.zip(copies)) yield { () =>
+      p.replication.run {
+        if (c == 0) {
+          p.model.finish()
+        }
+        if (c > 1) Checkpoint.toBytes(p.model) else null
+      }
+    })
+    val kept = for ((p, c) <- particles.zip(copies) if c > 0) yield p
+    val made = BatchRunner.inParallel(threads, for {
+      (bytes, c) <- checkpoints.zip(copies) if c > 1
+      _ <- 1 until c
+    } yield {
+      val (name, replication) = newReplication()
+      val seed = random.nextLong()
+      () => {
+        val model = Checkpoint.read(bytes, replication)
+        replication.run(AgentScheduler.reseed(model, seed))
+        new Particle(name, replication, model)
+      }
+    })
+    kept ++ made
+  }
+
+  def main(args: Array[String]): Unit = {
+    if (args.length < 3) {
+      System.err.println("Usage: surf.abm.main.ParticleFilter <particles> <observations> <iterations> " +
+        "[window hours] [observation error] [threads] [output directory]")
+      System.exit(1)
+    }
+    val numParticles = args(0).toInt
+    val observationsFile = new File(args(1))
+    val iterations = args(2).toLong
+    val windowHours = if (args.length > 3) args(3).toInt else 1
+    val sigma = if (args.length > 4) args(4).toDouble else 10d
+    val threads = if (args.length > 5) args(5).toInt else Runtime.getRuntime.availableProcessors()
+    val outputDirectory = if (args.length > 6) new File(args(6))
+      else new File("./results/out/" + SurfABM.ModelConfig + "/filter-" + System.currentTimeMillis() + "/")
+    if (!outputDirectory.exists() && !outputDirectory.mkdirs()) {
+      throw new Exception(s"Could not create the output directory $outputDirectory")
+    }
+
+    try {
+      val observations = readObservations(observationsFile, CameraRecorder.cameraList.map(_.intValue),
+        SurfABM.startDate, SurfABM.startHour)
+      val summaries = run(numParticles, observations, iterations, windowHours, sigma, threads, outputDirectory,
+        System.currentTimeMillis())
+      BatchRunner.writeSummaries(summaries, outputDirectory)
+      LOG.info(s"Finished with ${summaries.size} particles. Results are in $outputDirectory")
+    }
+    catch {
+      case e: Exception => {
+        LOG.error("Exception thrown while running the particle filter.", e)
+        throw e
+      }
+    }
+    System.exit(0) // (MASON's threads might otherwise keep the JVM alive)
+  }
+
+}
@@ -0,0 +1,92 @@
+package surf.abm.main
+
+import java.io.File
+import java.util.concurrent.ConcurrentHashMap
+
+import scala.collection.JavaConverters._
+
+/**
+  * The things that belong to one run (replication) of the model, as opposed to the environment (buildings, roads,
+  * etc. in [[surf.abm.main.SurfABM]]) which is read once and shared by all runs.
+  *
+  * The singleton objects that keep track of a run (e.g. [[surf.abm.main.Clock]], [[surf.abm.main.CameraRecorder]],
+  * the outputters and the agents' ID counter) keep their state here, rather than in themselves, so that several runs
+  * can happen in the same JVM at the same time (see [[surf.abm.main.BatchRunner]]). Code that is part of a run finds
+  * its replication with <code>Replication.current</code>. Normally there is only one run, and everything uses the
+  * default replication; the BatchRunner runs each model inside <code>run()</code> so that the thread (and any threads
+  * that it starts) use the right one.
+  *
+  * @param name A name for the run (e.g. used in log messages)
+  * @param outputDirectory Where the outputters should write their files (None to let them decide)
+  * @param writeOutput Whether the run has an outputter at all (e.g. the particles in a
+  *                    [[surf.abm.main.ParticleFilter]] only need their camera counts)
+  * @param parameters Values for some of the model's parameters in this run, instead of the configured ones (see
+  *                   [[surf.abm.main.Parameters]])
+  */
+class Replication(val name: String, val outputDirectory: Option[File] = None, val writeOutput: Boolean = true,
+                  val parameters: Map[String, Double] = Map.empty) {
+
+  // The state of each singleton, keyed by the singleton
+  private val states = new ConcurrentHashMap[AnyRef, AnyRef]()
+
+  /**
+    * Get the state that a singleton object keeps for this run, creating it the first time.
+    *
+    * @param owner The singleton
+    * @param create Makes a new state. (A function value, rather than a by-name parameter, so that nothing is created
+    *               each time that the state is looked up)
+    */
+  def state[T <: AnyRef](owner: AnyRef, create: () => T): T = {
+    val s = states.get(owner)
+    if (s != null) {
+      return s.asInstanceOf[T]
+    }
+    val created = create()
+    val existing = states.putIfAbsent(owner, created)
+    (if (existing == null) created else existing).asInstanceOf[T]
+  }
+
+  /**
+    * The states that can be saved in a checkpoint (the ones that are Serializable), keyed by their singleton. States
+    * that can't be saved (e.g. open files) are created again when they are next needed. See
+    * [[surf.abm.main.Checkpoint]].
+    */
+  def serializableStates: Map[AnyRef, AnyRef] =
+    states.asScala.filter { case (_, s) => s.isInstanceOf[java.io.Serializable] }.toMap
+
+  /** Replace the state that a singleton keeps for this run (e.g. with one from a checkpoint) */
+  def restoreState(owner: AnyRef, state: AnyRef): Unit = states.put(owner, state)
+
+  /**
+    * Do something as part of this replication (anything that looks at <code>Replication.current</code> on this
+    * thread, or on threads that are started by it, will find this one).
+    */
+  def run[T](f: => T): T = {
+    val previous = Replication.local.get()
+    Replication.local.set(this)
+    try {
+      f
+    }
+    finally {
+      Replication.local.set(previous)
+    }
+  }
+
+  override def toString: String = s"Replication [$name]"
+
+}
+
+object Replication {
+
+  private val local = new InheritableThreadLocal[Replication]()
+
+  /** The replication that is used when no other has been set (i.e. when the model is run on its own) */
+  val default = new Replication("default")
+
+  /** The replication that the current thread is part of */
+  def current: Replication = {
+    val r = local.get()
+    if (r == null) default else r
+  }
+
+}
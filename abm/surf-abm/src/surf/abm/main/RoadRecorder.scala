@@ -0,0 +1,125 @@
+package surf.abm.main
+
+import java.io.File
+import java.util
+
+import com.typesafe.config.ConfigException
+import org.apache.log4j.Logger
+import sim.engine.{SimState, Steppable}
+import sim.field.geo.GeomVectorField
+import sim.io.geo.ShapeFileExporter
+import sim.util.geo.MasonGeometry
+import surf.abm.environment.Road
+import surf.abm.surfutil.StripedCounterMatrix
+
+/**
+  * Counts the agents that go along every road in each hour, like the [[surf.abm.main.CameraRecorder]] does for the
+  * roads with cameras, so that footfall can be mapped across the whole area without writing the position of every
+  * agent at every iteration. An agent is counted each time that they start going along a road on their path.
+  *
+  * Roads are only counted if <code>RoadCounts = true</code> in the model's configuration. At the end of a run the
+  * outputter writes the counts (see [[surf.abm.agents.abbf.ABBFOutputter]]) to <code>road-counts.csv</code> (only
+  * the roads and hours with a count) and to a shapefile of the roads, <code>road-counts.shp</code>, whose attributes
+  * are each road's total count and its count in each hour of the day (H00 to H23, added up over all of the days).
+  */
+object RoadRecorder extends Steppable {
+
+  private val LOG: Logger = Logger.getLogger(this.getClass)
+
+  /** Whether roads are being counted */
+  lazy val enabled: Boolean = try {
+    SurfABM.conf.getBoolean(SurfABM.ModelConfig + ".RoadCounts")
+  }
+  catch {
+    case _: ConfigException.Missing => false
+  }
+
+  /** The roads, in the order of the rows in the count matrix */
+  lazy val roads: Array[SurfGeometry[Road]] = {
+    val geoms = SurfABM.roadGeoms.getGeometries
+    Array.tabulate(geoms.size)(i => geoms.get(i).asInstanceOf[SurfGeometry[Road]])
+  }
+
+  /**
+    * The row of each road (keyed by its geometry) in the count matrix, or null if roads aren't being counted. Used
+    * when agents' paths are compiled (see [[surf.abm.agents.CompiledPath]]) so that counting a road is just an
+    * increment.
+    */
+  lazy val rows: util.IdentityHashMap[AnyRef, Integer] = if (!enabled) null else {
+    val m = new util.IdentityHashMap[AnyRef, Integer](roads.length * 2)
+    for ((r, i) <- roads.zipWithIndex) {
+      m.put(r, i)
+    }
+    m
+  }
+
+  // Each run of the model has its own counts (see Replication). There are lots of roads, so the counters are packed.
+  @SerialVersionUID(1L)
+  private[main] class RunState extends Serializable {
+    val counts = new StripedCounterMatrix(roads.length, 24, true)
+  }
+  private val newRunState = () => new RunState
+  private def run: RunState = Replication.current.state(this, newRunState)
+
+  /** The counts of the given run (the model keeps them, see [[surf.abm.main.SurfABM.replication]]) */
+  private[main] def runOf(replication: Replication): RunState = replication.state(this, newRunState)
+
+  /** The number of agents that went along each road (row) in each hour (column). The last column is the open one. */
+  def counts: StripedCounterMatrix = this.run.counts
+
+  /**
+    * Needs to be called when the model starts. Does nothing unless roads are being counted.
+    */
+  def create(state: SurfABM): Unit = {
+    if (enabled) {
+      LOG.info(s"Counting the agents that go along each of the ${roads.length} roads")
+      this.run // (Make the counts now, rather than when the first agent moves)
+      state.schedule.scheduleRepeating(this, SurfABM.CAMERA_RECORDER_STEP, 60.0 / Clock.minsPerTick)
+    }
+  }
+
+  /** Every hour, the counts move on to a new column */
+  override def step(state: SimState): Unit = {
+    this.counts.nextColumn()
+  }
+
+  /** Count an agent going along the road in the given row. Can be called by agents that are stepped in parallel. */
+  def add(row: Int): Unit = {
+    this.counts.increment(row)
+  }
+
+  /**
+    * Count an agent going along a road in the given model. This is quicker than add(row) (the model already knows
+    * which run it is part of), so it is the one for agents to use.
+    */
+  def add(state: SurfABM, row: Int): Unit = {
+    state.roadRun.counts.increment(row)
+  }
+
+  /**
+    * Write a shapefile of the roads with their counts (see above).
+    *
+    * @param file The shapefile (without the .shp extension)
+    */
+  def writeShapefile(file: File): Unit = {
+    val counts = this.counts
+    val field = new GeomVectorField()
+    for ((road, row) <- roads.zipWithIndex) {
+      val byHour = new Array[Long](24)
+      var column = 0
+      while (column < counts.getNumColumns) {
+        byHour((Clock.getStartHour + column) % 24) += counts.get(row, column)
+        column += 1
+      }
+      val g = new MasonGeometry(road.getGeometry)
+      g.addIntegerAttribute("ROAD_ID", road.theObject.id)
+      g.addIntegerAttribute("TOTAL", math.min(byHour.sum, Int.MaxValue).toInt)
+      for (h <- 0 until 24) {
+        g.addIntegerAttribute(f"H$h%02d", math.min(byHour(h), Int.MaxValue).toInt)
+      }
+      field.addGeometry(g)
+    }
+    ShapeFileExporter.write(file.getPath, field)
+  }
+
+}
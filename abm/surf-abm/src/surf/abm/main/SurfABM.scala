@@ -5,7 +5,8 @@ import java.lang.reflect.{Constructor, Method}
 import java.time.{LocalDate, LocalDateTime}
 
 import collection.JavaConverters._
-import _root_.surf.abm.agents.Agent
+import _root_.surf.abm.agents.{Agent, RouteCache}
+import _root_.surf.abm.agents.abbf.ActivityEngine
 import com.typesafe.config.ConfigException
 import com.vividsolutions.jts.geom.{Envelope, GeometryFactory}
 import com.vividsolutions.jts.planargraph.Node
@@ -15,8 +16,8 @@ import sim.field.geo.GeomVectorField
 import sim.io.geo.ShapeFileImporter
 import sim.util.Bag
 import sim.util.geo.MasonGeometry
-import surf.abm.environment.{Building, GeomPlanarGraphSurf, Junction, Road}
-import surf.abm.surfutil.Util
+import surf.abm.environment.{Building, EnvironmentSnapshot, GeomPlanarGraphSurf, Junction, Landmarks, MovingGeomVectorField, NetworkComponents, Road, StaticGeomVectorField}
+import surf.abm.surfutil.{CheckConnectedNetwork, Util}
 
 import scala.collection.JavaConversions._
 import scala.collection.mutable.ListBuffer
@@ -42,12 +43,28 @@ import scala.collection.mutable.ListBuffer
 @SerialVersionUID(1L)
 class SurfABM(seed: Long) extends SimState(seed) {
 
+  /**
+    * The run (see Replication) that this model is part of. The per-run state that agents use all the time (the
+    * clock, the agents' spatial index and the counts) is found through here once, rather than by looking up
+    * Replication.current on every call. (They are transient so that a model that is read from a checkpoint finds
+    * the run that it has been read into.)
+    */
+  @transient lazy val replication: Replication = Replication.current
+
+  /** This run's agents (see SurfABM.agentGeoms) */
+  @transient lazy val agentGeoms: MovingGeomVectorField = replication.state(SurfABM, SurfABM.newAgentGeoms)
+
+  @transient private[main] lazy val clockRun = Clock.runOf(replication)
+  @transient private[main] lazy val cameraRun = CameraRecorder.runOf(replication)
+  @transient private[main] lazy val roadRun = RoadRecorder.runOf(replication)
+
   /**
     * Start the simulation. This is called after the SurfABM object has been initialised, which prepares the
     * environment etc. The main thing that this function does is initialise the clock and decide how to load agents.
     */
   override def start(): Unit = {
     super.start
+    this.replication // (Find the run now, on the thread that is starting it)
 
     SurfABM.LOG.info("Random seed is: "+this.seed)
 
@@ -59,6 +76,18 @@ class SurfABM(seed: Long) extends SimState(seed) {
     // Create the object that will initialise and collect data from the camera
     CameraRecorder.create(this)
 
+    // And the one that counts the agents on every road (if they are being counted)
+    RoadRecorder.create(this)
+
+    // Time each part of an iteration and log the metrics every so often (unless they have been turned off)
+    MetricsReporter.create(this)
+
+    // Decide whether agents will be stepped one after the other, or in parallel
+    AgentScheduler.create(this)
+
+    // Somewhere for the agents' activities to keep their intensities (needs to exist before they are created)
+    ActivityEngine.create(this)
+
     // Decide how to load agents. Configurations can set their own loader, or just use the default (NumAgents of type
     // AgentType are created at random buildings
     try {
@@ -91,6 +120,13 @@ class SurfABM(seed: Long) extends SimState(seed) {
       }
     }
 
+    // Now that all the agents exist, schedule them (if they are being stepped in parallel)
+    AgentScheduler.start(this)
+
+    // Ensure that the spatial index is made aware of the new agent positions. Scheduled once, whichever loader
+    // created the agents, to run after all agents have moved.
+    schedule.scheduleRepeating(SurfABM.agentGeoms.scheduleSpatialIndexUpdater, SurfABM.UPDATE_SPATIAL_INDEX, 1.0)
+
     // Create the outputter that is in charge of writing out results etc.
     OutputFactory(this)
   }
@@ -99,6 +135,9 @@ class SurfABM(seed: Long) extends SimState(seed) {
     super.finish()
     // Tell the outputter to finish (e.g. close output files).
     OutputFactory(this).finish()
+    AgentScheduler.finish()
+    SurfABM.LOG.info(RouteCache.shared.toString)
+    MetricsReporter.finish()
   }
 
 } // class surfABM
@@ -137,17 +176,140 @@ object SurfABM extends Serializable {
   val startHour: Int = startTimeList(3)
 
 
-  // A list of all the agent geometries
-  val agentGeoms = new GeomVectorField(WIDTH, HEIGHT);
+  // A list of all the agent geometries. Agents move, so they are indexed with a grid that only needs to be updated
+  // for the agents that have moved (see MovingGeomVectorField). The size of the grid cells can be configured.
+  private val AGENT_INDEX_CELL_SIZE: Double = try {
+    conf.getDouble(ModelConfig + ".AgentIndexCellSize")
+  }
+  catch {
+    case _: ConfigException.Missing => 100.0
+  }
+  // Each run of the model has its own agents (see Replication), whereas the environment below is shared by all runs.
+  private val newAgentGeoms = () => new MovingGeomVectorField(WIDTH, HEIGHT, AGENT_INDEX_CELL_SIZE)
+  def agentGeoms: MovingGeomVectorField = Replication.current.state(this, newAgentGeoms)
 
   // Keep a map of agents and their geometries. This is created after the agents have been created
   ///var agentGeomMap : Map[SurfGeometry,Agent] = null
 
+  // The buildings and roads can be read from a snapshot of the environment, which is much quicker than reading the
+  // shapefiles (see EnvironmentSnapshot). The snapshot is written the first time, and again if the shapefiles change.
+  private val USE_SNAPSHOT: Boolean = try {
+    conf.getBoolean(ModelConfig + ".EnvironmentSnapshot")
+  }
+  catch {
+    case _: ConfigException.Missing => false
+  }
+  // Roads that aren't connected to the main road network can be removed when they are read (see _readEnvironmentData)
+  private val PRUNE_DISCONNECTED_NETWORK: Boolean = try {
+    conf.getBoolean(ModelConfig + ".PruneDisconnectedNetwork")
+  }
+  catch {
+    case _: ConfigException.Missing => false
+  }
+  private val snapshotFile = _dataFile("environment.snapshot")
+  private val snapshotHash: String = if (USE_SNAPSHOT) _snapshotHash() else null
+  private var snapshot: EnvironmentSnapshot = if (USE_SNAPSHOT) _readSnapshot() else null
+
   // Spatial layers. One function to read them all
-  val (buildingGeoms, supermarketGeoms, lunchGeoms, goingOutGeoms, sportGeoms, otherShopGeoms, buildingIDGeomMap, roadGeoms, network, junctions, mbr) = _readEnvironmentData()
+  val (buildingGeoms, supermarketGeoms, lunchGeoms, goingOutGeoms, sportGeoms, otherShopGeoms, buildingIDGeomMap, roadGeoms, network, compactNetwork, junctions, mbr) = _readEnvironmentData()
+
+  // Landmarks make routing much quicker on large networks (see Landmarks and AStar). Set the Landmarks parameter to
+  // the number to use (0, the default, means just use the straight-line distance). They take a while to work out, so
+  // are saved in the data directory and only worked out again if the network changes.
+  val landmarks: Landmarks = {
+    val numLandmarks = try {
+      conf.getInt(ModelConfig + ".Landmarks")
+    }
+    catch {
+      case _: ConfigException.Missing => 0
+    }
+    if (numLandmarks <= 0) null else {
+      val file = _dataFile("network.landmarks")
+      try {
+        val l = Landmarks.load(file, compactNetwork, numLandmarks)
+        LOG.info(s"Using ${l.getNumLandmarks} landmarks for routing (saved in $file)")
+        l
+      }
+      catch {
+        case e: java.io.IOException => {
+          LOG.warn(s"Could not read or write the landmarks file $file, will work them out each time", e)
+          Landmarks.build(compactNetwork, numLandmarks)
+        }
+      }
+    }
+  }
+
+  // The nearest network node to each building, indexed by building ID. Buildings don't move, so this is worked out
+  // once here rather than every time that an agent plans a route to or from a building.
+  private val buildingNodes: Array[Int] = if (snapshot != null) snapshot.getBuildingNodes else _findBuildingNodes()
+
+  if (USE_SNAPSHOT && snapshot == null) {
+    _writeSnapshot()
+  }
+  snapshot = null // (Everything has been read from it now)
 
   LOG.info("Finished initialising model environment")
 
+  /**
+    * Get the id of the network node that is closest to a building (see [[GeomPlanarGraphSurf.getNodeId()]]).
+    *
+    * @return The id of the node, or -1 if the building isn't one that was read when the model was initialised.
+    */
+  def buildingNode(b: Building): Int = if (b.id >= 0 && b.id < buildingNodes.length) buildingNodes(b.id) else -1
+
+  /**
+    * Find the nearest junction to every building. Returns an array of node ids, indexed by building ID.
+    */
+  private def _findBuildingNodes(): Array[Int] = {
+    LOG.info("Finding the nearest junction to each building")
+    val maxID = if (buildingIDGeomMap.isEmpty) -1 else buildingIDGeomMap.keys.max
+    val nodes = Array.fill[Int](maxID + 1)(-1)
+    for ((id, building) <- buildingIDGeomMap if id >= 0) { // (IDs should never be negative, but if they are just don't index them)
+      val junction: SurfGeometry[Junction] = GISFunctions.findNearestObject[Junction](building, junctions)
+      nodes(id) = GeomPlanarGraphSurf.getNodeId(junction.theObject.node)
+    }
+    nodes
+  }
+
+  /** A file in the directory that the GIS data are read from (relative to the 'surf' directory) */
+  private def _dataFile(name: String): File = new File("data/" + SurfABM.conf.getString(ModelConfig + ".DataDir") + "/" + name)
+
+  /** The hash of the files (and the building fields, and whether disconnected roads are removed) that the environment
+    * is read from */
+  private def _snapshotHash(): String = {
+    val files = for (layer <- List("buildings", "roads"); ext <- List("shp", "shx", "dbf")) yield _dataFile(s"$layer.$ext")
+    EnvironmentSnapshot.hash(files.asJava,
+      BUILDING_FIELDS.values.toSeq.map(_.toString) :+ s"PruneDisconnectedNetwork=$PRUNE_DISCONNECTED_NETWORK": _*)
+  }
+
+  /** Read the snapshot of the environment, or return null if there isn't one that matches the shapefiles */
+  private def _readSnapshot(): EnvironmentSnapshot = {
+    try {
+      val s = EnvironmentSnapshot.read(snapshotFile, snapshotHash)
+      if (s == null) {
+        LOG.info(s"No up-to-date environment snapshot in $snapshotFile, will read the shapefiles")
+      }
+      s
+    }
+    catch {
+      case e: java.io.IOException =>
+        LOG.warn(s"Could not read the environment snapshot $snapshotFile, will read the shapefiles", e)
+        null
+    }
+  }
+
+  /** Save the buildings and roads that have just been read from the shapefiles so that next time is quicker */
+  private def _writeSnapshot(): Unit = {
+    def geoms(field: GeomVectorField) = field.getGeometries.map(o => o.asInstanceOf[MasonGeometry]).toList.asJava
+    try {
+      new EnvironmentSnapshot(snapshotHash, geoms(buildingGeoms), geoms(roadGeoms), buildingNodes).write(snapshotFile)
+      LOG.info(s"Wrote environment snapshot to $snapshotFile")
+    }
+    catch {
+      case e: java.io.IOException => LOG.warn(s"Could not write the environment snapshot $snapshotFile", e)
+    }
+  }
+
     /**
       * Read and configure the buildings, roads, networks and junctions.
       * This is written as a function so that it can be tested elsewhere.
@@ -170,28 +332,34 @@ object SurfABM extends Serializable {
 
         // Start with buildings
         val tempBuildings = new GeomVectorField(WIDTH, HEIGHT)
-        val buildings = new GeomVectorField(WIDTH, HEIGHT)
-        val supermarkets = new GeomVectorField(WIDTH, HEIGHT)
-        val lunchPlaces = new GeomVectorField(WIDTH, HEIGHT)
+        val buildings = new StaticGeomVectorField(WIDTH, HEIGHT)
+        val supermarkets = new StaticGeomVectorField(WIDTH, HEIGHT)
+        val lunchPlaces = new StaticGeomVectorField(WIDTH, HEIGHT)
         //val dinnerPlaces = new GeomVectorField(WIDTH, HEIGHT)
-        val goingOutPlaces = new GeomVectorField(WIDTH, HEIGHT)
-        val sportPlaces = new GeomVectorField(WIDTH, HEIGHT)
-        val otherShops = new GeomVectorField(WIDTH, HEIGHT)
+        val goingOutPlaces = new StaticGeomVectorField(WIDTH, HEIGHT)
+        val sportPlaces = new StaticGeomVectorField(WIDTH, HEIGHT)
+        val otherShops = new StaticGeomVectorField(WIDTH, HEIGHT)
         // Declare the fields from the shapefile that should be read in with the geometries
         // GeoMason wants these to be a Bag
         val attributes: Bag = new Bag( for (v <- BUILDING_FIELDS.values) yield v.toString() ) // Add all of the fields
-        // Read the shapefile (path relative from 'surf' directory)
-        val bldgURI = new File("data/" + dataDir + "/buildings.shp").toURI().toURL()
-        LOG.debug("Reading buildings from file: " + bldgURI + " ... ")
-        ShapeFileImporter.read(bldgURI, tempBuildings, attributes)
-        //LOG.debug("...read %d buildings".format(tempBuildings.getGeometriesSize))
+        // Read the shapefile (path relative from 'surf' directory), or get the buildings from the snapshot
+        val buildingGeometries: Iterable[MasonGeometry] = if (snapshot != null) {
+          LOG.debug(s"Reading buildings from snapshot: $snapshotFile")
+          snapshot.getBuildings.asScala
+        }
+        else {
+          val bldgURI = _dataFile("buildings.shp").toURI().toURL()
+          LOG.debug("Reading buildings from file: " + bldgURI + " ... ")
+          ShapeFileImporter.read(bldgURI, tempBuildings, attributes)
+          //LOG.debug("...read %d buildings".format(tempBuildings.getGeometriesSize))
+          tempBuildings.getGeometries().map(o => o.asInstanceOf[MasonGeometry])
+        }
 
         // Now cast all buildings from MasonGeometries to SurfGeometries
         LOG.debug("Casting buildings to SurfGeometry objects")
         //val sgoms = scala.collection.mutable.ListBuffer.empty[SurfGeometry[Building]]
         val tempIDMap = scala.collection.mutable.Map[Int, SurfGeometry[Building]]()
-        for (o <- tempBuildings.getGeometries()) {
-          val g : MasonGeometry = o.asInstanceOf[MasonGeometry]
+        for (g <- buildingGeometries) {
           val buildingID = try {
             g.getIntegerAttribute(BUILDING_FIELDS.BUILDINGS_ID.toString)
           }
@@ -267,16 +435,21 @@ object SurfABM extends Serializable {
 
         // Read roads
         val roadsTemp = new GeomVectorField(WIDTH, HEIGHT)
-        val roadsURI = new File("data/" + dataDir + "/roads.shp").toURI().toURL()
-        LOG.debug(s"Reading roads file: ${roadsURI} ...")
-        ShapeFileImporter.read(roadsURI, roadsTemp)
-        LOG.debug(s"\t... read ${roadsTemp.getGeometries().size()} roads")
+        val roadGeometries: Iterable[MasonGeometry] = if (snapshot != null) {
+          snapshot.getRoads.asScala
+        }
+        else {
+          val roadsURI = _dataFile("roads.shp").toURI().toURL()
+          LOG.debug(s"Reading roads file: ${roadsURI} ...")
+          ShapeFileImporter.read(roadsURI, roadsTemp)
+          LOG.debug(s"\t... read ${roadsTemp.getGeometries().size()} roads")
+          roadsTemp.getGeometries().map(o => o.asInstanceOf[MasonGeometry])
+        }
         // Cast the roads to SurfGeometry objects
         val roads = new GeomVectorField(WIDTH, HEIGHT)
         val roadIDCol = "ID" // the name of the ID column in the roads shapefile
         val cameraIDCol = "cameraID" // the name of the camera_ID column in the roads shapefile
-        for (o <- roadsTemp.getGeometries()) {
-          val g : MasonGeometry = o.asInstanceOf[MasonGeometry]
+        for (g <- roadGeometries) {
           val roadID = try {
             g.getIntegerAttribute(roadIDCol)
           }
@@ -312,11 +485,29 @@ object SurfABM extends Serializable {
 
         // Stores the network connections.  We represent the walkways as a PlanarGraph, which allows
         // easy selection of new waypoints for the agents.
-        val network = new GeomPlanarGraphSurf()
-        val junctions = new GeomVectorField(WIDTH, HEIGHT) // nodes for intersections
+        var network = new GeomPlanarGraphSurf()
+        val junctions = new StaticGeomVectorField(WIDTH, HEIGHT) // nodes for intersections
 
         SurfABM.LOG.debug("Creating road network")
         network.createFromGeomField(roads)
+
+        // Compile the network into a compact, array-based form that the routing algorithms use
+        var compactNetwork = network.compile()
+
+        // Routes can't be found to or from roads that aren't connected to the rest of the network. Report them, and
+        // remove them if configured to (then every junction, so every building's nearest junction, is on the main network)
+        val components = NetworkComponents.analyse(compactNetwork)
+        if (!components.isConnected) {
+          LOG.warn(CheckConnectedNetwork.report(compactNetwork, components))
+          if (PRUNE_DISCONNECTED_NETWORK) {
+            val disconnected = CheckConnectedNetwork.disconnectedRoads(compactNetwork, components)
+            LOG.info(s"Removing the disconnected roads: ${disconnected.map(_.theObject.id).sorted.mkString(", ")}")
+            disconnected.foreach(road => roads.removeGeometry(road))
+            network = new GeomPlanarGraphSurf()
+            network.createFromGeomField(roads)
+            compactNetwork = network.compile()
+          }
+        }
         val fact = new GeometryFactory()
         // Now add the associated junctions to the junctions geometry.
         network.getNodes().foreach( x => {
@@ -335,8 +526,16 @@ object SurfABM extends Serializable {
 
         SurfABM.LOG.info("Finished creating network and junctions")
 
+        // None of these layers change, so build indexes to find the nearest objects quickly
+        SurfABM.LOG.debug("Building nearest-neighbour indexes")
+        for (layer <- List(buildings, supermarkets, lunchPlaces, goingOutPlaces, sportPlaces, otherShops, junctions)) {
+          layer.buildNearestNeighbourIndex()
+        }
+
+        SurfABM.LOG.info(s"Compiled network: ${compactNetwork.getNumNodes} nodes, ${compactNetwork.getNumEdges} edges")
+
         // Return the layers
-        (buildings, supermarkets, lunchPlaces, goingOutPlaces, sportPlaces, otherShops, b_ids, roads, network, junctions, MBR)
+        (buildings, supermarkets, lunchPlaces, goingOutPlaces, sportPlaces, otherShops, b_ids, roads, network, compactNetwork, junctions, MBR)
       }
       catch {
         case e: Exception => {
@@ -371,13 +570,18 @@ object SurfABM extends Serializable {
       //val agentArray = collection.mutable.ListBuffer.empty[(SurfGeometry[Agent],Agent)]
 
       // Create the agents
+      var created = 0
       for (i <- 0.until(numAgents)) {
-        // Create a new a agent, passing the main model instance and a random new location
-        val a: Agent = c.newInstance(state, SurfABM.getRandomBuilding(state))
-        SurfABM.agentGeoms.addGeometry(SurfGeometry[Agent](a.location, a))
-        //SurfABM.agentGeoms.addGeometry(new MasonGeometry(a.location().getGeometry()))
-        state.schedule.scheduleRepeating(a, SurfABM.AGENTS_STEP, 1)
-        //agentArray += ( (a.location, a) ) // Need two parentheses to make a tuple?
+        // Create a new a agent, passing the main model instance and a random new location (unless the model is
+        // distributed and the agent would live in another region)
+        val home = SurfABM.getRandomBuilding(state)
+        for (a <- AgentScheduler.newAgent(state, home)(c.newInstance(state, home))) {
+          SurfABM.agentGeoms.addGeometry(SurfGeometry[Agent](a.location, a))
+          //SurfABM.agentGeoms.addGeometry(new MasonGeometry(a.location().getGeometry()))
+          AgentScheduler.schedule(state, a)
+          //agentArray += ( (a.location, a) ) // Need two parentheses to make a tuple?
+          created += 1
+        }
       }
 
       // Now store the agents and their geometries in a map so we can get back to the
@@ -386,21 +590,17 @@ object SurfABM extends Serializable {
       //SurfABM.agentGeomMap = Map[SurfGeometry,Agent](agentArray: _*)
 
       assert(
-        numAgents == SurfABM.agentGeoms.getGeometries().size()
+        created == SurfABM.agentGeoms.getGeometries().size()
         //SurfABM.numAgents == agentArray.size &&
         //SurfABM.numAgents == SurfABM.agentGeomMap.size,
         , s"Lengths of agent arrays differ. \n\t" +
-          s"numAgents: ${numAgents}\n\t" +
+          s"created: ${created}\n\t" +
           s"agentGeoms: ${SurfABM.agentGeoms}\n\t"
           //s"agentGeomMap: ${SurfABM.agentGeomMap.size}"
       )
 
       SurfABM.agentGeoms.setMBR(SurfABM.mbr)
 
-      // Ensure that the spatial index is made aware of the new agent
-      // positions.  Scheduled to guaranteed to run after all agents moved.
-      state.schedule.scheduleRepeating(SurfABM.agentGeoms.scheduleSpatialIndexUpdater, SurfABM.UPDATE_SPATIAL_INDEX, 1.0)
-
     }
     catch {
       case e: Exception => {
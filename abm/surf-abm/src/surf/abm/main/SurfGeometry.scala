@@ -1,8 +1,10 @@
 package surf.abm.main
 
+import java.io.ObjectInputStream
 import java.{lang, util}
 
 import com.vividsolutions.jts.geom.Geometry
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory
 import org.apache.log4j.Logger
 import sim.util.geo.{AttributeValue, MasonGeometry}
 
@@ -123,6 +125,14 @@ class SurfGeometry[T](val masonGeom: MasonGeometry, val theObject: T) extends
     val c2 = g2.getCentroid
     return ( c1.getX == c2.getX && c1.getY == c2.getY ) || g1.intersects(g2)
   }
+
+  // Checkpoints don't write the prepared geometries (they aren't Serializable), so prepare them again
+  private def readObject(in: ObjectInputStream): Unit = {
+    in.defaultReadObject()
+    for (g <- Seq(this, this.masonGeom) if g.preparedGeometry == null && g.geometry != null) {
+      g.preparedGeometry = PreparedGeometryFactory.prepare(g.geometry)
+    }
+  }
 }
 
 @SerialVersionUID(1L)
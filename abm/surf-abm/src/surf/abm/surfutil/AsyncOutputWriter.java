@@ -0,0 +1,566 @@
+package surf.abm.surfutil;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writes a table of output on a background thread, so that the simulation doesn't have to wait for the disk.
+ *
+ * <p>Rows are added one value at a time (e.g. <code>putLong(..).putDouble(..).putString(..)</code> and then
+ * {@link #endRow()}) into a batch that stores each column in its own primitive array. Once the batch is full (or
+ * {@link #flush()} is called, e.g. at the end of an iteration) it is handed to the writer thread through a bounded
+ * queue. There are only a fixed number of batches, and they are reused, so if the writer thread falls behind the
+ * simulation waits for it rather than using more and more memory.</p>
+ *
+ * <p>The table can be written as CSV or in a compact binary, columnar format (see {@link Format#BINARY} and
+ * {@link ColumnarFileReader}, which can turn binary files back into CSV).</p>
+ *
+ * <p>Only one thread should add rows. Call {@link #close()} at the end to write everything that is left; any
+ * exception that happened on the writer thread is thrown from {@link #flush()} or {@link #close()}.</p>
+ *
+ * @author Nick Malleson
+ */
+public final class AsyncOutputWriter implements Closeable
+{
+
+    /** The types of value that a column can hold */
+    public enum ColumnType
+    {
+        LONG, DOUBLE, STRING
+    }
+
+    /** The formats that a table can be written in */
+    public enum Format
+    {
+        /** Comma-separated values with a header line. Strings are written as they are (they are not quoted). */
+        CSV(".csv"),
+        /**
+         * A binary, columnar format. The file starts with {@link #MAGIC}, the number of columns, and the name and
+         * type of each column. Then come blocks of rows: the number of rows in the block followed by each column in
+         * turn. Longs and doubles are written as they are. Strings are dictionary encoded: each string column has
+         * the number of strings that have not been seen before followed by the strings themselves, then an int code
+         * for each row (codes are given to strings in the order they are first seen). All numbers are big endian
+         * (as written by <code>DataOutputStream</code>).
+         */
+        BINARY(".bin");
+
+        private final String extension;
+
+        Format(String extension)
+        {
+            this.extension = extension;
+        }
+
+        /** The extension that files in this format are given (including the dot) */
+        public String extension()
+        {
+            return extension;
+        }
+
+        /** Find the format with the given name (case insensitive), e.g. "csv" or "binary". */
+        public static Format parse(String name)
+        {
+            for (Format f : values())
+            {
+                if (f.name().equalsIgnoreCase(name.trim()))
+                {
+                    return f;
+                }
+            }
+            throw new IllegalArgumentException("Unrecognised output format '" + name + "'. Should be one of " +
+                Arrays.toString(values()));
+        }
+    }
+
+    /** The first bytes of a binary file */
+    public static final String MAGIC = "SURFCOL1";
+
+    // A batch that tells the writer thread to stop
+    private static final Batch END = new Batch(new ColumnType[0], 0);
+
+    // The number of bytes that have been written by all writers (see Metrics)
+    private static final Metrics.Counter BYTES_WRITTEN = Metrics.counter("output.bytes");
+
+    private final File file;
+    private final Format format;
+    private final String[] names;
+    private final ColumnType[] types;
+
+    private final BlockingQueue<Batch> free; // Empty batches, ready to be filled
+    private final BlockingQueue<Batch> full; // Batches waiting to be written
+    private final Thread thread;
+    private volatile Throwable error = null;
+
+    private Batch current; // The batch that rows are being added to
+    private int column = 0; // The next column in the current row
+    private boolean closed = false;
+
+    /**
+     * Create a writer and start its thread.
+     *
+     * @param file The file to write to. The format's extension is added to it.
+     * @param format The format to write in
+     * @param names The names of the columns
+     * @param types The type of each column
+     * @param batchRows The number of rows in a batch
+     * @param batches The number of batches. If they are all full, the thread adding rows waits.
+     */
+    public AsyncOutputWriter(File file, Format format, String[] names, ColumnType[] types, int batchRows, int batches)
+        throws IOException
+    {
+        if (names.length != types.length)
+        {
+            throw new IllegalArgumentException("There are " + names.length + " column names but " + types.length +
+                " column types");
+        }
+        if (batchRows < 1 || batches < 1)
+        {
+            throw new IllegalArgumentException("Need at least one batch with at least one row (not " + batches +
+                " batches of " + batchRows + " rows)");
+        }
+        this.file = new File(file.getPath() + format.extension());
+        this.format = format;
+        this.names = names.clone();
+        this.types = types.clone();
+        this.free = new ArrayBlockingQueue<Batch>(batches);
+        this.full = new ArrayBlockingQueue<Batch>(batches + 1); // (Room for the END marker too)
+        for (int i = 1; i < batches; i++)
+        {
+            free.add(new Batch(this.types, batchRows));
+        }
+        this.current = new Batch(this.types, batchRows);
+
+        // Open the file now so that problems are found straight away
+        final Encoder encoder = format == Format.CSV ?
+            new CsvEncoder(this.file, this.names) : new BinaryEncoder(this.file, this.names, this.types);
+        this.thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                write(encoder);
+            }
+        }, "AsyncOutputWriter-" + this.file.getName());
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /** @return The file that is being written to (including the extension) */
+    public File getFile()
+    {
+        return file;
+    }
+
+    public Format getFormat()
+    {
+        return format;
+    }
+
+    public AsyncOutputWriter putLong(long value)
+    {
+        current.longs[nextColumn(ColumnType.LONG)][current.size] = value;
+        return this;
+    }
+
+    public AsyncOutputWriter putDouble(double value)
+    {
+        current.doubles[nextColumn(ColumnType.DOUBLE)][current.size] = value;
+        return this;
+    }
+
+    public AsyncOutputWriter putString(String value)
+    {
+        current.strings[nextColumn(ColumnType.STRING)][current.size] = value;
+        return this;
+    }
+
+    /** Finish the current row. Every column must have been given a value. */
+    public void endRow() throws IOException
+    {
+        if (column != types.length)
+        {
+            throw new IllegalStateException("Row " + current.size + " of " + file.getName() + " only has " +
+                column + " of its " + types.length + " values");
+        }
+        column = 0;
+        if (++current.size == current.capacity)
+        {
+            handOver();
+        }
+    }
+
+    /** Hand the rows that have been added so far to the writer thread (e.g. at the end of an iteration). */
+    public void flush() throws IOException
+    {
+        checkOpen();
+        if (current.size > 0)
+        {
+            handOver();
+        }
+        checkError();
+    }
+
+    /** Write everything that is left, then stop the thread and close the file. */
+    @Override
+    public void close() throws IOException
+    {
+        if (closed)
+        {
+            return;
+        }
+        try
+        {
+            if (current.size > 0)
+            {
+                put(current);
+            }
+            put(END); // (The thread closes the file even if there has been an error)
+            thread.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for " + file + " to be written", e);
+        }
+        finally
+        {
+            closed = true;
+        }
+        checkError();
+    }
+
+    private int nextColumn(ColumnType type)
+    {
+        if (column >= types.length || types[column] != type)
+        {
+            throw new IllegalStateException("Column " + column + " of " + file.getName() + " is " +
+                (column >= types.length ? "past the last column" : "a " + types[column] + " column") +
+                ", not a " + type + " column");
+        }
+        return column++;
+    }
+
+    // Give the current batch to the writer thread and get an empty one, waiting if necessary
+    private void handOver() throws IOException
+    {
+        checkOpen();
+        checkError();
+        put(current);
+        try
+        {
+            current = free.take();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting to write to " + file, e);
+        }
+    }
+
+    private void put(Batch b) throws IOException
+    {
+        try
+        {
+            full.put(b);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting to write to " + file, e);
+        }
+    }
+
+    private void checkOpen()
+    {
+        if (closed)
+        {
+            throw new IllegalStateException(file + " has been closed");
+        }
+    }
+
+    private void checkError() throws IOException
+    {
+        if (error != null)
+        {
+            throw new IOException("Could not write to " + file, error);
+        }
+    }
+
+    // Runs on the writer thread
+    private void write(Encoder encoder)
+    {
+        try
+        {
+            for (Batch b = full.take(); b != END; b = full.take())
+            {
+                if (error == null)
+                {
+                    try
+                    {
+                        encoder.write(b);
+                    }
+                    catch (Throwable t)
+                    {
+                        error = t; // Keep taking batches so that the simulation doesn't wait forever
+                    }
+                }
+                b.clear();
+                free.put(b);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            error = e;
+        }
+        finally
+        {
+            try
+            {
+                encoder.close();
+            }
+            catch (IOException e)
+            {
+                if (error == null)
+                {
+                    error = e;
+                }
+            }
+        }
+    }
+
+    /** Some rows, with each column stored in its own array */
+    private static final class Batch
+    {
+        final int capacity;
+        final long[][] longs;
+        final double[][] doubles;
+        final String[][] strings;
+        int size = 0;
+
+        Batch(ColumnType[] types, int capacity)
+        {
+            this.capacity = capacity;
+            this.longs = new long[types.length][];
+            this.doubles = new double[types.length][];
+            this.strings = new String[types.length][];
+            for (int c = 0; c < types.length; c++)
+            {
+                switch (types[c])
+                {
+                    case LONG: longs[c] = new long[capacity]; break;
+                    case DOUBLE: doubles[c] = new double[capacity]; break;
+                    case STRING: strings[c] = new String[capacity]; break;
+                }
+            }
+        }
+
+        void clear()
+        {
+            for (String[] s : strings)
+            {
+                if (s != null)
+                {
+                    Arrays.fill(s, 0, size, null); // Don't hold on to the strings
+                }
+            }
+            size = 0;
+        }
+    }
+
+    private interface Encoder extends Closeable
+    {
+        void write(Batch b) throws IOException;
+    }
+
+    /**
+     * Counts the bytes that are written to a file (see Metrics). The encoders buffer what they write, so this only
+     * sees large blocks.
+     */
+    private static final class CountingOutputStream extends FilterOutputStream
+    {
+        CountingOutputStream(File file) throws IOException
+        {
+            super(new FileOutputStream(file));
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            out.write(b);
+            BYTES_WRITTEN.increment();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            out.write(b, off, len);
+            BYTES_WRITTEN.add(len);
+        }
+    }
+
+    private static final class CsvEncoder implements Encoder
+    {
+        private final BufferedWriter out;
+        private final StringBuilder line = new StringBuilder(256);
+
+        CsvEncoder(File file, String[] names) throws IOException
+        {
+            this.out = new BufferedWriter(new OutputStreamWriter(new CountingOutputStream(file), StandardCharsets.UTF_8),
+                1 << 16);
+            out.write(String.join(",", names));
+            out.write('\n');
+        }
+
+        @Override
+        public void write(Batch b) throws IOException
+        {
+            int cols = b.longs.length;
+            for (int r = 0; r < b.size; r++)
+            {
+                line.setLength(0);
+                for (int c = 0; c < cols; c++)
+                {
+                    if (c > 0)
+                    {
+                        line.append(',');
+                    }
+                    if (b.longs[c] != null)
+                    {
+                        line.append(b.longs[c][r]);
+                    }
+                    else if (b.doubles[c] != null)
+                    {
+                        line.append(b.doubles[c][r]);
+                    }
+                    else
+                    {
+                        line.append(b.strings[c][r]);
+                    }
+                }
+                line.append('\n');
+                out.append(line);
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            out.close();
+        }
+    }
+
+    private static final class BinaryEncoder implements Encoder
+    {
+        private final DataOutputStream out;
+        // A dictionary for each string column
+        private final Map<String, Integer>[] dictionaries;
+        private final List<String> newStrings = new ArrayList<String>();
+        private int[] codes = new int[0];
+
+        @SuppressWarnings("unchecked")
+        BinaryEncoder(File file, String[] names, ColumnType[] types) throws IOException
+        {
+            this.out = new DataOutputStream(new BufferedOutputStream(new CountingOutputStream(file), 1 << 16));
+            out.writeBytes(MAGIC);
+            out.writeInt(names.length);
+            for (int c = 0; c < names.length; c++)
+            {
+                out.writeUTF(names[c]);
+                out.writeByte(types[c].ordinal());
+            }
+            this.dictionaries = new Map[types.length];
+            for (int c = 0; c < types.length; c++)
+            {
+                if (types[c] == ColumnType.STRING)
+                {
+                    dictionaries[c] = new HashMap<String, Integer>();
+                }
+            }
+        }
+
+        @Override
+        public void write(Batch b) throws IOException
+        {
+            int cols = b.longs.length;
+            out.writeInt(b.size);
+            for (int c = 0; c < cols; c++)
+            {
+                if (b.longs[c] != null)
+                {
+                    long[] col = b.longs[c];
+                    for (int r = 0; r < b.size; r++)
+                    {
+                        out.writeLong(col[r]);
+                    }
+                }
+                else if (b.doubles[c] != null)
+                {
+                    double[] col = b.doubles[c];
+                    for (int r = 0; r < b.size; r++)
+                    {
+                        out.writeDouble(col[r]);
+                    }
+                }
+                else
+                {
+                    writeStrings(b.strings[c], b.size, dictionaries[c]);
+                }
+            }
+        }
+
+        private void writeStrings(String[] col, int size, Map<String, Integer> dictionary) throws IOException
+        {
+            // Find the codes, remembering any strings that haven't been seen before
+            newStrings.clear();
+            if (codes.length < size)
+            {
+                codes = new int[size];
+            }
+            for (int r = 0; r < size; r++)
+            {
+                String s = col[r] == null ? "null" : col[r];
+                Integer code = dictionary.get(s);
+                if (code == null)
+                {
+                    code = dictionary.size();
+                    dictionary.put(s, code);
+                    newStrings.add(s);
+                }
+                codes[r] = code;
+            }
+            // Then write the new strings followed by the codes
+            out.writeInt(newStrings.size());
+            for (String s : newStrings)
+            {
+                out.writeUTF(s);
+            }
+            for (int r = 0; r < size; r++)
+            {
+                out.writeInt(codes[r]);
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            out.close();
+        }
+    }
+
+}
@@ -2,16 +2,20 @@ package surf.abm.surfutil
 
 import java.io.{File, IOException}
 
-import com.vividsolutions.jts.planargraph.Node
+import com.vividsolutions.jts.planargraph.{DirectedEdge, Node}
 import org.apache.log4j.Logger
 import sim.field.geo.GeomVectorField
 import sim.io.geo.ShapeFileImporter
-import sim.util.geo.{GeomPlanarGraph, GeomPlanarGraphDirectedEdge}
-import surf.abm.main.SurfABM
+import sim.util.geo.MasonGeometry
+import surf.abm.environment.{CompactGraph, GeomPlanarGraphSurf, NetworkComponents, Road}
+import surf.abm.main.{SurfABM, SurfGeometry}
+
+import scala.collection.JavaConverters._
 
 /**
   * Checks that the input road network is connected. If not, log a list of roads that are disconnected.
-  * Assumes that roads have an ID field.
+  * Assumes that roads have an ID field. (The model can also do this check, and remove the disconnected roads, when it
+  * reads the roads. See the PruneDisconnectedNetwork configuration parameter.)
   * Usage: scala surf.abm.surfutil.CheckConnectedNetwork [roads_file.shp]
   * Note: the classpath needs to be configured. See scripts/checkConnectedNetwork.sh.
   */
@@ -49,48 +53,74 @@ case object CheckConnectedNetwork {
     return roadsField
   }
 
-  def createNetwork(field: GeomVectorField) : GeomPlanarGraph = {
-    val network = new GeomPlanarGraph()
-    network.createFromGeomField(field)
+  /**
+    * Create a network from roads that have just been read. Each road's ID is taken from its 'ID' field (or its
+    * position in the file, if it doesn't have one) so that disconnected roads can be reported.
+    */
+  def createNetwork(field: GeomVectorField) : GeomPlanarGraphSurf = {
+    val roads = new GeomVectorField(SurfABM.WIDTH, SurfABM.HEIGHT)
+    for ((o, i) <- field.getGeometries.asScala.zipWithIndex) {
+      val g = o.asInstanceOf[MasonGeometry]
+      val id = try {
+        g.getIntegerAttribute("ID").intValue()
+      }
+      catch {
+        case _: NullPointerException => i
+      }
+      roads.addGeometry(SurfGeometry[Road](g, Road(id, -1)))
+    }
+    val network = new GeomPlanarGraphSurf()
+    network.createFromGeomField(roads)
     return network
   }
 
   /**
-    * Checks whether the input disconnected.
-    * Note: this function is very slow. A better way to check for a disconnected network is to use the
-    * 'disconnected islands' plugin for QGIS. It works in seconds.
+    * Checks whether the input is disconnected, and if so logs the roads that aren't connected to the main network.
     *
     * @param network
     * @return True if disconnected, false otherwise
     */
-  def checkDisconnected(network: GeomPlanarGraph): Boolean = {
+  def checkDisconnected(network: GeomPlanarGraphSurf): Boolean = {
 
     this.LOG.info("Checking if disconnected")
 
-    // Choose node zero to start with.
-    val it : java.util.Iterator[Node] =
-      network.getNodes().iterator().asInstanceOf[java.util.Iterator[Node]]
-    val start : Node = it.next()
-
-    val connected = traverse(start)
-
-    if (connected.size > 0) return true
-
-    return false
-
+    val graph = network.compile()
+    val components = NetworkComponents.analyse(graph)
+    this.LOG.info(report(graph, components))
+    if (!components.isConnected) {
+      this.LOG.info("IDs of the disconnected roads: " +
+        disconnectedRoads(graph, components).map(_.theObject.id).sorted.mkString(", "))
+    }
+    !components.isConnected
+  }
 
-    // All other nodes are disconnected:
-    //val disconnected = Set[Node](
-    //  network.getNodes().toArray().toSeq.asInstanceOf[Seq[Node]]: _*
-    //)
+  /**
+    * The roads that aren't part of the largest component of the network (see
+    * [[surf.abm.environment.NetworkComponents]]).
+    */
+  def disconnectedRoads(graph: CompactGraph, components: NetworkComponents): Seq[SurfGeometry[Road]] = {
+    for (e <- 0 until graph.getNumEdges if components.edgeComponent(e) != 0)
+      yield graph.getEdge(e).getGeometry.asInstanceOf[SurfGeometry[Road]]
+  }
 
+  /** A description of the components of the network (how many there are and how big they are) */
+  def report(graph: CompactGraph, components: NetworkComponents): String = {
+    if (components.isConnected) {
+      "The road network is connected (%d nodes)".format(graph.getNumNodes)
+    }
+    else {
+      val sizes = (0 until components.getNumComponents).map(components.size)
+      "The road network has %d disconnected components. The largest has %d of the %d nodes and %d roads are not connected to it. Component sizes: %s".format(
+        components.getNumComponents, sizes.head, graph.getNumNodes, disconnectedRoads(graph, components).size,
+        (if (sizes.size > 20) sizes.take(20) :+ "..." else sizes).mkString(", "))
+    }
   }
 
 
   /**
     * Traverse the graph using a breadth-first-search. Implementation of the pseudocode on
     * <a href="https://en.wikipedia.org/wiki/Breadth-first_search">wikipedia</a>
-    * I'm NOT SURE IF THIS ACTUALLY WORKS! I SUSPECT IT DOESN'T.
+    * (To find all of the components at once, use [[surf.abm.environment.NetworkComponents]].)
     * @param root The node to begin searching from
     * @return A Set of all nodes that can be reached from the root
     */
@@ -100,18 +130,16 @@ case object CheckConnectedNetwork {
     CheckConnectedNetwork.LOG.info("Traversing road network, looking for disconnected edges")
 
     q.enqueue(root)
-    var counter = 0
+    visited+=root
     while (!q.isEmpty) {
       val current : Node = q.dequeue()
-      visited+=current
       val edgeIterator = current.getOutEdges().iterator()
       while (edgeIterator.hasNext()) {
-        counter += 1
-        if (counter % 10000000 == 0) {
-          LOG.info("Analysed %d edges. (Queue size: %d)".format(counter, q.size))
+        val n: Node = edgeIterator.next().asInstanceOf[DirectedEdge].getToNode()
+        if (!visited.contains(n)) { // Only visit each node once
+          visited+=n
+          q.enqueue(n)
         }
-        val n: Node = edgeIterator.next().asInstanceOf[GeomPlanarGraphDirectedEdge].getEdge().getOppositeNode(current)
-        q.enqueue(n)
       }
     }
     LOG.info("Found %d connected nodes".format(visited.size))
@@ -0,0 +1,262 @@
+package surf.abm.surfutil;
+
+import surf.abm.surfutil.AsyncOutputWriter.ColumnType;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the binary files written by {@link AsyncOutputWriter} (see {@link AsyncOutputWriter.Format#BINARY}), one
+ * row at a time. E.g.:
+ *
+ * <pre>
+ * try (ColumnarFileReader r = new ColumnarFileReader(file)) {
+ *     while (r.next()) {
+ *         long id = r.getLong(2);
+ *         ...
+ *     }
+ * }
+ * </pre>
+ *
+ * <p>The main method turns a binary file into CSV, e.g. for analysis in R:</p>
+ *
+ * <code>java surf.abm.surfutil.ColumnarFileReader agents.bin agents.csv</code>
+ *
+ * @author Nick Malleson
+ */
+public final class ColumnarFileReader implements Closeable
+{
+
+    private final DataInputStream in;
+    private final String[] names;
+    private final ColumnType[] types;
+    // The strings in each string column, by code
+    private final List<List<String>> dictionaries = new ArrayList<List<String>>();
+
+    // The current block
+    private int blockSize = 0;
+    private final long[][] longs;
+    private final double[][] doubles;
+    private final int[][] codes;
+    private int row = -1;
+
+    public ColumnarFileReader(File file) throws IOException
+    {
+        this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        byte[] magic = new byte[AsyncOutputWriter.MAGIC.length()];
+        try
+        {
+            in.readFully(magic);
+            if (!AsyncOutputWriter.MAGIC.equals(new String(magic, StandardCharsets.US_ASCII)))
+            {
+                throw new IOException(file + " was not written by an AsyncOutputWriter");
+            }
+            int n = in.readInt();
+            this.names = new String[n];
+            this.types = new ColumnType[n];
+            for (int c = 0; c < n; c++)
+            {
+                names[c] = in.readUTF();
+                types[c] = ColumnType.values()[in.readByte()];
+                dictionaries.add(types[c] == ColumnType.STRING ? new ArrayList<String>() : null);
+            }
+        }
+        catch (IOException e)
+        {
+            in.close();
+            throw e;
+        }
+        this.longs = new long[names.length][];
+        this.doubles = new double[names.length][];
+        this.codes = new int[names.length][];
+    }
+
+    public String[] getNames()
+    {
+        return names.clone();
+    }
+
+    public ColumnType[] getTypes()
+    {
+        return types.clone();
+    }
+
+    /**
+     * Move on to the next row.
+     *
+     * @return false if there are no more rows
+     */
+    public boolean next() throws IOException
+    {
+        while (++row >= blockSize)
+        {
+            if (!readBlock())
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long getLong(int column)
+    {
+        check(column, ColumnType.LONG);
+        return longs[column][row];
+    }
+
+    public double getDouble(int column)
+    {
+        check(column, ColumnType.DOUBLE);
+        return doubles[column][row];
+    }
+
+    public String getString(int column)
+    {
+        check(column, ColumnType.STRING);
+        return dictionaries.get(column).get(codes[column][row]);
+    }
+
+    /** Write the rest of the rows as CSV (with a header line), in the same way that the CSV format does. */
+    public void writeCsv(Writer out) throws IOException
+    {
+        out.write(String.join(",", names));
+        out.write('\n');
+        StringBuilder line = new StringBuilder(256);
+        while (next())
+        {
+            line.setLength(0);
+            for (int c = 0; c < names.length; c++)
+            {
+                if (c > 0)
+                {
+                    line.append(',');
+                }
+                switch (types[c])
+                {
+                    case LONG: line.append(getLong(c)); break;
+                    case DOUBLE: line.append(getDouble(c)); break;
+                    case STRING: line.append(getString(c)); break;
+                }
+            }
+            line.append('\n');
+            out.append(line);
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        in.close();
+    }
+
+    private boolean readBlock() throws IOException
+    {
+        int size;
+        try
+        {
+            size = in.readInt();
+        }
+        catch (EOFException e)
+        {
+            return false; // No more blocks
+        }
+        for (int c = 0; c < names.length; c++)
+        {
+            switch (types[c])
+            {
+                case LONG:
+                    longs[c] = grow(longs[c], size);
+                    for (int r = 0; r < size; r++)
+                    {
+                        longs[c][r] = in.readLong();
+                    }
+                    break;
+                case DOUBLE:
+                    doubles[c] = grow(doubles[c], size);
+                    for (int r = 0; r < size; r++)
+                    {
+                        doubles[c][r] = in.readDouble();
+                    }
+                    break;
+                case STRING:
+                    List<String> dictionary = dictionaries.get(c);
+                    int newStrings = in.readInt();
+                    for (int i = 0; i < newStrings; i++)
+                    {
+                        dictionary.add(in.readUTF());
+                    }
+                    codes[c] = grow(codes[c], size);
+                    for (int r = 0; r < size; r++)
+                    {
+                        codes[c][r] = in.readInt();
+                    }
+                    break;
+            }
+        }
+        this.blockSize = size;
+        this.row = -1; // (next() moves on to the first row)
+        return true;
+    }
+
+    private void check(int column, ColumnType type)
+    {
+        if (types[column] != type)
+        {
+            throw new IllegalArgumentException("Column " + column + " (" + names[column] + ") is a " +
+                types[column] + " column, not a " + type + " column");
+        }
+        if (row < 0 || row >= blockSize)
+        {
+            throw new IllegalStateException("There is no current row. Call next() first.");
+        }
+    }
+
+    private static long[] grow(long[] a, int size)
+    {
+        return a != null && a.length >= size ? a : new long[size];
+    }
+
+    private static double[] grow(double[] a, int size)
+    {
+        return a != null && a.length >= size ? a : new double[size];
+    }
+
+    private static int[] grow(int[] a, int size)
+    {
+        return a != null && a.length >= size ? a : new int[size];
+    }
+
+    /**
+     * Convert a binary file to CSV.
+     *
+     * @param args The binary file and the CSV file to write (if there is no second argument, the CSV is written
+     * to standard output)
+     */
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 1 || args.length > 2)
+        {
+            System.err.println("Usage: ColumnarFileReader <binary file> [csv file]");
+            System.exit(1);
+        }
+        try (ColumnarFileReader r = new ColumnarFileReader(new File(args[0]));
+             Writer out = new BufferedWriter(new OutputStreamWriter(
+                 args.length > 1 ? new FileOutputStream(args[1]) : System.out, StandardCharsets.UTF_8)))
+        {
+            r.writeCsv(out);
+        }
+    }
+
+}
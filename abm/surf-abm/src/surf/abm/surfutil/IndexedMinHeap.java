@@ -0,0 +1,182 @@
+package surf.abm.surfutil;
+
+import java.util.Arrays;
+
+/**
+ * A binary min-heap of integer items (e.g. network node ids) ordered by a double key. Unlike
+ * <code>java.util.PriorityQueue</code> it knows where each item is in the heap, so keys can be decreased
+ * in O(log n) and membership checked in O(1). Nothing is allocated once the heap has grown to the size
+ * of the largest item, so it can be reused between searches by calling {@link #clear()}.
+ *
+ * <p>Items with equal keys come out in the order in which they were inserted (first in, first out), so the
+ * heap behaves deterministically and, for example, a search that uses it breaks ties in the same way as one that
+ * scans a list for the first item with the smallest key.</p>
+ *
+ * <p>Items must be non-negative integers. The storage grows automatically if a larger item is inserted.</p>
+ *
+ * @author Nick Malleson
+ */
+public final class IndexedMinHeap
+{
+
+    // heap[i] is the item at position i in the heap
+    private int[] heap;
+    // key[item] is the key of the item (only valid while the item is in the heap)
+    private double[] key;
+    // pos[item] is the position of the item in the heap, or -1 if it is not in the heap
+    private int[] pos;
+    // seq[item] is the order in which the item was inserted (used to break ties)
+    private long[] seq;
+    private long insertions = 0;
+    private int size = 0;
+
+    public IndexedMinHeap(int capacity)
+    {
+        capacity = Math.max(capacity, 16);
+        heap = new int[capacity];
+        key = new double[capacity];
+        pos = new int[capacity];
+        seq = new long[capacity];
+        Arrays.fill(pos, -1);
+    }
+
+    /** Remove all items. Only touches the items that are currently in the heap, not the whole array. */
+    public void clear()
+    {
+        for (int i = 0; i < size; i++)
+        {
+            pos[heap[i]] = -1;
+        }
+        size = 0;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public boolean contains(int item)
+    {
+        return item < pos.length && pos[item] != -1;
+    }
+
+    /** @return The key of the item with the smallest key. The heap must not be empty. */
+    public double minKey()
+    {
+        return key[heap[0]];
+    }
+
+    /** @return The key of an item that is in the heap. */
+    public double getKey(int item)
+    {
+        return key[item];
+    }
+
+    /**
+     * Add an item to the heap, or decrease its key if it is already there (the key is never increased).
+     */
+    public void insertOrDecrease(int item, double k)
+    {
+        if (contains(item))
+        {
+            if (k < key[item])
+            {
+                key[item] = k;
+                siftUp(pos[item]);
+            }
+            return;
+        }
+        ensureCapacity(item);
+        key[item] = k;
+        seq[item] = insertions++;
+        heap[size] = item;
+        pos[item] = size;
+        siftUp(size++);
+    }
+
+    /** Remove and return the item with the smallest key. The heap must not be empty. */
+    public int pollMin()
+    {
+        int min = heap[0];
+        pos[min] = -1;
+        size--;
+        if (size > 0)
+        {
+            heap[0] = heap[size];
+            pos[heap[0]] = 0;
+            siftDown(0);
+        }
+        return min;
+    }
+
+    /** @return true if item a should come out of the heap before item b */
+    private boolean before(int a, int b)
+    {
+        return key[a] < key[b] || (key[a] == key[b] && seq[a] < seq[b]);
+    }
+
+    private void siftUp(int i)
+    {
+        int item = heap[i];
+        while (i > 0)
+        {
+            int parent = (i - 1) >>> 1;
+            int p = heap[parent];
+            if (!before(item, p))
+            {
+                break;
+            }
+            heap[i] = p;
+            pos[p] = i;
+            i = parent;
+        }
+        heap[i] = item;
+        pos[item] = i;
+    }
+
+    private void siftDown(int i)
+    {
+        int item = heap[i];
+        int half = size >>> 1;
+        while (i < half)
+        {
+            int child = 2 * i + 1;
+            int right = child + 1;
+            if (right < size && before(heap[right], heap[child]))
+            {
+                child = right;
+            }
+            int c = heap[child];
+            if (!before(c, item))
+            {
+                break;
+            }
+            heap[i] = c;
+            pos[c] = i;
+            i = child;
+        }
+        heap[i] = item;
+        pos[item] = i;
+    }
+
+    private void ensureCapacity(int item)
+    {
+        if (item < pos.length && size < heap.length)
+        {
+            return;
+        }
+        int newCapacity = Math.max(Math.max(item + 1, size + 1), pos.length * 2);
+        int oldLength = pos.length;
+        pos = Arrays.copyOf(pos, newCapacity);
+        Arrays.fill(pos, oldLength, newCapacity, -1);
+        key = Arrays.copyOf(key, newCapacity);
+        seq = Arrays.copyOf(seq, newCapacity);
+        heap = Arrays.copyOf(heap, newCapacity);
+    }
+
+}
@@ -0,0 +1,455 @@
+package surf.abm.surfutil;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and histograms for the parts of the model that take most of the time (e.g. routing, finding nearby
+ * objects, updating the spatial index), so that a run can be watched while it is going and slow parts can be found
+ * without a profiler.
+ *
+ * <p>Metrics are created once (usually in a static field) by name, and asking for the same name again returns the
+ * same metric. Recording is cheap enough to leave on: counters are {@link LongAdder}s, so threads that are stepping
+ * agents in parallel rarely write to the same memory, and histograms keep one counter for each power of two rather
+ * than the values themselves. Timing a call costs two calls to {@link System#nanoTime()}. When metrics are turned
+ * off (see {@link #setEnabled(boolean)}) nothing is timed or counted.</p>
+ *
+ * <p>Every metric is registered as a JMX MXBean (e.g. <code>surf.abm:type=Timer,name=routing.astar</code>) so
+ * it can be watched in VisualVM or JConsole, and {@link #summary()} describes all of them (e.g. for the log).
+ * Metrics belong to the JVM, so if several runs are going at once (see Replication) they are added together.</p>
+ *
+ * @author Nick Malleson
+ */
+public final class Metrics
+{
+
+    private static volatile boolean enabled = true;
+
+    private static final Map<String, Counter> COUNTERS = new ConcurrentSkipListMap<String, Counter>();
+    private static final Map<String, Histogram> HISTOGRAMS = new ConcurrentSkipListMap<String, Histogram>();
+
+    private Metrics()
+    {
+    }
+
+    /** Whether metrics are being recorded */
+    public static boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /** Turn recording on or off (it is on to begin with) */
+    public static void setEnabled(boolean on)
+    {
+        enabled = on;
+    }
+
+    /** The counter with the given name, which is created (and registered with JMX) if necessary */
+    public static Counter counter(String name)
+    {
+        Counter c = COUNTERS.get(name);
+        if (c == null)
+        {
+            synchronized (COUNTERS)
+            {
+                c = COUNTERS.get(name);
+                if (c == null)
+                {
+                    c = new Counter(name);
+                    register("Counter", name, c);
+                    COUNTERS.put(name, c);
+                }
+            }
+        }
+        return c;
+    }
+
+    /** The histogram with the given name, which is created (and registered with JMX) if necessary */
+    public static Histogram histogram(String name)
+    {
+        return histogram(name, false);
+    }
+
+    /** The timer with the given name, which is created (and registered with JMX) if necessary */
+    public static Timer timer(String name)
+    {
+        Histogram h = histogram(name, true);
+        if (!(h instanceof Timer))
+        {
+            throw new IllegalArgumentException("'" + name + "' is a histogram, not a timer");
+        }
+        return (Timer) h;
+    }
+
+    private static Histogram histogram(String name, boolean timer)
+    {
+        Histogram h = HISTOGRAMS.get(name);
+        if (h == null)
+        {
+            synchronized (HISTOGRAMS)
+            {
+                h = HISTOGRAMS.get(name);
+                if (h == null)
+                {
+                    h = timer ? new Timer(name) : new Histogram(name);
+                    register(timer ? "Timer" : "Histogram", name, h);
+                    HISTOGRAMS.put(name, h);
+                }
+            }
+        }
+        return h;
+    }
+
+    private static void register(String type, String name, Object metric)
+    {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName("surf.abm:type=" + type + ",name=" + ObjectName.quote(name));
+            if (!server.isRegistered(objectName))
+            {
+                server.registerMBean(metric, objectName);
+            }
+        }
+        catch (JMException | SecurityException e)
+        {
+            // The metric still works, it just can't be seen through JMX
+        }
+    }
+
+    /** Set every metric back to zero (e.g. between runs) */
+    public static void reset()
+    {
+        for (Counter c : COUNTERS.values())
+        {
+            c.reset();
+        }
+        for (Histogram h : HISTOGRAMS.values())
+        {
+            h.reset();
+        }
+    }
+
+    /** A description of every metric that has recorded something, one per line (in order of name) */
+    public static String summary()
+    {
+        StringBuilder s = new StringBuilder("Metrics:");
+        for (Counter c : COUNTERS.values())
+        {
+            if (c.getCount() > 0)
+            {
+                s.append("\n\t").append(c);
+            }
+        }
+        for (Histogram h : HISTOGRAMS.values())
+        {
+            if (h.getCount() > 0)
+            {
+                s.append("\n\t").append(h);
+            }
+        }
+        return s.toString();
+    }
+
+    /** What a counter looks like through JMX */
+    public interface CounterMXBean
+    {
+        long getCount();
+    }
+
+    /** What a histogram looks like through JMX */
+    public interface HistogramMXBean
+    {
+        long getCount();
+
+        long getTotal();
+
+        double getMean();
+
+        long getMax();
+
+        long getMedian();
+
+        long get99thPercentile();
+    }
+
+    /** What a timer looks like through JMX (times are in milliseconds) */
+    public interface TimerMXBean extends HistogramMXBean
+    {
+        double getTotalMillis();
+
+        double getMeanMillis();
+
+        double getMaxMillis();
+
+        double getMedianMillis();
+
+        double get99thPercentileMillis();
+    }
+
+    /** A number that only goes up, e.g. the number of times something has happened */
+    public static final class Counter implements CounterMXBean
+    {
+        private final String name;
+        private final LongAdder count = new LongAdder();
+
+        private Counter(String name)
+        {
+            this.name = name;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public void increment()
+        {
+            if (enabled)
+            {
+                count.increment();
+            }
+        }
+
+        public void add(long n)
+        {
+            if (enabled)
+            {
+                count.add(n);
+            }
+        }
+
+        @Override
+        public long getCount()
+        {
+            return count.sum();
+        }
+
+        void reset()
+        {
+            count.reset();
+        }
+
+        @Override
+        public String toString()
+        {
+            return name + ": " + getCount();
+        }
+    }
+
+    /**
+     * The distribution of some non-negative values (e.g. the number of nodes that each search expanded). Values are
+     * counted in buckets of powers of two, so the median and percentiles are only accurate to within a factor of
+     * two, but recording a value is just a couple of increments.
+     */
+    public static class Histogram implements HistogramMXBean
+    {
+        private static final int BUCKETS = 64;
+
+        private final String name;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+        // buckets[b] counts the values v with 2^(b-1) <= v < 2^b (bucket 0 counts zeros)
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+        private Histogram(String name)
+        {
+            this.name = name;
+            for (int b = 0; b < BUCKETS; b++)
+            {
+                buckets[b] = new LongAdder();
+            }
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        /** Record a value (negative values are recorded as zero) */
+        public void record(long value)
+        {
+            if (!enabled)
+            {
+                return;
+            }
+            long v = Math.max(0, value);
+            count.increment();
+            total.add(v);
+            buckets[BUCKETS - Long.numberOfLeadingZeros(v)].increment();
+            long m = max.get();
+            while (v > m && !max.compareAndSet(m, v))
+            {
+                m = max.get();
+            }
+        }
+
+        @Override
+        public long getCount()
+        {
+            return count.sum();
+        }
+
+        @Override
+        public long getTotal()
+        {
+            return total.sum();
+        }
+
+        @Override
+        public double getMean()
+        {
+            long n = getCount();
+            return n == 0 ? 0 : (double) getTotal() / n;
+        }
+
+        @Override
+        public long getMax()
+        {
+            return max.get();
+        }
+
+        @Override
+        public long getMedian()
+        {
+            return percentile(0.5);
+        }
+
+        @Override
+        public long get99thPercentile()
+        {
+            return percentile(0.99);
+        }
+
+        /**
+         * Roughly the given percentile of the values: the top of the bucket that it falls in (but no more than the
+         * largest value).
+         *
+         * @param p The percentile, between 0 and 1
+         */
+        public long percentile(double p)
+        {
+            long[] counts = new long[BUCKETS];
+            long n = 0;
+            for (int b = 0; b < BUCKETS; b++)
+            {
+                counts[b] = buckets[b].sum();
+                n += counts[b];
+            }
+            if (n == 0)
+            {
+                return 0;
+            }
+            long rank = (long) Math.ceil(p * n);
+            long seen = 0;
+            for (int b = 0; b < BUCKETS; b++)
+            {
+                seen += counts[b];
+                if (seen >= rank && counts[b] > 0)
+                {
+                    long top = b == 0 ? 0 : b == BUCKETS - 1 ? Long.MAX_VALUE : (1L << b) - 1;
+                    return Math.min(top, getMax());
+                }
+            }
+            return getMax();
+        }
+
+        void reset()
+        {
+            count.reset();
+            total.reset();
+            max.set(0);
+            for (LongAdder b : buckets)
+            {
+                b.reset();
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s: count=%d total=%d mean=%.1f median=%d p99=%d max=%d",
+                name, getCount(), getTotal(), getMean(), getMedian(), get99thPercentile(), getMax());
+        }
+    }
+
+    /**
+     * A histogram of how long something takes, in nanoseconds. Use it like this:
+     *
+     * <pre>
+     * long start = timer.start();
+     * try { ... } finally { timer.stop(start); }
+     * </pre>
+     */
+    public static final class Timer extends Histogram implements TimerMXBean
+    {
+        private static final double NANOS_PER_MILLI = 1e6;
+
+        private Timer(String name)
+        {
+            super(name);
+        }
+
+        /** The time to give to {@link #stop(long)} (0 if metrics are turned off, so that nothing is timed) */
+        public long start()
+        {
+            return enabled ? System.nanoTime() : 0L;
+        }
+
+        /** Record the time since {@link #start()} was called */
+        public void stop(long start)
+        {
+            if (start != 0L)
+            {
+                record(System.nanoTime() - start);
+            }
+        }
+
+        @Override
+        public double getTotalMillis()
+        {
+            return getTotal() / NANOS_PER_MILLI;
+        }
+
+        @Override
+        public double getMeanMillis()
+        {
+            return getMean() / NANOS_PER_MILLI;
+        }
+
+        @Override
+        public double getMaxMillis()
+        {
+            return getMax() / NANOS_PER_MILLI;
+        }
+
+        @Override
+        public double getMedianMillis()
+        {
+            return getMedian() / NANOS_PER_MILLI;
+        }
+
+        @Override
+        public double get99thPercentileMillis()
+        {
+            return get99thPercentile() / NANOS_PER_MILLI;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s: count=%d total=%.1fms mean=%.4fms median=%.4fms p99=%.4fms max=%.3fms",
+                getName(), getCount(), getTotalMillis(), getMeanMillis(), getMedianMillis(),
+                get99thPercentileMillis(), getMaxMillis());
+        }
+    }
+
+}
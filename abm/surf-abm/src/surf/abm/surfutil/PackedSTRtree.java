@@ -0,0 +1,428 @@
+package surf.abm.surfutil;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import ec.util.MersenneTwisterFast;
+import sim.util.geo.MasonGeometry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A read-only spatial index, for finding the objects that are nearest to a geometry. It is a Sort-Tile-Recursive
+ * (STR) R-tree: the objects are sorted into tiles of nearby objects, the tiles into larger tiles, and so on, and
+ * the whole tree is packed into arrays once, when it is built.
+ *
+ * <p>Queries are branch-and-bound searches. Tiles (and then objects) are visited in order of their distance from
+ * the query geometry, using the distance between bounding boxes as a lower bound, and the search stops as soon as
+ * nothing that is left could be closer than the objects that have been found. The true distance between geometries
+ * is only calculated for objects whose bounding boxes are close enough to be worth checking.</p>
+ *
+ * <p>The search state is held in a {@link Workspace} that is reused by every query on the same thread, so queries
+ * do not allocate anything and many threads can query the same index at once.</p>
+ *
+ * <p>Objects that compare equal (with <code>equals()</code>) to the <code>exclude</code> parameter of a query are
+ * ignored. This mirrors the behaviour of <code>GISFunctions.findNearestObject</code>.</p>
+ *
+ * @param <T> The type of objects in the index
+ * @author Nick Malleson
+ */
+public final class PackedSTRtree<T extends MasonGeometry>
+{
+
+    /** The maximum number of children of each node */
+    private static final int NODE_CAPACITY = 16;
+
+    // The objects, in the order that they are stored in the leaves
+    private final Object[] items;
+    private final Geometry[] geoms;
+    private final double[] itemMinX, itemMinY, itemMaxX, itemMaxY;
+
+    // The nodes. Nodes at the bottom level (leaves) point to ranges of items, the others to ranges of nodes.
+    private final double[] nodeMinX, nodeMinY, nodeMaxX, nodeMaxY;
+    private final int[] childStart, childEnd;
+    private final boolean[] isLeaf;
+    private final int root;
+
+    private static final ThreadLocal<Workspace> WORKSPACE = new ThreadLocal<Workspace>()
+    {
+        @Override
+        protected Workspace initialValue()
+        {
+            return new Workspace();
+        }
+    };
+
+    /**
+     * Build an index of the given objects.
+     */
+    public PackedSTRtree(Collection<? extends T> objects)
+    {
+        final int n = objects.size();
+        // Sort the objects into leaves
+        final List<Entry> entries = new ArrayList<Entry>(n);
+        for (T o : objects)
+        {
+            entries.add(new Entry(o.getGeometry().getEnvelopeInternal(), o));
+        }
+        List<List<Entry>> groups = strPack(entries);
+
+        this.items = new Object[n];
+        this.geoms = new Geometry[n];
+        this.itemMinX = new double[n];
+        this.itemMinY = new double[n];
+        this.itemMaxX = new double[n];
+        this.itemMaxY = new double[n];
+
+        // Each group of entries becomes a leaf node, then each group of leaves becomes a node on the next level up,
+        // and so on until there is only one node (the root).
+        List<Entry> level = new ArrayList<Entry>();
+        int i = 0;
+        for (List<Entry> group : groups)
+        {
+            final Entry leaf = new Entry(new Envelope(), null);
+            leaf.start = i;
+            for (Entry e : group)
+            {
+                @SuppressWarnings("unchecked")
+                final T o = (T) e.payload;
+                items[i] = o;
+                geoms[i] = o.getGeometry();
+                itemMinX[i] = e.env.getMinX();
+                itemMinY[i] = e.env.getMinY();
+                itemMaxX[i] = e.env.getMaxX();
+                itemMaxY[i] = e.env.getMaxY();
+                leaf.env.expandToInclude(e.env);
+                i++;
+            }
+            leaf.end = i;
+            level.add(leaf);
+        }
+        int numNodes = level.size();
+        while (level.size() > 1)
+        {
+            final List<Entry> next = new ArrayList<Entry>();
+            for (List<Entry> group : strPack(level))
+            {
+                final Entry node = new Entry(new Envelope(), group);
+                for (Entry child : group)
+                {
+                    node.env.expandToInclude(child.env);
+                }
+                next.add(node);
+            }
+            numNodes += next.size();
+            level = next;
+        }
+
+        // Number the nodes breadth-first from the root, so that the children of each node have consecutive numbers
+        this.nodeMinX = new double[numNodes];
+        this.nodeMinY = new double[numNodes];
+        this.nodeMaxX = new double[numNodes];
+        this.nodeMaxY = new double[numNodes];
+        this.childStart = new int[numNodes];
+        this.childEnd = new int[numNodes];
+        this.isLeaf = new boolean[numNodes];
+        final ArrayList<Entry> queue = new ArrayList<Entry>(numNodes);
+        queue.addAll(level);
+        for (int j = 0; j < queue.size(); j++)
+        {
+            final Entry node = queue.get(j);
+            nodeMinX[j] = node.env.getMinX();
+            nodeMinY[j] = node.env.getMinY();
+            nodeMaxX[j] = node.env.getMaxX();
+            nodeMaxY[j] = node.env.getMaxY();
+            if (node.payload == null)
+            { // A leaf, which points to a range of items
+                isLeaf[j] = true;
+                childStart[j] = node.start;
+                childEnd[j] = node.end;
+            } else
+            {
+                @SuppressWarnings("unchecked")
+                final List<Entry> children = (List<Entry>) node.payload;
+                childStart[j] = queue.size();
+                queue.addAll(children);
+                childEnd[j] = queue.size();
+            }
+        }
+        this.root = level.isEmpty() ? -1 : 0;
+    }
+
+    /** @return The number of objects in the index */
+    public int size()
+    {
+        return items.length;
+    }
+
+    /**
+     * Find the object that is closest to the geometry.
+     *
+     * @param centre The geometry to search around
+     * @param exclude An object to ignore (e.g. the centre itself). Can be null.
+     * @return The nearest object, or null if the index is empty.
+     */
+    public T nearest(Geometry centre, Object exclude)
+    {
+        final Workspace w = WORKSPACE.get();
+        return search(w, centre, 1, exclude) == 0 ? null : this.<T>item(w.result[0]);
+    }
+
+    /**
+     * Find the k objects that are closest to the geometry.
+     *
+     * @param centre The geometry to search around
+     * @param k The number of objects to find
+     * @param exclude An object to ignore (e.g. the centre itself). Can be null.
+     * @param result A list to put the objects in (nearest first). It is cleared first.
+     * @return The number of objects found (fewer than k if the index doesn't have k objects).
+     */
+    public int kNearest(Geometry centre, int k, Object exclude, List<? super T> result)
+    {
+        final Workspace w = WORKSPACE.get();
+        final int found = search(w, centre, k, exclude);
+        result.clear();
+        for (int i = 0; i < found; i++)
+        {
+            result.add(this.<T>item(w.result[i]));
+        }
+        return found;
+    }
+
+    /**
+     * Choose an object at random from the k objects that are closest to the geometry.
+     *
+     * @param centre The geometry to search around
+     * @param k The number of objects to choose from
+     * @param exclude An object to ignore (e.g. the centre itself). Can be null.
+     * @param random The random number generator to use
+     * @return The chosen object, or null if the index is empty.
+     */
+    public T randomWithinKNearest(Geometry centre, int k, Object exclude, MersenneTwisterFast random)
+    {
+        final Workspace w = WORKSPACE.get();
+        final int found = search(w, centre, k, exclude);
+        return found == 0 ? null : this.<T>item(w.result[random.nextInt(found)]);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <U> U item(int i)
+    {
+        return (U) items[i];
+    }
+
+    /**
+     * Do a best-first search for the k nearest objects. Entries in the queue are nodes (stored as their number),
+     * objects whose bounding boxes are close (stored as -(item+1)) and objects whose true distance has been
+     * calculated (stored as -(item+1) - size()). Their keys are always lower bounds of the true distance of
+     * anything below them, so when an object with a true distance is at the front of the queue, nothing else can
+     * be closer.
+     *
+     * @return The number of objects found. Their indices are in w.result, nearest first.
+     */
+    private int search(Workspace w, Geometry centre, int k, Object exclude)
+    {
+        w.clear(k);
+        if (root < 0 || k <= 0)
+        {
+            return 0;
+        }
+        final Envelope q = centre.getEnvelopeInternal();
+        final double qMinX = q.getMinX(), qMinY = q.getMinY(), qMaxX = q.getMaxX(), qMaxY = q.getMaxY();
+        final int n = items.length;
+        w.push(boxDistance(qMinX, qMinY, qMaxX, qMaxY, nodeMinX[root], nodeMinY[root], nodeMaxX[root], nodeMaxY[root]), root);
+
+        int found = 0;
+        while (!w.isEmpty() && found < k)
+        {
+            final double d = w.peekKey();
+            final int ref = w.pop();
+            if (ref >= 0)
+            { // A node. Add its children to the queue.
+                if (isLeaf[ref])
+                {
+                    for (int i = childStart[ref]; i < childEnd[ref]; i++)
+                    {
+                        w.push(boxDistance(qMinX, qMinY, qMaxX, qMaxY, itemMinX[i], itemMinY[i], itemMaxX[i], itemMaxY[i]), -(i + 1));
+                    }
+                } else
+                {
+                    for (int c = childStart[ref]; c < childEnd[ref]; c++)
+                    {
+                        w.push(boxDistance(qMinX, qMinY, qMaxX, qMaxY, nodeMinX[c], nodeMinY[c], nodeMaxX[c], nodeMaxY[c]), c);
+                    }
+                }
+            } else if (ref >= -n)
+            { // An object that might be close. Work out how close it really is.
+                final int i = -ref - 1;
+                if (exclude != null && exclude.equals(items[i]))
+                {
+                    continue;
+                }
+                final double dist = centre.distance(geoms[i]);
+                w.push(Math.max(dist, d), ref - n);
+            } else
+            { // An object whose true distance is known. Nothing left in the queue can be closer.
+                w.result[found++] = -(ref + n) - 1;
+            }
+        }
+        return found;
+    }
+
+    /** The distance between two bounding boxes (0 if they overlap) */
+    private static double boxDistance(double aMinX, double aMinY, double aMaxX, double aMaxY,
+                                      double bMinX, double bMinY, double bMaxX, double bMaxY)
+    {
+        final double dx = Math.max(0, Math.max(aMinX - bMaxX, bMinX - aMaxX));
+        final double dy = Math.max(0, Math.max(aMinY - bMaxY, bMinY - aMaxY));
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    /**
+     * Sort-Tile-Recursive packing: sort the entries by x into vertical slices, sort each slice by y, and then cut
+     * the slices into groups of at most NODE_CAPACITY entries.
+     */
+    private static List<List<Entry>> strPack(List<Entry> entries)
+    {
+        final List<List<Entry>> groups = new ArrayList<List<Entry>>();
+        if (entries.isEmpty())
+        {
+            return groups;
+        }
+        final Entry[] sorted = entries.toArray(new Entry[0]);
+        Arrays.sort(sorted, BY_X);
+        final int numGroups = (int) Math.ceil(sorted.length / (double) NODE_CAPACITY);
+        final int numSlices = (int) Math.ceil(Math.sqrt(numGroups));
+        final int sliceSize = numSlices * NODE_CAPACITY;
+        for (int s = 0; s < sorted.length; s += sliceSize)
+        {
+            final Entry[] slice = Arrays.copyOfRange(sorted, s, Math.min(s + sliceSize, sorted.length));
+            Arrays.sort(slice, BY_Y);
+            for (int g = 0; g < slice.length; g += NODE_CAPACITY)
+            {
+                groups.add(Arrays.asList(Arrays.copyOfRange(slice, g, Math.min(g + NODE_CAPACITY, slice.length))));
+            }
+        }
+        return groups;
+    }
+
+    private static final Comparator<Entry> BY_X = new Comparator<Entry>()
+    {
+        @Override
+        public int compare(Entry a, Entry b)
+        {
+            return Double.compare(a.env.getMinX() + a.env.getMaxX(), b.env.getMinX() + b.env.getMaxX());
+        }
+    };
+
+    private static final Comparator<Entry> BY_Y = new Comparator<Entry>()
+    {
+        @Override
+        public int compare(Entry a, Entry b)
+        {
+            return Double.compare(a.env.getMinY() + a.env.getMaxY(), b.env.getMinY() + b.env.getMaxY());
+        }
+    };
+
+    /** Something (an object or a node) with a bounding box. Only used while the tree is being built. */
+    private static final class Entry
+    {
+        final Envelope env;
+        // The object (for objects), the children (for nodes above the leaves) or null (for leaves)
+        final Object payload;
+        // The range of items below a leaf
+        int start, end;
+
+        Entry(Envelope env, Object payload)
+        {
+            this.env = env;
+            this.payload = payload;
+        }
+    }
+
+    /** A priority queue of (distance, reference) pairs and a buffer for results, reused between queries. */
+    private static final class Workspace
+    {
+        private double[] keys = new double[256];
+        private int[] refs = new int[256];
+        private int size = 0;
+        int[] result = new int[16];
+
+        void clear(int k)
+        {
+            size = 0;
+            if (result.length < k)
+            {
+                result = new int[k];
+            }
+        }
+
+        boolean isEmpty()
+        {
+            return size == 0;
+        }
+
+        double peekKey()
+        {
+            return keys[0];
+        }
+
+        void push(double key, int ref)
+        {
+            if (size == keys.length)
+            {
+                keys = Arrays.copyOf(keys, size * 2);
+                refs = Arrays.copyOf(refs, size * 2);
+            }
+            int i = size++;
+            while (i > 0)
+            {
+                final int parent = (i - 1) >>> 1;
+                if (keys[parent] <= key)
+                {
+                    break;
+                }
+                keys[i] = keys[parent];
+                refs[i] = refs[parent];
+                i = parent;
+            }
+            keys[i] = key;
+            refs[i] = ref;
+        }
+
+        int pop()
+        {
+            final int top = refs[0];
+            size--;
+            if (size > 0)
+            {
+                final double key = keys[size];
+                final int ref = refs[size];
+                int i = 0;
+                final int half = size >>> 1;
+                while (i < half)
+                {
+                    int child = 2 * i + 1;
+                    if (child + 1 < size && keys[child + 1] < keys[child])
+                    {
+                        child++;
+                    }
+                    if (keys[child] >= key)
+                    {
+                        break;
+                    }
+                    keys[i] = keys[child];
+                    refs[i] = refs[child];
+                    i = child;
+                }
+                keys[i] = key;
+                refs[i] = ref;
+            }
+            return top;
+        }
+    }
+
+}
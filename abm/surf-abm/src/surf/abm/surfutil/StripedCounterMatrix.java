@@ -0,0 +1,147 @@
+package surf.abm.surfutil;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A matrix of counters with one row per thing being counted (e.g. a camera) and one column per time slot
+ * (e.g. an hour). Only the last column is "open": {@link #increment(int)} adds one to a row of the open column and
+ * {@link #nextColumn()} closes it and opens a new one.
+ *
+ * <p>Increments are lock free and can be made by many threads at once. Each thread adds to one of a number of
+ * stripes (chosen by its thread id), so threads rarely write to the same counter, and the counters in a stripe are
+ * spread out so that different rows do not share a cache line. The stripes are only added together when a column
+ * is closed. Closed columns are stored in a single <code>long</code> array, so reading them is cheap.</p>
+ *
+ * <p>When there are lots of rows (e.g. one per road) threads rarely count the same row at once anyway, so the
+ * counters can be packed together rather than spread out, which uses an eighth of the memory.</p>
+ *
+ * <p>{@link #nextColumn()} must not be called at the same time as {@link #increment(int)} (in the model, agents
+ * count things while they are being stepped, and the columns are moved on afterwards).</p>
+ *
+ * @author Nick Malleson
+ */
+public final class StripedCounterMatrix implements java.io.Serializable
+{
+
+    private static final long serialVersionUID = 1L;
+
+    // The number of longs between the counters for two rows (64 bytes, a typical cache line)
+    private static final int PAD = 8;
+
+    private final int rows;
+    // The number of longs between the counters for two rows in a stripe (PAD, or 1 if they are packed)
+    private final int pad;
+    private final int stripeMask;
+    // stripes[s].get(row * pad) is stripe s's count for the row in the open column
+    private final AtomicLongArray[] stripes;
+    // closed[col * rows + row] is the final count for the row in a closed column
+    private long[] closed;
+    private volatile int numClosed = 0;
+
+    /**
+     * @param rows The number of things being counted
+     * @param initialColumns Room to leave for this many columns (more are added if necessary)
+     */
+    public StripedCounterMatrix(int rows, int initialColumns)
+    {
+        this(rows, initialColumns, false);
+    }
+
+    /**
+     * @param rows The number of things being counted
+     * @param initialColumns Room to leave for this many columns (more are added if necessary)
+     * @param packed Whether to pack the counters together (see above)
+     */
+    public StripedCounterMatrix(int rows, int initialColumns, boolean packed)
+    {
+        if (rows < 0)
+        {
+            throw new IllegalArgumentException("The number of rows cannot be negative: " + rows);
+        }
+        this.rows = rows;
+        this.pad = packed ? 1 : PAD;
+        // Enough stripes that threads mostly have one each
+        int n = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+        n = Math.min(n, 64);
+        this.stripeMask = n - 1;
+        this.stripes = new AtomicLongArray[n];
+        for (int s = 0; s < n; s++)
+        {
+            stripes[s] = new AtomicLongArray(Math.max(1, rows * pad));
+        }
+        this.closed = new long[rows * Math.max(1, initialColumns)];
+    }
+
+    /** Add one to the row in the open column. Can be called by many threads at once. */
+    public void increment(int row)
+    {
+        add(row, 1L);
+    }
+
+    /** Add an amount to the row in the open column. Can be called by many threads at once. */
+    public void add(int row, long amount)
+    {
+        if (row < 0 || row >= rows)
+        {
+            throw new IndexOutOfBoundsException("Row " + row + " is not in the matrix (which has " + rows + " rows)");
+        }
+        stripes[(int) Thread.currentThread().getId() & stripeMask].getAndAdd(row * pad, amount);
+    }
+
+    /** Close the open column and open a new (empty) one. Only touches the open column, not the closed ones
+     * (unless the storage for them has to grow). */
+    public void nextColumn()
+    {
+        int col = numClosed;
+        if ((col + 1) * rows > closed.length)
+        {
+            closed = Arrays.copyOf(closed, Math.max(closed.length * 2, (col + 1) * rows));
+        }
+        int base = col * rows;
+        for (int r = 0; r < rows; r++)
+        {
+            long sum = 0;
+            for (AtomicLongArray stripe : stripes)
+            {
+                sum += stripe.getAndSet(r * pad, 0L);
+            }
+            closed[base + r] = sum;
+        }
+        numClosed = col + 1;
+    }
+
+    public int getNumRows()
+    {
+        return rows;
+    }
+
+    /** @return The number of columns, including the open one. */
+    public int getNumColumns()
+    {
+        return numClosed + 1;
+    }
+
+    /**
+     * @return The count for the row in the column. If the column is still open, the count might still be changing.
+     */
+    public long get(int row, int column)
+    {
+        if (row < 0 || row >= rows || column < 0 || column > numClosed)
+        {
+            throw new IndexOutOfBoundsException("(" + row + "," + column + ") is not in the matrix (which has " +
+                rows + " rows and " + getNumColumns() + " columns)");
+        }
+        if (column < numClosed)
+        {
+            return closed[column * rows + row];
+        }
+        long sum = 0;
+        for (AtomicLongArray stripe : stripes)
+        {
+            sum += stripe.get(row * pad);
+        }
+        return sum;
+    }
+
+}
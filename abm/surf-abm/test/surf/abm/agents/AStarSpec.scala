@@ -0,0 +1,133 @@
+package surf.abm.agents
+
+import com.vividsolutions.jts.geom.{Coordinate, GeometryFactory}
+import sim.field.geo.GeomVectorField
+import sim.util.geo.MasonGeometry
+import surf.abm.environment.{CompactGraph, GeomPlanarGraphSurf, Landmarks, Road}
+import surf.abm.exceptions.RoutingException
+import surf.abm.main.SurfGeometry
+import surf.abm.tests.{TestNetworks, UnitSpec}
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+/**
+  * Tests for the A* route finder.
+  */
+class AStarSpec extends UnitSpec {
+
+  // Tests consist of a *subject*, a *verb* (either 'should', 'must', or 'can') and the rest of the sentence
+
+  private val fact = new GeometryFactory()
+
+  /**
+    * Make a small network. There are two ways from (0,0) to (10,0): directly along the bottom, or via (5,8).
+    * There is also a separate road, (20,20)->(30,20), that isn't connected to anything else.
+    */
+  private def makeNetwork(): GeomPlanarGraphSurf = {
+    val roads = new GeomVectorField()
+    val lines = List(
+      ((0d, 0d), (5d, 0d)), ((5d, 0d), (10d, 0d)), // The short way
+      ((0d, 0d), (5d, 8d)), ((5d, 8d), (10d, 0d)), // The long way
+      ((20d, 20d), (30d, 20d)) // Disconnected
+    )
+    for ((((x1, y1), (x2, y2)), i) <- lines.zipWithIndex) {
+      val line = fact.createLineString(Array(new Coordinate(x1, y1), new Coordinate(x2, y2)))
+      roads.addGeometry(SurfGeometry[Road](new MasonGeometry(line), Road(i, -1)))
+    }
+    val network = new GeomPlanarGraphSurf()
+    network.createFromGeomField(roads)
+    network
+  }
+
+  /** The length of the shortest path from start to goal, found with plain Dijkstra (or infinity if there isn't one) */
+  private def dijkstra(graph: CompactGraph, start: Int, goal: Int): Double = {
+    val dist = Array.fill(graph.getNumNodes)(Double.PositiveInfinity)
+    val queue = mutable.PriorityQueue[(Double, Int)]()(Ordering.by[(Double, Int), Double](_._1).reverse)
+    dist(start) = 0
+    queue += ((0d, start))
+    while (queue.nonEmpty) {
+      val (d, x) = queue.dequeue()
+      if (d <= dist(x)) { // (Otherwise x has already been reached more cheaply)
+        for (s <- graph.firstSlot(x) until graph.endSlot(x); y = graph.target(s) if d + graph.length(s) < dist(y)) {
+          dist(y) = d + graph.length(s)
+          queue += ((dist(y), y))
+        }
+      }
+    }
+    dist(goal)
+  }
+
+  "An AStar" should "give every node a unique id" in {
+    val network = makeNetwork()
+    val ids = network.getNodes.asScala.map(n => GeomPlanarGraphSurf.getNodeId(n.asInstanceOf[com.vividsolutions.jts.planargraph.Node]))
+    ids.toSet should be ((0 until network.getNumNodes).toSet)
+  }
+
+  it should "find the shortest path between two nodes" in {
+    val network = makeNetwork()
+    val path = new AStar(network.compile()).astarPath(
+      network.findNode(new Coordinate(0, 0)), network.findNode(new Coordinate(10, 0))).asScala
+    path.size should be (2)
+    path.head.getFromNode.getCoordinate should be (new Coordinate(0, 0))
+    path(0).getToNode should be theSameInstanceAs path(1).getFromNode
+    path.last.getToNode.getCoordinate should be (new Coordinate(10, 0))
+    path.map(_.getToNode.getCoordinate.y).max should be (0d) // Didn't go via (5,8)
+  }
+
+  it should "give the same answer when the same search is repeated" in {
+    val network = makeNetwork()
+    val astar = new AStar(network.compile())
+    val (a, b) = (network.findNode(new Coordinate(10, 0)), network.findNode(new Coordinate(5, 8)))
+    val first = astar.astarPath(a, b)
+    for (_ <- 0 until 5) {
+      astar.astarPath(network.findNode(new Coordinate(0, 0)), network.findNode(new Coordinate(10, 0)))
+      astar.astarPath(a, b) should be (first)
+    }
+  }
+
+  it should "find paths as short as Dijkstra's, with or without landmarks" in {
+    val graph = TestNetworks.grid(20, 20, island = true)
+    val random = new scala.util.Random(3)
+    for (astar <- Seq(new AStar(graph), new AStar(graph, Landmarks.build(graph, 8))); _ <- 0 until 200) {
+      val (start, goal) = (random.nextInt(graph.getNumNodes), random.nextInt(graph.getNumNodes))
+      val expected = dijkstra(graph, start, goal)
+      val path = astar.astarSlots(start, goal)
+      if (start == goal || expected.isInfinite) {
+        path.isEmpty should be (true)
+      } else {
+        path.map(graph.length).sum should be (expected +- 1e-9)
+        graph.getDirectedEdge(path.head).getFromNode should be theSameInstanceAs graph.getNode(start)
+        graph.target(path.last) should be (goal)
+      }
+    }
+  }
+
+  it should "throw a RoutingException if it isn't given a node" in {
+    val network = makeNetwork()
+    a [RoutingException] should be thrownBy {
+      new AStar(network.compile()).astarPath(null, network.findNode(new Coordinate(10, 0)))
+    }
+  }
+
+  it should "return an empty path if the nodes are not connected" in {
+    val network = makeNetwork()
+    val path = new AStar(network.compile()).astarPath(network.findNode(new Coordinate(0, 0)), network.findNode(new Coordinate(30, 20)))
+    path.isEmpty should be (true)
+  }
+
+  "A CompactGraph" should "have the same edges as the network it was compiled from" in {
+    val network = makeNetwork()
+    val graph = network.compile()
+    graph.getNumNodes should be (network.getNumNodes)
+    graph.getNumEdges should be (5)
+    graph.getNumSlots should be (10) // Two directions for each edge
+    for (n <- 0 until graph.getNumNodes; s <- graph.firstSlot(n) until graph.endSlot(n)) {
+      val de = graph.getDirectedEdge(s)
+      GeomPlanarGraphSurf.getNodeId(de.getFromNode) should be (n)
+      GeomPlanarGraphSurf.getNodeId(de.getToNode) should be (graph.target(s))
+      graph.getEdge(graph.edgeId(s)) should be theSameInstanceAs de.getEdge
+    }
+  }
+
+}
@@ -0,0 +1,85 @@
+package surf.abm.agents
+
+import com.vividsolutions.jts.geom.{Coordinate, GeometryFactory}
+import sim.field.geo.GeomVectorField
+import sim.util.geo.MasonGeometry
+import surf.abm.environment.{GeomPlanarGraphSurf, Road}
+import surf.abm.main.SurfGeometry
+import surf.abm.tests.UnitSpec
+
+import scala.collection.JavaConverters._
+
+/**
+  * Tests for paths that have been compiled into lines.
+  */
+class CompiledPathSpec extends UnitSpec {
+
+  // Tests consist of a *subject*, a *verb* (either 'should', 'must', or 'can') and the rest of the sentence
+
+  private val fact = new GeometryFactory()
+
+  /**
+    * A path (0,0) -> (5,0) -> (5,5) -> (10,5). The middle road is drawn backwards (from (5,5) to (5,0)) and has
+    * camera 7 on it, as does the last road.
+    */
+  private def makePath(countRoads: Boolean = false): CompiledPath = {
+    val roads = new GeomVectorField()
+    val lines = List(
+      (((0d, 0d), (5d, 0d)), -1),
+      (((5d, 5d), (5d, 0d)), 7),
+      (((5d, 5d), (10d, 5d)), 7)
+    )
+    for (((((x1, y1), (x2, y2)), camera), i) <- lines.zipWithIndex) {
+      val line = fact.createLineString(Array(new Coordinate(x1, y1), new Coordinate(x2, y2)))
+      roads.addGeometry(SurfGeometry[Road](new MasonGeometry(line), Road(i, camera)))
+    }
+    val network = new GeomPlanarGraphSurf()
+    network.createFromGeomField(roads)
+    val path = new AStar(network.compile()).astarPath(
+      network.findNode(new Coordinate(0, 0)), network.findNode(new Coordinate(10, 5))).asScala
+    // Count the roads in the opposite order to the one that they were made in
+    val rows = new java.util.IdentityHashMap[AnyRef, Integer]()
+    for (i <- 0 until roads.getGeometries.size) {
+      rows.put(roads.getGeometries.get(i), 2 - i)
+    }
+    CompiledPath(path, new Coordinate(0, 0), if (countRoads) rows else null)
+  }
+
+  "A CompiledPath" should "be as long as the roads on it" in {
+    makePath().length should be (15d)
+  }
+
+  it should "go along roads in the direction of travel, even if they are drawn the other way" in {
+    val p = makePath()
+    for ((d, x, y) <- Seq((2.5, 2.5, 0d), (7d, 5d, 2d), (12d, 7d, 5d))) {
+      val s = p.segmentAt(d, 0)
+      p.x(s, d) should be (x +- 1e-9)
+      p.y(s, d) should be (y +- 1e-9)
+    }
+  }
+
+  it should "find the same segment when searching from an earlier one" in {
+    val p = makePath()
+    var s = 0
+    for (d <- (1 until 30).map(_ * 0.5)) {
+      s = p.segmentAt(d, s)
+      s should be (p.segmentAt(d, 0))
+    }
+  }
+
+  it should "only include each camera once, at the start of the first road that it is on" in {
+    val p = makePath()
+    p.numCameras should be (1)
+    p.cameraID(0) should be (7)
+    p.cameraDistance(0) should be (5d)
+  }
+
+  it should "include every road, at the start of the road, if roads are being counted" in {
+    makePath().numRoads should be (0)
+    val p = makePath(countRoads = true)
+    p.numRoads should be (3)
+    (0 until 3).map(p.roadRow) should be (Seq(2, 1, 0))
+    (0 until 3).map(p.roadDistance) should be (Seq(0d, 5d, 10d))
+  }
+
+}
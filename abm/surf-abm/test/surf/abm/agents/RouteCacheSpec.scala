@@ -0,0 +1,56 @@
+package surf.abm.agents
+
+import surf.abm.tests.UnitSpec
+
+/**
+  * Tests for the cache of routes.
+  */
+class RouteCacheSpec extends UnitSpec {
+
+  // Tests consist of a *subject*, a *verb* (either 'should', 'must', or 'can') and the rest of the sentence
+
+  // A route along a single road (the slot of its edge)
+  private def route(): Array[Int] = Array(0)
+
+  "A RouteCache" should "only calculate a route once" in {
+    val cache = new RouteCache(10)
+    var calculations = 0
+    val r = route()
+    for (_ <- 0 until 5) {
+      cache.getOrElseUpdate(1, 2, { calculations += 1; r }) should be theSameInstanceAs r
+    }
+    calculations should be (1)
+    cache.misses() should be (1)
+    cache.hits() should be (4)
+  }
+
+  it should "treat the two directions of a route separately" in {
+    val cache = new RouteCache(10)
+    cache.getOrElseUpdate(1, 2, route())
+    cache.getOrElseUpdate(2, 1, route())
+    cache.size() should be (2)
+    cache.misses() should be (2)
+  }
+
+  it should "forget the least recently used route when it is full" in {
+    val cache = new RouteCache(2)
+    cache.getOrElseUpdate(1, 2, route())
+    cache.getOrElseUpdate(3, 4, route())
+    cache.getOrElseUpdate(1, 2, route()) // (1,2) is now used more recently than (3,4)
+    cache.getOrElseUpdate(5, 6, route()) // So (3,4) should be evicted
+    cache.size() should be (2)
+    cache.hits() should be (1)
+    var calculated = false
+    cache.getOrElseUpdate(1, 2, { calculated = true; route() })
+    calculated should be (false)
+    cache.getOrElseUpdate(3, 4, { calculated = true; route() })
+    calculated should be (true)
+  }
+
+  it should "not cache empty routes" in {
+    val cache = new RouteCache(10)
+    cache.getOrElseUpdate(1, 2, Array[Int]())
+    cache.size() should be (0)
+  }
+
+}
@@ -0,0 +1,73 @@
+package surf.abm.agents.abbf
+
+import surf.abm.tests.UnitSpec
+
+/**
+  * Tests for the columns that hold the activities' intensities.
+  */
+class ActivityEngineSpec extends UnitSpec {
+
+  // Tests consist of a *subject*, a *verb* (either 'should', 'must', or 'can') and the rest of the sentence
+
+  private val profile = TimeProfile(Array((0d, 0d), (6d, 1d), (12d, 0.5), (18d, 0d)))
+  private val flat = TimeProfile(Array((0d, 0.2)))
+
+  "An ActivityEngine" should "keep allocating slots past its initial size" in {
+    val e = new ActivityEngine()
+    val slots = (0 until 5000).map(i => e.allocate(flat, i))
+    slots should be (0 until 5000)
+    e.size should be (5000)
+    e.multiplier(4999) should be (4999d)
+    e.backgroundIntensity(4999) should be (0d)
+    e.increase(4999).isNaN should be (true)
+  }
+
+  it should "increase all of the slots apart from the one that it is told not to" in {
+    val e = new ActivityEngine()
+    val slots = Array.fill(3)(e.allocate(flat, 1d))
+    slots.foreach(s => e.setIncrease(s, 0.1 * (s + 1)))
+    e.increaseAll(slots, slots(1))
+    e.backgroundIntensity(slots(0)) should be (0.1)
+    e.backgroundIntensity(slots(1)) should be (0d)
+    e.backgroundIntensity(slots(2)) should be (0.3 +- 1e-12)
+    e.increaseAll(slots, -1)
+    e.backgroundIntensity(slots(1)) should be (0.2)
+  }
+
+  it should "find the most intense slot, choosing the first if several are equal" in {
+    val e = new ActivityEngine()
+    val slots = Array.fill(4)(e.allocate(flat, 1d))
+    e.setBackgroundIntensity(slots(1), 0.5)
+    e.setBackgroundIntensity(slots(3), 0.5)
+    e.highest(slots, 10d) should be (1)
+    e.highest(Array.empty[Int], 10d) should be (-1)
+  }
+
+  it should "allocate released slots again, as if they were new" in {
+    val e = new ActivityEngine()
+    val slots = Array.fill(3)(e.allocate(flat, 1d))
+    e.setBackgroundIntensity(slots(1), 0.5)
+    e.setIncrease(slots(1), 0.1)
+    e.release(slots(1))
+    e.used should be (2)
+    val s = e.allocate(profile, 2d)
+    s should be (slots(1))
+    e.size should be (3)
+    e.used should be (3)
+    e.backgroundIntensity(s) should be (0d)
+    e.multiplier(s) should be (2d)
+    e.increase(s).isNaN should be (true)
+    e.timeIntensity(s, 6d) should be (1d)
+    e.allocate(flat, 1d) should be (3)
+  }
+
+  it should "give the same time intensities as the time profile" in {
+    val e = new ActivityEngine()
+    val s = e.allocate(profile, 1d)
+    for (hour <- Seq(0d, 3d, 3d, 7.5, 7.5, 12d, 23.9, 3d)) {
+      e.timeIntensity(s, hour) should be (profile.calcIntensity(hour))
+      e.intensity(s, hour) should be (profile.calcIntensity(hour))
+    }
+  }
+
+}
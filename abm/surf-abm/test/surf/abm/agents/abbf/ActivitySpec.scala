@@ -144,4 +144,29 @@ class ActivitySpec extends UnitSpec with GivenWhenThen with Matchers {
   }
 
 
+  "The maxIntensity() and minIntensity() functions" should "find the extremes within a period" in {
+    val tp = TimeProfile(Array((5d, 0d), (10d, 8.0), (13d, 14.0), (15d, 10.0), (23d, 5.0)))
+    tp.maxIntensity(6d, 2d) should equal (tp.calcIntensity(8d)) // Increasing, so at the end
+    tp.minIntensity(6d, 2d) should equal (tp.calcIntensity(6d)) // ... and lowest at the start
+    tp.maxIntensity(11d, 3d) should equal (14d) // A peak in the middle
+    tp.minIntensity(4d, 2d) should equal (0d) // A dip in the middle
+    tp.minIntensity(0d, 24d) should equal (0d) // The whole day
+    tp.maxIntensity(0d, 30d) should equal (14d)
+  }
+
+  it should "look past midnight" in {
+    val tp = TimeProfile(Array((5d, 0d), (10d, 8.0), (13d, 14.0), (15d, 10.0), (23d, 5.0)))
+    tp.minIntensity(22d, 8d) should equal (0d) // (At 5am)
+    tp.maxIntensity(23d, 6d) should equal (5d) // (At 11pm)
+  }
+
+  it should "never be beaten by the intensity at any time in the period" in {
+    val tp = TimeProfile(Array((5d, 0d), (10d, 8.0), (13d, 14.0), (15d, 10.0), (23d, 5.0)))
+    for (from <- 0 until 24; hours <- Seq(0.5, 3d, 11d)) {
+      val times = (0 to 100).map(i => (from + hours * i / 100) % 24)
+      tp.maxIntensity(from, hours) should be >= times.map(tp.calcIntensity).max
+      tp.minIntensity(from, hours) should be <= times.map(tp.calcIntensity).min
+    }
+  }
+
 }
@@ -0,0 +1,95 @@
+package surf.abm.environment
+
+import java.io.{File, FileOutputStream, RandomAccessFile}
+
+import com.vividsolutions.jts.geom.{Coordinate, GeometryFactory}
+import sim.util.geo.MasonGeometry
+import surf.abm.tests.UnitSpec
+
+import scala.collection.JavaConverters._
+
+/**
+  * Tests for the snapshots that the environment can be read from instead of the shapefiles.
+  */
+class EnvironmentSnapshotSpec extends UnitSpec {
+
+  // Tests consist of a *subject*, a *verb* (either 'should', 'must', or 'can') and the rest of the sentence
+
+  private val fact = new GeometryFactory()
+
+  private def building(): MasonGeometry = {
+    val g = new MasonGeometry(fact.createPolygon(Array(
+      new Coordinate(0, 0), new Coordinate(10, 0), new Coordinate(10, 10), new Coordinate(0, 0))))
+    g.addIntegerAttribute("ID", 3)
+    g.addStringAttribute("TYPE", "SHOP")
+    g.addDoubleAttribute("AREA", 50.5)
+    g
+  }
+
+  private def road(): MasonGeometry = {
+    val g = new MasonGeometry(fact.createLineString(Array(new Coordinate(0.1, 0.2), new Coordinate(5, 6))))
+    g.addIntegerAttribute("ID", 9)
+    g.addIntegerAttribute("cameraID", -1)
+    g
+  }
+
+  // A file to make the hash from
+  private def input(contents: Int): File = {
+    val f = File.createTempFile("buildings", ".shp")
+    f.deleteOnExit()
+    val out = new FileOutputStream(f)
+    out.write(contents)
+    out.close()
+    f
+  }
+
+  private def snapshotFile(): File = {
+    val f = File.createTempFile("environment", ".snapshot")
+    f.deleteOnExit()
+    f
+  }
+
+  "An EnvironmentSnapshot" should "read back the geometries and attributes that were written" in {
+    val file = snapshotFile()
+    val hash = EnvironmentSnapshot.hash(List(input(1)).asJava)
+    new EnvironmentSnapshot(hash, List(building()).asJava, List(road()).asJava, Array(-1, -1, -1, 4)).write(file)
+    val s = EnvironmentSnapshot.read(file, hash)
+    s should not be (null)
+    val b = s.getBuildings.get(0)
+    b.getGeometry.equalsExact(building().getGeometry) should be (true)
+    b.getIntegerAttribute("ID") should be (3)
+    b.getStringAttribute("TYPE") should be ("SHOP")
+    b.getDoubleAttribute("AREA") should be (50.5)
+    s.getRoads.get(0).getGeometry.equalsExact(road().getGeometry) should be (true)
+    s.getRoads.get(0).getIntegerAttribute("cameraID") should be (-1)
+    s.getBuildingNodes should be (Array(-1, -1, -1, 4))
+  }
+
+  it should "be ignored if the input files have changed" in {
+    val file = snapshotFile()
+    val f = input(1)
+    val hash = EnvironmentSnapshot.hash(List(f).asJava)
+    new EnvironmentSnapshot(hash, List(building()).asJava, List(road()).asJava, Array(0)).write(file)
+    val out = new FileOutputStream(f)
+    out.write(2)
+    out.close()
+    val newHash = EnvironmentSnapshot.hash(List(f).asJava)
+    newHash should not be (hash)
+    EnvironmentSnapshot.read(file, newHash) should be (null)
+  }
+
+  it should "be ignored if it has been cut short" in {
+    val file = snapshotFile()
+    val hash = EnvironmentSnapshot.hash(List(input(1)).asJava)
+    new EnvironmentSnapshot(hash, List(building()).asJava, List(road()).asJava, Array(0)).write(file)
+    val raf = new RandomAccessFile(file, "rw")
+    raf.setLength(raf.length() - 10)
+    raf.close()
+    EnvironmentSnapshot.read(file, hash) should be (null)
+  }
+
+  it should "not exist if it hasn't been written" in {
+    EnvironmentSnapshot.read(new File("no-such-snapshot"), "hash") should be (null)
+  }
+
+}
@@ -0,0 +1,64 @@
+package surf.abm.environment
+
+import java.io.File
+
+import surf.abm.agents.AStar
+import surf.abm.tests.{TestNetworks, UnitSpec}
+
+/**
+  * Tests for the landmarks that guide routing.
+  */
+class LandmarksSpec extends UnitSpec {
+
+  // Tests consist of a *subject*, a *verb* (either 'should', 'must', or 'can') and the rest of the sentence
+
+  private def cost(graph: CompactGraph, slots: Array[Int]): Double = slots.map(graph.length).sum
+
+  "A Landmarks" should "never estimate more than the real distance" in {
+    val graph = TestNetworks.grid(20, 20, island = true)
+    val landmarks = Landmarks.build(graph, 8)
+    val active = new Array[Int](8)
+    val n = landmarks.selectActive(0, 1, active, new Array[Double](8))
+    n should be (8)
+    val astar = new AStar(graph)
+    for (v <- 0 until graph.getNumNodes by 7; goal <- Seq(0, graph.getNumNodes / 2)) {
+      val path = astar.astarSlots(v, goal)
+      if (path.nonEmpty) {
+        landmarks.lowerBound(v, goal, active, n) should be <= (cost(graph, path) + 1e-9)
+      }
+    }
+  }
+
+  it should "let A* find the same length of path while expanding fewer nodes" in {
+    val graph = TestNetworks.grid(20, 20, island = true)
+    val plain = new AStar(graph)
+    val alt = new AStar(graph, Landmarks.build(graph, 8))
+    val random = new scala.util.Random(2)
+    var expandedPlain, expandedAlt = 0L
+    for (_ <- 0 until 200) {
+      val (start, goal) = (random.nextInt(graph.getNumNodes), random.nextInt(graph.getNumNodes))
+      val p1 = plain.astarSlots(start, goal)
+      expandedPlain += AStar.lastExpanded()
+      val p2 = alt.astarSlots(start, goal)
+      expandedAlt += AStar.lastExpanded()
+      p2.isEmpty should be (p1.isEmpty)
+      cost(graph, p2) should be (cost(graph, p1) +- 1e-9)
+    }
+    expandedAlt should be < expandedPlain
+  }
+
+  it should "be saved and only read back for the same network" in {
+    val graph = TestNetworks.grid(20, 20, island = true)
+    val file = File.createTempFile("landmarks", ".landmarks")
+    file.deleteOnExit()
+    val landmarks = Landmarks.load(file, graph, 4)
+    val read = Landmarks.read(file, graph)
+    read.getNumLandmarks should be (4)
+    for (l <- 0 until 4; v <- 0 until graph.getNumNodes) {
+      read.distance(l, v) should be (landmarks.distance(l, v))
+    }
+    // A different network (a single road)
+    Landmarks.read(file, TestNetworks.grid(2, 1, keep = 1.0)) should be (null)
+  }
+
+}
@@ -0,0 +1,84 @@
+package surf.abm.environment
+
+import com.vividsolutions.jts.geom.{Coordinate, Envelope, GeometryFactory}
+import ec.util.MersenneTwisterFast
+import sim.util.geo.{MasonGeometry, PointMoveTo}
+import surf.abm.tests.UnitSpec
+
+/**
+  * Tests for the grid that indexes moving objects.
+  */
+class MovingGeomVectorFieldSpec extends UnitSpec {
+
+  // Tests consist of a *subject*, a *verb* (either 'should', 'must', or 'can') and the rest of the sentence
+
+  private val fact = new GeometryFactory()
+  private def point(x: Double, y: Double) = new MasonGeometry(fact.createPoint(new Coordinate(x, y)))
+
+  private val random = new MersenneTwisterFast(1L)
+  private val moveTo = new PointMoveTo()
+
+  // A field with lots of random points in it
+  private def field(n: Int): (MovingGeomVectorField, IndexedSeq[MasonGeometry]) = {
+    val f = new MovingGeomVectorField(10, 10, 50)
+    val points = (0 until n).map(_ => point(random.nextDouble() * 1000, random.nextDouble() * 1000))
+    points.foreach(f.addGeometry)
+    f.setMBR(new Envelope(0, 1000, 0, 1000))
+    (f, points)
+  }
+
+  private def move(f: MovingGeomVectorField, p: MasonGeometry, x: Double, y: Double): Unit = {
+    moveTo.setCoordinate(new Coordinate(x, y))
+    f.setGeometryLocation(p, moveTo)
+  }
+
+  "A MovingGeomVectorField" should "find the objects within a distance after they have moved" in {
+    val (f, points) = field(2000)
+    for (_ <- 0 until 20) {
+      for (_ <- 0 until 200) {
+        move(f, points(random.nextInt(points.size)), random.nextDouble() * 1000, random.nextDouble() * 1000)
+      }
+      f.updateSpatialIndex()
+      val centre = point(random.nextDouble() * 1000, random.nextDouble() * 1000)
+      val found = f.getObjectsWithinDistance(centre, 100)
+      found.size should be (points.count(p => centre.geometry.distance(p.geometry) <= 100))
+    }
+  }
+
+  it should "apply moves before a query, even if the index hasn't been updated" in {
+    val (f, points) = field(100)
+    f.updateSpatialIndex()
+    move(f, points(0), 5000, 5000)
+    f.getNumPendingMoves should be (1)
+    f.queryField(new Envelope(4990, 5010, 4990, 5010)).contains(points(0)) should be (true)
+    f.getNumPendingMoves should be (0)
+  }
+
+  it should "only remember an object once, however many times it moves" in {
+    val (f, points) = field(10)
+    f.updateSpatialIndex()
+    for (i <- 0 until 5) move(f, points(0), i, i)
+    f.getNumPendingMoves should be (1)
+  }
+
+  it should "forget objects that are removed" in {
+    val (f, points) = field(100)
+    f.updateSpatialIndex()
+    f.removeGeometry(points(0))
+    f.queryField(new Envelope(-1, 1001, -1, 1001)).size should be (99)
+  }
+
+  it should "find objects that have been added after the index was built" in {
+    val (f, points) = field(100)
+    f.updateSpatialIndex()
+    val p = point(-200, -200) // (Outside the grid)
+    f.addGeometry(p)
+    f.getObjectsWithinDistance(p, 1).contains(p) should be (true)
+  }
+
+  it should "return the same updater every time" in {
+    val f = new MovingGeomVectorField(10, 10, 50)
+    f.scheduleSpatialIndexUpdater should be theSameInstanceAs f.scheduleSpatialIndexUpdater
+  }
+
+}
@@ -0,0 +1,64 @@
+package surf.abm.environment
+
+import ec.util.MersenneTwisterFast
+import surf.abm.tests.{TestNetworks, UnitSpec}
+
+/**
+  * Tests for the nearest destinations along the roads to each node.
+  */
+class NetworkCandidatesSpec extends UnitSpec {
+
+  // Tests consist of a *subject*, a *verb* (either 'should', 'must', or 'can') and the rest of the sentence
+
+  /** Some destinations that aren't on the road that isn't connected to the others */
+  private def destinations(graph: CompactGraph, n: Int): (Array[Int], Array[Double]) = {
+    val random = new scala.util.Random(2)
+    val nodes = Array.fill(n) {
+      var v = random.nextInt(graph.getNumNodes)
+      while (graph.getX(v) >= 500) v = random.nextInt(graph.getNumNodes)
+      v
+    }
+    (nodes, Array.fill(n)(random.nextDouble() * 5))
+  }
+
+  "A NetworkCandidates" should "find the destinations that are closest along the roads" in {
+    val graph = TestNetworks.grid(10, 10, island = true)
+    val (nodes, access) = destinations(graph, 30)
+    val candidates = NetworkCandidates.build(graph, 5, nodes, access)
+    val fromDestination = nodes.map(Landmarks.dijkstra(graph, _))
+    for (v <- 0 until graph.getNumNodes if graph.getX(v) < 500) {
+      val expected = nodes.indices.map(d => fromDestination(d)(v) + access(d)).filterNot(_.isInfinite).sorted.take(5)
+      candidates.count(v) should be (expected.size)
+      val found = (0 until candidates.count(v)).map(i => candidates.candidate(v, i))
+      found.distinct.size should be (found.size)
+      found.map(d => fromDestination(d)(v) + access(d)).sorted.zip(expected).foreach {
+        case (a, b) => a should be (b +- 1e-9)
+      }
+    }
+  }
+
+  it should "not have candidates for nodes that can't reach any destinations" in {
+    val graph = TestNetworks.grid(10, 10, island = true)
+    val (nodes, access) = destinations(graph, 10)
+    val candidates = NetworkCandidates.build(graph, 3, nodes, access)
+    val isolated = (0 until graph.getNumNodes).filter(graph.getX(_) >= 500)
+    isolated should not be empty
+    for (v <- isolated) {
+      candidates.count(v) should be (0)
+      candidates.random(v, new MersenneTwisterFast(1)) should be (-1)
+    }
+  }
+
+  it should "only choose from a node's candidates" in {
+    val graph = TestNetworks.grid(10, 10, island = true)
+    val (nodes, access) = destinations(graph, 30)
+    val candidates = NetworkCandidates.build(graph, 4, nodes, access)
+    val random = new MersenneTwisterFast(3)
+    val v = nodes(0)
+    val allowed = (0 until candidates.count(v)).map(candidates.candidate(v, _)).toSet
+    allowed should contain (0)
+    val chosen = (0 until 200).map(_ => candidates.random(v, random)).toSet
+    chosen should be (allowed)
+  }
+
+}
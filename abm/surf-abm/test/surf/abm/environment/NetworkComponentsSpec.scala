@@ -0,0 +1,69 @@
+package surf.abm.environment
+
+import com.vividsolutions.jts.geom.{Coordinate, GeometryFactory}
+import sim.field.geo.GeomVectorField
+import sim.util.geo.MasonGeometry
+import surf.abm.main.SurfGeometry
+import surf.abm.tests.UnitSpec
+
+/**
+  * Tests for finding the parts of the road network that are connected to each other.
+  */
+class NetworkComponentsSpec extends UnitSpec {
+
+  // Tests consist of a *subject*, a *verb* (either 'should', 'must', or 'can') and the rest of the sentence
+
+  private val fact = new GeometryFactory()
+
+  /** A network made from roads, each given as (x1, y1, x2, y2). The roads' IDs are their positions in the list. */
+  private def makeGraph(roads: (Double, Double, Double, Double)*): CompactGraph = {
+    val field = new GeomVectorField()
+    for (((x1, y1, x2, y2), id) <- roads.zipWithIndex) {
+      val line = fact.createLineString(Array(new Coordinate(x1, y1), new Coordinate(x2, y2)))
+      field.addGeometry(SurfGeometry[Road](new MasonGeometry(line), Road(id, -1)))
+    }
+    val network = new GeomPlanarGraphSurf()
+    network.createFromGeomField(field)
+    network.compile()
+  }
+
+  "A NetworkComponents" should "find that a connected network has one component" in {
+    val graph = makeGraph((0, 0, 1, 0), (1, 0, 1, 1), (1, 1, 0, 0))
+    val components = NetworkComponents.analyse(graph)
+    components.isConnected should be (true)
+    components.getNumComponents should be (1)
+    components.size(0) should be (3)
+  }
+
+  it should "number the components from the largest to the smallest" in {
+    val graph = makeGraph(
+      (10, 10, 11, 10), // An island with two nodes
+      (0, 0, 1, 0), (1, 0, 2, 0), (2, 0, 3, 0), // The main network, with four nodes
+      (20, 20, 21, 20), (21, 20, 22, 20) // An island with three nodes
+    )
+    val components = NetworkComponents.analyse(graph)
+    components.isConnected should be (false)
+    components.getNumComponents should be (3)
+    (0 until 3).map(components.size) should be (Seq(4, 3, 2))
+    for (e <- 0 until graph.getNumEdges) {
+      val id = graph.getEdge(e).getGeometry.theObject.asInstanceOf[Road].id
+      components.edgeComponent(e) should be (if (id == 0) 2 else if (id >= 4) 1 else 0)
+    }
+  }
+
+  it should "put both ends of every road in the same component" in {
+    val random = new scala.util.Random(1)
+    val roads = for (_ <- 0 until 300) yield {
+      val (x, y) = (random.nextInt(30).toDouble, random.nextInt(30).toDouble)
+      if (random.nextBoolean()) (x, y, x + 1, y) else (x, y, x, y + 1)
+    }
+    val graph = makeGraph(roads: _*)
+    val components = NetworkComponents.analyse(graph)
+    (0 until components.getNumComponents).map(components.size).sum should be (graph.getNumNodes)
+    for (v <- 0 until graph.getNumNodes; s <- graph.firstSlot(v) until graph.endSlot(v)) {
+      components.component(graph.target(s)) should be (components.component(v))
+      components.edgeComponent(graph.edgeId(s)) should be (components.component(v))
+    }
+  }
+
+}
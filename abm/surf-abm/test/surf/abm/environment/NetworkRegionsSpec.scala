@@ -0,0 +1,52 @@
+package surf.abm.environment
+
+import surf.abm.tests.{TestNetworks, UnitSpec}
+
+/**
+  * Tests for splitting the road network into regions.
+  */
+class NetworkRegionsSpec extends UnitSpec {
+
+  // Tests consist of a *subject*, a *verb* (either 'should', 'must', or 'can') and the rest of the sentence
+
+  "A NetworkRegions" should "give each region about the same number of nodes" in {
+    val graph = TestNetworks.grid(40, 20)
+    for (n <- Seq(2, 3, 4, 7)) {
+      val regions = NetworkRegions.partition(graph, n)
+      regions.getNumRegions should be (n)
+      val sizes = (0 until n).map(regions.size)
+      sizes.sum should be (graph.getNumNodes)
+      for (s <- sizes) {
+        s.toDouble should be ((graph.getNumNodes.toDouble / n) +- (graph.getNumNodes * 0.05))
+      }
+    }
+  }
+
+  it should "put each node in the region that its position is in" in {
+    val graph = TestNetworks.grid(40, 20)
+    val regions = NetworkRegions.partition(graph, 5)
+    for (v <- 0 until graph.getNumNodes) {
+      regions.region(v) should be (regions.regionAt(graph.getX(v), graph.getY(v)))
+    }
+    // Points outside the network are still in a region
+    regions.regionAt(-1000, 1000) should (be >= 0 and be < 5)
+  }
+
+  it should "split across the longer side first" in {
+    val graph = TestNetworks.grid(40, 20)
+    val regions = NetworkRegions.partition(graph, 2)
+    regions.regionAt(10, 100) should be (0)
+    regions.regionAt(380, 100) should be (1)
+    regions.getNumCutEdges should be > 0
+    regions.getNumCutEdges should be <= 20 // (Only the roads across the middle of the grid)
+  }
+
+  it should "have one region that is the whole network if there is only one" in {
+    val graph = TestNetworks.grid(40, 20)
+    val regions = NetworkRegions.partition(graph, 1)
+    regions.size(0) should be (graph.getNumNodes)
+    regions.getNumCutEdges should be (0)
+    an [IllegalArgumentException] should be thrownBy NetworkRegions.partition(graph, 0)
+  }
+
+}
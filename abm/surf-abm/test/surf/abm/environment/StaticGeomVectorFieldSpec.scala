@@ -0,0 +1,66 @@
+package surf.abm.environment
+
+import com.vividsolutions.jts.geom.{Coordinate, GeometryFactory}
+import sim.util.geo.MasonGeometry
+import surf.abm.tests.UnitSpec
+
+/**
+  * Tests for the field that indexes objects that don't move.
+  */
+class StaticGeomVectorFieldSpec extends UnitSpec {
+
+  // Tests consist of a *subject*, a *verb* (either 'should', 'must', or 'can') and the rest of the sentence
+
+  private val fact = new GeometryFactory()
+  private def point(x: Double, y: Double) = new MasonGeometry(fact.createPoint(new Coordinate(x, y)))
+
+  // A field with an index of a few points along a line
+  private def field(): (StaticGeomVectorField, IndexedSeq[MasonGeometry]) = {
+    val f = new StaticGeomVectorField(10, 10)
+    val points = (0 until 5).map(i => point(i * 10, 0))
+    points.foreach(f.addGeometry)
+    f.buildNearestNeighbourIndex()
+    (f, points)
+  }
+
+  "A StaticGeomVectorField" should "find the nearest object with its index" in {
+    val (f, points) = field()
+    f.hasNearestNeighbourIndex should be (true)
+    f.nearest(point(21, 1)) should be theSameInstanceAs (points(2))
+  }
+
+  it should "throw its index away when a geometry is added" in {
+    val (f, _) = field()
+    f.addGeometry(point(100, 0))
+    f.hasNearestNeighbourIndex should be (false)
+    an [IllegalStateException] should be thrownBy f.nearest(point(0, 0))
+  }
+
+  it should "throw its index away when a geometry is removed" in {
+    val (f, points) = field()
+    f.removeGeometry(points(2))
+    f.hasNearestNeighbourIndex should be (false)
+    an [IllegalStateException] should be thrownBy f.nearest(point(21, 1))
+    an [IllegalStateException] should be thrownBy f.kNearest(point(21, 1), 2, new java.util.ArrayList[MasonGeometry]())
+    // Once the index has been built again it works, and the removed point isn't found any more
+    f.buildNearestNeighbourIndex()
+    f.hasNearestNeighbourIndex should be (true)
+    f.nearest(point(21, 1)) should be theSameInstanceAs (points(3))
+    val two = new java.util.ArrayList[MasonGeometry]()
+    f.kNearest(point(21, 1), 2, two) should be (2)
+    two.contains(points(2)) should be (false)
+  }
+
+  it should "throw its index away when it is cleared" in {
+    val (f, _) = field()
+    f.clear()
+    f.hasNearestNeighbourIndex should be (false)
+    an [IllegalStateException] should be thrownBy f.nearest(point(0, 0))
+    // Once the index has been built again it only finds the new objects
+    val p = point(50, 50)
+    f.addGeometry(p)
+    f.buildNearestNeighbourIndex()
+    f.nearest(point(0, 0)) should be theSameInstanceAs (p)
+  }
+
+}
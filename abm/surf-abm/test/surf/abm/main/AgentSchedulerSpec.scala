@@ -0,0 +1,64 @@
+package surf.abm.main
+
+import sim.engine.{SimState, Steppable}
+import surf.abm.agents.abbf.ABBFAgent
+import surf.abm.tests.{TestModel, UnitSpec}
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable.ArrayBuffer
+
+/**
+  * Tests for the way that agents are stepped. These run a whole model (see TestModel).
+  */
+class AgentSchedulerSpec extends UnitSpec {
+
+  // Tests consist of a *subject*, a *verb* (either 'should', 'must', or 'can') and the rest of the sentence
+
+  /**
+    * Run the model for a day and describe what every agent was doing in each iteration: its current activity,
+    * whether that had just changed, and the intensities of all of its activities. The agents are looked at when the
+    * outputter would look at them (after they have been stepped, but before the iteration has finished).
+    *
+    * @param wakeAll Whether to step every agent every iteration, even if it said it didn't need to be
+    * @return The descriptions, and the number of times that an agent was left alone
+    */
+  private def runForADay(name: String, wakeAll: Boolean): (IndexedSeq[String], Int) = {
+    val (replication, state) = TestModel.start(name, 1L)
+    replication.run {
+      val agents = state.agentGeoms.getGeometries.asScala.map(_.asInstanceOf[SurfGeometry[_]].theObject)
+        .collect { case a: ABBFAgent => a }.toIndexedSeq
+      val seen = ArrayBuffer[String]()
+      var skipped = 0
+      state.schedule.scheduleRepeating(new Steppable {
+        override def step(s: SimState): Unit = for (a <- agents) {
+          a.updateIntensities()
+          // (Activities are sorted by name because the order of the set depends on the objects' hash codes)
+          val intensities = a.activities.toSeq.map(x => s"$x=${x.intensity()}").sorted.mkString(",")
+          seen += s"$a ${a.currentActivity()} ${a.changedActivity()} $intensities"
+        }
+      }, SurfABM.OUTPUTTER_STEP, 1)
+      for (_ <- 0 until SurfABM.ticksPerDay.toInt) {
+        if (wakeAll) {
+          agents.foreach(a => a.nextWake = 0)
+        }
+        skipped += agents.count(a => a.nextWake > state.schedule.getSteps)
+        state.schedule.step(state)
+      }
+      state.finish()
+      (seen, skipped)
+    }
+  }
+
+  "An event-driven run" should "be identical to one where every agent is stepped every iteration" in {
+    TestModel.load()
+    val (everyIteration, _) = runForADay("every iteration", wakeAll = true)
+    val (eventDriven, skipped) = runForADay("event-driven", wakeAll = false)
+    everyIteration should not be empty
+    skipped should be > 0 // (Otherwise there is nothing to compare)
+    eventDriven.size should be (everyIteration.size)
+    for ((e, i) <- eventDriven.zip(everyIteration)) {
+      e should be (i)
+    }
+  }
+
+}
@@ -0,0 +1,67 @@
+package surf.abm.main
+
+import surf.abm.main.Calibration.Sample
+import surf.abm.tests.UnitSpec
+
+/**
+  * Tests for the parts of the calibration that don't need a model.
+  */
+class CalibrationSpec extends UnitSpec {
+
+  // Tests consist of a *subject*, a *verb* (either 'should', 'must', or 'can') and the rest of the sentence
+
+  "A Calibration" should "read priors" in {
+    Calibration.prior("BaseMoveRate=0.5:2") should be (Calibration.Prior("BaseMoveRate", 0.5, 2.0))
+    Calibration.prior("ActivityRates.Shopping=0:3").name should be ("ActivityRates.Shopping")
+    an [Exception] should be thrownBy Calibration.prior("BaseMoveRate=2")
+    an [Exception] should be thrownBy Calibration.prior("BaseMoveRate=2:1")
+  }
+
+  it should "only make the distance bigger as more hours are compared" in {
+    val differences = Seq(3.0, 0.0, 5.0, 1.0)
+    val partial = differences.scanLeft(0d)((sum, d) => sum + d * d).map(Calibration.distance(_, differences.size))
+    partial.zip(partial.tail).foreach { case (a, b) => b should be >= a }
+    partial.last should be (math.sqrt(35.0 / 4) +- 1e-12)
+  }
+
+  it should "set the tolerance so that some of the distances are below it" in {
+    val distances = Seq(5.0, 1.0, 4.0, 2.0, 3.0)
+    Calibration.quantile(distances, 0.5) should be (3.0)
+    Calibration.quantile(distances, 1.0) should be (5.0)
+    Calibration.quantile(distances, 0.0) should be (1.0)
+  }
+
+  it should "perturb parameters by more if the particles are more spread out" in {
+    val priors = Seq(Calibration.Prior("a", 0, 10), Calibration.Prior("b", 0, 10))
+    val population = Seq(Sample(Array(1.0, 5.0), 1, 0, 0.5), Sample(Array(9.0, 5.0), 2, 0, 0.5))
+    val scales = Calibration.kernelScales(population, priors)
+    scales(0) should be (math.sqrt(2 * 16.0) +- 1e-9)
+    scales(1) should be > 0.0
+    scales(1) should be < 1e-3
+  }
+
+  it should "give more weight to particles that were less likely to be proposed" in {
+    val population = Seq(Sample(Array(0.0), 1, 0, 0.9), Sample(Array(10.0), 2, 0, 0.1))
+    val weights = Calibration.importanceWeights(Seq(Array(0.0), Array(10.0)), population, Array(1.0),
+      Seq(Calibration.Prior("a", -100, 100)))
+    weights.sum should be (1.0 +- 1e-9)
+    weights(1) should be > weights(0)
+    weights(1) / weights(0) should be (9.0 +- 1e-6)
+  }
+
+  it should "allow for the kernel being truncated to the priors" in {
+    // Half of the perturbations of the particle on the edge of the prior are thrown away, so the ones that are kept
+    // are twice as likely as those of the particle in the middle
+    val population = Seq(Sample(Array(0.0), 1, 0, 0.5), Sample(Array(5.0), 2, 0, 0.5))
+    val weights = Calibration.importanceWeights(Seq(Array(0.0), Array(5.0)), population, Array(0.1),
+      Seq(Calibration.Prior("a", 0, 10)))
+    weights(1) / weights(0) should be (2.0 +- 1e-5)
+  }
+
+  "The normal distribution function" should "be close to the tabulated values" in {
+    Calibration.normalCdf(0) should be (0.5 +- 1e-7)
+    Calibration.normalCdf(1.96) should be (0.9750021 +- 1e-6)
+    Calibration.normalCdf(-1) should be (0.1586553 +- 1e-6)
+  }
+
+}
@@ -0,0 +1,38 @@
+package surf.abm.main
+
+import surf.abm.tests.UnitSpec
+
+/**
+  * Tests for finding the row of the count matrix for each camera.
+  */
+class CameraRowsSpec extends UnitSpec {
+
+  // Tests consist of a *subject*, a *verb* (either 'should', 'must', or 'can') and the rest of the sentence
+
+  "A CameraRows" should "give each camera the row of its position in the list" in {
+    val rows = new CameraRows(Seq(5, 0, 12))
+    rows(5) should be (0)
+    rows(0) should be (1)
+    rows(12) should be (2)
+    rows(1) should be (-1)
+    rows(13) should be (-1)
+    rows(-1) should be (-1) // (A road without a camera)
+  }
+
+  it should "cope with camera IDs that are too big to index an array" in {
+    val big = Int.MaxValue - 1
+    val rows = new CameraRows(Seq(3, big, CameraRows.MAX_ARRAY_SIZE))
+    rows(3) should be (0)
+    rows(big) should be (1)
+    rows(CameraRows.MAX_ARRAY_SIZE) should be (2)
+    rows(4) should be (-1)
+    rows(-1) should be (-1)
+  }
+
+  it should "not allow negative or duplicated camera IDs" in {
+    the [Exception] thrownBy new CameraRows(Seq(1, -2)) should have message
+      "ERROR! Camera -2 in the CameraList is negative. Camera IDs must be 0 or more."
+    an [Exception] should be thrownBy new CameraRows(Seq(1, 2, 1))
+  }
+
+}
@@ -0,0 +1,84 @@
+package surf.abm.main
+
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream, File, IOException}
+import java.nio.file.Files
+
+import surf.abm.tests.{TestModel, UnitSpec}
+
+/** A singleton that can't be serialized (it has a field that isn't Serializable) */
+object CheckpointSpecSingleton extends Serializable {
+  val lock = new Object
+}
+
+/**
+  * Tests for the streams that write checkpoints.
+  */
+class CheckpointSpec extends UnitSpec {
+
+  // Tests consist of a *subject*, a *verb* (either 'should', 'must', or 'can') and the rest of the sentence
+
+  private def roundTrip(o: AnyRef, writeEnvironment: Array[AnyRef], readEnvironment: Array[AnyRef]): AnyRef = {
+    val bytes = new ByteArrayOutputStream()
+    val out = new CheckpointOutputStream(bytes, writeEnvironment)
+    out.writeObject(o)
+    out.close()
+    val in = new CheckpointInputStream(new ByteArrayInputStream(bytes.toByteArray), readEnvironment)
+    try in.readObject() finally in.close()
+  }
+
+  "A checkpoint" should "refer to objects in the environment rather than copying them" in {
+    val building = Array(1, 2, 3)
+    val road = "road"
+    val copy = roundTrip(List(building, road, Array(1, 2, 3)), Array(building, road), Array(building, road))
+      .asInstanceOf[List[AnyRef]]
+    copy(0) should be theSameInstanceAs (building)
+    copy(1) should be theSameInstanceAs (road)
+    copy(2) should not be theSameInstanceAs (building)
+  }
+
+  it should "restore references to the environment of the model that reads it" in {
+    val before = new Object
+    val after = new java.util.Date(0)
+    roundTrip(Some(before), Array(before), Array(after)) should be (Some(after))
+  }
+
+  it should "refer to singletons rather than writing their fields" in {
+    val copy = roundTrip(List(CheckpointSpecSingleton, None), Array.empty, Array.empty).asInstanceOf[List[AnyRef]]
+    copy(0) should be theSameInstanceAs (CheckpointSpecSingleton)
+    copy(1) should be theSameInstanceAs (None)
+  }
+
+  it should "only treat singleton objects as singletons" in {
+    CheckpointOutputStream.moduleName(CheckpointSpecSingleton) should be ("surf.abm.main.CheckpointSpecSingleton$")
+    CheckpointOutputStream.moduleName("CheckpointSpecSingleton$") should be (null)
+    CheckpointOutputStream.moduleName(new Object) should be (null)
+  }
+
+  it should "be read back as a model that carries on from the same iteration" in {
+    TestModel.load()
+    val (replication, state) = TestModel.start("written", 1L)
+    replication.run { for (_ <- 0 until 10) state.schedule.step(state) }
+    val file = File.createTempFile("model", ".checkpoint")
+    file.deleteOnExit()
+    replication.run(Checkpoint.write(state, file))
+    new File(file.getPath + ".tmp").exists() should be (false)
+    val restored = new Replication("restored", writeOutput = false)
+    val copy = Checkpoint.read(file, restored)
+    copy.schedule.getSteps should be (state.schedule.getSteps)
+    restored.run(copy.schedule.step(copy)) should be (true)
+    replication.run(state.finish())
+    restored.run(copy.finish())
+  }
+
+  it should "not leave a temporary file behind if it can't be written" in {
+    TestModel.load()
+    val (replication, state) = TestModel.start("checkpoint", 1L)
+    // A directory with something in it can't be replaced by the checkpoint
+    val file = Files.createTempDirectory("checkpoint").toFile
+    new File(file, "blocker").createNewFile()
+    an [IOException] should be thrownBy replication.run(Checkpoint.write(state, file))
+    new File(file.getPath + ".tmp").exists() should be (false)
+    replication.run(state.finish())
+  }
+
+}
@@ -0,0 +1,61 @@
+package surf.abm.main
+
+import java.time.LocalDate
+
+import surf.abm.tests.UnitSpec
+
+/**
+  * Tests for the parts of the particle filter that don't need a model.
+  */
+class ParticleFilterSpec extends UnitSpec {
+
+  // Tests consist of a *subject*, a *verb* (either 'should', 'must', or 'can') and the rest of the sentence
+
+  "A ParticleFilter" should "choose each particle about as many times as its weight says" in {
+    val weights = Array(0.5, 0.25, 0.125, 0.125)
+    for (u <- Seq(0.0, 0.3, 0.6, 0.99)) {
+      val copies = ParticleFilter.resample(weights, u)
+      copies.sum should be (weights.length)
+      for ((c, w) <- copies.zip(weights)) {
+        c should (be >= math.floor(w * weights.length).toInt and be <= math.ceil(w * weights.length).toInt)
+      }
+    }
+  }
+
+  it should "never choose a particle that has no weight" in {
+    val copies = ParticleFilter.resample(Array(0.0, 1.0, 0.0), 0.5)
+    copies should be (Array(0, 3, 0))
+  }
+
+  it should "prefer particles whose counts are closer to the observations" in {
+    val observed = Seq(10L, 20L, 30L)
+    val close = ParticleFilter.logLikelihood(Seq(11L, 19L, 30L), observed, 5)
+    val far = ParticleFilter.logLikelihood(Seq(30L, 0L, 60L), observed, 5)
+    close should be > far
+    val weights = ParticleFilter.weights(Array(close, far))
+    weights.sum should be (1.0 +- 1e-9)
+    weights(0) should be > weights(1)
+  }
+
+  it should "have weights even if all of the likelihoods are tiny" in {
+    val weights = ParticleFilter.weights(Array(-5000.0, -5001.0, -5000.0))
+    weights.foreach(w => w.isNaN should be (false))
+    weights(0) should be (weights(2) +- 1e-12)
+    ParticleFilter.effectiveSampleSize(Array(0.25, 0.25, 0.25, 0.25)) should be (4.0 +- 1e-9)
+    ParticleFilter.effectiveSampleSize(Array(1.0, 0.0, 0.0)) should be (1.0 +- 1e-9)
+  }
+
+  it should "read observations into the rows and columns of the camera counts" in {
+    val lines = Iterator(
+      "Camera,Date,Hour,Count",
+      "3,2011-01-01,8,5", // The first hour of the model
+      "7,2011-01-02,9,12", // 25 hours later
+      "7,2011-01-02,9,1", // The same camera and hour again
+      "5,2011-01-01,9,4", // Not one of the model's cameras
+      "3,2011-01-01,7,2" // Before the model starts
+    )
+    val observations = ParticleFilter.parseObservations(lines, Seq(3, 7), LocalDate.of(2011, 1, 1), 8)
+    observations should be (Map((0, 0) -> 5L, (1, 25) -> 13L))
+  }
+
+}
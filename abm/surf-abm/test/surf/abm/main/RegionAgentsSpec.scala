@@ -0,0 +1,135 @@
+package surf.abm.main
+
+import java.io.{ByteArrayOutputStream, File, ObjectOutputStream}
+import java.nio.file.Files
+
+import surf.abm.agents.abbf.{ABBFAgent, ABBFAgentLoader, ActivityEngine}
+import surf.abm.environment.NetworkRegions
+import surf.abm.tests.{TestModel, UnitSpec}
+
+import scala.collection.JavaConverters._
+import scala.io.Source
+
+/**
+  * Tests for the agents in one region of a distributed model. These run a whole model (see TestModel).
+  */
+class RegionAgentsSpec extends UnitSpec {
+
+  // Tests consist of a *subject*, a *verb* (either 'should', 'must', or 'can') and the rest of the sentence
+
+  private def abbfAgents(state: SurfABM): Seq[ABBFAgent] =
+    state.agentGeoms.getGeometries.asScala.map(_.asInstanceOf[SurfGeometry[_]].theObject)
+      .collect { case a: ABBFAgent => a }.toSeq
+
+  // The numbers in each of an agent's activities' slots (sorted by name, as the order of the set can change)
+  private def numbers(a: ABBFAgent): Seq[(String, Double, Double)] =
+    a.activities.toSeq.map(x => (x.toString, x.backgroundIntensity(), x.backgroundIncreasePerTick())).sortBy(_._1)
+
+  private def size(o: AnyRef): Int = {
+    val bytes = new ByteArrayOutputStream()
+    val out = new ObjectOutputStream(bytes)
+    try out.writeObject(o) finally out.close()
+    bytes.size()
+  }
+
+  "The agents of a distributed model" should "only be created in the region where they live" in {
+    TestModel.load()
+    val regions = NetworkRegions.partition(SurfABM.compactNetwork, 2)
+    val ids = for (region <- 0 until 2) yield new Replication(s"region-$region", writeOutput = false).run {
+      val state = new SurfABM(1L)
+      val agents = new RegionAgents(regions, region, 1L)
+      AgentScheduler.distribute(agents)
+      state.start()
+      agents.agents.foreach(a => agents.regionOf(a) should be (region))
+      state.agentGeoms.getGeometries.size should be (agents.agents.size)
+      // (The agents that live in the other region haven't used any of the engine's slots)
+      ActivityEngine().used should be (abbfAgents(state).map(_.activities.size).sum)
+      state.finish()
+      agents.agents.map(_.id())
+    }
+    // Every agent is in one region or the other, with the ID that it would have had in the other region's process
+    (ids(0) ++ ids(1)).sorted should be (0 until ABBFAgentLoader.N)
+  }
+
+  "An agent that moves to another region" should "take the numbers in its activities' slots with it" in {
+    TestModel.load()
+    val (source, from) = TestModel.start("from", 1L)
+    val (destination, to) = TestModel.start("to", 2L)
+    source.run { for (_ <- 0 until 100) from.schedule.step(from) } // (So the intensities aren't where they started)
+    val agent = abbfAgents(from).head
+    val before = numbers(agent)
+
+    val bytes = source.run {
+      RegionAgents.write(Array(agent), CheckpointOutputStream.index(Checkpoint.environment :+ from))
+    }
+    val sourceEngine = ActivityEngine(source)
+    val used = sourceEngine.used
+    source.run(agent.release())
+    sourceEngine.used should be (used - agent.activities.size)
+
+    val destinationEngine = ActivityEngine(destination)
+    val destinationUsed = destinationEngine.used
+    val arrived = destination.run(RegionAgents.read(bytes, Checkpoint.environment :+ to)).head.asInstanceOf[ABBFAgent]
+    arrived.state should be theSameInstanceAs (to)
+    numbers(arrived) should be (before)
+    destinationEngine.used should be (destinationUsed + arrived.activities.size)
+    destination.run(arrived.highestActivity()) // (The agent knows where its new slots are)
+
+    source.run(from.finish())
+    destination.run(to.finish())
+  }
+
+  it should "not take the whole ActivityEngine with it" in {
+    TestModel.load()
+    val (replication, state) = TestModel.start("size", 1L)
+    val agent = abbfAgents(state).head
+    val bytes = replication.run {
+      RegionAgents.write(Array(agent), CheckpointOutputStream.index(Checkpoint.environment :+ state))
+    }
+    bytes.length should be < size(ActivityEngine(replication))
+    replication.run(state.finish())
+  }
+
+  "The outputter of a distributed model" should "write about the same agents in every iteration, whichever region they are in" in {
+    TestModel.load()
+    val regions = NetworkRegions.partition(SurfABM.compactNetwork, 2)
+    val dir = Files.createTempDirectory("regions").toFile
+    val workers = for (region <- 0 until 2) yield {
+      val replication = new Replication(s"region-$region", Some(new File(dir, s"region-$region")))
+      val agents = new RegionAgents(regions, region, 1L)
+      val state = replication.run {
+        val state = new SurfABM(1L)
+        AgentScheduler.distribute(agents)
+        state.start()
+        state
+      }
+      (replication, state, agents)
+    }
+    // Step both regions and then swap the agents that have moved, as the coordinator does
+    for (_ <- 0 until SurfABM.ticksPerDay.toInt) {
+      val leaving = for ((replication, state, agents) <- workers) yield replication.run {
+        state.schedule.step(state)
+        agents.emigrate()
+      }
+      for ((replication, _, agents) <- workers; l <- leaving; bytes <- l.get(agents.region)) {
+        replication.run(agents.immigrate(bytes))
+      }
+    }
+    workers.foreach { case (replication, state, _) => replication.run(state.finish()) }
+
+    // (iteration, agent, region) for every row of both regions' agents files
+    val rows = for (region <- 0 until 2;
+                    line <- Source.fromFile(new File(dir, s"region-$region/agents.csv")).getLines().drop(1).toList)
+      yield {
+        val columns = line.split(",")
+        (columns(0).toDouble, columns(2).toInt, region)
+      }
+    val sample = rows.map(_._2).toSet
+    sample.size should be (SurfABM.conf.getInt(TestModel.Name + ".NumAgentsToOutput"))
+    for ((_, iteration) <- rows.groupBy(_._1)) {
+      iteration.map(_._2).sorted should be (sample.toSeq.sorted) // (Each agent once, in one region or the other)
+    }
+    rows.groupBy(_._2).values.count(_.map(_._3).distinct.size > 1) should be > 0 // (Some of them moved)
+  }
+
+}
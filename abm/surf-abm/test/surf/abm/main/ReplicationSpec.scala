@@ -0,0 +1,51 @@
+package surf.abm.main
+
+import java.io.File
+import java.util.concurrent.atomic.AtomicInteger
+
+import surf.abm.tests.UnitSpec
+
+/**
+  * Tests for the state that is kept for each run of the model.
+  */
+class ReplicationSpec extends UnitSpec {
+
+  // Tests consist of a *subject*, a *verb* (either 'should', 'must', or 'can') and the rest of the sentence
+
+  private object Owner
+  private val newCounter = () => new AtomicInteger()
+
+  "A Replication" should "be the default one unless something is being run as part of another" in {
+    Replication.current should be theSameInstanceAs (Replication.default)
+    val r = new Replication("test", Some(new File("out")))
+    r.run { Replication.current } should be theSameInstanceAs (r)
+    Replication.current should be theSameInstanceAs (Replication.default)
+  }
+
+  it should "keep a separate state for each replication" in {
+    val a = new Replication("a")
+    val b = new Replication("b")
+    a.run { Replication.current.state(Owner, newCounter).incrementAndGet() }
+    a.run { Replication.current.state(Owner, newCounter).incrementAndGet() }
+    b.run { Replication.current.state(Owner, newCounter).incrementAndGet() }
+    a.state(Owner, newCounter).get() should be (2)
+    b.state(Owner, newCounter).get() should be (1)
+  }
+
+  it should "be passed on to threads that are started as part of it" in {
+    val r = new Replication("thread")
+    var seen: Replication = null
+    r.run {
+      val t = new Thread(new Runnable { override def run(): Unit = seen = Replication.current })
+      t.start()
+      t.join()
+    }
+    seen should be theSameInstanceAs (r)
+  }
+
+  it should "give its own values for the model's parameters" in {
+    val r = new Replication("parameters", parameters = Map("BaseMoveRate" -> 2.5))
+    r.run { Parameters("BaseMoveRate") } should be (2.5)
+  }
+
+}
@@ -0,0 +1,53 @@
+package surf.abm.surfutil
+
+import java.io.{File, StringWriter}
+import java.nio.file.Files
+
+import surf.abm.surfutil.AsyncOutputWriter.{ColumnType, Format}
+import surf.abm.tests.UnitSpec
+
+/**
+  * Tests for the background output writer and the reader for its binary files.
+  */
+class AsyncOutputWriterSpec extends UnitSpec {
+
+  // Tests consist of a *subject*, a *verb* (either 'should', 'must', or 'can') and the rest of the sentence
+
+  private val names = Array("Iterations", "Time", "Agent", "x")
+  private val types = Array(ColumnType.DOUBLE, ColumnType.STRING, ColumnType.LONG, ColumnType.DOUBLE)
+
+  // Write some rows using small batches (so that the writer has to wait for its thread sometimes)
+  private def write(dir: File, format: Format): File = {
+    val w = new AsyncOutputWriter(new File(dir, "out"), format, names, types, 7, 2)
+    for (i <- 0 until 1000) {
+      w.putDouble(i / 10).putString("Time" + (i / 100)).putLong(i).putDouble(i * 0.5).endRow()
+    }
+    w.close()
+    w.getFile
+  }
+
+  "An AsyncOutputWriter" should "write CSV files" in {
+    val dir = Files.createTempDirectory("output").toFile
+    val lines = Files.readAllLines(write(dir, Format.CSV).toPath)
+    lines.size() should be (1001)
+    lines.get(0) should be ("Iterations,Time,Agent,x")
+    lines.get(11) should be ("1.0,Time0,10,5.0")
+  }
+
+  it should "write binary files that can be read back as the same CSV" in {
+    val dir = Files.createTempDirectory("output").toFile
+    val csv = new String(Files.readAllBytes(write(dir, Format.CSV).toPath), "UTF-8")
+    val r = new ColumnarFileReader(write(dir, Format.BINARY))
+    val out = new StringWriter()
+    try r.writeCsv(out) finally r.close()
+    out.toString should be (csv)
+  }
+
+  it should "complain if a value is the wrong type" in {
+    val dir = Files.createTempDirectory("output").toFile
+    val w = new AsyncOutputWriter(new File(dir, "out"), Format.CSV, names, types, 10, 1)
+    an [IllegalStateException] should be thrownBy w.putLong(1)
+    w.close()
+  }
+
+}
@@ -5,6 +5,7 @@ import java.io.IOException
 import com.vividsolutions.jts.planargraph.Node
 import org.apache.log4j.Logger
 import sim.field.geo.GeomVectorField
+import surf.abm.environment.NetworkComponents
 import surf.abm.tests.UnitSpec
 
 /**
@@ -60,6 +61,22 @@ class CheckConnectedNetworkSpec extends UnitSpec {
 
   }
 
+  it should "find the 4 roads that are disconnected in the disconnected file" in {
+    val network = CheckConnectedNetwork.createNetwork(
+      CheckConnectedNetwork.readRoadsFile("./data/leeds-easel/roads_disconnected.shp")
+    )
+    CheckConnectedNetwork.checkDisconnected(network) should be (true)
+    val graph = network.compile()
+    CheckConnectedNetwork.disconnectedRoads(graph, NetworkComponents.analyse(graph)).size should be (4)
+  }
+
+  it should "find that the roads in the connected file are connected" in {
+    val network = CheckConnectedNetwork.createNetwork(
+      CheckConnectedNetwork.readRoadsFile("./data/leeds-easel/roads.shp")
+    )
+    CheckConnectedNetwork.checkDisconnected(network) should be (false)
+  }
+
   ignore should "return X nodes that are connected in the disconnected road file" in {
 
     val network = CheckConnectedNetwork.createNetwork(
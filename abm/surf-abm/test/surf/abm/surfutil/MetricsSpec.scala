@@ -0,0 +1,84 @@
+package surf.abm.surfutil
+
+import java.lang.management.ManagementFactory
+import javax.management.ObjectName
+
+import surf.abm.tests.UnitSpec
+
+/**
+  * Tests for the counters and histograms that the model records as it runs.
+  */
+class MetricsSpec extends UnitSpec {
+
+  // Tests consist of a *subject*, a *verb* (either 'should', 'must', or 'can') and the rest of the sentence
+
+  "A Metrics counter" should "add up what it is given" in {
+    val c = Metrics.counter("test.counter")
+    val before = c.getCount
+    c.increment()
+    c.add(10)
+    c.getCount should be (before + 11)
+    Metrics.counter("test.counter") should be theSameInstanceAs (c)
+  }
+
+  it should "count from many threads at once" in {
+    val c = Metrics.counter("test.threads")
+    val before = c.getCount
+    val threads = (0 until 4).map(_ => new Thread(new Runnable {
+      override def run(): Unit = for (_ <- 0 until 10000) c.increment()
+    }))
+    threads.foreach(_.start())
+    threads.foreach(_.join())
+    c.getCount should be (before + 40000)
+  }
+
+  "A Metrics histogram" should "know roughly how its values are distributed" in {
+    val h = Metrics.histogram("test.histogram")
+    for (v <- 1 to 100) h.record(v)
+    h.getCount should be (100)
+    h.getTotal should be (5050)
+    h.getMean should be (50.5 +- 1e-9)
+    h.getMax should be (100)
+    // The percentiles are only accurate to within a power of two
+    h.getMedian should (be >= 50L and be < 100L)
+    h.get99thPercentile should be (100)
+  }
+
+  it should "record nothing when metrics are turned off" in {
+    val h = Metrics.histogram("test.off")
+    val t = Metrics.timer("test.off.timer")
+    Metrics.setEnabled(false)
+    try {
+      h.record(5)
+      t.stop(t.start())
+    }
+    finally {
+      Metrics.setEnabled(true)
+    }
+    h.getCount should be (0)
+    t.getCount should be (0)
+  }
+
+  "A Metrics timer" should "time things" in {
+    val t = Metrics.timer("test.timer")
+    val start = t.start()
+    Thread.sleep(5)
+    t.stop(start)
+    t.getCount should be (1)
+    t.getTotalMillis should be >= 5.0
+    Metrics.summary() should include ("test.timer")
+  }
+
+  it should "not be confused with a histogram" in {
+    Metrics.histogram("test.notATimer")
+    an [IllegalArgumentException] should be thrownBy Metrics.timer("test.notATimer")
+  }
+
+  it should "be visible through JMX" in {
+    val t = Metrics.timer("test.jmx")
+    t.stop(t.start())
+    val name = new ObjectName("surf.abm:type=Timer,name=" + ObjectName.quote("test.jmx"))
+    ManagementFactory.getPlatformMBeanServer.getAttribute(name, "Count") should be (1L)
+  }
+
+}
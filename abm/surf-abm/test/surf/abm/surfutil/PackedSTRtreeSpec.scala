@@ -0,0 +1,65 @@
+package surf.abm.surfutil
+
+import com.vividsolutions.jts.geom.{Coordinate, GeometryFactory}
+import ec.util.MersenneTwisterFast
+import sim.util.geo.MasonGeometry
+import surf.abm.tests.UnitSpec
+
+import scala.collection.JavaConverters._
+
+/**
+  * Tests for the nearest-neighbour index.
+  */
+class PackedSTRtreeSpec extends UnitSpec {
+
+  // Tests consist of a *subject*, a *verb* (either 'should', 'must', or 'can') and the rest of the sentence
+
+  private val fact = new GeometryFactory()
+  private def point(x: Double, y: Double) = new MasonGeometry(fact.createPoint(new Coordinate(x, y)))
+
+  // Lots of random points (enough for the tree to have a few levels)
+  private val random = new MersenneTwisterFast(1L)
+  private val points = (0 until 2000).map(_ => point(random.nextDouble() * 1000, random.nextDouble() * 1000))
+  private val tree = new PackedSTRtree[MasonGeometry](points.asJava)
+
+  // The k nearest points, found the slow way
+  private def bruteForce(centre: MasonGeometry, k: Int) =
+    points.sortBy(p => centre.geometry.distance(p.geometry)).take(k)
+
+  "A PackedSTRtree" should "find the nearest object" in {
+    for (_ <- 0 until 100) {
+      val centre = point(random.nextDouble() * 1200 - 100, random.nextDouble() * 1200 - 100)
+      tree.nearest(centre.geometry, null) should be theSameInstanceAs bruteForce(centre, 1).head
+    }
+  }
+
+  it should "find the k nearest objects, nearest first" in {
+    val result = new java.util.ArrayList[MasonGeometry]()
+    for (k <- 1 to 20) {
+      val centre = point(random.nextDouble() * 1000, random.nextDouble() * 1000)
+      tree.kNearest(centre.geometry, k, null, result) should be (k)
+      result.asScala.map(p => centre.geometry.distance(p.geometry)) should be (
+        bruteForce(centre, k).map(p => centre.geometry.distance(p.geometry)))
+    }
+  }
+
+  it should "choose random objects from the k nearest" in {
+    val centre = point(500, 500)
+    val nearest = bruteForce(centre, 5).toSet
+    val chosen = (0 until 100).map(_ => tree.randomWithinKNearest(centre.geometry, 5, null, random)).toSet
+    chosen.subsetOf(nearest) should be (true)
+    chosen.size should be > 1
+  }
+
+  it should "ignore the excluded object" in {
+    val p = points(0)
+    tree.nearest(p.geometry, null) should be theSameInstanceAs p
+    tree.nearest(p.geometry, p) should not be theSameInstanceAs (p)
+  }
+
+  it should "return nothing if it is empty" in {
+    val empty = new PackedSTRtree[MasonGeometry](new java.util.ArrayList[MasonGeometry]())
+    empty.nearest(point(0, 0).geometry, null) should be (null)
+  }
+
+}
@@ -0,0 +1,64 @@
+package surf.abm.surfutil
+
+import surf.abm.tests.UnitSpec
+
+/**
+  * Tests for the matrix of counters used to count agents passing cameras.
+  */
+class StripedCounterMatrixSpec extends UnitSpec {
+
+  // Tests consist of a *subject*, a *verb* (either 'should', 'must', or 'can') and the rest of the sentence
+
+  "A StripedCounterMatrix" should "count in the open column" in {
+    val m = new StripedCounterMatrix(2, 1)
+    m.increment(0)
+    m.increment(0)
+    m.add(1, 5)
+    m.getNumColumns should be (1)
+    m.get(0, 0) should be (2)
+    m.get(1, 0) should be (5)
+  }
+
+  it should "start a new, empty, column" in {
+    val m = new StripedCounterMatrix(1, 1)
+    for (c <- 0 until 10) { // More columns than it had room for initially
+      for (_ <- 0 until c) m.increment(0)
+      m.nextColumn()
+    }
+    m.getNumColumns should be (11)
+    for (c <- 0 until 10) {
+      m.get(0, c) should be (c)
+    }
+    m.get(0, 10) should be (0)
+  }
+
+  it should "not lose counts when lots of threads count at once" in {
+    val m = new StripedCounterMatrix(3, 1)
+    val threads = (0 until 8).map(_ => new Thread(new Runnable {
+      override def run(): Unit = for (i <- 0 until 30000) m.increment(i % 3)
+    }))
+    threads.foreach(_.start())
+    threads.foreach(_.join())
+    m.nextColumn()
+    (0 until 3).map(m.get(_, 0)) should be (Seq(80000, 80000, 80000))
+  }
+
+  it should "complain about rows that don't exist" in {
+    val m = new StripedCounterMatrix(2, 1)
+    an [IndexOutOfBoundsException] should be thrownBy m.increment(2)
+  }
+
+  it should "count the same when the counters are packed together" in {
+    val m = new StripedCounterMatrix(1000, 1, true)
+    val threads = (0 until 8).map(_ => new Thread(new Runnable {
+      override def run(): Unit = for (i <- 0 until 30000) m.increment(i % 1000)
+    }))
+    threads.foreach(_.start())
+    threads.foreach(_.join())
+    m.nextColumn()
+    for (r <- 0 until 1000) {
+      m.get(r, 0) should be (8 * 30)
+    }
+  }
+
+}
@@ -0,0 +1,35 @@
+package surf.abm.tests
+
+import java.io.File
+
+import com.typesafe.config.ConfigValueFactory
+import org.scalatest.Assertions
+import surf.abm.main.{AgentScheduler, Replication, SurfABM}
+import surf.abm.surfutil.Util
+
+/**
+  * The model that tests which need a whole model run: ABBF-test (see surf-abm.conf), which has event-driven agents.
+  * Tests that use it are cancelled if its data isn't available (or if another model has already been loaded).
+  */
+object TestModel extends Assertions {
+
+  val Name = "ABBF-test"
+
+  /** Load the model, or cancel the test if it can't be */
+  def load(): Unit = {
+    assume(new File("data/campus-test/buildings.shp").exists, "(the campus-test data isn't available)")
+    Util.config(Util.config().withValue("ModelConfig", ConfigValueFactory.fromAnyRef(Name)))
+    assume(SurfABM.ModelConfig == Name && AgentScheduler.eventDriven, "(a different model has been loaded)")
+  }
+
+  /** Create and start a run of the model (which doesn't write any output) */
+  def start(name: String, seed: Long): (Replication, SurfABM) = {
+    val replication = new Replication(name, writeOutput = false)
+    (replication, replication.run {
+      val state = new SurfABM(seed)
+      state.start()
+      state
+    })
+  }
+
+}
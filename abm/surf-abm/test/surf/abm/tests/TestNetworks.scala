@@ -0,0 +1,45 @@
+package surf.abm.tests
+
+import com.vividsolutions.jts.geom.{Coordinate, GeometryFactory}
+import sim.field.geo.GeomVectorField
+import sim.util.geo.MasonGeometry
+import surf.abm.environment.{CompactGraph, GeomPlanarGraphSurf, Road}
+import surf.abm.main.SurfGeometry
+
+/**
+  * Road networks for tests.
+  */
+object TestNetworks {
+
+  private val fact = new GeometryFactory()
+
+  /**
+    * A grid of roads, 10 apart, with some of them missing at random (always the same ones, for the same arguments).
+    *
+    * @param width The number of nodes across the grid
+    * @param height The number of nodes up the grid
+    * @param keep The chance of each road being kept
+    * @param island Whether to add a road (from (500, 500) to (510, 500)) that isn't connected to the others
+    */
+  def grid(width: Int, height: Int, keep: Double = 0.8, island: Boolean = false): CompactGraph = {
+    val random = new scala.util.Random(1)
+    val roads = new GeomVectorField()
+    var id = 0
+    def road(x1: Double, y1: Double, x2: Double, y2: Double): Unit = {
+      val line = fact.createLineString(Array(new Coordinate(x1, y1), new Coordinate(x2, y2)))
+      roads.addGeometry(SurfGeometry[Road](new MasonGeometry(line), Road(id, -1)))
+      id += 1
+    }
+    for (i <- 0 until width; j <- 0 until height) {
+      if (i < width - 1 && random.nextDouble() < keep) road(i * 10, j * 10, (i + 1) * 10, j * 10)
+      if (j < height - 1 && random.nextDouble() < keep) road(i * 10, j * 10, i * 10, (j + 1) * 10)
+    }
+    if (island) {
+      road(500, 500, 510, 500)
+    }
+    val network = new GeomPlanarGraphSurf()
+    network.createFromGeomField(roads)
+    network.compile()
+  }
+
+}